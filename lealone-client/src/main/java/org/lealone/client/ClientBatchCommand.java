@@ -91,7 +91,7 @@ public class ClientBatchCommand implements BatchStatement {
         try {
             if (batchCommands != null) {
                 session.traceOperation("COMMAND_BATCH_STATEMENT_UPDATE", id);
-                transfer.writeInt(ClientSession.COMMAND_BATCH_STATEMENT_UPDATE);
+                transfer.writeRequestHeader(session.getNextRequestId(), ClientSession.COMMAND_BATCH_STATEMENT_UPDATE);
                 int size = batchCommands.size();
                 result = new int[size];
                 transfer.writeInt(size);
@@ -103,7 +103,8 @@ public class ClientBatchCommand implements BatchStatement {
                     result[i] = transfer.readInt();
             } else {
                 session.traceOperation("COMMAND_BATCH_STATEMENT_PREPARED_UPDATE", id);
-                transfer.writeInt(ClientSession.COMMAND_BATCH_STATEMENT_PREPARED_UPDATE).writeInt(id);
+                transfer.writeRequestHeader(session.getNextRequestId(),
+                        ClientSession.COMMAND_BATCH_STATEMENT_PREPARED_UPDATE).writeInt(id);
                 int size = batchParameters.size();
                 result = new int[size];
                 transfer.writeInt(size);
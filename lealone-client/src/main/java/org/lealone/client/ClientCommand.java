@@ -9,6 +9,7 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.sql.ResultSetMetaData;
 import java.util.ArrayList;
+import java.util.concurrent.Future;
 
 import org.lealone.api.ErrorCode;
 import org.lealone.client.result.ClientResult;
@@ -67,10 +68,10 @@ public class ClientCommand implements StorageCommand {
         try {
             if (createParams) {
                 s.traceOperation("COMMAND_PREPARE_READ_PARAMS", id);
-                transfer.writeInt(Session.COMMAND_PREPARE_READ_PARAMS);
+                transfer.writeRequestHeader(s.getNextRequestId(), Session.COMMAND_PREPARE_READ_PARAMS);
             } else {
                 s.traceOperation("COMMAND_PREPARE", id);
-                transfer.writeInt(Session.COMMAND_PREPARE);
+                transfer.writeRequestHeader(s.getNextRequestId(), Session.COMMAND_PREPARE);
             }
             transfer.writeInt(id).writeString(sql);
             s.done(transfer);
@@ -118,7 +119,8 @@ public class ClientCommand implements StorageCommand {
             prepareIfRequired();
             try {
                 session.traceOperation("COMMAND_GET_META_DATA", id);
-                transfer.writeInt(Session.COMMAND_GET_META_DATA).writeInt(id).writeInt(objectId);
+                transfer.writeRequestHeader(session.getNextRequestId(),
+                        Session.COMMAND_GET_META_DATA).writeInt(id).writeInt(objectId);
                 session.done(transfer);
                 int columnCount = transfer.readInt();
                 int rowCount = transfer.readInt();
@@ -153,10 +155,10 @@ public class ClientCommand implements StorageCommand {
             boolean isDistributedQuery = session.getTransaction() != null && !session.getTransaction().isAutoCommit();
             if (isDistributedQuery) {
                 session.traceOperation("COMMAND_DISTRIBUTED_TRANSACTION_QUERY", id);
-                transfer.writeInt(Session.COMMAND_DISTRIBUTED_TRANSACTION_QUERY);
+                transfer.writeRequestHeader(session.getNextRequestId(), Session.COMMAND_DISTRIBUTED_TRANSACTION_QUERY);
             } else {
                 session.traceOperation("COMMAND_QUERY", id);
-                transfer.writeInt(Session.COMMAND_QUERY);
+                transfer.writeRequestHeader(session.getNextRequestId(), Session.COMMAND_QUERY);
             }
             transfer.writeInt(id).writeString(sql).writeInt(objectId).writeInt(maxRows);
             int fetch;
@@ -195,10 +197,11 @@ public class ClientCommand implements StorageCommand {
             boolean isDistributedQuery = session.getTransaction() != null && !session.getTransaction().isAutoCommit();
             if (isDistributedQuery) {
                 session.traceOperation("COMMAND_DISTRIBUTED_TRANSACTION_PREPARED_QUERY", id);
-                transfer.writeInt(Session.COMMAND_DISTRIBUTED_TRANSACTION_PREPARED_QUERY);
+                transfer.writeRequestHeader(session.getNextRequestId(),
+                        Session.COMMAND_DISTRIBUTED_TRANSACTION_PREPARED_QUERY);
             } else {
                 session.traceOperation("COMMAND_PREPARED_QUERY", id);
-                transfer.writeInt(Session.COMMAND_PREPARED_QUERY);
+                transfer.writeRequestHeader(session.getNextRequestId(), Session.COMMAND_PREPARED_QUERY);
             }
             transfer.writeInt(id).writeInt(objectId).writeInt(maxRows);
             int fetch;
@@ -254,13 +257,13 @@ public class ClientCommand implements StorageCommand {
             boolean isDistributedUpdate = session.getTransaction() != null && !session.getTransaction().isAutoCommit();
             if (isDistributedUpdate) {
                 session.traceOperation("COMMAND_DISTRIBUTED_TRANSACTION_UPDATE", id);
-                transfer.writeInt(Session.COMMAND_DISTRIBUTED_TRANSACTION_UPDATE);
+                transfer.writeRequestHeader(session.getNextRequestId(), Session.COMMAND_DISTRIBUTED_TRANSACTION_UPDATE);
             } else if (replicationName != null) {
                 session.traceOperation("COMMAND_REPLICATION_UPDATE", id);
-                transfer.writeInt(Session.COMMAND_REPLICATION_UPDATE);
+                transfer.writeRequestHeader(session.getNextRequestId(), Session.COMMAND_REPLICATION_UPDATE);
             } else {
                 session.traceOperation("COMMAND_UPDATE", id);
-                transfer.writeInt(Session.COMMAND_UPDATE);
+                transfer.writeRequestHeader(session.getNextRequestId(), Session.COMMAND_UPDATE);
             }
             transfer.writeInt(id).writeString(sql);
             if (replicationName != null)
@@ -286,13 +289,14 @@ public class ClientCommand implements StorageCommand {
             boolean isDistributedUpdate = session.getTransaction() != null && !session.getTransaction().isAutoCommit();
             if (isDistributedUpdate) {
                 session.traceOperation("COMMAND_DISTRIBUTED_TRANSACTION_PREPARED_UPDATE", id);
-                transfer.writeInt(Session.COMMAND_DISTRIBUTED_TRANSACTION_PREPARED_UPDATE);
+                transfer.writeRequestHeader(session.getNextRequestId(),
+                        Session.COMMAND_DISTRIBUTED_TRANSACTION_PREPARED_UPDATE);
             } else if (replicationName != null) {
                 session.traceOperation("COMMAND_REPLICATION_PREPARED_UPDATE", id);
-                transfer.writeInt(Session.COMMAND_REPLICATION_PREPARED_UPDATE);
+                transfer.writeRequestHeader(session.getNextRequestId(), Session.COMMAND_REPLICATION_PREPARED_UPDATE);
             } else {
                 session.traceOperation("COMMAND_PREPARED_UPDATE", id);
-                transfer.writeInt(Session.COMMAND_PREPARED_UPDATE);
+                transfer.writeRequestHeader(session.getNextRequestId(), Session.COMMAND_PREPARED_UPDATE);
             }
             transfer.writeInt(id);
             if (replicationName != null)
@@ -312,6 +316,50 @@ public class ClientCommand implements StorageCommand {
         return updateCount;
     }
 
+    /**
+     * Send the update to the server without waiting for the response,
+     * so that the client can send more requests while the server is executing this one.
+     *
+     * If the server does not support request ids or a distributed transaction is running,
+     * the update is executed synchronously and the returned future is already done.
+     *
+     * @return the future of the update count
+     */
+    public Future<Integer> executeUpdateAsync() {
+        synchronized (session) {
+            if (!session.isPipeliningSupported()
+                    || (session.getTransaction() != null && !session.getTransaction().isAutoCommit())) {
+                return ClientFuture.completed(update());
+            }
+            if (prepared) {
+                checkParameters();
+                prepareIfRequired();
+            }
+            int requestId = session.getNextRequestId();
+            ClientFuture<Integer> future = new ClientFuture<Integer>(session) {
+                @Override
+                protected Integer readResponse(Transfer transfer) throws IOException {
+                    return transfer.readInt();
+                }
+            };
+            try {
+                if (prepared) {
+                    session.traceOperation("COMMAND_PREPARED_UPDATE", id);
+                    transfer.writeRequestHeader(requestId, Session.COMMAND_PREPARED_UPDATE).writeInt(id);
+                    sendParameters(transfer);
+                } else {
+                    session.traceOperation("COMMAND_UPDATE", id);
+                    transfer.writeRequestHeader(requestId, Session.COMMAND_UPDATE).writeInt(id).writeString(sql);
+                }
+                session.addPendingFuture(requestId, future);
+                transfer.flush();
+            } catch (Exception e) {
+                session.handleException(e);
+            }
+            return future;
+        }
+    }
+
     private void checkParameters() {
         for (CommandParameter p : parameters) {
             p.checkSet();
@@ -334,7 +382,7 @@ public class ClientCommand implements StorageCommand {
         synchronized (session) {
             session.traceOperation("COMMAND_CLOSE", id);
             try {
-                transfer.writeInt(Session.COMMAND_CLOSE).writeInt(id);
+                transfer.writeRequestHeader(session.getNextRequestId(), Session.COMMAND_CLOSE).writeInt(id);
             } catch (IOException e) {
                 trace.error(e, "close");
             }
@@ -386,13 +434,13 @@ public class ClientCommand implements StorageCommand {
             boolean isDistributedUpdate = session.getTransaction() != null && !session.getTransaction().isAutoCommit();
             if (isDistributedUpdate) {
                 session.traceOperation("COMMAND_STORAGE_DISTRIBUTED_PUT", id);
-                transfer.writeInt(Session.COMMAND_STORAGE_DISTRIBUTED_PUT);
+                transfer.writeRequestHeader(session.getNextRequestId(), Session.COMMAND_STORAGE_DISTRIBUTED_PUT);
             } else if (replicationName != null) {
                 session.traceOperation("COMMAND_STORAGE_REPLICATION_PUT", id);
-                transfer.writeInt(Session.COMMAND_STORAGE_REPLICATION_PUT);
+                transfer.writeRequestHeader(session.getNextRequestId(), Session.COMMAND_STORAGE_REPLICATION_PUT);
             } else {
                 session.traceOperation("COMMAND_STORAGE_PUT", id);
-                transfer.writeInt(Session.COMMAND_STORAGE_PUT);
+                transfer.writeRequestHeader(session.getNextRequestId(), Session.COMMAND_STORAGE_PUT);
             }
             transfer.writeString(mapName).writeByteBuffer(key).writeByteBuffer(value);
             if (replicationName != null)
@@ -417,10 +465,10 @@ public class ClientCommand implements StorageCommand {
             boolean isDistributedUpdate = session.getTransaction() != null && !session.getTransaction().isAutoCommit();
             if (isDistributedUpdate) {
                 session.traceOperation("COMMAND_STORAGE_DISTRIBUTED_GET", id);
-                transfer.writeInt(Session.COMMAND_STORAGE_DISTRIBUTED_GET);
+                transfer.writeRequestHeader(session.getNextRequestId(), Session.COMMAND_STORAGE_DISTRIBUTED_GET);
             } else {
                 session.traceOperation("COMMAND_STORAGE_GET", id);
-                transfer.writeInt(Session.COMMAND_STORAGE_GET);
+                transfer.writeRequestHeader(session.getNextRequestId(), Session.COMMAND_STORAGE_GET);
             }
             transfer.writeString(mapName).writeByteBuffer(key);
             session.done(transfer);
@@ -440,7 +488,7 @@ public class ClientCommand implements StorageCommand {
     public void moveLeafPage(String mapName, ByteBuffer splitKey, ByteBuffer page) {
         try {
             session.traceOperation("COMMAND_STORAGE_MOVE_LEAF_PAGE", id);
-            transfer.writeInt(Session.COMMAND_STORAGE_MOVE_LEAF_PAGE);
+            transfer.writeRequestHeader(session.getNextRequestId(), Session.COMMAND_STORAGE_MOVE_LEAF_PAGE);
             transfer.writeString(mapName).writeByteBuffer(splitKey).writeByteBuffer(page);
             session.done(transfer);
         } catch (Exception e) {
@@ -453,7 +501,7 @@ public class ClientCommand implements StorageCommand {
     public void removeLeafPage(String mapName, ByteBuffer key) {
         try {
             session.traceOperation("COMMAND_STORAGE_REMOVE_LEAF_PAGE", id);
-            transfer.writeInt(Session.COMMAND_STORAGE_REMOVE_LEAF_PAGE);
+            transfer.writeRequestHeader(session.getNextRequestId(), Session.COMMAND_STORAGE_REMOVE_LEAF_PAGE);
             transfer.writeString(mapName).writeByteBuffer(key);
             session.done(transfer);
         } catch (Exception e) {
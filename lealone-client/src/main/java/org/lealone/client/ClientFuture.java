@@ -0,0 +1,150 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.client;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.lealone.api.ErrorCode;
+import org.lealone.common.exceptions.DbException;
+import org.lealone.db.value.Transfer;
+
+/**
+ * The result of a request that has been sent to the server without waiting for the response.
+ *
+ * The responses are read by the threads that wait for them: {@link #get()} reads the responses of
+ * the session in the order the server sends them until its own response arrives,
+ * the responses of other requests are handed over to their own futures by request id.
+ *
+ * @author zhh
+ */
+public abstract class ClientFuture<T> implements Future<T> {
+
+    private final ClientSession session;
+    private volatile boolean done;
+    private T result;
+    private DbException exception;
+
+    protected ClientFuture(ClientSession session) {
+        this.session = session;
+    }
+
+    /**
+     * Read the body of the response, the status has already been read.
+     *
+     * @param transfer the transfer object
+     * @return the result
+     */
+    protected abstract T readResponse(Transfer transfer) throws IOException;
+
+    /**
+     * Read the response of this request, called by the thread that is holding the session lock.
+     *
+     * @param transfer the transfer object
+     * @throws IOException if the connection is broken
+     * @throws DbException if the response can not be read
+     */
+    void complete(Transfer transfer) throws IOException {
+        try {
+            session.readStatus(transfer);
+            result = readResponse(transfer);
+        } catch (DbException e) {
+            exception = e;
+            // 后面的响应已经没法读了
+            if (e.getErrorCode() == ErrorCode.CONNECTION_BROKEN_1)
+                throw e;
+        } finally {
+            done = true;
+        }
+    }
+
+    void setResult(T result) {
+        this.result = result;
+        done = true;
+    }
+
+    void setException(DbException exception) {
+        this.exception = exception;
+        done = true;
+    }
+
+    /**
+     * The request has been sent, it can not be canceled any more.
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return false;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return false;
+    }
+
+    @Override
+    public boolean isDone() {
+        return done;
+    }
+
+    @Override
+    public T get() throws InterruptedException, ExecutionException {
+        if (!done)
+            session.waitFor(this);
+        return getResult();
+    }
+
+    /**
+     * The timeout only elapses while no response is arriving, a response that has started to arrive
+     * is always read completely. If another thread is reading the responses of the session,
+     * this thread waits for it first.
+     */
+    @Override
+    public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if (!done)
+            session.waitFor(this, unit.toMillis(timeout));
+        return getResult();
+    }
+
+    private T getResult() throws ExecutionException {
+        if (exception != null)
+            throw new ExecutionException(exception);
+        return result;
+    }
+
+    /**
+     * Create a future that is already done,
+     * used when the request has been executed synchronously.
+     *
+     * @param result the result
+     * @return the future
+     */
+    public static <T> ClientFuture<T> completed(T result) {
+        ClientFuture<T> f = new ClientFuture<T>(null) {
+            @Override
+            protected T readResponse(Transfer transfer) throws IOException {
+                throw DbException.throwInternalError();
+            }
+        };
+        f.setResult(result);
+        return f;
+    }
+
+}
@@ -9,7 +9,9 @@ import java.io.IOException;
 import java.net.Socket;
 import java.sql.Connection;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Random;
+import java.util.concurrent.TimeoutException;
 
 import org.lealone.api.ErrorCode;
 import org.lealone.common.exceptions.DbException;
@@ -57,6 +59,9 @@ public class ClientSession extends SessionBase implements DataHandler, Transacti
     private Trace trace;
     private Transfer transfer;
     private int nextId;
+    private int nextRequestId;
+    // 已经发出但还没有读取响应的异步请求，key是请求ID
+    private final HashMap<Integer, ClientFuture<?>> pendingFutures = new HashMap<>();
     private boolean autoCommit = true;
     private final ConnectionInfo connectionInfo;
     private String cipher;
@@ -167,7 +172,7 @@ public class ClientSession extends SessionBase implements DataHandler, Transacti
         trans.setSSL(ci.isSSL());
         trans.init();
         trans.writeInt(Constants.TCP_PROTOCOL_VERSION_1); // minClientVersion
-        trans.writeInt(Constants.TCP_PROTOCOL_VERSION_1); // maxClientVersion
+        trans.writeInt(Constants.TCP_PROTOCOL_VERSION_MAX); // maxClientVersion
         trans.writeString(ci.getDatabaseName());
         trans.writeString(ci.getURL()); // 不带参数的URL
         trans.writeString(ci.getUserName());
@@ -183,7 +188,7 @@ public class ClientSession extends SessionBase implements DataHandler, Transacti
             done(trans);
             clientVersion = trans.readInt();
             trans.setVersion(clientVersion);
-            trans.writeInt(Session.SESSION_SET_ID);
+            trans.writeRequestHeader(getNextRequestId(), Session.SESSION_SET_ID);
             trans.writeString(sessionId);
             done(trans);
             autoCommit = trans.readBoolean();
@@ -241,7 +246,7 @@ public class ClientSession extends SessionBase implements DataHandler, Transacti
     private void setAutoCommitSend(boolean autoCommit) {
         try {
             traceOperation("SESSION_SET_AUTOCOMMIT", autoCommit ? 1 : 0);
-            transfer.writeInt(Session.SESSION_SET_AUTO_COMMIT).writeBoolean(autoCommit);
+            transfer.writeRequestHeader(getNextRequestId(), Session.SESSION_SET_AUTO_COMMIT).writeBoolean(autoCommit);
             done(transfer);
         } catch (IOException e) {
             handleException(e);
@@ -306,7 +311,7 @@ public class ClientSession extends SessionBase implements DataHandler, Transacti
         synchronized (this) {
             try {
                 traceOperation("SESSION_CLOSE", 0);
-                transfer.writeInt(Session.SESSION_CLOSE);
+                transfer.writeRequestHeader(getNextRequestId(), Session.SESSION_CLOSE);
                 done(transfer);
                 transfer.close();
             } catch (RuntimeException e) {
@@ -337,6 +342,84 @@ public class ClientSession extends SessionBase implements DataHandler, Transacti
         return nextId;
     }
 
+    public int getNextRequestId() {
+        return nextRequestId++;
+    }
+
+    /**
+     * Check whether the requests can be pipelined, that is, whether the server puts the request id in the response.
+     *
+     * @return true if the negotiated protocol version supports request ids
+     */
+    public boolean isPipeliningSupported() {
+        return transfer != null && transfer.getVersion() >= Constants.TCP_PROTOCOL_VERSION_2;
+    }
+
+    /**
+     * Register a request whose response will be read later.
+     *
+     * @param requestId the request id
+     * @param future the future that reads the response
+     */
+    synchronized void addPendingFuture(int requestId, ClientFuture<?> future) {
+        pendingFutures.put(requestId, future);
+    }
+
+    /**
+     * Read the responses until the response of the given request has been read.
+     *
+     * @param future the future of the request
+     */
+    synchronized void waitFor(ClientFuture<?> future) {
+        readResponses(future, -1);
+    }
+
+    /**
+     * Read the responses until the response of the given request has been read or the timeout elapsed.
+     *
+     * @param future the future of the request
+     * @param timeoutMillis the maximum time to wait for the responses in milliseconds
+     * @throws TimeoutException if no response arrived before the timeout elapsed
+     */
+    synchronized void waitFor(ClientFuture<?> future, long timeoutMillis) throws TimeoutException {
+        if (!readResponses(future, timeoutMillis))
+            throw new TimeoutException();
+    }
+
+    private boolean readResponses(ClientFuture<?> future, long timeoutMillis) {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        try {
+            transfer.flush();
+            while (!future.isDone()) {
+                if (timeoutMillis >= 0 && !transfer.waitForInput(deadline - System.currentTimeMillis()))
+                    return false;
+                readPendingResponse(transfer, transfer.readRequestId());
+            }
+        } catch (IOException e) {
+            failPendingFutures(DbException.convertIOException(e, sessionId));
+            handleException(e);
+        } catch (DbException e) {
+            failPendingFutures(e);
+            throw e;
+        }
+        readSessionState();
+        return true;
+    }
+
+    private void readPendingResponse(Transfer transfer, int requestId) throws IOException {
+        ClientFuture<?> f = pendingFutures.remove(requestId);
+        if (f == null)
+            throw DbException.get(ErrorCode.CONNECTION_BROKEN_1, "unexpected request id " + requestId);
+        f.complete(transfer);
+    }
+
+    private void failPendingFutures(DbException e) {
+        for (ClientFuture<?> f : pendingFutures.values()) {
+            f.setException(e);
+        }
+        pendingFutures.clear();
+    }
+
     /**
      * Called to flush the output after data has been sent to the server and
      * just before receiving data. This method also reads the status code from
@@ -349,6 +432,37 @@ public class ClientSession extends SessionBase implements DataHandler, Transacti
      */
     public void done(Transfer transfer) throws IOException {
         transfer.flush();
+        if (transfer.getVersion() >= Constants.TCP_PROTOCOL_VERSION_2) {
+            // 先读取之前的异步请求的响应，服务器端是按请求的顺序返回响应的
+            try {
+                int requestId = transfer.readRequestId();
+                while (pendingFutures.containsKey(requestId)) {
+                    readPendingResponse(transfer, requestId);
+                    requestId = transfer.readRequestId();
+                }
+                // 同步请求总是最后一个分配了请求ID的请求
+                if (requestId != nextRequestId - 1)
+                    throw DbException.get(ErrorCode.CONNECTION_BROKEN_1, "unexpected request id " + requestId);
+            } catch (IOException e) {
+                failPendingFutures(DbException.convertIOException(e, sessionId));
+                throw e;
+            } catch (DbException e) {
+                failPendingFutures(e);
+                throw e;
+            }
+        }
+        readStatus(transfer);
+    }
+
+    /**
+     * Read the status code from the server and throw any exception the server sent.
+     *
+     * @param transfer the transfer object
+     * @throws DbException if the server sent an exception
+     * @throws IOException if there is a communication problem between client
+     *             and server
+     */
+    void readStatus(Transfer transfer) throws IOException {
         int status = transfer.readInt();
         if (status == STATUS_ERROR) {
             parseError(transfer);
@@ -479,7 +593,7 @@ public class ClientSession extends SessionBase implements DataHandler, Transacti
     public synchronized int readLob(long lobId, byte[] hmac, long offset, byte[] buff, int off, int length) {
         try {
             traceOperation("LOB_READ", (int) lobId);
-            transfer.writeInt(Session.COMMAND_READ_LOB);
+            transfer.writeRequestHeader(getNextRequestId(), Session.COMMAND_READ_LOB);
             transfer.writeLong(lobId);
             transfer.writeBytes(hmac);
             transfer.writeLong(offset);
@@ -501,7 +615,8 @@ public class ClientSession extends SessionBase implements DataHandler, Transacti
     public synchronized void commitTransaction(String allLocalTransactionNames) {
         checkClosed();
         try {
-            transfer.writeInt(Session.COMMAND_DISTRIBUTED_TRANSACTION_COMMIT).writeString(allLocalTransactionNames);
+            transfer.writeRequestHeader(getNextRequestId(),
+                    Session.COMMAND_DISTRIBUTED_TRANSACTION_COMMIT).writeString(allLocalTransactionNames);
             done(transfer);
         } catch (IOException e) {
             handleException(e);
@@ -512,7 +627,7 @@ public class ClientSession extends SessionBase implements DataHandler, Transacti
     public synchronized void rollbackTransaction() {
         checkClosed();
         try {
-            transfer.writeInt(Session.COMMAND_DISTRIBUTED_TRANSACTION_ROLLBACK);
+            transfer.writeRequestHeader(getNextRequestId(), Session.COMMAND_DISTRIBUTED_TRANSACTION_ROLLBACK);
             done(transfer);
         } catch (IOException e) {
             handleException(e);
@@ -523,7 +638,8 @@ public class ClientSession extends SessionBase implements DataHandler, Transacti
     public synchronized void addSavepoint(String name) {
         checkClosed();
         try {
-            transfer.writeInt(Session.COMMAND_DISTRIBUTED_TRANSACTION_ADD_SAVEPOINT).writeString(name);
+            transfer.writeRequestHeader(getNextRequestId(),
+                    Session.COMMAND_DISTRIBUTED_TRANSACTION_ADD_SAVEPOINT).writeString(name);
             done(transfer);
         } catch (IOException e) {
             handleException(e);
@@ -534,7 +650,8 @@ public class ClientSession extends SessionBase implements DataHandler, Transacti
     public synchronized void rollbackToSavepoint(String name) {
         checkClosed();
         try {
-            transfer.writeInt(Session.COMMAND_DISTRIBUTED_TRANSACTION_ROLLBACK_SAVEPOINT).writeString(name);
+            transfer.writeRequestHeader(getNextRequestId(),
+                    Session.COMMAND_DISTRIBUTED_TRANSACTION_ROLLBACK_SAVEPOINT).writeString(name);
             done(transfer);
         } catch (IOException e) {
             handleException(e);
@@ -545,7 +662,8 @@ public class ClientSession extends SessionBase implements DataHandler, Transacti
     public synchronized boolean validateTransaction(String localTransactionName) {
         checkClosed();
         try {
-            transfer.writeInt(Session.COMMAND_DISTRIBUTED_TRANSACTION_VALIDATE).writeString(localTransactionName);
+            transfer.writeRequestHeader(getNextRequestId(),
+                    Session.COMMAND_DISTRIBUTED_TRANSACTION_VALIDATE).writeString(localTransactionName);
             done(transfer);
             return transfer.readBoolean();
         } catch (Exception e) {
@@ -27,9 +27,12 @@ import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.Future;
 
 import org.lealone.api.ErrorCode;
 import org.lealone.client.ClientBatchCommand;
+import org.lealone.client.ClientCommand;
+import org.lealone.client.ClientFuture;
 import org.lealone.client.ClientSession;
 import org.lealone.common.exceptions.DbException;
 import org.lealone.common.trace.TraceObject;
@@ -145,6 +148,33 @@ public class JdbcPreparedStatement extends JdbcStatement implements PreparedStat
         }
     }
 
+    /**
+     * Sends the statement with the current parameters to the server without
+     * waiting for the result. The parameters may be changed and the statement
+     * sent again before the result is available.
+     *
+     * In embedded mode, or if the server does not support pipelined requests,
+     * the statement is executed synchronously.
+     *
+     * @return the future of the update count
+     * @throws SQLException if this object is closed or invalid
+     */
+    public Future<Integer> executeUpdateAsync() throws SQLException {
+        try {
+            debugCodeCall("executeUpdateAsync");
+            checkClosed();
+            closeOldResultSet();
+            synchronized (session) {
+                if (command instanceof ClientCommand)
+                    return ((ClientCommand) command).executeUpdateAsync();
+                else
+                    return ClientFuture.completed(command.update());
+            }
+        } catch (Exception e) {
+            throw logAndConvert(e);
+        }
+    }
+
     private int executeUpdateInternal() throws SQLException {
         closeOldResultSet();
         synchronized (session) {
@@ -12,9 +12,12 @@ import java.sql.SQLException;
 import java.sql.SQLWarning;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.concurrent.Future;
 
 import org.lealone.api.ErrorCode;
 import org.lealone.client.ClientBatchCommand;
+import org.lealone.client.ClientCommand;
+import org.lealone.client.ClientFuture;
 import org.lealone.client.ClientSession;
 import org.lealone.common.exceptions.DbException;
 import org.lealone.common.trace.TraceObject;
@@ -139,6 +142,41 @@ public class JdbcStatement extends TraceObject implements Statement {
         return updateCount;
     }
 
+    /**
+     * Sends a statement to the server without waiting for the result. The
+     * statement is executed in the same order as the other statements of this
+     * connection. The update count (or the exception) is available from the
+     * returned future.
+     *
+     * In embedded mode, or if the server does not support pipelined requests,
+     * the statement is executed synchronously.
+     *
+     * @param sql the SQL statement
+     * @return the future of the update count
+     * @throws SQLException if a database error occurred while sending the statement
+     */
+    public Future<Integer> executeUpdateAsync(String sql) throws SQLException {
+        try {
+            debugCodeCall("executeUpdateAsync", sql);
+            checkClosed();
+            closeOldResultSet();
+            sql = JdbcConnection.translateSQL(sql, escapeProcessing);
+            Command command = conn.createCommand(sql, fetchSize);
+            Future<Integer> future;
+            synchronized (session) {
+                if (command instanceof ClientCommand) {
+                    future = ((ClientCommand) command).executeUpdateAsync();
+                } else {
+                    future = ClientFuture.completed(command.update());
+                }
+            }
+            command.close();
+            return future;
+        } catch (Exception e) {
+            throw logAndConvert(e);
+        }
+    }
+
     /**
      * Executes an arbitrary statement. If another result set exists for this
      * statement, this will be closed (even if this statement fails).
@@ -121,7 +121,8 @@ public abstract class ClientResult implements Result {
             session.checkClosed();
             try {
                 session.traceOperation("RESULT_RESET", id);
-                transfer.writeInt(ClientSession.RESULT_RESET).writeInt(id).flush();
+                transfer.writeRequestHeader(session.getNextRequestId(),
+                        ClientSession.RESULT_RESET).writeInt(id).flush();
             } catch (IOException e) {
                 throw DbException.convertIOException(e, null);
             }
@@ -156,7 +157,7 @@ public abstract class ClientResult implements Result {
         try {
             synchronized (session) {
                 session.traceOperation("RESULT_CLOSE", id);
-                transfer.writeInt(ClientSession.RESULT_CLOSE).writeInt(id);
+                transfer.writeRequestHeader(session.getNextRequestId(), ClientSession.RESULT_CLOSE).writeInt(id);
             }
         } catch (IOException e) {
             trace.error(e, "close");
@@ -168,7 +169,8 @@ public abstract class ClientResult implements Result {
 
     protected void sendFetch(int fetchSize) throws IOException {
         session.traceOperation("RESULT_FETCH_ROWS", id);
-        transfer.writeInt(ClientSession.RESULT_FETCH_ROWS).writeInt(id).writeInt(fetchSize);
+        transfer.writeRequestHeader(session.getNextRequestId(),
+                ClientSession.RESULT_FETCH_ROWS).writeInt(id).writeInt(fetchSize);
         session.done(transfer);
     }
 
@@ -187,7 +189,8 @@ public abstract class ClientResult implements Result {
                 // object is too old - we need to map it to a new id
                 int newId = session.getNextId();
                 session.traceOperation("CHANGE_ID", id);
-                transfer.writeInt(ClientSession.RESULT_CHANGE_ID).writeInt(id).writeInt(newId);
+                transfer.writeRequestHeader(session.getNextRequestId(),
+                        ClientSession.RESULT_CHANGE_ID).writeInt(id).writeInt(newId);
                 id = newId;
                 // TODO remote result set: very old result sets may be
                 // already removed on the server (theoretically) - how to
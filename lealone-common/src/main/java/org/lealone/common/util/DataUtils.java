@@ -103,6 +103,16 @@ public class DataUtils {
      */
     public static final int ERROR_TRANSACTION_STILL_OPEN = 104;
 
+    /**
+     * The transactions are waiting for the row locks held by each other.
+     */
+    public static final int ERROR_TRANSACTION_DEADLOCK = 105;
+
+    /**
+     * The row was changed by a transaction that committed after the snapshot of the current transaction was taken.
+     */
+    public static final int ERROR_TRANSACTION_WRITE_CONFLICT = 106;
+
     /**
      * The type for leaf page.
      */
@@ -123,6 +133,11 @@ public class DataUtils {
      */
     public static final int PAGE_COMPRESSED_HIGH = 2 + 4;
 
+    /**
+     * The bit mask for pages with delta encoded long keys.
+     */
+    public static final int PAGE_LONG_KEYS = 8;
+
     /**
      * The maximum length of a variable size int.
      */
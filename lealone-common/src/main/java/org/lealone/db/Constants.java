@@ -61,6 +61,20 @@ public class Constants {
      */
     public static final int TCP_PROTOCOL_VERSION_1 = 1;
 
+    /**
+     * The TCP protocol version number 2.
+     * Each request carries a request id and each response starts with the id of its request,
+     * so a client can send many requests without waiting for the responses.
+     */
+    public static final int TCP_PROTOCOL_VERSION_2 = 2;
+
+    /**
+     * The TCP protocol version number 3.
+     * After the handshake each message is sent in frames with a length header,
+     * so the receiver knows whether a request is complete without parsing it.
+     */
+    public static final int TCP_PROTOCOL_VERSION_3 = 3;
+
     /**
      * The min TCP protocol version number.
      */
@@ -69,12 +83,12 @@ public class Constants {
     /**
      * The max TCP protocol version number.
      */
-    public static final int TCP_PROTOCOL_VERSION_MAX = TCP_PROTOCOL_VERSION_1;
+    public static final int TCP_PROTOCOL_VERSION_MAX = TCP_PROTOCOL_VERSION_3;
 
     /**
      * The current TCP protocol version number.
      */
-    public static final int TCP_PROTOCOL_VERSION_CURRENT = TCP_PROTOCOL_VERSION_1;
+    public static final int TCP_PROTOCOL_VERSION_CURRENT = TCP_PROTOCOL_VERSION_3;
 
     /**
      * The lock mode that means no locking is used at all.
@@ -334,6 +334,20 @@ public class DbSettings extends SettingsBase {
      */
     public final boolean compressData = get("COMPRESS", false);
 
+    /**
+     * Database setting <code>OFF_HEAP_CACHE_SIZE</code>
+     * (default: 0).<br />
+     * The size in MB of the off-heap cache of the page bytes, 0 disables it.
+     */
+    public final int offHeapCacheSize = get("OFF_HEAP_CACHE_SIZE", 0);
+
+    /**
+     * Database setting <code>MAPPED_READS</code>
+     * (default: false).<br />
+     * Read the pages from read-only memory mapped regions of the file.
+     */
+    public final boolean mappedReads = get("MAPPED_READS", false);
+
     /**
      * Database setting <code>PERSISTENT</code>
      * (default: true).<br />
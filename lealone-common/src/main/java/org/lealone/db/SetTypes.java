@@ -211,6 +211,16 @@ public class SetTypes {
      */
     public static final int AUTOCOMMIT = 39;
 
+    /**
+     * The type of a SET MAX_PARALLEL_DEGREE statement.
+     */
+    public static final int MAX_PARALLEL_DEGREE = 40;
+
+    /**
+     * The type of a SET COMPILE_EXPRESSIONS statement.
+     */
+    public static final int COMPILE_EXPRESSIONS = 41;
+
     private static final ArrayList<String> TYPES = New.arrayList();
 
     private static final HashSet<String> TYPE_NAMES = New.hashSet();
@@ -261,6 +271,8 @@ public class SetTypes {
         list.add(REDO_LOG_BINARY, "REDO_LOG_BINARY");
         list.add(BINARY_COLLATION, "BINARY_COLLATION");
         list.add(AUTOCOMMIT, "AUTOCOMMIT");
+        list.add(MAX_PARALLEL_DEGREE, "MAX_PARALLEL_DEGREE");
+        list.add(COMPILE_EXPRESSIONS, "COMPILE_EXPRESSIONS");
 
         TYPE_NAMES.addAll(TYPES);
     }
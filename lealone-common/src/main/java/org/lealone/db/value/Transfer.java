@@ -18,6 +18,7 @@ import java.io.Reader;
 import java.math.BigDecimal;
 import java.net.InetAddress;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
@@ -32,6 +33,7 @@ import org.lealone.common.util.MathUtils;
 import org.lealone.common.util.NetUtils;
 import org.lealone.common.util.StringUtils;
 import org.lealone.common.util.Utils;
+import org.lealone.db.Constants;
 import org.lealone.db.Data;
 import org.lealone.db.Session;
 import org.lealone.db.result.SimpleResultSet;
@@ -46,14 +48,24 @@ public class Transfer {
     private static final int LOB_MAGIC = 0x1234;
     private static final int LOB_MAC_SALT_LENGTH = 16;
 
+    /**
+     * The flag in the header of a frame which means that the message is continued in the next frame,
+     * the other bits of the header are the length of the frame.
+     */
+    public static final int FRAME_CONTINUED = 0x80000000;
+
     private Session session;
     private Socket socket;
+    private InputStream inputStream;
     private DataInputStream in;
     private DataOutputStream out;
     private ResettableBufferedOutputStream bufferedOutputStream;
+    private FrameOutputStream frameOutputStream;
+    private FrameInputStream frameInputStream;
 
     private boolean ssl;
     private byte[] lobMacSalt;
+    private int version = Constants.TCP_PROTOCOL_VERSION_1;
 
     public Transfer(Session session, Socket socket) {
         this.session = session;
@@ -70,12 +82,24 @@ public class Transfer {
      */
     public synchronized void init() throws IOException {
         if (socket != null) {
-            bufferedOutputStream = new ResettableBufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE);
-            in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE));
-            out = new DataOutputStream(bufferedOutputStream);
+            init(new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE), socket.getOutputStream());
         }
     }
 
+    /**
+     * Initialize the transfer object with the given streams instead of the streams of the socket,
+     * this is used when the socket is driven by a non-blocking channel.
+     *
+     * @param inputStream the input stream, it should be buffered
+     * @param outputStream the output stream
+     */
+    public synchronized void init(InputStream inputStream, OutputStream outputStream) {
+        this.inputStream = inputStream;
+        bufferedOutputStream = new ResettableBufferedOutputStream(outputStream, BUFFER_SIZE);
+        in = new DataInputStream(inputStream);
+        out = new DataOutputStream(bufferedOutputStream);
+    }
+
     /**
      * 当输出流写到一半时碰到某种异常了(可能是内部代码实现bug)，比如产生了NPE，
      * 就会转到错误处理，生成一个新的错误协议包，但是前面产生的不完整的内容没有正常结束，
@@ -83,6 +107,8 @@ public class Transfer {
      * 如果之前的协议包不完整，但是已经发出去一半了，这里的方案也无能为力。
      */
     public void reset() {
+        if (frameOutputStream != null)
+            frameOutputStream.reset();
         bufferedOutputStream.reset();
     }
 
@@ -98,7 +124,99 @@ public class Transfer {
         this.ssl = ssl;
     }
 
-    public void setVersion(int version) { // TODO 以后协议修改了再使用版本号区分
+    /**
+     * Set the negotiated protocol version, since protocol version 3 all the following messages
+     * are sent and received in frames.
+     *
+     * @param version the protocol version
+     */
+    public synchronized void setVersion(int version) {
+        this.version = version;
+        if (version >= Constants.TCP_PROTOCOL_VERSION_3 && frameOutputStream == null && inputStream != null) {
+            frameOutputStream = new FrameOutputStream(bufferedOutputStream);
+            frameInputStream = new FrameInputStream(inputStream);
+            in = new DataInputStream(frameInputStream);
+            out = new DataOutputStream(frameOutputStream);
+        }
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * Write the header of a request, the request id is only written since protocol version 2.
+     *
+     * @param requestId the request id
+     * @param operation the operation
+     * @return itself
+     */
+    public Transfer writeRequestHeader(int requestId, int operation) throws IOException {
+        writeInt(operation);
+        if (version >= Constants.TCP_PROTOCOL_VERSION_2)
+            writeInt(requestId);
+        return this;
+    }
+
+    /**
+     * Write the header of a response, the request id is only written since protocol version 2.
+     *
+     * @param requestId the id of the request
+     * @param status the status
+     * @return itself
+     */
+    public Transfer writeResponseHeader(int requestId, int status) throws IOException {
+        if (version >= Constants.TCP_PROTOCOL_VERSION_2)
+            writeInt(requestId);
+        writeInt(status);
+        return this;
+    }
+
+    /**
+     * Read the request id of a request or a response.
+     *
+     * @return the request id, or -1 if the protocol version does not support request ids
+     */
+    public int readRequestId() throws IOException {
+        if (version >= Constants.TCP_PROTOCOL_VERSION_2)
+            return readInt();
+        return -1;
+    }
+
+    /**
+     * Wait until the next message starts to arrive, nothing of the message is read,
+     * so the message can still be read completely after the timeout elapsed.
+     *
+     * @param timeoutMillis the maximum time to wait in milliseconds
+     * @return true if the next message has started to arrive, false if the timeout elapsed
+     */
+    public boolean waitForInput(long timeoutMillis) throws IOException {
+        if (frameInputStream != null && frameInputStream.remaining > 0)
+            return true;
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        int soTimeout = socket.getSoTimeout();
+        try {
+            while (true) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0)
+                    return false;
+                // 超时时间为0表示一直等待，所以至少是1毫秒
+                socket.setSoTimeout((int) Math.min(Integer.MAX_VALUE, Math.max(1, remaining)));
+                inputStream.mark(1);
+                try {
+                    if (inputStream.read() < 0)
+                        throw new FastEOFException();
+                } catch (SocketTimeoutException e) {
+                    continue;
+                }
+                inputStream.reset();
+                // 帧头是跟着第一个字节一起发送的，可以直接读，跳过空的帧之后再接着等
+                if (frameInputStream == null || frameInputStream.readFrameHeaderIfPresent())
+                    return true;
+            }
+        } finally {
+            socket.setSoTimeout(soTimeout);
+        }
     }
 
     /**
@@ -773,6 +891,120 @@ public class Transfer {
         }
     }
 
+    /**
+     * Splits the written bytes into frames, a message ends when the stream is flushed,
+     * so a message is sent in zero or more continued frames and a last frame.
+     */
+    private static class FrameOutputStream extends OutputStream {
+
+        private final OutputStream out;
+        private final byte[] buff = new byte[BUFFER_SIZE];
+        private int count;
+        private boolean continued;
+
+        FrameOutputStream(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (count == buff.length)
+                writeFrame(true);
+            buff[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (count == buff.length)
+                    writeFrame(true);
+                int n = Math.min(len, buff.length - count);
+                System.arraycopy(b, off, buff, count, n);
+                count += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (count > 0 || continued)
+                writeFrame(false);
+            out.flush();
+        }
+
+        private void writeFrame(boolean more) throws IOException {
+            int header = more ? (count | FRAME_CONTINUED) : count;
+            out.write(header >>> 24);
+            out.write(header >>> 16);
+            out.write(header >>> 8);
+            out.write(header);
+            out.write(buff, 0, count);
+            count = 0;
+            continued = more;
+        }
+
+        void reset() {
+            count = 0;
+        }
+    }
+
+    /**
+     * Reads the payload of the frames written by {@link FrameOutputStream}.
+     */
+    private static class FrameInputStream extends InputStream {
+
+        private final DataInputStream in;
+        private int remaining;
+
+        FrameInputStream(InputStream in) {
+            this.in = new DataInputStream(in);
+        }
+
+        private void readFrameHeader() throws IOException {
+            // 跳过空的帧
+            while (remaining == 0) {
+                remaining = in.readInt() & ~FRAME_CONTINUED;
+            }
+        }
+
+        /**
+         * Read the header of the next frame.
+         *
+         * @return true if the frame is not empty
+         */
+        boolean readFrameHeaderIfPresent() throws IOException {
+            if (remaining == 0)
+                remaining = in.readInt() & ~FRAME_CONTINUED;
+            return remaining > 0;
+        }
+
+        @Override
+        public int read() throws IOException {
+            readFrameHeader();
+            int b = in.read();
+            if (b >= 0)
+                remaining--;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+            readFrameHeader();
+            int n = in.read(b, off, Math.min(len, remaining));
+            if (n > 0)
+                remaining -= n;
+            return n;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return Math.min(remaining, in.available());
+        }
+    }
+
     private static class ResettableBufferedOutputStream extends BufferedOutputStream {
 
         public ResettableBufferedOutputStream(OutputStream out, int size) {
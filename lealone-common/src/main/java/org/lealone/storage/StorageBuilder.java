@@ -88,6 +88,48 @@ public abstract class StorageBuilder {
         return set("cacheSize", mb);
     }
 
+    /**
+     * Set the size of the off-heap cache of the page bytes in MB. The default is 0 (disabled).
+     * 
+     * @param mb the cache size in megabytes
+     * @return this
+     */
+    public StorageBuilder offHeapCacheSize(int mb) {
+        return set("offHeapCacheSize", mb);
+    }
+
+    /**
+     * Set the number of threads that serialize and compress the changed pages when the data is stored.
+     * The default is the number of processors.
+     * 
+     * @param threads the number of threads
+     * @return this
+     */
+    public StorageBuilder writeThreads(int threads) {
+        return set("writeThreads", threads);
+    }
+
+    /**
+     * Set the number of pages a cursor reads ahead in the background when it scans sequentially.
+     * The default is 16, 0 disables the read-ahead.
+     * 
+     * @param pages the number of pages
+     * @return this
+     */
+    public StorageBuilder readAheadPages(int pages) {
+        return set("readAheadPages", pages);
+    }
+
+    /**
+     * Read the pages from read-only memory mapped regions of the file.
+     * Only used if the file is on disk and not encrypted.
+     * 
+     * @return this
+     */
+    public StorageBuilder mappedReads() {
+        return set("mappedReads", 1);
+    }
+
     /**
      * Compress data before writing using the LZF algorithm. This will save
      * about 50% of the disk space, but will slow down read and write
@@ -158,6 +200,17 @@ public abstract class StorageBuilder {
         return set("reuseSpace", 1);
     }
 
+    /**
+     * Set the maximum rate in MB per second at which the background compaction re-writes pages.
+     * The default is 16, 0 means no limit.
+     * 
+     * @param mb the rate in MB per second
+     * @return this
+     */
+    public StorageBuilder autoCompactWriteRate(int mb) {
+        return set("autoCompactWriteRate", mb);
+    }
+
     public StorageBuilder minFillRate(int minFillRate) {
         return set("minFillRate", minFillRate);
     }
@@ -20,6 +20,8 @@ package org.lealone.storage;
 import java.io.IOException;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
+import java.util.Iterator;
+import java.util.Map;
 
 import org.lealone.storage.type.DataType;
 
@@ -72,6 +74,14 @@ public interface StorageMap<K, V> {
      */
     V putIfAbsent(K key, V value);
 
+    /**
+     * Add the entries of a sorted stream. Unlike calling put for each entry, an implementation can build
+     * the pages one after another.
+     *
+     * @param entries the entries, the keys in ascending order and without duplicates
+     */
+    void bulkLoad(Iterator<? extends Map.Entry<K, V>> entries);
+
     /**
      * Remove a key-value pair, if the key exists.
      *
@@ -80,6 +90,15 @@ public interface StorageMap<K, V> {
      */
     V remove(K key);
 
+    /**
+     * Remove a key-value pair if the value matches the stored one.
+     *
+     * @param key the key (may not be null)
+     * @param value the expected value
+     * @return true if the item was removed
+     */
+    boolean remove(K key, V value);
+
     /**
      * Replace a value for an existing key, if the value matches.
      *
@@ -377,6 +377,20 @@ public class CacheLongKeyLIRS<V> {
         return x;
     }
 
+    /**
+     * Get the number of resident entries that became non-resident
+     * because the memory limit was reached.
+     *
+     * @return the number of evictions
+     */
+    public long getEvictions() {
+        long x = 0;
+        for (Segment<V> s : segments) {
+            x += s.evictions;
+        }
+        return x;
+    }
+
     /**
      * Get the number of resident entries.
      *
@@ -501,6 +515,11 @@ public class CacheLongKeyLIRS<V> {
          */
         long misses;
 
+        /**
+         * The number of resident entries that were evicted.
+         */
+        long evictions;
+
         /**
          * The map array. The size is always a power of 2.
          */
@@ -610,6 +629,7 @@ public class CacheLongKeyLIRS<V> {
             this(old.maxMemory, old.stackMoveDistance, len, old.nonResidentQueueSize);
             hits = old.hits;
             misses = old.misses;
+            evictions = old.evictions;
             Entry<V> s = old.stack.stackPrev;
             while (s != old.stack) {
                 Entry<V> e = copy(s);
@@ -895,6 +915,7 @@ public class CacheLongKeyLIRS<V> {
                 removeFromQueue(e);
                 e.value = null;
                 e.memory = 0;
+                evictions++;
                 addToQueue(queue2, e);
                 // the size of the non-resident-cold entries needs to be limited
                 int maxQueue2Size = nonResidentQueueSize * (mapSize - queue2Size);
@@ -0,0 +1,268 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.storage.cache;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+
+import org.lealone.common.util.DataUtils;
+
+/**
+ * A cache of byte arrays that uses keys of type long and keeps the bytes in direct memory,
+ * so a large cache does not add to the work of the garbage collector.
+ * <p>
+ * The cache is split into segments, each segment is a direct buffer that is divided into regions.
+ * Entries are appended to the current region like a log, when it is full the next region is reused
+ * and the entries in it are evicted, so there is no fragmentation and the eviction order is the insertion order.
+ * Only the index (key to offset) is kept on the heap.
+ * <p>
+ * Each entry has a tag. An entry is only returned if the tag matches, so the caller can detect
+ * entries that are outdated because the key was reused.
+ * <p>
+ * The direct memory is limited by -XX:MaxDirectMemorySize, which has to be large enough.
+ *
+ * @author zhh
+ */
+public class CacheLongKeyOffHeap {
+
+    private static final int HEADER_LENGTH = 8 + 8 + 4; // key + tag + length
+    private static final int REGION_COUNT = 8;
+    private static final long MAX_SEGMENT_SIZE = 1024 * 1024 * 1024;
+
+    private final long maxMemory;
+    private final Segment[] segments;
+    private final int segmentShift;
+    private final int segmentMask;
+
+    /**
+     * Create a new cache with the given memory size.
+     *
+     * @param maxMemory the maximum memory in bytes
+     */
+    public CacheLongKeyOffHeap(long maxMemory) {
+        DataUtils.checkArgument(maxMemory > 0, "Max memory must be larger than 0, is {0}", maxMemory);
+        int segmentCount = 16;
+        // 一个direct buffer不能超过2G
+        while (maxMemory / segmentCount > MAX_SEGMENT_SIZE)
+            segmentCount *= 2;
+        this.maxMemory = maxMemory;
+        this.segmentMask = segmentCount - 1;
+        this.segmentShift = 32 - Integer.bitCount(segmentMask);
+        int segmentSize = (int) Math.max(REGION_COUNT * HEADER_LENGTH, maxMemory / segmentCount);
+        segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++)
+            segments[i] = new Segment(segmentSize);
+    }
+
+    private Segment getSegment(long key) {
+        int hash = CacheLongKeyLIRS.getHash(key);
+        return segments[(hash >>> segmentShift) & segmentMask];
+    }
+
+    /**
+     * Get the bytes of an entry.
+     *
+     * @param key the key
+     * @param tag the expected tag
+     * @return a heap buffer with a copy of the bytes, or null if there is no entry with this tag
+     */
+    public ByteBuffer get(long key, long tag) {
+        return getSegment(key).get(key, tag);
+    }
+
+    /**
+     * Add or replace an entry. Entries that are larger than a region are not cached.
+     *
+     * @param key the key
+     * @param tag the tag
+     * @param data the bytes from the position to the limit, the position is not changed
+     */
+    public void put(long key, long tag, ByteBuffer data) {
+        getSegment(key).put(key, tag, data);
+    }
+
+    /**
+     * Remove an entry.
+     *
+     * @param key the key
+     */
+    public void remove(long key) {
+        getSegment(key).remove(key);
+    }
+
+    /**
+     * Remove all entries.
+     */
+    public void clear() {
+        for (Segment s : segments)
+            s.clear();
+    }
+
+    public long getMaxMemory() {
+        return maxMemory;
+    }
+
+    /**
+     * Get the memory used by the entries that can still be returned.
+     *
+     * @return the used memory in bytes
+     */
+    public long getUsedMemory() {
+        long x = 0;
+        for (Segment s : segments)
+            x += s.usedMemory;
+        return x;
+    }
+
+    public int size() {
+        int x = 0;
+        for (Segment s : segments)
+            x += s.size();
+        return x;
+    }
+
+    public long getHits() {
+        long x = 0;
+        for (Segment s : segments)
+            x += s.hits;
+        return x;
+    }
+
+    public long getMisses() {
+        long x = 0;
+        for (Segment s : segments)
+            x += s.misses;
+        return x;
+    }
+
+    /**
+     * Get the number of entries that were dropped because their region was reused.
+     *
+     * @return the number of evictions
+     */
+    public long getEvictions() {
+        long x = 0;
+        for (Segment s : segments)
+            x += s.evictions;
+        return x;
+    }
+
+    private static class Segment {
+        private final ByteBuffer buff;
+        private final int regionSize;
+        private final int[] regionEnd = new int[REGION_COUNT]; // 每个region已写入数据的结束位置
+        private final HashMap<Long, Integer> index = new HashMap<>(); // key -> offset
+        private int region;
+        private int writePos;
+
+        long usedMemory;
+        long hits;
+        long misses;
+        long evictions;
+
+        Segment(int size) {
+            regionSize = size / REGION_COUNT;
+            buff = ByteBuffer.allocateDirect(regionSize * REGION_COUNT);
+            for (int i = 0; i < REGION_COUNT; i++)
+                regionEnd[i] = i * regionSize;
+        }
+
+        synchronized ByteBuffer get(long key, long tag) {
+            Integer offset = index.get(key);
+            if (offset == null) {
+                misses++;
+                return null;
+            }
+            int pos = offset;
+            int length = buff.getInt(pos + 16);
+            if (buff.getLong(pos + 8) != tag) {
+                index.remove(key);
+                usedMemory -= HEADER_LENGTH + length;
+                misses++;
+                return null;
+            }
+            ByteBuffer src = buff.duplicate();
+            src.limit(pos + HEADER_LENGTH + length);
+            src.position(pos + HEADER_LENGTH);
+            ByteBuffer dst = ByteBuffer.allocate(length);
+            dst.put(src);
+            dst.flip();
+            hits++;
+            return dst;
+        }
+
+        synchronized void put(long key, long tag, ByteBuffer data) {
+            int length = data.remaining();
+            int entryLength = HEADER_LENGTH + length;
+            if (entryLength > regionSize)
+                return;
+            remove(key);
+            if (writePos + entryLength > (region + 1) * regionSize) {
+                regionEnd[region] = writePos;
+                region = (region + 1) % REGION_COUNT;
+                evictRegion(region);
+                writePos = region * regionSize;
+            }
+            buff.putLong(writePos, key);
+            buff.putLong(writePos + 8, tag);
+            buff.putInt(writePos + 16, length);
+            ByteBuffer dst = buff.duplicate();
+            dst.position(writePos + HEADER_LENGTH);
+            dst.put(data.duplicate());
+            index.put(key, writePos);
+            writePos += entryLength;
+            usedMemory += entryLength;
+        }
+
+        private void evictRegion(int r) {
+            int start = r * regionSize;
+            for (int pos = start, end = regionEnd[r]; pos < end;) {
+                long key = buff.getLong(pos);
+                int entryLength = HEADER_LENGTH + buff.getInt(pos + 16);
+                // 被替换或删除的entry已经不在索引中了
+                Integer offset = index.get(key);
+                if (offset != null && offset == pos) {
+                    index.remove(key);
+                    usedMemory -= entryLength;
+                    evictions++;
+                }
+                pos += entryLength;
+            }
+            regionEnd[r] = start;
+        }
+
+        synchronized void remove(long key) {
+            Integer offset = index.remove(key);
+            if (offset != null)
+                usedMemory -= HEADER_LENGTH + buff.getInt(offset + 16);
+        }
+
+        synchronized void clear() {
+            index.clear();
+            usedMemory = 0;
+            for (int i = 0; i < REGION_COUNT; i++)
+                regionEnd[i] = i * regionSize;
+            region = 0;
+            writePos = 0;
+        }
+
+        synchronized int size() {
+            return index.size();
+        }
+    }
+}
@@ -38,6 +38,7 @@ public class FilePathCache extends FilePathWrapper {
     public static class FileCache extends FileBase {
 
         private static final int CACHE_BLOCK_SIZE = 4 * 1024;
+        private static final int LARGE_READ_SIZE = 8 * CACHE_BLOCK_SIZE;
         private final FileChannel base;
 
         private final CacheLongKeyLIRS<ByteBuffer> cache;
@@ -76,6 +77,10 @@ public class FilePathCache extends FilePathWrapper {
 
         @Override
         public int read(ByteBuffer dst, long position) throws IOException {
+            // 一次读多个块时(比如预读相邻的页)直接读文件，只需要一次系统调用，也不会把缓存中的块挤出去
+            if (dst.remaining() >= LARGE_READ_SIZE) {
+                return base.read(dst, position);
+            }
             long cachePos = getCachePos(position);
             int off = (int) (position - cachePos);
             int len = CACHE_BLOCK_SIZE - off;
@@ -0,0 +1,115 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.storage.lsm;
+
+import java.nio.ByteBuffer;
+
+import org.lealone.storage.type.WriteBuffer;
+
+/**
+ * A bloom filter over the serialized keys of a sorted run.
+ * <p>
+ * With 10 bits per key and 7 hash functions about 1% of the lookups of keys
+ * that are not in the run need to read a block.
+ *
+ * @author zhh
+ */
+class BloomFilter {
+
+    private static final int BITS_PER_KEY = 10;
+    private static final int HASH_COUNT = 7;
+
+    private final long[] bits;
+    private final long bitCount;
+
+    BloomFilter(long keyCount) {
+        long n = Math.max(64, keyCount * BITS_PER_KEY);
+        bits = new long[(int) Math.min(Integer.MAX_VALUE, (n + 63) / 64)];
+        bitCount = bits.length * 64L;
+    }
+
+    private BloomFilter(long[] bits) {
+        this.bits = bits;
+        bitCount = bits.length * 64L;
+    }
+
+    void add(long hash) {
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < HASH_COUNT; i++) {
+            long bit = ((h1 + i * h2) & 0x7fffffffL) % bitCount;
+            bits[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    boolean mightContain(long hash) {
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < HASH_COUNT; i++) {
+            long bit = ((h1 + i * h2) & 0x7fffffffL) % bitCount;
+            if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    void write(WriteBuffer buff) {
+        buff.putInt(bits.length);
+        for (long b : bits)
+            buff.putLong(b);
+    }
+
+    static BloomFilter read(ByteBuffer buff) {
+        long[] bits = new long[buff.getInt()];
+        for (int i = 0; i < bits.length; i++)
+            bits[i] = buff.getLong();
+        return new BloomFilter(bits);
+    }
+
+    /**
+     * Get the 64 bit hash of a serialized key (MurmurHash64A).
+     *
+     * @param buff the buffer
+     * @param start the position of the first byte of the key
+     * @param end the position after the last byte of the key
+     * @return the hash
+     */
+    static long hash(ByteBuffer buff, int start, int end) {
+        final long m = 0xc6a4a7935bd1e995L;
+        int len = end - start;
+        long h = 0x9747b28cL ^ (len * m);
+        int pos = start;
+        for (; pos + 8 <= end; pos += 8) {
+            long k = buff.getLong(pos);
+            k *= m;
+            k ^= k >>> 47;
+            k *= m;
+            h ^= k;
+            h *= m;
+        }
+        if (pos < end) {
+            for (int shift = 0; pos < end; pos++, shift += 8)
+                h ^= (buff.get(pos) & 0xffL) << shift;
+            h *= m;
+        }
+        h ^= h >>> 47;
+        h *= m;
+        h ^= h >>> 47;
+        return h;
+    }
+}
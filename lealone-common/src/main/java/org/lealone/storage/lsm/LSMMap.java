@@ -0,0 +1,966 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.storage.lsm;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import org.lealone.common.util.DataUtils;
+import org.lealone.common.util.IOUtils;
+import org.lealone.storage.StorageMapBase;
+import org.lealone.storage.StorageMapCursor;
+import org.lealone.storage.fs.FileUtils;
+import org.lealone.storage.type.DataType;
+import org.lealone.storage.type.WriteBuffer;
+import org.lealone.storage.type.WriteBufferPool;
+
+/**
+ * A map of a log-structured merge tree.
+ * <p>
+ * The changes go to a memtable (a skip list). When the map is saved, the
+ * memtable is written to a new sorted run of level 0. The runs of level 0 may
+ * overlap, the runs of the other levels are ordered by key and do not overlap.
+ * Compaction merges the runs of a level that is too large into the next level,
+ * where each level is 10 times as large as the previous one. A removed key is
+ * kept as a tombstone until it reaches the last level that has data.
+ * <p>
+ * Reads are not locked. They use an immutable state (memtable, the memtable
+ * being written and the runs of all levels); if a run of the state is deleted
+ * by a compaction while it is read, the read is repeated with the new state.
+ * Writes are synchronized on the map, they read the old value first to return
+ * it and to keep the size, the bloom filters of the runs keep this cheap for
+ * new keys.
+ *
+ * @param <K> the key class
+ * @param <V> the value class
+ *
+ * @author zhh
+ */
+public class LSMMap<K, V> extends StorageMapBase<K, V> {
+
+    /**
+     * The value of a removed key in the memtable and in the runs.
+     */
+    static final Object DELETED = new Object();
+
+    private static final int MAX_LEVELS = 7;
+    private static final String MANIFEST_FILE_NAME = "manifest";
+    private static final String RUN_FILE_SUFFIX = ".run";
+
+    final LSMStorage storage;
+    private final String dir;
+
+    final Object compactSync = new Object();
+    private final Object saveSync = new Object();
+    private final Object manifestSync = new Object();
+
+    private volatile State state;
+    private volatile long size;
+    private long savedSize; // 保存到最后一个run时的size，写到manifest中
+    private long immutableSize; // 正在写成run的memtable切换时的size
+    private int nextRunId;
+    private final Object[] compactPointers = new Object[MAX_LEVELS];
+    private volatile boolean closed;
+
+    LSMMap(String name, DataType keyType, DataType valueType, LSMStorage storage) {
+        super(name, keyType, valueType);
+        this.storage = storage;
+        SortedRun[][] levels = new SortedRun[MAX_LEVELS][];
+        for (int i = 0; i < MAX_LEVELS; i++)
+            levels[i] = new SortedRun[0];
+        if (storage.isInMemory()) {
+            dir = null;
+        } else {
+            dir = storage.getMapDir(name);
+            if (!FileUtils.exists(dir))
+                FileUtils.createDirectories(dir);
+            open(levels);
+        }
+        state = new State(newMemTable(), null, levels);
+    }
+
+    private MemTable newMemTable() {
+        return new MemTable(name, keyType, valueType);
+    }
+
+    private void open(SortedRun[][] levels) {
+        String manifest = dir + File.separator + MANIFEST_FILE_NAME;
+        HashSet<String> files = new HashSet<>();
+        if (FileUtils.exists(manifest)) {
+            HashMap<String, String> m;
+            try {
+                m = DataUtils.parseMap(new String(IOUtils.readBytesAndClose(FileUtils.newInputStream(manifest), -1),
+                        DataUtils.UTF8));
+            } catch (IOException e) {
+                throw DataUtils.newIllegalStateException(DataUtils.ERROR_READING_FAILED, "Could not read {0}",
+                        manifest, e);
+            }
+            size = savedSize = DataUtils.readHexLong(m, "size", 0);
+            nextRunId = DataUtils.readHexInt(m, "nextRunId", 0);
+            for (int i = 0; i < MAX_LEVELS; i++) {
+                String ids = m.get("level" + i);
+                if (ids == null)
+                    continue;
+                ArrayList<SortedRun> runs = new ArrayList<>();
+                for (String id : ids.split(" ")) {
+                    SortedRun run = SortedRun.open(this, Integer.parseInt(id));
+                    runs.add(run);
+                    files.add(getRunFileName(run.id));
+                }
+                levels[i] = runs.toArray(new SortedRun[runs.size()]);
+            }
+        }
+        // 保存或压缩时写了一半的run
+        for (String f : FileUtils.newDirectoryStream(dir)) {
+            if (f.endsWith(RUN_FILE_SUFFIX) && !files.contains(FileUtils.unwrap(f)))
+                FileUtils.delete(f);
+        }
+    }
+
+    String getRunFileName(int id) {
+        return dir + File.separator + id + RUN_FILE_SUFFIX;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V get(K key) {
+        Object v = find(key);
+        return v == DELETED ? null : (V) v;
+    }
+
+    // 返回最新的值，包括DELETED
+    private Object find(Object key) {
+        while (true) {
+            State s = state;
+            try {
+                return s.find(key);
+            } catch (IllegalStateException e) {
+                checkRetry(s, e);
+            }
+        }
+    }
+
+    // 读的时候run被压缩删除了，用新的状态重试
+    private void checkRetry(State s, IllegalStateException e) {
+        if (state == s || closed)
+            throw e;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public synchronized V put(K key, V value) {
+        DataUtils.checkArgument(value != null, "The value may not be null");
+        Object old = find(key);
+        putInMemTable(key, value);
+        if (old == null || old == DELETED) {
+            size++;
+            return null;
+        }
+        return (V) old;
+    }
+
+    private void putInMemTable(K key, Object value) {
+        checkWrite();
+        MemTable memTable = state.memTable;
+        memTable.put(key, value);
+        memTable.memory += keyType.getMemory(key) + (value == DELETED ? 0 : valueType.getMemory(value)) + 48;
+        if (memTable.memory > storage.memTableSize)
+            storage.wakeUp();
+    }
+
+    private void checkWrite() {
+        if (closed) {
+            throw DataUtils.newIllegalStateException(DataUtils.ERROR_CLOSED, "This map is closed");
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public synchronized V putIfAbsent(K key, V value) {
+        Object old = find(key);
+        if (old == null || old == DELETED) {
+            putInMemTable(key, value);
+            size++;
+            return null;
+        }
+        return (V) old;
+    }
+
+    @Override
+    public void bulkLoad(Iterator<? extends Map.Entry<K, V>> entries) {
+        while (entries.hasNext()) {
+            Map.Entry<K, V> e = entries.next();
+            put(e.getKey(), e.getValue());
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public synchronized V remove(K key) {
+        Object old = find(key);
+        if (old == null || old == DELETED)
+            return null;
+        removeFromMemTable(key);
+        size--;
+        return (V) old;
+    }
+
+    private void removeFromMemTable(K key) {
+        State s = state;
+        if (s.immutable == null && s.isEmpty()) {
+            // 没有更旧的值需要覆盖，不用留下删除标记
+            checkWrite();
+            s.memTable.remove(key);
+        } else {
+            putInMemTable(key, DELETED);
+        }
+    }
+
+    @Override
+    public synchronized boolean remove(K key, V value) {
+        Object old = find(key);
+        if (old == null || old == DELETED || !areValuesEqual(old, value))
+            return false;
+        removeFromMemTable(key);
+        size--;
+        return true;
+    }
+
+    @Override
+    public synchronized boolean replace(K key, V oldValue, V newValue) {
+        Object old = find(key);
+        if (old == null || old == DELETED || !areValuesEqual(old, oldValue))
+            return false;
+        putInMemTable(key, newValue);
+        return true;
+    }
+
+    @Override
+    public K firstKey() {
+        return ceilingKey(null);
+    }
+
+    @Override
+    public K lastKey() {
+        return floorKey(null, true);
+    }
+
+    @Override
+    public K lowerKey(K key) {
+        return floorKey(key, false);
+    }
+
+    @Override
+    public K floorKey(K key) {
+        return floorKey(key, true);
+    }
+
+    @Override
+    public K higherKey(K key) {
+        StorageMapCursor<K, V> c = cursor(key);
+        while (c.hasNext()) {
+            K k = c.next();
+            if (keyType.compare(k, key) != 0)
+                return k;
+        }
+        return null;
+    }
+
+    @Override
+    public K ceilingKey(K key) {
+        StorageMapCursor<K, V> c = cursor(key);
+        return c.hasNext() ? c.next() : null;
+    }
+
+    // 每一层找到的最大key可能是已经删除的，这时继续往前找
+    @SuppressWarnings("unchecked")
+    private K floorKey(Object key, boolean inclusive) {
+        while (true) {
+            State s = state;
+            try {
+                while (true) {
+                    Object k = s.floorKey(key, inclusive);
+                    if (k == null)
+                        return null;
+                    if (s.find(k) != DELETED)
+                        return (K) k;
+                    key = k;
+                    inclusive = false;
+                }
+            } catch (IllegalStateException e) {
+                checkRetry(s, e);
+            }
+        }
+    }
+
+    @Override
+    public boolean areValuesEqual(Object a, Object b) {
+        if (a == b) {
+            return true;
+        } else if (a == null || b == null) {
+            return false;
+        }
+        return valueType.compare(a, b) == 0;
+    }
+
+    @Override
+    public int size() {
+        long size = sizeAsLong();
+        return size > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) size;
+    }
+
+    @Override
+    public long sizeAsLong() {
+        return size;
+    }
+
+    @Override
+    public boolean containsKey(K key) {
+        return get(key) != null;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @Override
+    public boolean isInMemory() {
+        return dir == null;
+    }
+
+    @Override
+    public StorageMapCursor<K, V> cursor(K from) {
+        return new LSMMapCursor(from);
+    }
+
+    @Override
+    public void clear() {
+        synchronized (compactSync) {
+            synchronized (saveSync) {
+                SortedRun[][] old;
+                synchronized (manifestSync) {
+                    synchronized (this) {
+                        old = state.levels;
+                        SortedRun[][] levels = new SortedRun[MAX_LEVELS][];
+                        for (int i = 0; i < MAX_LEVELS; i++)
+                            levels[i] = new SortedRun[0];
+                        state = new State(newMemTable(), null, levels);
+                        size = savedSize = 0;
+                    }
+                    writeManifest();
+                }
+                for (SortedRun[] runs : old) {
+                    for (SortedRun run : runs)
+                        run.remove();
+                }
+            }
+        }
+    }
+
+    @Override
+    public void remove() {
+        clear();
+        close();
+        if (dir != null)
+            FileUtils.deleteRecursive(dir, false);
+        storage.removeMap(name);
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public void close() {
+        synchronized (compactSync) {
+            synchronized (saveSync) {
+                closed = true;
+                for (SortedRun[] runs : state.levels) {
+                    for (SortedRun run : runs)
+                        run.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Write the memtable to a new sorted run of level 0.
+     */
+    @Override
+    public void save() {
+        if (dir == null)
+            return;
+        synchronized (saveSync) {
+            if (closed)
+                return;
+            MemTable memTable;
+            synchronized (this) {
+                State s = state;
+                if (s.immutable != null) {
+                    // 上次写run失败了，先重写旧的memtable
+                    memTable = s.immutable;
+                } else {
+                    memTable = s.memTable;
+                    if (memTable.isEmpty())
+                        return;
+                    immutableSize = size;
+                    // 写run的过程中新的修改写到新的memtable，读的时候还要读旧的memtable
+                    state = new State(newMemTable(), memTable, s.levels);
+                }
+            }
+            SortedRun run = SortedRun.write(this, nextRunId(), memTable.entryIterator(null), Long.MAX_VALUE);
+            synchronized (manifestSync) {
+                synchronized (this) {
+                    State s = state;
+                    SortedRun[][] levels = s.levels.clone();
+                    levels[0] = add(levels[0], 0, run);
+                    state = new State(s.memTable, null, levels);
+                    savedSize = immutableSize;
+                }
+                writeManifest();
+            }
+        }
+        storage.wakeUp();
+    }
+
+    boolean needsSave() {
+        return dir != null && state.memTable.memory > storage.memTableSize;
+    }
+
+    private synchronized int nextRunId() {
+        return nextRunId++;
+    }
+
+    private void writeManifest() {
+        if (dir == null)
+            return;
+        StringBuilder buff = new StringBuilder();
+        synchronized (this) {
+            DataUtils.appendMap(buff, "size", savedSize);
+            DataUtils.appendMap(buff, "nextRunId", nextRunId);
+            SortedRun[][] levels = state.levels;
+            for (int i = 0; i < MAX_LEVELS; i++) {
+                if (levels[i].length == 0)
+                    continue;
+                StringBuilder ids = new StringBuilder();
+                for (SortedRun run : levels[i]) {
+                    if (ids.length() > 0)
+                        ids.append(' ');
+                    ids.append(run.id);
+                }
+                DataUtils.appendMap(buff, "level" + i, ids);
+            }
+        }
+        String manifest = dir + File.separator + MANIFEST_FILE_NAME;
+        String tempFile = manifest + ".temp";
+        try {
+            FileChannel f = FileUtils.open(tempFile, "rw");
+            try {
+                f.truncate(0);
+                FileUtils.writeFully(f, ByteBuffer.wrap(buff.toString().getBytes(DataUtils.UTF8)));
+                f.force(true);
+            } finally {
+                f.close();
+            }
+        } catch (IOException e) {
+            throw DataUtils.newIllegalStateException(DataUtils.ERROR_WRITING_FAILED, "Could not write {0}",
+                    manifest, e);
+        }
+        FileUtils.moveAtomicReplace(tempFile, manifest);
+    }
+
+    /**
+     * Merge the runs of the level that exceeds its size the most into the next
+     * level.
+     *
+     * @return whether the runs were changed
+     */
+    boolean compact() {
+        if (dir == null)
+            return false;
+        synchronized (compactSync) {
+            if (closed)
+                return false;
+            SortedRun[][] levels = state.levels;
+            int level = pickLevel(levels);
+            if (level < 0)
+                return false;
+
+            SortedRun[] inputs;
+            if (level == 0) {
+                inputs = levels[0];
+            } else {
+                inputs = new SortedRun[] { pickRun(levels[level], compactPointers[level]) };
+            }
+            Object min = inputs[0].minKey, max = inputs[0].maxKey;
+            for (SortedRun run : inputs) {
+                if (keyType.compare(run.minKey, min) < 0)
+                    min = run.minKey;
+                if (keyType.compare(run.maxKey, max) > 0)
+                    max = run.maxKey;
+            }
+            compactPointers[level] = max;
+            ArrayList<SortedRun> overlaps = new ArrayList<>();
+            for (SortedRun run : levels[level + 1]) {
+                if (run.overlaps(min, max))
+                    overlaps.add(run);
+            }
+            if (level > 0 && overlaps.isEmpty()) {
+                // 下一层没有重叠的run，直接移过去
+                apply(inputs, level + 1, inputs);
+                return true;
+            }
+
+            // 下面的层都是空的，删除标记就不需要了
+            boolean dropDeleted = true;
+            for (int i = level + 2; i < MAX_LEVELS; i++) {
+                if (levels[i].length > 0)
+                    dropDeleted = false;
+            }
+            ArrayList<Iterator<Map.Entry<Object, Object>>> sources = new ArrayList<>();
+            for (SortedRun run : inputs)
+                sources.add(run.iterator(null));
+            for (SortedRun run : overlaps)
+                sources.add(run.iterator(null));
+            MergeIterator it = new MergeIterator(keyType, sources, dropDeleted);
+            ArrayList<SortedRun> outputs = new ArrayList<>();
+            while (it.hasNext()) {
+                if (storage.isClosing()) {
+                    for (SortedRun run : outputs)
+                        run.remove();
+                    return false;
+                }
+                outputs.add(SortedRun.write(this, nextRunId(), it, storage.runSize));
+            }
+
+            SortedRun[] removed = new SortedRun[inputs.length + overlaps.size()];
+            System.arraycopy(inputs, 0, removed, 0, inputs.length);
+            for (int i = 0; i < overlaps.size(); i++)
+                removed[inputs.length + i] = overlaps.get(i);
+            apply(removed, level + 1, outputs.toArray(new SortedRun[outputs.size()]));
+            for (SortedRun run : removed)
+                run.remove();
+            return true;
+        }
+    }
+
+    private int pickLevel(SortedRun[][] levels) {
+        int level = -1;
+        double best = 1;
+        double score = (double) levels[0].length / storage.level0RunCount;
+        if (score >= best) {
+            level = 0;
+            best = score;
+        }
+        long maxBytes = storage.levelBaseSize;
+        // 最后一层不再往下压缩
+        for (int i = 1; i < MAX_LEVELS - 1; i++, maxBytes *= 10) {
+            long bytes = 0;
+            for (SortedRun run : levels[i])
+                bytes += run.length;
+            score = (double) bytes / maxBytes;
+            if (score > best) {
+                level = i;
+                best = score;
+            }
+        }
+        return level;
+    }
+
+    // 从上次压缩的位置开始轮流选run
+    private SortedRun pickRun(SortedRun[] runs, Object pointer) {
+        if (pointer != null) {
+            for (SortedRun run : runs) {
+                if (keyType.compare(run.minKey, pointer) > 0)
+                    return run;
+            }
+        }
+        return runs[0];
+    }
+
+    private void apply(SortedRun[] removed, int level, SortedRun[] added) {
+        synchronized (manifestSync) {
+            synchronized (this) {
+                State s = state;
+                SortedRun[][] levels = s.levels.clone();
+                for (int i = 0; i < MAX_LEVELS; i++) {
+                    ArrayList<SortedRun> list = new ArrayList<>();
+                    for (SortedRun run : levels[i]) {
+                        if (!contains(removed, run))
+                            list.add(run);
+                    }
+                    levels[i] = list.toArray(new SortedRun[list.size()]);
+                }
+                for (SortedRun run : added)
+                    levels[level] = add(levels[level], level, run);
+                state = new State(s.memTable, s.immutable, levels);
+            }
+            writeManifest();
+        }
+    }
+
+    private static boolean contains(SortedRun[] runs, SortedRun run) {
+        for (SortedRun r : runs) {
+            if (r == run)
+                return true;
+        }
+        return false;
+    }
+
+    // 第0层新的run在前面，其他层按key排序
+    private SortedRun[] add(SortedRun[] runs, int level, SortedRun run) {
+        if (run == null)
+            return runs;
+        SortedRun[] list = new SortedRun[runs.length + 1];
+        int pos = 0;
+        if (level > 0) {
+            while (pos < runs.length && keyType.compare(runs[pos].minKey, run.minKey) < 0)
+                pos++;
+        }
+        System.arraycopy(runs, 0, list, 0, pos);
+        list[pos] = run;
+        System.arraycopy(runs, pos, list, pos + 1, runs.length - pos);
+        return list;
+    }
+
+    /**
+     * Get the number of runs of each level.
+     *
+     * @return the number of runs
+     */
+    public int[] getRunCounts() {
+        SortedRun[][] levels = state.levels;
+        int[] counts = new int[MAX_LEVELS];
+        for (int i = 0; i < MAX_LEVELS; i++)
+            counts[i] = levels[i].length;
+        return counts;
+    }
+
+    @Override
+    public void transferTo(WritableByteChannel target, K firstKey, K lastKey) throws IOException {
+        WriteBuffer buff = WriteBufferPool.poll();
+        try {
+            StorageMapCursor<K, V> c = cursor(firstKey);
+            while (c.hasNext()) {
+                K key = c.next();
+                if (lastKey != null && keyType.compare(key, lastKey) > 0)
+                    break;
+                int start = buff.position();
+                buff.putInt(0);
+                keyType.write(buff, key);
+                valueType.write(buff, c.getValue());
+                buff.putInt(start, buff.position() - start - 4);
+                if (buff.position() > 1024 * 1024)
+                    flush(target, buff);
+            }
+            flush(target, buff);
+        } finally {
+            WriteBufferPool.offer(buff);
+        }
+    }
+
+    private static void flush(WritableByteChannel target, WriteBuffer buff) throws IOException {
+        ByteBuffer b = buff.getBuffer();
+        b.flip();
+        while (b.hasRemaining())
+            target.write(b);
+        buff.clear();
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void transferFrom(ReadableByteChannel src) throws IOException {
+        ByteBuffer len = ByteBuffer.allocate(4);
+        while (readFully(src, len)) {
+            ByteBuffer entry = ByteBuffer.allocate(len.getInt());
+            if (!readFully(src, entry))
+                throw new IOException("Unexpected end of the stream");
+            put((K) keyType.read(entry), (V) valueType.read(entry));
+            len.clear();
+        }
+    }
+
+    private static boolean readFully(ReadableByteChannel src, ByteBuffer buff) throws IOException {
+        while (buff.hasRemaining()) {
+            if (src.read(buff) < 0) {
+                if (buff.position() == 0)
+                    return false;
+                throw new IOException("Unexpected end of the stream");
+            }
+        }
+        buff.flip();
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return "LSMMap[" + name + "]";
+    }
+
+    /**
+     * The memtables and runs that a read uses.
+     */
+    private class State {
+
+        final MemTable memTable;
+        final MemTable immutable; // 正在写成run的memtable
+        final SortedRun[][] levels;
+
+        State(MemTable memTable, MemTable immutable, SortedRun[][] levels) {
+            this.memTable = memTable;
+            this.immutable = immutable;
+            this.levels = levels;
+        }
+
+        boolean isEmpty() {
+            for (SortedRun[] runs : levels) {
+                if (runs.length > 0)
+                    return false;
+            }
+            return true;
+        }
+
+        Object find(Object key) {
+            Object v = memTable.get(key);
+            if (v != null)
+                return v;
+            if (immutable != null) {
+                v = immutable.get(key);
+                if (v != null)
+                    return v;
+            }
+            if (isEmpty())
+                return null;
+            long hash = hash(key);
+            for (SortedRun run : levels[0]) {
+                v = run.get(key, hash);
+                if (v != null)
+                    return v;
+            }
+            for (int i = 1; i < MAX_LEVELS; i++) {
+                SortedRun run = findRun(levels[i], key);
+                if (run != null) {
+                    v = run.get(key, hash);
+                    if (v != null)
+                        return v;
+                }
+            }
+            return null;
+        }
+
+        Object floorKey(Object key, boolean inclusive) {
+            Object max = null;
+            max = max(max, key == null ? memTable.lastKey() : floor(memTable, key, inclusive));
+            if (immutable != null)
+                max = max(max, key == null ? immutable.lastKey() : floor(immutable, key, inclusive));
+            for (SortedRun[] runs : levels) {
+                for (SortedRun run : runs)
+                    max = max(max, run.floorKey(key, inclusive));
+            }
+            return max;
+        }
+
+        private Object floor(MemTable m, Object key, boolean inclusive) {
+            return inclusive ? m.floorKey(key) : m.lowerKey(key);
+        }
+
+        private Object max(Object a, Object b) {
+            if (a == null)
+                return b;
+            if (b == null)
+                return a;
+            return keyType.compare(a, b) >= 0 ? a : b;
+        }
+
+        Iterator<Map.Entry<Object, Object>> iterator(Object from) {
+            ArrayList<Iterator<Map.Entry<Object, Object>>> sources = new ArrayList<>();
+            sources.add(memTable.entryIterator(from));
+            if (immutable != null)
+                sources.add(immutable.entryIterator(from));
+            for (SortedRun run : levels[0]) {
+                if (from == null || keyType.compare(run.maxKey, from) >= 0)
+                    sources.add(run.iterator(from));
+            }
+            for (int i = 1; i < MAX_LEVELS; i++) {
+                if (levels[i].length > 0)
+                    sources.add(new LevelIterator(levels[i], from));
+            }
+            return new MergeIterator(keyType, sources, true);
+        }
+    }
+
+    // 第1层开始每层的run不重叠，用二分查找
+    private SortedRun findRun(SortedRun[] runs, Object key) {
+        int low = 0, high = runs.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            SortedRun run = runs[mid];
+            if (keyType.compare(run.maxKey, key) < 0)
+                low = mid + 1;
+            else if (keyType.compare(run.minKey, key) > 0)
+                high = mid - 1;
+            else
+                return run;
+        }
+        return null;
+    }
+
+    private long hash(Object key) {
+        WriteBuffer buff = WriteBufferPool.poll();
+        try {
+            keyType.write(buff, key);
+            return BloomFilter.hash(buff.getBuffer(), 0, buff.position());
+        } finally {
+            WriteBufferPool.offer(buff);
+        }
+    }
+
+    /**
+     * Iterates over the runs of a level one after another.
+     */
+    private class LevelIterator implements Iterator<Map.Entry<Object, Object>> {
+
+        private final SortedRun[] runs;
+        private Object from;
+        private int index;
+        private Iterator<Map.Entry<Object, Object>> current;
+
+        LevelIterator(SortedRun[] runs, Object from) {
+            this.runs = runs;
+            this.from = from;
+            if (from != null) {
+                while (index < runs.length && keyType.compare(runs[index].maxKey, from) < 0)
+                    index++;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (current == null || !current.hasNext()) {
+                if (index >= runs.length)
+                    return false;
+                current = runs[index++].iterator(from);
+                from = null;
+            }
+            return true;
+        }
+
+        @Override
+        public Map.Entry<Object, Object> next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            return current.next();
+        }
+
+        @Override
+        public void remove() {
+            throw DataUtils.newUnsupportedOperationException("Removing is not supported");
+        }
+    }
+
+    /**
+     * A cursor over the merged memtables and runs. If a run is deleted by a
+     * compaction, the cursor continues after the last key with the new state.
+     */
+    private class LSMMapCursor implements StorageMapCursor<K, V> {
+
+        private final K from;
+        private State state;
+        private Iterator<Map.Entry<Object, Object>> it;
+        private K key;
+        private V value;
+
+        LSMMapCursor(K from) {
+            this.from = from;
+            while (true) {
+                state = LSMMap.this.state;
+                try {
+                    it = state.iterator(from);
+                    return;
+                } catch (IllegalStateException e) {
+                    checkRetry(state, e);
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (true) {
+                try {
+                    return it.hasNext();
+                } catch (IllegalStateException e) {
+                    checkRetry(state, e);
+                    reopen();
+                }
+            }
+        }
+
+        private void reopen() {
+            while (true) {
+                state = LSMMap.this.state;
+                try {
+                    MergeIterator m = (MergeIterator) state.iterator(key == null ? from : key);
+                    if (key != null && m.hasNext() && keyType.compare(m.peekKey(), key) == 0)
+                        m.next();
+                    it = m;
+                    return;
+                } catch (IllegalStateException e) {
+                    checkRetry(state, e);
+                }
+            }
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public K next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            Map.Entry<Object, Object> e = it.next();
+            key = (K) e.getKey();
+            value = (V) e.getValue();
+            return key;
+        }
+
+        @Override
+        public void remove() {
+            LSMMap.this.remove(key);
+        }
+
+        @Override
+        public K getKey() {
+            return key;
+        }
+
+        @Override
+        public V getValue() {
+            return value;
+        }
+    }
+}
@@ -0,0 +1,307 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.storage.lsm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.Thread.UncaughtExceptionHandler;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.lealone.common.exceptions.DbException;
+import org.lealone.common.util.IOUtils;
+import org.lealone.db.Constants;
+import org.lealone.storage.Storage;
+import org.lealone.storage.StorageMap;
+import org.lealone.storage.cache.CacheLongKeyLIRS;
+import org.lealone.storage.fs.FileUtils;
+import org.lealone.storage.type.DataType;
+
+/**
+ * A storage of LSM maps. Each map has its own directory with a manifest and
+ * the sorted runs. The memtables are written to runs and the runs are compacted
+ * by a background thread, the blocks of all runs share one cache.
+ *
+ * @author zhh
+ */
+public class LSMStorage implements Storage {
+
+    /**
+     * The suffix of the directory of a LSM storage.
+     */
+    public static final String SUFFIX_LSM_DIR = ".lsm";
+
+    private static final String TEMP_MAP_NAME_PREFIX = "temp" + Constants.NAME_SEPARATOR;
+
+    final Map<String, Object> config;
+    final CacheLongKeyLIRS<SortedRun.Block> blockCache;
+    final long memTableSize;
+    final long runSize;
+    final int level0RunCount;
+    final long levelBaseSize;
+
+    private final String dir;
+    private final ConcurrentHashMap<String, LSMMap<?, ?>> maps = new ConcurrentHashMap<>();
+    private final AtomicInteger nextRunCacheId = new AtomicInteger();
+    private final CompactionService compactionService;
+    private int nextTempMapId;
+    private volatile boolean closing;
+
+    LSMStorage(Map<String, Object> config) {
+        this.config = config;
+        memTableSize = getLong(config, "memTableSize", 16 * 1024 * 1024);
+        runSize = getLong(config, "runSize", 2 * 1024 * 1024);
+        level0RunCount = (int) getLong(config, "level0RunCount", 4);
+        levelBaseSize = getLong(config, "levelBaseSize", 10 * 1024 * 1024);
+
+        CacheLongKeyLIRS.Config cc = new CacheLongKeyLIRS.Config();
+        cc.maxMemory = getLong(config, "cacheSize", 16) * 1024 * 1024;
+        blockCache = new CacheLongKeyLIRS<>(cc);
+
+        String storageName = (String) config.get("storageName");
+        if (storageName == null || config.containsKey("inMemory")) {
+            dir = null;
+            compactionService = null;
+        } else {
+            dir = storageName + SUFFIX_LSM_DIR;
+            if (!FileUtils.exists(dir))
+                FileUtils.createDirectories(dir);
+            // 临时map不需要保留
+            for (String f : FileUtils.newDirectoryStream(dir)) {
+                if (FileUtils.getName(f).startsWith(TEMP_MAP_NAME_PREFIX))
+                    FileUtils.deleteRecursive(f, false);
+            }
+            compactionService = new CompactionService(
+                    (UncaughtExceptionHandler) config.get("backgroundExceptionHandler"));
+            compactionService.start();
+        }
+    }
+
+    private static long getLong(Map<String, Object> config, String key, long defaultValue) {
+        Object o = config.get(key);
+        return o == null ? defaultValue : Long.parseLong(o.toString());
+    }
+
+    boolean isInMemory() {
+        return dir == null;
+    }
+
+    boolean isClosing() {
+        return closing;
+    }
+
+    String getMapDir(String name) {
+        return dir + File.separator + name;
+    }
+
+    long nextRunCacheId() {
+        return nextRunCacheId.incrementAndGet();
+    }
+
+    void removeMap(String name) {
+        maps.remove(name);
+    }
+
+    void wakeUp() {
+        if (compactionService != null)
+            compactionService.wakeUp();
+    }
+
+    @Override
+    public synchronized <K, V> LSMMap<K, V> openMap(String name, String mapType, DataType keyType,
+            DataType valueType, Map<String, String> parameters) {
+        @SuppressWarnings("unchecked")
+        LSMMap<K, V> map = (LSMMap<K, V>) maps.get(name);
+        if (map == null) {
+            map = new LSMMap<>(name, keyType, valueType, this);
+            maps.put(name, map);
+        }
+        return map;
+    }
+
+    @Override
+    public StorageMap<?, ?> getStorageMap(String name) {
+        return maps.get(name);
+    }
+
+    @Override
+    public boolean hasMap(String name) {
+        return maps.containsKey(name) || dir != null && FileUtils.exists(getMapDir(name));
+    }
+
+    @Override
+    public synchronized String nextTemporaryMapName() {
+        while (true) {
+            String name = TEMP_MAP_NAME_PREFIX + nextTempMapId++;
+            if (!hasMap(name))
+                return name;
+        }
+    }
+
+    @Override
+    public void backupTo(String fileName) {
+        if (dir == null) {
+            throw DbException.getUnsupportedException("backup of a storage that is in memory");
+        }
+        flush();
+        try {
+            OutputStream zip = FileUtils.newOutputStream(fileName, false);
+            ZipOutputStream out = new ZipOutputStream(zip);
+            String base = FileUtils.getName(dir);
+            for (String mapDir : FileUtils.newDirectoryStream(dir)) {
+                String mapName = FileUtils.getName(mapDir);
+                if (mapName.startsWith(TEMP_MAP_NAME_PREFIX))
+                    continue;
+                LSMMap<?, ?> map = maps.get(mapName);
+                // 压缩会删除run，备份期间不能压缩
+                if (map != null) {
+                    synchronized (map.compactSync) {
+                        backupMap(out, base, mapDir);
+                    }
+                } else {
+                    backupMap(out, base, mapDir);
+                }
+            }
+            out.close();
+            zip.close();
+        } catch (IOException e) {
+            throw DbException.convertIOException(e, fileName);
+        }
+    }
+
+    private static void backupMap(ZipOutputStream out, String base, String mapDir) throws IOException {
+        String mapName = FileUtils.getName(mapDir);
+        for (String f : FileUtils.newDirectoryStream(mapDir)) {
+            String name = FileUtils.getName(f);
+            if (name.endsWith(".temp"))
+                continue;
+            out.putNextEntry(new ZipEntry(base + "/" + mapName + "/" + name));
+            InputStream in = FileUtils.newInputStream(f);
+            IOUtils.copyAndCloseInput(in, out);
+            out.closeEntry();
+        }
+    }
+
+    @Override
+    public void flush() {
+        for (LSMMap<?, ?> map : maps.values())
+            map.save();
+    }
+
+    @Override
+    public void sync() {
+        flush();
+    }
+
+    @Override
+    public synchronized void close() {
+        closeCompactionService();
+        for (LSMMap<?, ?> map : maps.values()) {
+            map.save();
+            map.close();
+        }
+        maps.clear();
+        blockCache.clear();
+    }
+
+    @Override
+    public synchronized void closeImmediately() {
+        closeCompactionService();
+        for (LSMMap<?, ?> map : maps.values())
+            map.close();
+        maps.clear();
+        blockCache.clear();
+    }
+
+    private void closeCompactionService() {
+        closing = true;
+        if (compactionService != null)
+            compactionService.close();
+    }
+
+    /**
+     * Writes the memtables that are too large and compacts the runs of all
+     * maps. It runs after each save and also wakes up periodically.
+     */
+    private class CompactionService extends Thread {
+
+        private final Semaphore semaphore = new Semaphore(0);
+        private final UncaughtExceptionHandler exceptionHandler;
+
+        CompactionService(UncaughtExceptionHandler exceptionHandler) {
+            super("LSMCompactionService");
+            this.exceptionHandler = exceptionHandler;
+            setDaemon(true);
+        }
+
+        void wakeUp() {
+            if (semaphore.availablePermits() == 0)
+                semaphore.release();
+        }
+
+        // 不能用interrupt，中断会导致正在读写的FileChannel被关闭
+        void close() {
+            semaphore.release();
+            try {
+                join();
+            } catch (InterruptedException e) {
+                // ignore
+            }
+        }
+
+        @Override
+        public void run() {
+            while (!closing) {
+                try {
+                    semaphore.tryAcquire(1000, TimeUnit.MILLISECONDS);
+                    semaphore.drainPermits();
+                } catch (InterruptedException e) {
+                    break;
+                }
+                try {
+                    boolean changed = true;
+                    while (changed && !closing) {
+                        changed = false;
+                        for (LSMMap<?, ?> map : maps.values()) {
+                            if (closing)
+                                break;
+                            if (map.needsSave()) {
+                                map.save();
+                                changed = true;
+                            }
+                            if (map.compact())
+                                changed = true;
+                        }
+                    }
+                } catch (Throwable e) {
+                    if (exceptionHandler != null)
+                        exceptionHandler.uncaughtException(this, e);
+                    else
+                        DbException.traceThrowable(e);
+                }
+            }
+        }
+    }
+}
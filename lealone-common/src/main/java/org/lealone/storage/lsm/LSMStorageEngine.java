@@ -0,0 +1,106 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.storage.lsm;
+
+import org.lealone.db.DataHandler;
+import org.lealone.storage.LobStorage;
+import org.lealone.storage.Storage;
+import org.lealone.storage.StorageBuilder;
+import org.lealone.storage.StorageEngineBase;
+
+/**
+ * A storage engine of log-structured merge trees, for tables that are mostly
+ * appended to. Use it with CREATE TABLE ... ENGINE LSM.
+ *
+ * @author zhh
+ */
+public class LSMStorageEngine extends StorageEngineBase {
+    public static final String NAME = "LSM";
+
+    public LSMStorageEngine() {
+        super(NAME);
+    }
+
+    @Override
+    public StorageBuilder getStorageBuilder() {
+        return new LSMStorageBuilder();
+    }
+
+    @Override
+    public LobStorage getLobStorage(DataHandler dataHandler, Storage storage) {
+        // LOB保存在其他存储引擎中
+        return null;
+    }
+
+    public static class LSMStorageBuilder extends StorageBuilder {
+
+        @Override
+        public LSMStorage openStorage() {
+            return new LSMStorage(config);
+        }
+
+        /**
+         * Set the estimated memory size of a memtable in bytes after which it
+         * is written to a sorted run, even if the map is not saved. The
+         * default is 16 MB.
+         *
+         * @param size the size in bytes
+         * @return this
+         */
+        public LSMStorageBuilder memTableSize(int size) {
+            set("memTableSize", size);
+            return this;
+        }
+
+        /**
+         * Set the size of the sorted runs that compaction writes. The default
+         * is 2 MB.
+         *
+         * @param size the size in bytes
+         * @return this
+         */
+        public LSMStorageBuilder runSize(int size) {
+            set("runSize", size);
+            return this;
+        }
+
+        /**
+         * Set the number of runs of level 0 after which they are merged into
+         * level 1. The default is 4.
+         *
+         * @param count the number of runs
+         * @return this
+         */
+        public LSMStorageBuilder level0RunCount(int count) {
+            set("level0RunCount", count);
+            return this;
+        }
+
+        /**
+         * Set the size of level 1, each next level is 10 times as large. The
+         * default is 10 MB.
+         *
+         * @param size the size in bytes
+         * @return this
+         */
+        public LSMStorageBuilder levelBaseSize(int size) {
+            set("levelBaseSize", size);
+            return this;
+        }
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.storage.lsm;
+
+import java.util.Iterator;
+import java.util.Map;
+
+import org.lealone.storage.memory.MemoryMap;
+import org.lealone.storage.type.DataType;
+
+/**
+ * The in-memory part of a LSM map. A removed key is kept with the value
+ * {@link LSMMap#DELETED} until the memtable is written to a sorted run, so
+ * that it hides the older values in the runs.
+ *
+ * @author zhh
+ */
+class MemTable extends MemoryMap<Object, Object> {
+
+    // 估算的内存大小，只在LSMMap的写锁中修改
+    volatile long memory;
+
+    MemTable(String name, DataType keyType, DataType valueType) {
+        super(name, keyType, valueType);
+    }
+
+    /**
+     * Iterate over the entries, including the removed keys.
+     *
+     * @param from the first key, or null to start at the first entry
+     * @return the iterator
+     */
+    Iterator<Map.Entry<Object, Object>> entryIterator(Object from) {
+        return from == null ? skipListMap.entrySet().iterator() : skipListMap.tailMap(from).entrySet().iterator();
+    }
+}
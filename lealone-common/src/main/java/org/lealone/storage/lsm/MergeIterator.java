@@ -0,0 +1,117 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.storage.lsm;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import org.lealone.common.util.DataUtils;
+import org.lealone.storage.type.DataType;
+
+/**
+ * Merges sorted entry iterators into one. If several iterators have the same
+ * key, only the entry of the first of them is returned, so the iterators are
+ * given from the newest to the oldest.
+ *
+ * @author zhh
+ */
+class MergeIterator implements Iterator<Map.Entry<Object, Object>> {
+
+    private final DataType keyType;
+    private final List<Iterator<Map.Entry<Object, Object>>> sources;
+    private final ArrayList<Map.Entry<Object, Object>> heads;
+    private final boolean skipDeleted;
+    private Map.Entry<Object, Object> next;
+
+    /**
+     * Create a merge iterator.
+     *
+     * @param keyType the key type
+     * @param sources the iterators, newest first
+     * @param skipDeleted whether the removed keys are skipped
+     */
+    MergeIterator(DataType keyType, List<Iterator<Map.Entry<Object, Object>>> sources, boolean skipDeleted) {
+        this.keyType = keyType;
+        this.sources = sources;
+        this.skipDeleted = skipDeleted;
+        int size = sources.size();
+        heads = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            Iterator<Map.Entry<Object, Object>> it = sources.get(i);
+            heads.add(it.hasNext() ? it.next() : null);
+        }
+    }
+
+    private void advance(int i) {
+        Iterator<Map.Entry<Object, Object>> it = sources.get(i);
+        heads.set(i, it.hasNext() ? it.next() : null);
+    }
+
+    /**
+     * Get the key of the next entry without moving to it.
+     *
+     * @return the key, or null if there are no more entries
+     */
+    Object peekKey() {
+        return hasNext() ? next.getKey() : null;
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (next == null) {
+            int min = -1;
+            Map.Entry<Object, Object> e = null;
+            for (int i = 0, size = heads.size(); i < size; i++) {
+                Map.Entry<Object, Object> h = heads.get(i);
+                if (h != null && (e == null || keyType.compare(h.getKey(), e.getKey()) < 0)) {
+                    min = i;
+                    e = h;
+                }
+            }
+            if (min < 0)
+                return false;
+            // 旧的iterator中相同的key被新值覆盖了
+            for (int i = min + 1, size = heads.size(); i < size; i++) {
+                Map.Entry<Object, Object> h = heads.get(i);
+                if (h != null && keyType.compare(h.getKey(), e.getKey()) == 0)
+                    advance(i);
+            }
+            advance(min);
+            if (!skipDeleted || e.getValue() != LSMMap.DELETED)
+                next = e;
+        }
+        return true;
+    }
+
+    @Override
+    public Map.Entry<Object, Object> next() {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        Map.Entry<Object, Object> e = next;
+        next = null;
+        return e;
+    }
+
+    @Override
+    public void remove() {
+        throw DataUtils.newUnsupportedOperationException("Removing is not supported");
+    }
+}
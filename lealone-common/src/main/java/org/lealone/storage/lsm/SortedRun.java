@@ -0,0 +1,438 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.storage.lsm;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import org.lealone.common.util.DataUtils;
+import org.lealone.storage.cache.CacheLongKeyLIRS;
+import org.lealone.storage.fs.FileStorage;
+import org.lealone.storage.type.DataType;
+import org.lealone.storage.type.WriteBuffer;
+import org.lealone.storage.type.WriteBufferPool;
+
+/**
+ * An immutable file of sorted key-value pairs of a LSM map.
+ * <p>
+ * File format:
+ * <ul>
+ * <li>the data blocks, each is a sequence of (key, 0) for a removed key or
+ * (key, 1, value)</li>
+ * <li>the sparse index: the block count, the offset, length and first key of
+ * each block, and the last key of the run</li>
+ * <li>the bloom filter of the keys</li>
+ * <li>the footer: index offset and length, bloom filter offset and length,
+ * entry count, magic number</li>
+ * </ul>
+ * Only the sparse index and the bloom filter are kept in memory, the blocks
+ * are read on demand and kept in the block cache of the storage.
+ *
+ * @author zhh
+ */
+class SortedRun {
+
+    private static final int MAGIC = 0x4c534d52; // "LSMR"
+    private static final int FOOTER_LENGTH = 8 + 4 + 8 + 4 + 8 + 4;
+    private static final int BLOCK_SIZE = 4 * 1024;
+    private static final int WRITE_BUFFER_SIZE = 256 * 1024;
+
+    final int id;
+    private final LSMMap<?, ?> map;
+    private final DataType keyType;
+    private final FileStorage file;
+    private final long cacheId;
+
+    final long entryCount;
+    final long length;
+    final Object minKey;
+    final Object maxKey;
+
+    private final Object[] blockKeys;
+    private final long[] blockOffsets;
+    private final int[] blockLengths;
+    private final BloomFilter bloom;
+
+    private volatile boolean closed;
+
+    private SortedRun(LSMMap<?, ?> map, int id) {
+        this.map = map;
+        this.id = id;
+        keyType = map.getKeyType();
+        file = new FileStorage();
+        file.open(map.getRunFileName(id), map.storage.config);
+        cacheId = map.storage.nextRunCacheId();
+        length = file.size();
+
+        if (length < FOOTER_LENGTH) {
+            throw DataUtils.newIllegalStateException(DataUtils.ERROR_FILE_CORRUPT, "Sorted run {0} is too short",
+                    file.getFileName());
+        }
+        ByteBuffer footer = file.readFully(length - FOOTER_LENGTH, FOOTER_LENGTH);
+        long indexOffset = footer.getLong();
+        int indexLength = footer.getInt();
+        long bloomOffset = footer.getLong();
+        int bloomLength = footer.getInt();
+        entryCount = footer.getLong();
+        if (footer.getInt() != MAGIC) {
+            throw DataUtils.newIllegalStateException(DataUtils.ERROR_FILE_CORRUPT, "Sorted run {0} is corrupt",
+                    file.getFileName());
+        }
+
+        ByteBuffer index = file.readFully(indexOffset, indexLength);
+        int blockCount = DataUtils.readVarInt(index);
+        blockKeys = new Object[blockCount];
+        blockOffsets = new long[blockCount];
+        blockLengths = new int[blockCount];
+        for (int i = 0; i < blockCount; i++) {
+            blockOffsets[i] = DataUtils.readVarLong(index);
+            blockLengths[i] = DataUtils.readVarInt(index);
+            blockKeys[i] = keyType.read(index);
+        }
+        minKey = blockKeys[0];
+        maxKey = keyType.read(index);
+        bloom = BloomFilter.read(file.readFully(bloomOffset, bloomLength));
+    }
+
+    /**
+     * Open an existing sorted run.
+     *
+     * @param map the map
+     * @param id the run id
+     * @return the run
+     */
+    static SortedRun open(LSMMap<?, ?> map, int id) {
+        return new SortedRun(map, id);
+    }
+
+    /**
+     * Write the entries to a new sorted run until the file reaches the given
+     * length or there are no more entries.
+     *
+     * @param map the map
+     * @param id the run id
+     * @param entries the entries in ascending key order, the value is
+     *            LSMMap.DELETED for a removed key
+     * @param maxLength the length after which no more blocks are added
+     * @return the run, or null if there were no entries
+     */
+    static SortedRun write(LSMMap<?, ?> map, int id, Iterator<? extends Map.Entry<?, Object>> entries, long maxLength) {
+        if (!entries.hasNext())
+            return null;
+        DataType keyType = map.getKeyType();
+        DataType valueType = map.getValueType();
+        FileStorage file = new FileStorage();
+        file.open(map.getRunFileName(id), map.storage.config);
+        WriteBuffer block = WriteBufferPool.poll();
+        WriteBuffer out = WriteBufferPool.poll();
+        WriteBuffer index = WriteBufferPool.poll();
+        try {
+            long pos = 0; // 已经写到文件中的字节数
+            long count = 0;
+            long[] hashes = new long[1024];
+            int blockCount = 0;
+            Object firstKey = null;
+            Object key = null;
+            while (entries.hasNext() && pos + out.position() < maxLength) {
+                Map.Entry<?, Object> e = entries.next();
+                key = e.getKey();
+                if (block.position() == 0)
+                    firstKey = key;
+                int start = block.position();
+                keyType.write(block, key);
+                if (count == hashes.length)
+                    hashes = Arrays.copyOf(hashes, hashes.length * 2);
+                hashes[(int) count++] = BloomFilter.hash(block.getBuffer(), start, block.position());
+                Object value = e.getValue();
+                if (value == LSMMap.DELETED) {
+                    block.put((byte) 0);
+                } else {
+                    block.put((byte) 1);
+                    valueType.write(block, value);
+                }
+                if (block.position() >= BLOCK_SIZE) {
+                    pos = writeBlock(file, block, out, index, pos, keyType, firstKey);
+                    blockCount++;
+                }
+            }
+            if (block.position() > 0) {
+                pos = writeBlock(file, block, out, index, pos, keyType, firstKey);
+                blockCount++;
+            }
+            keyType.write(index, key);
+
+            BloomFilter bloom = new BloomFilter(count);
+            for (int i = 0; i < count; i++)
+                bloom.add(hashes[i]);
+
+            long indexOffset = pos + out.position();
+            out.putVarInt(blockCount);
+            out.put(index.getBuffer().array(), 0, index.position());
+            long bloomOffset = pos + out.position();
+            bloom.write(out);
+            long end = pos + out.position();
+            out.putLong(indexOffset);
+            out.putInt((int) (bloomOffset - indexOffset));
+            out.putLong(bloomOffset);
+            out.putInt((int) (end - bloomOffset));
+            out.putLong(count);
+            out.putInt(MAGIC);
+            flush(file, out, pos);
+            file.sync();
+            file.close();
+        } catch (RuntimeException e) {
+            file.close();
+            file.delete();
+            throw e;
+        } finally {
+            WriteBufferPool.offer(block);
+            WriteBufferPool.offer(out);
+            WriteBufferPool.offer(index);
+        }
+        return new SortedRun(map, id);
+    }
+
+    private static long writeBlock(FileStorage file, WriteBuffer block, WriteBuffer out, WriteBuffer index,
+            long pos, DataType keyType, Object firstKey) {
+        int len = block.position();
+        index.putVarLong(pos + out.position());
+        index.putVarInt(len);
+        keyType.write(index, firstKey);
+        out.put(block.getBuffer().array(), 0, len);
+        block.clear();
+        if (out.position() >= WRITE_BUFFER_SIZE)
+            pos = flush(file, out, pos);
+        return pos;
+    }
+
+    private static long flush(FileStorage file, WriteBuffer out, long pos) {
+        int len = out.position();
+        ByteBuffer buff = out.getBuffer();
+        buff.flip();
+        file.writeFully(pos, buff);
+        out.clear();
+        return pos + len;
+    }
+
+    /**
+     * Get the value of a key.
+     *
+     * @param key the key
+     * @param hash the hash of the serialized key
+     * @return the value, LSMMap.DELETED if the key was removed, or null if
+     *         the run does not contain the key
+     */
+    Object get(Object key, long hash) {
+        if (keyType.compare(key, minKey) < 0 || keyType.compare(key, maxKey) > 0 || !bloom.mightContain(hash))
+            return null;
+        Block b = readBlock(findBlock(key, true));
+        int i = b.indexOf(keyType, key);
+        return i < 0 ? null : b.values[i];
+    }
+
+    /**
+     * Get the largest key of the run that is smaller than (or equal to) the
+     * given key, including the removed keys.
+     *
+     * @param key the key, or null for the last key
+     * @param inclusive whether the key itself may be returned
+     * @return the key, or null
+     */
+    Object floorKey(Object key, boolean inclusive) {
+        if (key == null)
+            return maxKey;
+        int c = keyType.compare(key, maxKey);
+        if (c > 0 || c == 0 && inclusive)
+            return maxKey;
+        int blockIndex = findBlock(key, inclusive);
+        if (blockIndex < 0)
+            return null;
+        Block b = readBlock(blockIndex);
+        int i = b.indexOf(keyType, key);
+        if (i < 0)
+            i = -i - 2; // 最后一个比key小的
+        else if (!inclusive)
+            i--;
+        return b.keys[i];
+    }
+
+    /**
+     * Whether the key range of the run overlaps the given range.
+     *
+     * @param min the first key
+     * @param max the last key
+     * @return true if they overlap
+     */
+    boolean overlaps(Object min, Object max) {
+        return keyType.compare(minKey, max) <= 0 && keyType.compare(maxKey, min) >= 0;
+    }
+
+    /**
+     * Iterate over the entries, including the removed keys.
+     *
+     * @param from the first key, or null to start at the first entry
+     * @return the iterator
+     */
+    Iterator<Map.Entry<Object, Object>> iterator(Object from) {
+        return new RunIterator(from);
+    }
+
+    // 最后一个第一个key小于(或等于)key的块
+    private int findBlock(Object key, boolean inclusive) {
+        int low = 0, high = blockKeys.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int c = keyType.compare(blockKeys[mid], key);
+            if (c < 0 || c == 0 && inclusive)
+                low = mid + 1;
+            else
+                high = mid - 1;
+        }
+        return high;
+    }
+
+    private Block readBlock(int index) {
+        CacheLongKeyLIRS<Block> cache = map.storage.blockCache;
+        long cacheKey = (cacheId << 32) | index;
+        Block b = cache.get(cacheKey);
+        if (b != null)
+            return b;
+        if (closed) {
+            throw DataUtils.newIllegalStateException(DataUtils.ERROR_CLOSED, "Sorted run {0} is closed",
+                    file.getFileName());
+        }
+        ByteBuffer buff = file.readFully(blockOffsets[index], blockLengths[index]);
+        DataType valueType = map.getValueType();
+        ArrayList<Object> keys = new ArrayList<>();
+        ArrayList<Object> values = new ArrayList<>();
+        int memory = 0;
+        while (buff.hasRemaining()) {
+            Object k = keyType.read(buff);
+            Object v = buff.get() == 0 ? LSMMap.DELETED : valueType.read(buff);
+            memory += keyType.getMemory(k) + (v == LSMMap.DELETED ? 0 : valueType.getMemory(v));
+            keys.add(k);
+            values.add(v);
+        }
+        b = new Block(keys.toArray(), values.toArray());
+        if (!closed)
+            cache.put(cacheKey, b, Math.max(1, memory + 64));
+        return b;
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    void close() {
+        closed = true;
+        CacheLongKeyLIRS<Block> cache = map.storage.blockCache;
+        for (int i = 0; i < blockKeys.length; i++)
+            cache.remove((cacheId << 32) | i);
+        file.close();
+    }
+
+    /**
+     * Close the run and delete the file.
+     */
+    void remove() {
+        close();
+        file.delete();
+    }
+
+    @Override
+    public String toString() {
+        return "SortedRun[" + id + ", " + file.getFileName() + "]";
+    }
+
+    /**
+     * The decoded entries of a block.
+     */
+    static class Block {
+
+        final Object[] keys;
+        final Object[] values;
+
+        Block(Object[] keys, Object[] values) {
+            this.keys = keys;
+            this.values = values;
+        }
+
+        int indexOf(DataType keyType, Object key) {
+            int low = 0, high = keys.length - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int c = keyType.compare(keys[mid], key);
+                if (c < 0)
+                    low = mid + 1;
+                else if (c > 0)
+                    high = mid - 1;
+                else
+                    return mid;
+            }
+            return -(low + 1);
+        }
+    }
+
+    private class RunIterator implements Iterator<Map.Entry<Object, Object>> {
+
+        private int blockIndex;
+        private Block block;
+        private int pos;
+
+        RunIterator(Object from) {
+            if (from != null && keyType.compare(from, minKey) > 0) {
+                blockIndex = findBlock(from, true);
+                block = readBlock(blockIndex);
+                pos = block.indexOf(keyType, from);
+                if (pos < 0)
+                    pos = -pos - 1;
+            } else {
+                block = readBlock(0);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (pos >= block.keys.length) {
+                if (blockIndex + 1 >= blockKeys.length)
+                    return false;
+                block = readBlock(++blockIndex);
+                pos = 0;
+            }
+            return true;
+        }
+
+        @Override
+        public Map.Entry<Object, Object> next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            Map.Entry<Object, Object> e = new DataUtils.MapEntry<>(block.keys[pos], block.values[pos]);
+            pos++;
+            return e;
+        }
+
+        @Override
+        public void remove() {
+            throw DataUtils.newUnsupportedOperationException("Removing is not supported");
+        }
+    }
+}
@@ -20,6 +20,8 @@ package org.lealone.storage.memory;
 import java.io.IOException;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
+import java.util.Iterator;
+import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.concurrent.ConcurrentSkipListMap;
 
@@ -100,11 +102,24 @@ public class MemoryMap<K, V> implements StorageMap<K, V> {
         return skipListMap.putIfAbsent(key, value);
     }
 
+    @Override
+    public void bulkLoad(Iterator<? extends Map.Entry<K, V>> entries) {
+        while (entries.hasNext()) {
+            Map.Entry<K, V> e = entries.next();
+            skipListMap.put(e.getKey(), e.getValue());
+        }
+    }
+
     @Override
     public V remove(K key) {
         return skipListMap.remove(key);
     }
 
+    @Override
+    public boolean remove(K key, V value) {
+        return skipListMap.remove(key, value);
+    }
+
     @Override
     public boolean replace(K key, V oldValue, V newValue) {
         return skipListMap.replace(key, oldValue, newValue);
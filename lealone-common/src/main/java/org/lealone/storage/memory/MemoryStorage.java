@@ -58,7 +58,7 @@ public class MemoryStorage implements Storage {
         int i = 0;
         String name = null;
         while (true) {
-            name = "temp" + Constants.NAME_SEPARATOR + i;
+            name = "temp" + Constants.NAME_SEPARATOR + i++;
             if (!maps.containsKey(name))
                 return name;
         }
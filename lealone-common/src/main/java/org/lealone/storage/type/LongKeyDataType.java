@@ -0,0 +1,45 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.storage.type;
+
+/**
+ * A key type whose keys can be converted to a long and back without loss, and whose order is the order of the longs.
+ * <p>
+ * The pages of a map with such a key type keep the keys in a long array instead of an array of objects,
+ * and store them delta encoded.
+ *
+ * @author zhh
+ */
+public interface LongKeyDataType extends DataType {
+
+    /**
+     * Convert a key to a long.
+     *
+     * @param key the key
+     * @return the long value
+     */
+    long toLong(Object key);
+
+    /**
+     * Convert a long to a key.
+     *
+     * @param value the long value
+     * @return the key
+     */
+    Object toKey(long value);
+}
@@ -0,0 +1,62 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.storage.type;
+
+/**
+ * A key type whose keys are lists of elements that are compared one after the other, like the keys of secondary
+ * indexes.
+ * <p>
+ * The keys of a page often start with the same elements. The pages of a map with such a key type compare these
+ * elements with the searched key only once, and then only compare the remaining elements with each key.
+ *
+ * @author zhh
+ */
+public interface PrefixKeyDataType extends DataType {
+
+    /**
+     * Get the number of leading elements that are equal in both keys. If the first and the last key of a page
+     * share these elements, all keys of the page share them.
+     *
+     * @param a the first key
+     * @param b the second key
+     * @return the number of equal leading elements
+     */
+    int getCommonPrefixLength(Object a, Object b);
+
+    /**
+     * Compare the leading elements of a key with the leading elements of a key that has at least that many
+     * elements.
+     *
+     * @param a the key
+     * @param b the key that has the prefix
+     * @param prefixLength the number of leading elements to compare
+     * @return -1 if the first key is smaller, 1 if larger, and 0 if the elements are equal; if the first key
+     *         has fewer elements and they are all equal, the same as {@link #compare(Object, Object)}
+     */
+    int comparePrefix(Object a, Object b, int prefixLength);
+
+    /**
+     * Compare two keys whose leading elements are known to be equal.
+     *
+     * @param a the first key
+     * @param b the second key
+     * @param start the index of the first element that is compared
+     * @return -1 if the first key is smaller, 1 if larger, and 0 if equal
+     */
+    int compare(Object a, Object b, int start);
+}
@@ -69,6 +69,25 @@ public interface Transaction {
 
     void addParticipant(Participant participant);
 
+    /**
+     * Wait until the transaction that holds the row lock this transaction failed to get commits or rolls back.
+     * It is called before a statement that failed because of a concurrent update is retried.
+     *
+     * @param timeoutMillis the maximum time to wait in milliseconds
+     * @return false if this transaction is not waiting for a row lock
+     */
+    boolean waitForLockRelease(long timeoutMillis);
+
+    /**
+     * Like {@link #waitForLockRelease(long)}, but wait on the monitor of an object that the caller is holding,
+     * the monitor is released while waiting, so that the transaction that holds the row lock can get it to finish.
+     *
+     * @param timeoutMillis the maximum time to wait in milliseconds
+     * @param sync the object whose monitor the caller is holding
+     * @return false if this transaction is not waiting for a row lock
+     */
+    boolean waitForLockRelease(long timeoutMillis, Object sync);
+
     /**
      * Open a data map.
      *
@@ -2138,8 +2138,8 @@ public class Database implements DataHandler, DbObject {
         }
     }
 
-    // 每个数据库只有一个StorageBuilder
-    private StorageBuilder storageBuilder;
+    // 每个数据库的每种存储引擎只有一个StorageBuilder
+    private final HashMap<String, StorageBuilder> storageBuilders = new HashMap<>();
 
     private final ConcurrentHashMap<String, Storage> storages = new ConcurrentHashMap<>();
 
@@ -2187,6 +2187,7 @@ public class Database implements DataHandler, DbObject {
     }
 
     public synchronized StorageBuilder getStorageBuilder(StorageEngine storageEngine) {
+        StorageBuilder storageBuilder = storageBuilders.get(storageEngine.getName());
         if (storageBuilder != null)
             return storageBuilder;
 
@@ -2214,6 +2215,12 @@ public class Database implements DataHandler, DbObject {
                 // use a larger page split size to improve the compression ratio
                 builder.pageSplitSize(64 * 1024);
             }
+            if (getSettings().offHeapCacheSize > 0) {
+                builder.offHeapCacheSize(getSettings().offHeapCacheSize);
+            }
+            if (getSettings().mappedReads) {
+                builder.mappedReads();
+            }
             builder.backgroundExceptionHandler(new UncaughtExceptionHandler() {
                 @Override
                 public void uncaughtException(Thread t, Throwable e) {
@@ -2223,8 +2230,8 @@ public class Database implements DataHandler, DbObject {
             builder.db(this);
         }
 
-        storageBuilder = builder;
-        return storageBuilder;
+        storageBuilders.put(storageEngine.getName(), builder);
+        return builder;
     }
 
     @Override
@@ -90,6 +90,9 @@ public class ServerSession extends SessionBase implements Transaction.Validator
     private HashMap<String, Value> variables;
     private HashSet<Result> temporaryResults;
     private int queryTimeout;
+    private int maxParallelDegree = 1;
+    private boolean compileExpressions;
+    private long compiledQueryCount;
     private boolean commitOrRollbackDisabled;
     private Table waitForLock;
     private Thread waitForLockThread;
@@ -1125,6 +1128,84 @@ public class ServerSession extends SessionBase implements Transaction.Validator
         return queryTimeout;
     }
 
+    /**
+     * Set the maximum number of partitions of a query that are executed in
+     * parallel. 0 and 1 disable parallel queries.
+     *
+     * @param maxParallelDegree the maximum degree of parallelism
+     */
+    public void setMaxParallelDegree(int maxParallelDegree) {
+        this.maxParallelDegree = maxParallelDegree;
+    }
+
+    public int getMaxParallelDegree() {
+        return maxParallelDegree;
+    }
+
+    /**
+     * Create a session for a thread that reads a partition of a query of this
+     * session. It uses the transaction, the schema, the variables and the
+     * local temporary tables of this session, but has its own locks,
+     * temporary results, statement cache and trace, so that the partitions
+     * do not change the state of this session concurrently. Its queries are
+     * not executed in parallel again.
+     *
+     * @return the new session
+     */
+    public ServerSession createPartitionSession() {
+        ServerSession s = new ServerSession(database, user, id);
+        // 分区只读数据，在当前线程中先创建事务，分区共用这个事务
+        s.transaction = getTransaction();
+        s.transactionModificationDataId = transactionModificationDataId;
+        s.local = local;
+        s.replicationName = replicationName;
+        s.isRoot = isRoot;
+        s.connectionInfo = connectionInfo;
+        s.autoCommit = autoCommit;
+        s.lockTimeout = lockTimeout;
+        s.queryTimeout = queryTimeout;
+        s.allowLiterals = allowLiterals;
+        s.currentSchemaName = currentSchemaName;
+        s.schemaSearchPath = schemaSearchPath;
+        s.variables = variables;
+        s.procedures = procedures;
+        s.localTempTables = localTempTables;
+        s.localTempTableIndexes = localTempTableIndexes;
+        s.localTempTableConstraints = localTempTableConstraints;
+        return s;
+    }
+
+    /**
+     * Set whether queries compile their conditions and expressions to Java
+     * classes.
+     *
+     * @param compileExpressions the new value
+     */
+    public void setCompileExpressions(boolean compileExpressions) {
+        this.compileExpressions = compileExpressions;
+    }
+
+    public boolean isCompileExpressions() {
+        return compileExpressions;
+    }
+
+    /**
+     * Count a query that evaluated its rows with compiled code.
+     */
+    public void addCompiledQuery() {
+        compiledQueryCount++;
+    }
+
+    /**
+     * Get the number of queries of this session that evaluated their rows with
+     * compiled code.
+     *
+     * @return the number of queries
+     */
+    public long getCompiledQueryCount() {
+        return compiledQueryCount;
+    }
+
     /**
      * Set the table this session is waiting for, and the thread that is
      * waiting.
@@ -1215,6 +1296,17 @@ public class ServerSession extends SessionBase implements Transaction.Validator
     }
 
     private volatile Transaction transaction;
+    private long transactionModificationDataId;
+
+    /**
+     * Get the modification data id of the database when the current transaction started,
+     * the changes made after it are not visible to the snapshot of the transaction.
+     *
+     * @return the modification data id, or Long.MAX_VALUE if there is no transaction
+     */
+    public long getTransactionModificationDataId() {
+        return transaction == null ? Long.MAX_VALUE : transactionModificationDataId;
+    }
 
     @Override
     public Transaction getTransaction() {
@@ -1231,6 +1323,8 @@ public class ServerSession extends SessionBase implements Transaction.Validator
         }
 
         boolean isShardingMode = isShardingMode();
+        // 在开始事务之前取，事务的快照不会包含这之后的修改
+        transactionModificationDataId = database.getModificationDataId();
         transaction = database.getTransactionEngine().beginTransaction(autoCommit, isShardingMode);
         transaction.setValidator(this);
         transaction.setSession(this);
@@ -9,6 +9,7 @@ package org.lealone.db.index;
 import org.lealone.api.ErrorCode;
 import org.lealone.common.exceptions.DbException;
 import org.lealone.common.trace.Trace;
+import org.lealone.common.util.DataUtils;
 import org.lealone.common.util.StatementBuilder;
 import org.lealone.common.util.StringUtils;
 import org.lealone.db.Constants;
@@ -106,6 +107,22 @@ public abstract class IndexBase extends SchemaObjectBase implements Index {
         return e;
     }
 
+    /**
+     * Convert the exception thrown by the transaction map when a row is locked by another transaction.
+     *
+     * @param e the exception
+     * @return the exception
+     */
+    protected DbException getConcurrentUpdateException(IllegalStateException e) {
+        int errorCode = DataUtils.getErrorCode(e.getMessage());
+        // 死锁和快照之后的写冲突都要回滚整个事务
+        if (errorCode == DataUtils.ERROR_TRANSACTION_DEADLOCK
+                || errorCode == DataUtils.ERROR_TRANSACTION_WRITE_CONFLICT) {
+            return DbException.get(ErrorCode.DEADLOCK_1, e, e.getMessage());
+        }
+        return DbException.get(ErrorCode.CONCURRENT_UPDATE_1, e, table.getName());
+    }
+
     @Override
     public String getPlanSQL() {
         return getSQL();
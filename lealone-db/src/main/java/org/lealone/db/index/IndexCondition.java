@@ -314,6 +314,15 @@ public class IndexCondition {
         return column;
     }
 
+    /**
+     * Get the expression the column is compared with.
+     *
+     * @return the expression, or null for IN(..) conditions
+     */
+    public Expression getExpression() {
+        return expression;
+    }
+
     /**
      * Check if the expression can be evaluated.
      *
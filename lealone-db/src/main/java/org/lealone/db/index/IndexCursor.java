@@ -37,6 +37,7 @@ public class IndexCursor implements Cursor {
     private boolean alwaysFalse;
 
     private SearchRow start, end;
+    private SearchRow scanStart, scanEnd;
     private Cursor cursor;
     private Column inColumn;
     private int inListIndex;
@@ -76,10 +77,26 @@ public class IndexCursor implements Cursor {
             return;
         }
         if (!alwaysFalse) {
-            cursor = index.find(tableFilter, start, end);
+            if (start == null && end == null && (scanStart != null || scanEnd != null)) {
+                cursor = index.find(tableFilter, scanStart, scanEnd);
+            } else {
+                cursor = index.find(tableFilter, start, end);
+            }
         }
     }
 
+    /**
+     * Only read the rows between the given rows if there are no index
+     * conditions.
+     *
+     * @param start the first row, or null
+     * @param end the last row, or null
+     */
+    public void setScanRange(SearchRow start, SearchRow end) {
+        this.scanStart = start;
+        this.scanEnd = end;
+    }
+
     public void parseIndexConditions(ServerSession s, ArrayList<IndexCondition> indexConditions) {
         this.session = s;
         alwaysFalse = false;
@@ -0,0 +1,45 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.db.index;
+
+import org.lealone.db.value.Value;
+import org.lealone.db.value.ValueLong;
+import org.lealone.storage.type.LongKeyDataType;
+
+/**
+ * The key type of the row maps, the keys are the row keys (ValueLong).
+ * The pages of these maps keep the keys in a long array.
+ *
+ * @author zhh
+ */
+public class RowKeyDataType extends ValueDataType implements LongKeyDataType {
+
+    public RowKeyDataType() {
+        super(null, null, null);
+    }
+
+    @Override
+    public long toLong(Object key) {
+        return ((Value) key).getLong();
+    }
+
+    @Override
+    public Object toKey(long value) {
+        return ValueLong.get(value);
+    }
+}
@@ -29,6 +29,7 @@ import org.lealone.db.value.ValueLong;
 import org.lealone.db.value.ValueNull;
 import org.lealone.storage.Storage;
 import org.lealone.storage.StorageMap;
+import org.lealone.transaction.Transaction;
 import org.lealone.transaction.TransactionEngine;
 import org.lealone.transaction.TransactionMap;
 
@@ -59,7 +60,7 @@ public class StandardPrimaryIndex extends IndexBase {
         for (int i = 0; i < columns.length; i++) {
             sortTypes[i] = SortOrder.ASCENDING;
         }
-        ValueDataType keyType = new ValueDataType(null, null, null);
+        ValueDataType keyType = new RowKeyDataType();
         ValueDataType valueType = new ValueDataType(database, database.getCompareMode(), sortTypes);
         mapName = table.getMapNameForTable(getId());
 
@@ -67,8 +68,10 @@ public class StandardPrimaryIndex extends IndexBase {
         TransactionEngine transactionEngine = database.getTransactionEngine();
         boolean isShardingMode = session.isShardingMode();
         // TODO处理内存表的情况!table.isPersistData()
-        dataMap = transactionEngine.beginTransaction(false, isShardingMode).openMap(mapName, table.getMapType(),
-                keyType, valueType, storage, isShardingMode);
+        Transaction t = transactionEngine.beginTransaction(false, isShardingMode);
+        dataMap = t.openMap(mapName, table.getMapType(), keyType, valueType, storage, isShardingMode);
+        // 这个事务只用来打开map，结束后通过dataMap读到的是最新提交的值，也不会让旧版本一直不能回收
+        t.commit();
 
         transactionEngine.addTransactionMap(dataMap);
 
@@ -147,7 +150,7 @@ public class StandardPrimaryIndex extends IndexBase {
         try {
             map.put(key, ValueArray.get(row.getValueList()));
         } catch (IllegalStateException e) {
-            throw DbException.get(ErrorCode.CONCURRENT_UPDATE_1, e, table.getName());
+            throw getConcurrentUpdateException(e);
         }
         lastKey = Math.max(lastKey, row.getKey());
     }
@@ -169,7 +172,7 @@ public class StandardPrimaryIndex extends IndexBase {
                 throw DbException.get(ErrorCode.ROW_NOT_FOUND_WHEN_DELETING_1, getSQL() + ": " + row.getKey());
             }
         } catch (IllegalStateException e) {
-            throw DbException.get(ErrorCode.CONCURRENT_UPDATE_1, e, table.getName());
+            throw getConcurrentUpdateException(e);
         }
     }
 
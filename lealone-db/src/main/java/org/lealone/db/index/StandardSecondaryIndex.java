@@ -5,10 +5,12 @@
  */
 package org.lealone.db.index;
 
+import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.TreeSet;
 
 import org.lealone.api.ErrorCode;
@@ -30,6 +32,7 @@ import org.lealone.db.value.ValueLong;
 import org.lealone.db.value.ValueNull;
 import org.lealone.storage.Storage;
 import org.lealone.storage.StorageMap;
+import org.lealone.transaction.Transaction;
 import org.lealone.transaction.TransactionEngine;
 import org.lealone.transaction.TransactionMap;
 
@@ -64,8 +67,10 @@ public class StandardSecondaryIndex extends IndexBase implements StandardIndex {
         Storage storage = database.getStorage(table.getStorageEngine());
         TransactionEngine transactionEngine = database.getTransactionEngine();
         boolean isShardingMode = session.isShardingMode();
-        dataMap = transactionEngine.beginTransaction(false, isShardingMode).openMap(mapName, table.getMapType(),
-                keyType, valueType, storage, isShardingMode);
+        Transaction t = transactionEngine.beginTransaction(false, isShardingMode);
+        dataMap = t.openMap(mapName, table.getMapType(), keyType, valueType, storage, isShardingMode);
+        // 这个事务只用来打开map，结束后通过dataMap读到的是最新提交的值，也不会让旧版本一直不能回收
+        t.commit();
         transactionEngine.addTransactionMap(dataMap);
         // TODO
         // Fix bug when creating lots of temporary tables, where we could run out of transaction IDs
@@ -87,9 +92,10 @@ public class StandardSecondaryIndex extends IndexBase implements StandardIndex {
     @Override
     public void addRowsToBuffer(ServerSession session, List<Row> rows, String bufferName) {
         TransactionMap<Value, Value> map = openMap(session, bufferName);
+        // 临时map每次打开时用的是不同的事务，所以直接写入已提交的值，addBufferedRows才能读到
         for (Row row : rows) {
             ValueArray key = convertToKey(row);
-            map.put(key, ValueNull.INSTANCE);
+            map.putCommitted(key, ValueNull.INSTANCE);
         }
     }
 
@@ -114,7 +120,7 @@ public class StandardSecondaryIndex extends IndexBase implements StandardIndex {
                 return comp;
             }
         }
-        TreeSet<Source> sources = new TreeSet<Source>();
+        final TreeSet<Source> sources = new TreeSet<Source>();
         for (int i = 0; i < bufferNames.size(); i++) {
             TransactionMap<Value, Value> map = openMap(session, bufferNames.get(i));
             Iterator<Value> it = map.keyIterator(null);
@@ -126,36 +132,55 @@ public class StandardSecondaryIndex extends IndexBase implements StandardIndex {
                 sources.add(s);
             }
         }
+        // 索引是空的时候只需要检查相邻的key，否则还要检查索引中已有的key
+        final boolean checkExisting = !dataMap.isEmpty();
         try {
-            while (true) {
-                Source s = sources.first();
-                Value v = s.value;
-
-                if (indexType.isUnique()) {
-                    Value[] array = ((ValueArray) v).getList();
-                    // don't change the original value
-                    array = array.clone();
-                    array[keyColumns - 1] = ValueLong.get(Long.MIN_VALUE);
-                    ValueArray unique = ValueArray.get(array);
-                    SearchRow row = convertToSearchRow((ValueArray) v);
-                    checkUnique(row, dataMap, unique);
+            // 归并后的key是有序的，直接一页一页地构建索引，不需要每个key都从根页开始查找
+            dataMap.bulkLoad(new Iterator<Map.Entry<Value, Value>>() {
+                private SearchRow lastRow;
+
+                @Override
+                public boolean hasNext() {
+                    return !sources.isEmpty();
                 }
 
-                dataMap.putCommitted(v, ValueNull.INSTANCE);
+                @Override
+                public Map.Entry<Value, Value> next() {
+                    Source s = sources.first();
+                    Value v = s.value;
+
+                    if (indexType.isUnique()) {
+                        SearchRow row = convertToSearchRow((ValueArray) v);
+                        // 重复的key在归并后一定是相邻的
+                        if (lastRow != null && compareRows(row, lastRow) == 0
+                                && !containsNullAndAllowMultipleNull(row)) {
+                            throw getDuplicateKeyException(v.toString());
+                        }
+                        lastRow = row;
+                        if (checkExisting) {
+                            Value[] array = ((ValueArray) v).getList();
+                            // don't change the original value
+                            array = array.clone();
+                            array[keyColumns - 1] = ValueLong.get(Long.MIN_VALUE);
+                            ValueArray unique = ValueArray.get(array);
+                            checkUnique(row, dataMap, unique);
+                        }
+                    }
 
-                Iterator<Value> it = s.next;
-                if (!it.hasNext()) {
+                    Iterator<Value> it = s.next;
                     sources.remove(s);
-                    if (sources.isEmpty()) {
-                        break;
+                    if (it.hasNext()) {
+                        s.value = it.next();
+                        sources.add(s);
                     }
-                } else {
-                    Value nextValue = it.next();
-                    sources.remove(s);
-                    s.value = nextValue;
-                    sources.add(s);
+                    return new AbstractMap.SimpleImmutableEntry<Value, Value>(v, ValueNull.INSTANCE);
                 }
-            }
+
+                @Override
+                public void remove() {
+                    throw DbException.getUnsupportedException("remove");
+                }
+            });
         } finally {
             for (String tempMapName : mapNames) {
                 TransactionMap<Value, Value> map = openMap(session, tempMapName);
@@ -205,7 +230,7 @@ public class StandardSecondaryIndex extends IndexBase implements StandardIndex {
         try {
             map.put(array, ValueNull.INSTANCE);
         } catch (IllegalStateException e) {
-            throw DbException.get(ErrorCode.CONCURRENT_UPDATE_1, e, table.getName());
+            throw getConcurrentUpdateException(e);
         }
         if (indexType.isUnique()) {
             Iterator<Value> it = map.keyIterator(unique, true);
@@ -257,7 +282,7 @@ public class StandardSecondaryIndex extends IndexBase implements StandardIndex {
                 throw DbException.get(ErrorCode.ROW_NOT_FOUND_WHEN_DELETING_1, getSQL() + ": " + row.getKey());
             }
         } catch (IllegalStateException e) {
-            throw DbException.get(ErrorCode.CONCURRENT_UPDATE_1, e, table.getName());
+            throw getConcurrentUpdateException(e);
         }
     }
 
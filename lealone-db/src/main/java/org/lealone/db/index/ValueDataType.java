@@ -43,12 +43,13 @@ import org.lealone.db.value.ValueTime;
 import org.lealone.db.value.ValueTimestamp;
 import org.lealone.db.value.ValueUuid;
 import org.lealone.storage.type.DataType;
+import org.lealone.storage.type.PrefixKeyDataType;
 import org.lealone.storage.type.WriteBuffer;
 
 /**
  * A row type.
  */
-public class ValueDataType implements DataType {
+public class ValueDataType implements PrefixKeyDataType {
 
     private static final int INT_0_15 = 32;
     private static final int LONG_0_7 = 48;
@@ -63,6 +64,8 @@ public class ValueDataType implements DataType {
     private static final int LONG_NEG = 67;
     private static final int STRING_0_31 = 68;
     private static final int BYTES_0_31 = 100;
+    // 一页中的key都是数组时，整个key列表前面的标记，大于所有值类型的标记
+    private static final int PREFIX_COMPRESSED_ARRAYS = 255;
 
     final DataHandler handler;
     final CompareMode compareMode;
@@ -102,6 +105,58 @@ public class ValueDataType implements DataType {
         return compareValues((Value) a, (Value) b, SortOrder.ASCENDING);
     }
 
+    @Override
+    public int getCommonPrefixLength(Object a, Object b) {
+        if (!(a instanceof ValueArray) || !(b instanceof ValueArray)) {
+            return 0;
+        }
+        Value[] ax = ((ValueArray) a).getList();
+        Value[] bx = ((ValueArray) b).getList();
+        int len = Math.min(ax.length, bx.length);
+        int i = 0;
+        // 从硬盘读出的页中相同的前缀是同一个对象，compareValues直接返回0
+        while (i < len && compareValues(ax[i], bx[i], sortTypes[i]) == 0) {
+            i++;
+        }
+        return i;
+    }
+
+    @Override
+    public int comparePrefix(Object a, Object b, int prefixLength) {
+        Value[] ax = ((ValueArray) a).getList();
+        Value[] bx = ((ValueArray) b).getList();
+        int len = Math.min(ax.length, prefixLength);
+        for (int i = 0; i < len; i++) {
+            int comp = compareValues(ax[i], bx[i], sortTypes[i]);
+            if (comp != 0) {
+                return comp;
+            }
+        }
+        // 跟compare(Object, Object)一样，元素都相等时长的数组排在前面
+        return len < prefixLength ? 1 : 0;
+    }
+
+    @Override
+    public int compare(Object a, Object b, int start) {
+        Value[] ax = ((ValueArray) a).getList();
+        Value[] bx = ((ValueArray) b).getList();
+        int al = ax.length;
+        int bl = bx.length;
+        int len = Math.min(al, bl);
+        for (int i = start; i < len; i++) {
+            int comp = compareValues(ax[i], bx[i], sortTypes[i]);
+            if (comp != 0) {
+                return comp;
+            }
+        }
+        if (len < al) {
+            return -1;
+        } else if (len < bl) {
+            return 1;
+        }
+        return 0;
+    }
+
     private int compareValues(Value a, Value b, int sortType) {
         if (a == b) {
             return 0;
@@ -145,6 +200,11 @@ public class ValueDataType implements DataType {
 
     @Override
     public void read(ByteBuffer buff, Object[] obj, int len, boolean key) {
+        if (len > 0 && (buff.get(buff.position()) & 255) == PREFIX_COMPRESSED_ARRAYS) {
+            buff.get();
+            readPrefixCompressed(buff, obj, len);
+            return;
+        }
         for (int i = 0; i < len; i++) {
             obj[i] = read(buff);
         }
@@ -152,11 +212,78 @@ public class ValueDataType implements DataType {
 
     @Override
     public void write(WriteBuffer buff, Object[] obj, int len, boolean key) {
+        if (key && len > 1 && isArrays(obj, len)) {
+            buff.put((byte) PREFIX_COMPRESSED_ARRAYS);
+            writePrefixCompressed(buff, obj, len);
+            return;
+        }
         for (int i = 0; i < len; i++) {
             write(buff, obj[i]);
         }
     }
 
+    private static boolean isArrays(Object[] obj, int len) {
+        for (int i = 0; i < len; i++) {
+            if (!(obj[i] instanceof ValueArray)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Write the keys of a page that are all arrays (the keys of secondary indexes). For each key only the
+     * elements after the common prefix with the previous key are written:
+     * number of leading elements equal to the previous key (varInt), number of elements (varInt), other elements.
+     */
+    private void writePrefixCompressed(WriteBuffer buff, Object[] obj, int len) {
+        Value[] last = null;
+        for (int i = 0; i < len; i++) {
+            Value[] list = ((ValueArray) obj[i]).getList();
+            int shared = 0;
+            if (last != null) {
+                int max = Math.min(last.length, list.length);
+                while (shared < max && isSameValue(last[shared], list[shared])) {
+                    shared++;
+                }
+            }
+            buff.putVarInt(shared).putVarInt(list.length);
+            for (int j = shared; j < list.length; j++) {
+                writeValue(buff, list[j]);
+            }
+            last = list;
+        }
+    }
+
+    private void readPrefixCompressed(ByteBuffer buff, Object[] obj, int len) {
+        Value[] last = null;
+        for (int i = 0; i < len; i++) {
+            int shared = readVarInt(buff);
+            Value[] list = new Value[readVarInt(buff)];
+            // 共用前一个key的Value对象，既省内存，比较时相同的前缀也能直接通过a == b判断
+            if (shared > 0) {
+                System.arraycopy(last, 0, list, 0, shared);
+            }
+            for (int j = shared; j < list.length; j++) {
+                list[j] = (Value) readValue(buff);
+            }
+            obj[i] = ValueArray.get(list);
+            last = list;
+        }
+    }
+
+    // 只有序列化后完全一样的值才能共用，equals对有些类型是不够的(比如忽略大小写的字符串)
+    private static boolean isSameValue(Value a, Value b) {
+        if (a == b) {
+            return true;
+        }
+        int type = a.getType();
+        if (type != b.getType() || type == Value.BLOB || type == Value.CLOB || !a.equals(b)) {
+            return false;
+        }
+        return type != Value.STRING_IGNORECASE || a.getString().equals(b.getString());
+    }
+
     @Override
     public Object read(ByteBuffer buff) {
         return readValue(buff);
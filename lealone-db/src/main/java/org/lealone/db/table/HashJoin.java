@@ -0,0 +1,404 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.db.table;
+
+import java.util.ArrayList;
+
+import org.lealone.common.util.New;
+import org.lealone.common.util.StatementBuilder;
+import org.lealone.db.Constants;
+import org.lealone.db.Database;
+import org.lealone.db.ServerSession;
+import org.lealone.db.expression.Comparison;
+import org.lealone.db.index.Cursor;
+import org.lealone.db.index.IndexCondition;
+import org.lealone.db.index.ValueDataType;
+import org.lealone.db.result.Row;
+import org.lealone.db.util.ValueHashMap;
+import org.lealone.db.value.CompareMode;
+import org.lealone.db.value.Value;
+import org.lealone.db.value.ValueArray;
+import org.lealone.db.value.ValueLong;
+import org.lealone.db.value.ValueNull;
+import org.lealone.storage.Storage;
+import org.lealone.storage.StorageMap;
+import org.lealone.storage.StorageMapCursor;
+
+/**
+ * A hash join on the equality conditions between a joined table and the
+ * tables before it in the join order.
+ * <p>
+ * The joined table is read once into a hash table that is keyed by the join
+ * columns. For each row of the outer tables, the matching rows are then looked
+ * up in the hash table, instead of scanning the joined table again.
+ * <p>
+ * The hash table is split into partitions by the hash code of the key. When
+ * the table has more rows than MAX_MEMORY_ROWS, the biggest partitions are
+ * moved to temporary maps of the storage engine of the table, one map per
+ * partition. The rows of a spilled partition are looked up in key order.
+ * <p>
+ * The join conditions are still checked by the table filter, the hash table
+ * only avoids reading the rows that can not match.
+ */
+class HashJoin {
+
+    private static final int PARTITIONS = 16;
+
+    private final TableFilter filter;
+    private final IndexCondition[] conditions;
+    private final int[] columnIds;
+
+    private ValueHashMap<ArrayList<Row>>[] partitions;
+    private StorageMap<Value, Value>[] spilledPartitions;
+    private int[] partitionRows;
+    private int memoryRows;
+    private boolean built;
+
+    private ArrayList<Row> matches;
+    private int matchIndex;
+    private StorageMapCursor<Value, Value> spilledCursor;
+    private Value[] searchKey;
+    private Row current;
+
+    HashJoin(TableFilter filter, ArrayList<IndexCondition> conditions) {
+        this.filter = filter;
+        this.conditions = conditions.toArray(new IndexCondition[conditions.size()]);
+        columnIds = new int[this.conditions.length];
+        for (int i = 0; i < columnIds.length; i++) {
+            columnIds[i] = this.conditions[i].getColumn().getColumnId();
+        }
+    }
+
+    /**
+     * Get the index conditions of the table filter that a hash join can use,
+     * that is the equality conditions between a column of the table and an
+     * expression of the same type that can be evaluated before the table.
+     *
+     * @param session the session
+     * @param filter the table filter
+     * @param indexConditions the index conditions of the table filter
+     * @return the conditions, or null if a hash join is not possible
+     */
+    static ArrayList<IndexCondition> getConditions(ServerSession session, TableFilter filter,
+            ArrayList<IndexCondition> indexConditions) {
+        if (!(filter.getTable() instanceof StandardTable)) {
+            return null;
+        }
+        boolean binaryStrings = CompareMode.OFF.equals(session.getDatabase().getCompareMode().getName());
+        ArrayList<IndexCondition> list = null;
+        for (IndexCondition condition : indexConditions) {
+            if (condition.getCompareType() != Comparison.EQUAL || !condition.isEvaluatable()) {
+                continue;
+            }
+            Column column = condition.getColumn();
+            if (column.getColumnId() < 0 || !isHashable(column.getType(), binaryStrings)) {
+                continue;
+            }
+            // converting the value to the column type could change the result
+            // of the comparison, for example '01' = 1 is false for strings
+            if (condition.getExpression().getType() != column.getType()) {
+                continue;
+            }
+            if (list == null) {
+                list = New.arrayList();
+            }
+            list.add(condition);
+        }
+        return list;
+    }
+
+    /**
+     * Whether equal values of this type always have the same hash code.
+     * DECIMAL values are not (1.0 and 1.00 are equal), and strings only if the
+     * database compares them as binary.
+     */
+    private static boolean isHashable(int type, boolean binaryStrings) {
+        switch (type) {
+        case Value.BOOLEAN:
+        case Value.BYTE:
+        case Value.SHORT:
+        case Value.INT:
+        case Value.LONG:
+        case Value.DATE:
+        case Value.TIME:
+        case Value.TIMESTAMP:
+        case Value.UUID:
+        case Value.BYTES:
+            return true;
+        case Value.STRING:
+            return binaryStrings;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * Get the estimated cost to build the hash table, that is to read all
+     * rows of the table.
+     *
+     * @param session the session
+     * @param filter the table filter
+     * @return the cost
+     */
+    static double getBuildCost(ServerSession session, TableFilter filter) {
+        Table table = filter.getTable();
+        double cost = table.getScanIndex(session).getCost(session, null, null, null);
+        if (table.getRowCountApproximation() > session.getDatabase().getMaxMemoryRows()) {
+            // the spilled partitions are written once
+            cost *= 2;
+        }
+        return cost;
+    }
+
+    /**
+     * Get the estimated cost of one lookup in the hash table. This is the
+     * expected number of matching rows, calculated the same way as for an
+     * index lookup, but without the cost of walking down the b-tree.
+     *
+     * @param session the session
+     * @param filter the table filter
+     * @param conditions the join conditions
+     * @return the cost
+     */
+    static double getProbeCost(ServerSession session, TableFilter filter, ArrayList<IndexCondition> conditions) {
+        Table table = filter.getTable();
+        long rowCount = table.getRowCountApproximation() + Constants.COST_ROW_OFFSET;
+        int totalSelectivity = 0;
+        for (IndexCondition condition : conditions) {
+            int selectivity = condition.getColumn().getSelectivity();
+            totalSelectivity = 100 - ((100 - totalSelectivity) * (100 - selectivity) / 100);
+        }
+        long distinctRows = rowCount * totalSelectivity / 100;
+        if (distinctRows <= 0) {
+            distinctRows = 1;
+        }
+        long rows = Math.max(rowCount / distinctRows, 1);
+        double cost = 2 + rows;
+        if (table.getRowCountApproximation() > session.getDatabase().getMaxMemoryRows()) {
+            // most lookups go to a spilled partition
+            cost *= 10;
+        }
+        return cost;
+    }
+
+    /**
+     * Look up the rows that match the current values of the outer tables. The
+     * hash table is built on the first call.
+     *
+     * @param session the session
+     */
+    void find(ServerSession session) {
+        if (!built) {
+            build(session);
+        }
+        matches = null;
+        spilledCursor = null;
+        current = null;
+        Value[] key = new Value[conditions.length];
+        for (int i = 0; i < conditions.length; i++) {
+            Value v = conditions[i].getCurrentValue(session);
+            if (v == ValueNull.INSTANCE) {
+                // NULL never matches
+                return;
+            }
+            key[i] = conditions[i].getColumn().convert(v);
+        }
+        Value k = getKey(key);
+        int partition = getPartition(k);
+        if (partitions[partition] != null) {
+            matches = partitions[partition].get(k);
+            matchIndex = 0;
+        } else {
+            searchKey = key;
+            Value[] from = new Value[key.length + 1];
+            System.arraycopy(key, 0, from, 0, key.length);
+            from[key.length] = ValueLong.get(Long.MIN_VALUE);
+            spilledCursor = spilledPartitions[partition].cursor(ValueArray.get(from));
+        }
+    }
+
+    /**
+     * Move to the next matching row.
+     *
+     * @return true if there is one
+     */
+    boolean next() {
+        if (matches != null) {
+            if (matchIndex < matches.size()) {
+                current = matches.get(matchIndex++);
+                return true;
+            }
+        } else if (spilledCursor != null && spilledCursor.hasNext()) {
+            Value[] k = ((ValueArray) spilledCursor.next()).getList();
+            Database db = filter.getSession().getDatabase();
+            boolean found = true;
+            for (int i = 0; i < searchKey.length; i++) {
+                if (!db.areEqual(searchKey[i], k[i])) {
+                    found = false;
+                    break;
+                }
+            }
+            if (found) {
+                current = new Row(((ValueArray) spilledCursor.getValue()).getList(), Row.MEMORY_CALCULATE);
+                current.setKey(k[k.length - 1].getLong());
+                return true;
+            }
+            spilledCursor = null;
+        }
+        current = null;
+        return false;
+    }
+
+    Row get() {
+        return current;
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private void build(ServerSession session) {
+        Table table = filter.getTable();
+        int maxMemoryRows = session.getDatabase().getMaxMemoryRows();
+        partitions = new ValueHashMap[PARTITIONS];
+        spilledPartitions = new StorageMap[PARTITIONS];
+        partitionRows = new int[PARTITIONS];
+        for (int i = 0; i < PARTITIONS; i++) {
+            partitions[i] = ValueHashMap.newInstance();
+        }
+        memoryRows = 0;
+        Cursor cursor = table.getScanIndex(session).find(filter, null, null);
+        Value[] key = new Value[columnIds.length];
+        while (cursor.next()) {
+            Row row = cursor.get();
+            boolean hasNull = false;
+            for (int i = 0; i < columnIds.length; i++) {
+                Value v = row.getValue(columnIds[i]);
+                if (v == ValueNull.INSTANCE) {
+                    hasNull = true;
+                    break;
+                }
+                key[i] = v;
+            }
+            if (hasNull) {
+                continue;
+            }
+            Value k = getKey(key);
+            int partition = getPartition(k);
+            if (partitions[partition] == null) {
+                addSpilledRow(spilledPartitions[partition], key, row);
+                continue;
+            }
+            ArrayList<Row> list = partitions[partition].get(k);
+            if (list == null) {
+                list = New.arrayList(1);
+                partitions[partition].put(k, list);
+            }
+            list.add(row);
+            partitionRows[partition]++;
+            if (++memoryRows > maxMemoryRows) {
+                spill(session);
+            }
+        }
+        built = true;
+    }
+
+    private void spill(ServerSession session) {
+        int partition = -1;
+        for (int i = 0; i < PARTITIONS; i++) {
+            if (partitions[i] != null && (partition < 0 || partitionRows[i] > partitionRows[partition])) {
+                partition = i;
+            }
+        }
+        if (partition < 0) {
+            return;
+        }
+        Database db = session.getDatabase();
+        StandardTable table = (StandardTable) filter.getTable();
+        Storage storage = db.getStorage(table.getStorageEngine());
+        // the join columns followed by the row key, all ascending
+        int[] sortTypes = new int[columnIds.length + 1];
+        ValueDataType keyType = new ValueDataType(db, db.getCompareMode(), sortTypes);
+        ValueDataType valueType = new ValueDataType(db, db.getCompareMode(), null);
+        StorageMap<Value, Value> map = storage.openMap(storage.nextTemporaryMapName(), table.getMapType(), keyType,
+                valueType, null);
+        Value[] key = new Value[columnIds.length];
+        for (ArrayList<Row> list : partitions[partition].values()) {
+            for (Row row : list) {
+                for (int i = 0; i < columnIds.length; i++) {
+                    key[i] = row.getValue(columnIds[i]);
+                }
+                addSpilledRow(map, key, row);
+            }
+        }
+        spilledPartitions[partition] = map;
+        partitions[partition] = null;
+        memoryRows -= partitionRows[partition];
+    }
+
+    private static void addSpilledRow(StorageMap<Value, Value> map, Value[] key, Row row) {
+        // the row key makes the map key unique
+        Value[] k = new Value[key.length + 1];
+        System.arraycopy(key, 0, k, 0, key.length);
+        k[key.length] = ValueLong.get(row.getKey());
+        map.put(ValueArray.get(k), ValueArray.get(row.getValueList()));
+    }
+
+    private static Value getKey(Value[] key) {
+        return key.length == 1 ? key[0] : ValueArray.get(key.clone());
+    }
+
+    private static int getPartition(Value key) {
+        int h = key.hashCode();
+        // the low bits are also used by the hash map of the partition
+        return ((h >>> 16) ^ (h >>> 24)) & (PARTITIONS - 1);
+    }
+
+    /**
+     * Release the hash table and remove the spilled partitions. The hash
+     * table is built again on the next lookup.
+     */
+    void close() {
+        if (spilledPartitions != null) {
+            for (StorageMap<Value, Value> map : spilledPartitions) {
+                if (map != null) {
+                    map.remove();
+                }
+            }
+        }
+        partitions = null;
+        spilledPartitions = null;
+        partitionRows = null;
+        matches = null;
+        spilledCursor = null;
+        current = null;
+        built = false;
+    }
+
+    /**
+     * Get the join conditions as SQL, for the query plan.
+     *
+     * @return the SQL snippet
+     */
+    String getPlanSQL() {
+        StatementBuilder buff = new StatementBuilder();
+        for (IndexCondition condition : conditions) {
+            buff.appendExceptFirst("\n    AND ");
+            buff.append(condition.getSQL());
+        }
+        return buff.toString();
+    }
+
+}
@@ -630,6 +630,9 @@ public class MetaTable extends Table {
             add(rows, "MULTI_THREADED", database.isMultiThreaded() ? "1" : "0");
             add(rows, "MVCC", database.isMultiVersion() ? "TRUE" : "FALSE");
             add(rows, "QUERY_TIMEOUT", "" + session.getQueryTimeout());
+            add(rows, "MAX_PARALLEL_DEGREE", "" + session.getMaxParallelDegree());
+            add(rows, "COMPILE_EXPRESSIONS", session.isCompileExpressions() ? "TRUE" : "FALSE");
+            add(rows, "info.COMPILED_QUERY_COUNT", "" + session.getCompiledQueryCount());
             add(rows, "LOG", "" + database.getLogMode());
             // database settings
             ArrayList<String> settingNames = New.arrayList();
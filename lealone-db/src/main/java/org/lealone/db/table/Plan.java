@@ -111,7 +111,7 @@ public class Plan {
         for (TableFilter tableFilter : allFilters) {
             PlanItem item = tableFilter.getBestPlanItem(session, level++);
             planItems.put(tableFilter, item);
-            cost += cost * item.cost;
+            cost += item.getJoinCost(cost);
             setEvaluatable(tableFilter, true);
             Expression on = tableFilter.getJoinCondition();
             if (on != null) {
@@ -6,7 +6,10 @@
  */
 package org.lealone.db.table;
 
+import java.util.ArrayList;
+
 import org.lealone.db.index.Index;
+import org.lealone.db.index.IndexCondition;
 
 /**
  * The plan item describes the index to be used, and the estimated cost when
@@ -23,6 +26,24 @@ public class PlanItem {
     private PlanItem joinPlan;
     private PlanItem nestedJoinPlan;
 
+    /**
+     * The equality conditions a hash join could use, or null if a hash join is
+     * not possible.
+     */
+    private ArrayList<IndexCondition> hashJoinConditions;
+
+    /**
+     * The cost to read the table into the hash table (once per query).
+     */
+    private double hashBuildCost;
+
+    /**
+     * The cost of one lookup in the hash table, including the joined tables.
+     */
+    double hashProbeCost;
+
+    private boolean hashJoin;
+
     void setIndex(Index index) {
         this.index = index;
     }
@@ -47,4 +68,40 @@ public class PlanItem {
         this.nestedJoinPlan = nestedJoinPlan;
     }
 
+    void setHashJoinConditions(ArrayList<IndexCondition> conditions, double buildCost, double probeCost) {
+        this.hashJoinConditions = conditions;
+        this.hashBuildCost = buildCost;
+        this.hashProbeCost = probeCost;
+    }
+
+    ArrayList<IndexCondition> getHashJoinConditions() {
+        return hashJoinConditions;
+    }
+
+    public boolean isHashJoin() {
+        return hashJoin;
+    }
+
+    /**
+     * Calculate the cost of joining this table to the given outer rows, and
+     * decide whether a hash join or a nested loop join is cheaper. A nested
+     * loop join pays the lookup cost once for each outer row. A hash join
+     * reads the table once, and then pays a (smaller) probe cost for each
+     * outer row.
+     *
+     * @param outerCost the cost of the tables before this one
+     * @return the cost of the join
+     */
+    double getJoinCost(double outerCost) {
+        double nestedLoopCost = outerCost * cost;
+        if (hashJoinConditions != null) {
+            double hashJoinCost = hashBuildCost + outerCost * hashProbeCost;
+            hashJoin = hashJoinCost < nestedLoopCost;
+            if (hashJoin) {
+                return hashJoinCost;
+            }
+        }
+        return nestedLoopCost;
+    }
+
 }
@@ -78,6 +78,12 @@ public class TableFilter implements ColumnResolver {
      */
     private Expression joinCondition;
 
+    /**
+     * The hash join used to look up the rows of this table, or null if the
+     * rows are looked up with the index.
+     */
+    private HashJoin hashJoin;
+
     private SearchRow currentSearchRow;
     private Row current;
     private int state;
@@ -186,12 +192,20 @@ public class TableFilter implements ColumnResolver {
             // This is to ensure joins without indexes run quickly:
             // x (x.a=10); y (x.b=y.b) - see issue 113
             item.cost -= item.cost * indexConditions.size() / 100 / level;
+            if (nestedJoin == null) {
+                ArrayList<IndexCondition> hashJoinConditions = HashJoin.getConditions(s, this, indexConditions);
+                if (hashJoinConditions != null) {
+                    item.setHashJoinConditions(hashJoinConditions, HashJoin.getBuildCost(s, this),
+                            HashJoin.getProbeCost(s, this, hashJoinConditions));
+                }
+            }
         }
         if (nestedJoin != null) {
             setEvaluatable(nestedJoin);
             item.setNestedJoinPlan(nestedJoin.getBestPlanItem(s, level));
             // TODO optimizer: calculate cost of a join: should use separate
             // expected row number and lookup cost
+            item.hashProbeCost += item.hashProbeCost * item.getNestedJoinPlan().cost;
             item.cost += item.cost * item.getNestedJoinPlan().cost;
         }
         if (join != null) {
@@ -199,7 +213,8 @@ public class TableFilter implements ColumnResolver {
             item.setJoinPlan(join.getBestPlanItem(s, level));
             // TODO optimizer: calculate cost of a join: should use separate
             // expected row number and lookup cost
-            item.cost += item.cost * item.getJoinPlan().cost;
+            item.hashProbeCost += item.hashProbeCost * item.getJoinPlan().cost;
+            item.cost += item.getJoinPlan().getJoinCost(item.cost);
         }
         return item;
     }
@@ -234,7 +249,17 @@ public class TableFilter implements ColumnResolver {
             // this will result in an exception later on
             return;
         }
-        setIndex(item.getIndex());
+        if (hashJoin != null) {
+            hashJoin.close();
+            hashJoin = null;
+        }
+        if (item.isHashJoin()) {
+            // the hash table is built with a full scan, the lookups use the hash table
+            setIndex(table.getScanIndex(session));
+            hashJoin = new HashJoin(this, item.getHashJoinConditions());
+        } else {
+            setIndex(item.getIndex());
+        }
         if (nestedJoin != null) {
             if (item.getNestedJoinPlan() != null) {
                 nestedJoin.setPlanItem(item.getNestedJoinPlan());
@@ -294,6 +319,10 @@ public class TableFilter implements ColumnResolver {
     public void startQuery(ServerSession s) {
         this.session = s;
         scanCount = 0;
+        if (hashJoin != null) {
+            // the table may have changed since the last run
+            hashJoin.close();
+        }
         if (nestedJoin != null) {
             nestedJoin.startQuery(s);
         }
@@ -302,6 +331,21 @@ public class TableFilter implements ColumnResolver {
         }
     }
 
+    /**
+     * End the query. This will release the hash tables of all hash joins.
+     */
+    public void endQuery() {
+        if (hashJoin != null) {
+            hashJoin.close();
+        }
+        if (nestedJoin != null) {
+            nestedJoin.endQuery();
+        }
+        if (join != null) {
+            join.endQuery();
+        }
+    }
+
     /**
      * Reset to the current position.
      */
@@ -325,7 +369,11 @@ public class TableFilter implements ColumnResolver {
         if (state == AFTER_LAST) {
             return false;
         } else if (state == BEFORE_FIRST) {
-            cursor.find(session, indexConditions);
+            if (hashJoin != null) {
+                hashJoin.find(session);
+            } else {
+                cursor.find(session, indexConditions);
+            }
             if (!cursor.isAlwaysFalse()) {
                 if (nestedJoin != null) {
                     nestedJoin.reset();
@@ -356,7 +404,15 @@ public class TableFilter implements ColumnResolver {
                 if ((++scanCount & 4095) == 0) {
                     checkTimeout();
                 }
-                if (cursor.next()) {
+                if (hashJoin != null) {
+                    if (hashJoin.next()) {
+                        current = hashJoin.get();
+                        currentSearchRow = current;
+                        state = FOUND;
+                    } else {
+                        state = AFTER_LAST;
+                    }
+                } else if (cursor.next()) {
                     currentSearchRow = cursor.getSearchRow();
                     current = null;
                     state = FOUND;
@@ -408,6 +464,21 @@ public class TableFilter implements ColumnResolver {
         return false;
     }
 
+    /**
+     * Read the next rows into the given array. This is only used if the query
+     * reads no other table.
+     *
+     * @param rows the array to fill
+     * @return the number of rows read, 0 if there are no more rows
+     */
+    public int nextBatch(Row[] rows) {
+        int size = 0;
+        while (size < rows.length && next()) {
+            rows[size++] = get();
+        }
+        return size;
+    }
+
     /**
      * Set the state of this and all nested tables to the NULL row.
      */
@@ -677,7 +748,10 @@ public class TableFilter implements ColumnResolver {
             buff.append('\n');
             StatementBuilder planBuff = new StatementBuilder();
             planBuff.append(index.getPlanSQL());
-            if (indexConditions.size() > 0) {
+            if (hashJoin != null) {
+                planBuff.append("\n    HASH JOIN: ");
+                planBuff.append(hashJoin.getPlanSQL());
+            } else if (indexConditions.size() > 0) {
                 planBuff.append(": ");
                 for (IndexCondition condition : indexConditions) {
                     planBuff.appendExceptFirst("\n    AND ");
@@ -972,6 +1046,22 @@ public class TableFilter implements ColumnResolver {
         return hashCode;
     }
 
+    public ArrayList<IndexCondition> getIndexConditions() {
+        return indexConditions;
+    }
+
+    /**
+     * Restrict the rows of this filter to a range of the scan index. The
+     * start and end rows only contain the row keys. This is used to split the
+     * scan of a table into partitions that are read in parallel.
+     *
+     * @param start the first row, or null
+     * @param end the last row, or null
+     */
+    public void setScanRange(SearchRow start, SearchRow end) {
+        cursor.setScanRange(start, end);
+    }
+
     /**
      * Are there any index conditions that involve IN(...).
      *
@@ -31,6 +31,7 @@ import org.lealone.db.SysProperties;
 import org.lealone.main.config.Config;
 import org.lealone.main.config.DatabaseDescriptor;
 import org.lealone.main.config.PluggableEngineDef;
+import org.lealone.mvstore.mvcc.MVCCTransactionEngine;
 import org.lealone.server.ProtocolServer;
 import org.lealone.server.ProtocolServerEngine;
 import org.lealone.server.ProtocolServerEngineManager;
@@ -140,6 +141,14 @@ public class Lealone {
                         Config.setProperty("default.transaction.engine", te.getName());
 
                     initPluggableEngine(te, def);
+
+                    if (te instanceof MVCCTransactionEngine) {
+                        MVCCTransactionEngine mte = (MVCCTransactionEngine) te;
+                        if (mte.getRecoveryMapCount() > 0)
+                            logger.info("Redo log recovery: {} records of {} maps scanned in {} ms",
+                                    mte.getPendingRedoLogRecordCount(), mte.getRecoveryMapCount(),
+                                    mte.getRecoveryTimeMillis());
+                    }
                 }
             }
         }
@@ -0,0 +1,217 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.mvstore;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+
+import org.lealone.common.util.DataUtils;
+
+/**
+ * Compacts the chunks of a store in the background.
+ * <p>
+ * The chunks are picked by fill rate and age, and their live pages are
+ * re-written in small steps. A step stops when it used up its time or its
+ * share of the write rate, the changed pages are then stored with a normal
+ * commit. The next step waits until the write rate allows it.
+ *
+ * @author zhh
+ */
+public class ChunkCompactor {
+
+    /**
+     * The maximum time of one step in milliseconds, not counting the commit.
+     */
+    private static final int MAX_STEP_TIME = 50;
+
+    /**
+     * The number of bytes a step re-writes if the write rate is not limited.
+     */
+    private static final int MAX_STEP_BYTES = 4 * 1024 * 1024;
+
+    private final MVStore store;
+
+    /**
+     * The maximum number of bytes re-written per second, 0 for no limit.
+     */
+    private final long maxWriteRate;
+
+    // 正在压缩的chunk，它们的页全部重写之后才会选新的chunk
+    private HashSet<Integer> chunkIds;
+    private long nextStepTime;
+
+    private volatile int pendingChunkCount;
+    private volatile long pendingBytes;
+    private volatile long compactedChunkCount;
+    private volatile long rewrittenBytes;
+    private volatile long stepCount;
+    private volatile long lastStepTime;
+    private volatile long maxStepTime;
+
+    ChunkCompactor(MVStore store, int maxWriteRateMB) {
+        this.store = store;
+        this.maxWriteRate = maxWriteRateMB * 1024L * 1024L;
+    }
+
+    /**
+     * Run one compaction step if the write rate allows it.
+     *
+     * @param targetFillRate the minimum percentage of live entries
+     * @return whether pages were re-written
+     */
+    boolean step(int targetFillRate) {
+        long start = System.currentTimeMillis();
+        if (start < nextStepTime) {
+            return false;
+        }
+        if (chunkIds == null) {
+            ArrayList<Chunk> old = store.getChunksToCompact(targetFillRate, MAX_STEP_BYTES);
+            if (old == null || old.isEmpty()) {
+                return false;
+            }
+            chunkIds = new HashSet<>(old.size());
+            long bytes = 0;
+            for (Chunk c : old) {
+                chunkIds.add(c.id);
+                bytes += c.maxLenLive;
+            }
+            pendingChunkCount = chunkIds.size();
+            pendingBytes = bytes;
+        }
+        long maxBytes = MAX_STEP_BYTES;
+        if (maxWriteRate > 0) {
+            maxBytes = Math.min(maxBytes, maxWriteRate * MAX_STEP_TIME / 1000);
+        }
+        Budget budget = new Budget(maxBytes, start + MAX_STEP_TIME);
+        if (!store.compactRewrite(chunkIds, budget)) {
+            // 有chunk已经不存在了，下次重新选
+            chunkIds = null;
+            pendingChunkCount = 0;
+            pendingBytes = 0;
+            return false;
+        }
+        if (budget.used == 0) {
+            // 所有活跃的页都重写过了，释放这些chunk
+            store.freeUnusedChunks();
+            compactedChunkCount += chunkIds.size();
+            chunkIds = null;
+            pendingChunkCount = 0;
+            pendingBytes = 0;
+            return false;
+        }
+        store.commit();
+        rewrittenBytes += budget.used;
+        pendingBytes = Math.max(0, pendingBytes - budget.used);
+        stepCount++;
+        long end = System.currentTimeMillis();
+        lastStepTime = end - start;
+        maxStepTime = Math.max(maxStepTime, lastStepTime);
+        if (maxWriteRate > 0) {
+            nextStepTime = start + budget.used * 1000 / maxWriteRate;
+        }
+        return true;
+    }
+
+    /**
+     * Get the number of chunks that are being compacted.
+     *
+     * @return the number of chunks
+     */
+    public int getPendingChunkCount() {
+        return pendingChunkCount;
+    }
+
+    /**
+     * Get the estimated number of live bytes of the chunks that are being
+     * compacted that still need to be re-written.
+     *
+     * @return the number of bytes
+     */
+    public long getPendingBytes() {
+        return pendingBytes;
+    }
+
+    /**
+     * Get the number of chunks whose live pages were all re-written.
+     *
+     * @return the number of chunks
+     */
+    public long getCompactedChunkCount() {
+        return compactedChunkCount;
+    }
+
+    /**
+     * Get the estimated number of bytes re-written so far.
+     *
+     * @return the number of bytes
+     */
+    public long getRewrittenBytes() {
+        return rewrittenBytes;
+    }
+
+    /**
+     * Get the number of steps that re-wrote pages.
+     *
+     * @return the number of steps
+     */
+    public long getStepCount() {
+        return stepCount;
+    }
+
+    /**
+     * Get the time of the last step in milliseconds, including the commit.
+     *
+     * @return the time
+     */
+    public long getLastStepTime() {
+        return lastStepTime;
+    }
+
+    /**
+     * Get the time of the longest step in milliseconds, including the commit.
+     *
+     * @return the time
+     */
+    public long getMaxStepTime() {
+        return maxStepTime;
+    }
+
+    /**
+     * The number of bytes and the time a step may use. The bytes of a page are
+     * estimated with the maximum length that is encoded in its position.
+     */
+    static class Budget {
+
+        private final long maxBytes;
+        private final long deadline;
+        long used;
+
+        Budget(long maxBytes, long deadline) {
+            this.maxBytes = maxBytes;
+            this.deadline = deadline;
+        }
+
+        void use(long pos) {
+            used += DataUtils.getPageMaxLength(pos);
+        }
+
+        boolean isUsedUp() {
+            return used >= maxBytes || System.currentTimeMillis() >= deadline;
+        }
+    }
+}
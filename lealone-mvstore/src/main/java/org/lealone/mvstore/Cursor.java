@@ -27,6 +27,11 @@ public class Cursor<K, V> implements Iterator<K>, StorageMapCursor<K, V> {
     private final Page root;
     private boolean initialized;
 
+    // 预读状态：已经走完的页数，以及正在预读子页的节点和预读到的位置
+    private int pageCount;
+    private Page readAheadPage;
+    private int readAheadIndex;
+
     Cursor(MVMap<K, ?> map, Page root, K from) {
         this.map = map;
         this.root = root;
@@ -151,10 +156,39 @@ public class Cursor<K, V> implements Iterator<K>, StorageMapCursor<K, V> {
                 break;
             }
             if (pos.index < map.getChildPageCount(pos.page)) {
+                readAhead(pos);
                 min(pos.page.getChildPage(pos.index++), null);
             }
         }
         current = null;
     }
 
+    /**
+     * Read the next sibling pages in the background, once the cursor has
+     * walked through a whole page and therefore scans sequentially. The
+     * child page at the current index is read by the caller.
+     *
+     * @param pos the position in the parent page
+     */
+    private void readAhead(CursorPos pos) {
+        int n = map.getStore().getReadAheadPages();
+        // 只是跨过一个页边界的短范围查询不预读
+        if (n <= 0 || ++pageCount < 2) {
+            return;
+        }
+        Page p = pos.page;
+        if (p != readAheadPage) {
+            readAheadPage = p;
+            readAheadIndex = pos.index + 1;
+        }
+        // 预读的页用掉一半后再接着预读
+        if (pos.index + n / 2 >= readAheadIndex) {
+            int to = Math.min(pos.index + 1 + n, map.getChildPageCount(p));
+            if (readAheadIndex < to) {
+                map.readAhead(p, readAheadIndex, to);
+                readAheadIndex = to;
+            }
+        }
+    }
+
 }
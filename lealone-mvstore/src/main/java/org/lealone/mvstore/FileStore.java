@@ -7,9 +7,14 @@ package org.lealone.mvstore;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
 import java.nio.channels.FileLock;
 import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 
 import org.lealone.common.util.DataUtils;
 import org.lealone.storage.cache.FilePathCache;
@@ -25,6 +30,11 @@ import org.lealone.storage.fs.FilePathNio;
  */
 public class FileStore {
 
+    /**
+     * The size of the regions of the file that are mapped for reading.
+     */
+    private static final int MAPPED_REGION_SIZE = 64 * 1024 * 1024;
+
     /**
      * The number of read operations.
      */
@@ -81,6 +91,19 @@ public class FileStore {
      */
     protected FileLock fileLock;
 
+    /**
+     * The file opened for reading only, if the reads are served from mapped
+     * regions of the file.
+     */
+    private FileChannel mappedFile;
+
+    /**
+     * The mapped regions of the file, null if a region is not mapped yet.
+     * The array is replaced when a region is mapped, so it can be read without
+     * locking.
+     */
+    private volatile MappedByteBuffer[] mappedRegions;
+
     @Override
     public String toString() {
         return fileName;
@@ -94,6 +117,32 @@ public class FileStore {
      * @return the byte buffer
      */
     public ByteBuffer readFully(long pos, int len) {
+        return readFully(pos, len, true);
+    }
+
+    /**
+     * Read from the file.
+     * <p>
+     * A buffer of a mapped region throws an InternalError when it is read
+     * after the file was truncated by another thread. The caller can then read
+     * the bytes again without the mapped regions.
+     *
+     * @param pos the write position
+     * @param len the number of bytes to read
+     * @param mapped whether the bytes may be read from a mapped region
+     * @return the byte buffer
+     */
+    ByteBuffer readFully(long pos, int len, boolean mapped) {
+        // close()会把mappedRegions设为null，所以只读一次
+        MappedByteBuffer[] regions = mappedRegions;
+        if (mapped && regions != null) {
+            ByteBuffer buff = readMapped(regions, pos, len);
+            if (buff != null) {
+                readCount++;
+                readBytes += len;
+                return buff;
+            }
+        }
         ByteBuffer dst = ByteBuffer.allocate(len);
         DataUtils.readFully(file, pos, dst);
         readCount++;
@@ -101,6 +150,80 @@ public class FileStore {
         return dst;
     }
 
+    /**
+     * Get a read-only view of a mapped region of the file.
+     *
+     * @param regions the mapped regions
+     * @param pos the read position
+     * @param len the number of bytes to read
+     * @return the buffer, or null if the bytes need to be read from the file
+     */
+    private ByteBuffer readMapped(MappedByteBuffer[] regions, long pos, int len) {
+        int index = (int) (pos / MAPPED_REGION_SIZE);
+        int offset = (int) (pos % MAPPED_REGION_SIZE);
+        // 跨区域的读和文件末尾之后的读都用普通的方式
+        if (offset + len > MAPPED_REGION_SIZE || pos + len > fileSize) {
+            return null;
+        }
+        MappedByteBuffer region = index < regions.length ? regions[index] : null;
+        if (region == null || offset + len > region.capacity()) {
+            region = mapRegion(index);
+            if (region == null || offset + len > region.capacity()) {
+                return null;
+            }
+        }
+        ByteBuffer buff = region.duplicate();
+        buff.limit(offset + len);
+        buff.position(offset);
+        return buff.slice();
+    }
+
+    private synchronized MappedByteBuffer mapRegion(int index) {
+        MappedByteBuffer[] regions = mappedRegions;
+        if (regions == null) {
+            return null;
+        }
+        long start = (long) index * MAPPED_REGION_SIZE;
+        long size = Math.min(MAPPED_REGION_SIZE, fileSize - start);
+        if (index < regions.length && regions[index] != null && regions[index].capacity() >= size) {
+            // 其他线程已经映射过了
+            return regions[index];
+        }
+        MappedByteBuffer region;
+        try {
+            region = mappedFile.map(MapMode.READ_ONLY, start, size);
+        } catch (IOException e) {
+            return null;
+        }
+        // 文件变大之后重新映射，旧的映射可能还有页在读，不能马上解除，交给GC回收
+        regions = Arrays.copyOf(regions, Math.max(regions.length, index + 1));
+        regions[index] = region;
+        mappedRegions = regions;
+        return region;
+    }
+
+    /**
+     * Forget the mapped regions that reach beyond the given file size. Reading
+     * a mapping beyond the end of the file would fail. Buffers of these
+     * regions that other threads still read from throw an InternalError after
+     * the file is truncated, see {@link #readFully(long, int, boolean)}.
+     *
+     * @param size the new file size
+     */
+    private synchronized void unmapRegions(long size) {
+        MappedByteBuffer[] regions = mappedRegions;
+        if (regions == null) {
+            return;
+        }
+        regions = regions.clone();
+        for (int i = 0; i < regions.length; i++) {
+            if (regions[i] != null && (long) i * MAPPED_REGION_SIZE + regions[i].capacity() > size) {
+                regions[i] = null;
+            }
+        }
+        mappedRegions = regions;
+    }
+
     /**
      * Write to the file.
      *
@@ -125,6 +248,21 @@ public class FileStore {
      *            used
      */
     public void open(String fileName, boolean readOnly, char[] encryptionKey) {
+        open(fileName, readOnly, encryptionKey, false);
+    }
+
+    /**
+     * Try to open the file.
+     *
+     * @param fileName the file name
+     * @param readOnly whether the file should only be opened in read-only mode,
+     *            even if the file is writable
+     * @param encryptionKey the encryption key, or null if encryption is not
+     *            used
+     * @param mappedReads whether to read from read-only mapped regions of the
+     *            file; only possible for files on disk that are not encrypted
+     */
+    public void open(String fileName, boolean readOnly, char[] encryptionKey, boolean mappedReads) {
         if (file != null) {
             return;
         }
@@ -170,6 +308,10 @@ public class FileStore {
                         fileName);
             }
             fileSize = file.size();
+            if (mappedReads && encryptionKey == null && fileName.startsWith("nio:")) {
+                mappedFile = FileChannel.open(Paths.get(fileName.substring(4)), StandardOpenOption.READ);
+                mappedRegions = new MappedByteBuffer[0];
+            }
         } catch (IOException e) {
             throw DataUtils.newIllegalStateException(DataUtils.ERROR_READING_FAILED, "Could not open file {0}",
                     fileName, e);
@@ -185,6 +327,9 @@ public class FileStore {
                 fileLock.release();
                 fileLock = null;
             }
+            if (mappedFile != null) {
+                closeMappedFile();
+            }
             file.close();
             freeSpace.clear();
         } catch (Exception e) {
@@ -195,6 +340,13 @@ public class FileStore {
         }
     }
 
+    // 跟mapRegion同步，关闭之后不会再映射新的区域
+    private synchronized void closeMappedFile() throws IOException {
+        mappedRegions = null;
+        mappedFile.close();
+        mappedFile = null;
+    }
+
     /**
      * Flush all changes.
      */
@@ -224,8 +376,11 @@ public class FileStore {
     public void truncate(long size) {
         try {
             writeCount++;
-            file.truncate(size);
             fileSize = Math.min(fileSize, size);
+            if (mappedRegions != null) {
+                unmapRegions(size);
+            }
+            file.truncate(size);
         } catch (IOException e) {
             throw DataUtils.newIllegalStateException(DataUtils.ERROR_WRITING_FAILED,
                     "Could not truncate file {0} to size {1}", fileName, size, e);
@@ -294,6 +449,15 @@ public class FileStore {
         return readBytes;
     }
 
+    /**
+     * Whether the reads are served from mapped regions of the file.
+     *
+     * @return true if the file is mapped
+     */
+    public boolean isMapped() {
+        return mappedRegions != null;
+    }
+
     public boolean isReadOnly() {
         return readOnly;
     }
@@ -6,24 +6,30 @@
 package org.lealone.mvstore;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
 import java.util.AbstractList;
 import java.util.AbstractMap;
 import java.util.AbstractSet;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 import org.lealone.common.util.DataUtils;
 import org.lealone.common.util.New;
 import org.lealone.storage.StorageMap;
 import org.lealone.storage.StorageMapCursor;
 import org.lealone.storage.type.DataType;
+import org.lealone.storage.type.LongKeyDataType;
 import org.lealone.storage.type.ObjectDataType;
+import org.lealone.storage.type.PrefixKeyDataType;
+import org.lealone.storage.type.WriteBuffer;
 
 /**
  * A stored map.
@@ -33,15 +39,26 @@ import org.lealone.storage.type.ObjectDataType;
  * <p>
  * Write operations first read the relevant area from disk to memory
  * concurrently, and only then modify the data. The in-memory part of write
- * operations is synchronized. For scalable concurrent in-memory write
- * operations, the map should be split into multiple smaller sub-maps that are
- * then synchronized independently.
+ * operations is not synchronized either: a writer copies the path from a
+ * snapshot of the root page, then replaces the root with compare-and-set, and
+ * retries if another writer replaced the root in the meantime. The replaced
+ * pages are only marked as deleted once the new root is in use.
  *
  * @param <K> the key class
  * @param <V> the value class
  */
 public class MVMap<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>, StorageMap<K, V> {
 
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<MVMap, Page> rootUpdater = AtomicReferenceFieldUpdater
+            .newUpdater(MVMap.class, Page.class, "root");
+
+    // update方法的expected参数，表示不检查旧值或者要求key已存在
+    private static final Object ANY_VALUE = new Object();
+    private static final Object PRESENT_VALUE = new Object();
+
+    private static final int TRANSFER_BLOCK_SIZE = 1024 * 1024;
+
     /**
      * The store.
      */
@@ -61,6 +78,10 @@ public class MVMap<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V
     private long createVersion;
     private final DataType keyType;
     private final DataType valueType;
+    // 不为null时，页中的key保存在long数组中
+    private final LongKeyDataType longKeyType;
+    // 不为null时，页中的key先比较所有key都相同的前缀
+    private final PrefixKeyDataType prefixKeyType;
 
     private final ConcurrentArrayList<Page> oldRoots = new ConcurrentArrayList<Page>();
 
@@ -71,6 +92,8 @@ public class MVMap<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V
     protected MVMap(DataType keyType, DataType valueType) {
         this.keyType = keyType;
         this.valueType = valueType;
+        this.longKeyType = keyType instanceof LongKeyDataType ? (LongKeyDataType) keyType : null;
+        this.prefixKeyType = keyType instanceof PrefixKeyDataType ? (PrefixKeyDataType) keyType : null;
         this.root = Page.createEmpty(this, -1);
     }
 
@@ -116,15 +139,69 @@ public class MVMap<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V
      */
     @Override
     @SuppressWarnings("unchecked")
-    public synchronized V put(K key, V value) {
+    public V put(K key, V value) {
         DataUtils.checkArgument(value != null, "The value may not be null");
         beforeWrite();
-        long v = writeVersion;
-        Page p = root.copy(v);
-        p = splitRootIfNeeded(p, v);
-        Object result = put(p, v, key, value);
-        newRoot(p);
-        return (V) result;
+        return (V) update(key, value, ANY_VALUE);
+    }
+
+    /**
+     * Change the value of a key without holding a lock on the map.
+     *
+     * The path from a snapshot of the root to the leaf is copied and changed, then the root is replaced with
+     * compare-and-set. If another writer replaced the root in the meantime, the copies are dropped and the
+     * change is retried on the new root, so the check of the expected value and the change are atomic.
+     *
+     * @param key the key
+     * @param value the new value, or null to remove the key
+     * @param expected the value the key must have (null if the key must not exist), ANY_VALUE or PRESENT_VALUE
+     * @return the old value, or null
+     */
+    private Object update(Object key, Object value, Object expected) {
+        ArrayList<Page> removedPages = new ArrayList<>();
+        while (true) {
+            Page r = root;
+            // 先读root再读writeVersion，保证新的root的版本不会比r的版本小
+            long v = writeVersion;
+            Object old = binarySearch(r, key);
+            if (expected == PRESENT_VALUE ? old == null : expected != ANY_VALUE && !areValuesEqual(old, expected))
+                return old;
+            if (value == null && old == null)
+                return null;
+            Page p = copy(r, v, removedPages);
+            if (value == null) {
+                remove(p, v, key, removedPages);
+                if (!p.isLeaf() && p.getTotalCount() == 0) {
+                    removedPages.add(p);
+                    p = Page.createEmpty(this, p.getVersion());
+                }
+            } else {
+                p = splitRootIfNeeded(p, v);
+                put(p, v, key, value, removedPages);
+            }
+            if (newRoot(r, p)) {
+                for (int i = 0, size = removedPages.size(); i < size; i++)
+                    removedPages.get(i).removePage();
+                return old;
+            }
+            // 其他写者已经替换了root，副本不会被使用，不再计入未保存的内存
+            for (int i = 0, size = removedPages.size(); i < size; i++)
+                removePage(0, removedPages.get(i).getMemory());
+            removedPages.clear();
+        }
+    }
+
+    /**
+     * Copy a page, the page is marked as deleted only after the copy is in use.
+     *
+     * @param p the page
+     * @param writeVersion the write version
+     * @param removedPages the pages to mark as deleted
+     * @return the copy
+     */
+    private Page copy(Page p, long writeVersion, ArrayList<Page> removedPages) {
+        removedPages.add(p);
+        return p.copy(writeVersion, false);
     }
 
     /**
@@ -135,12 +212,15 @@ public class MVMap<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V
      * @param value the value (may not be null)
      * @return the new root page
      */
-    synchronized Page putBranch(Page root, K key, V value) {
+    Page putBranch(Page root, K key, V value) {
         DataUtils.checkArgument(value != null, "The value may not be null");
         long v = writeVersion;
-        Page p = root.copy(v);
+        ArrayList<Page> removedPages = new ArrayList<>();
+        Page p = copy(root, v, removedPages);
         p = splitRootIfNeeded(p, v);
-        put(p, v, key, value);
+        put(p, v, key, value, removedPages);
+        for (Page old : removedPages)
+            old.removePage();
         return p;
     }
 
@@ -173,9 +253,10 @@ public class MVMap<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V
      * @param writeVersion the write version
      * @param key the key (may not be null)
      * @param value the value (may not be null)
+     * @param removedPages the copied pages, to be marked as deleted when the new root is in use
      * @return the old value, or null
      */
-    protected Object put(Page p, long writeVersion, Object key, Object value) {
+    protected Object put(Page p, long writeVersion, Object key, Object value, ArrayList<Page> removedPages) {
         int index = p.binarySearch(key);
         if (p.isLeaf()) {
             if (index < 0) {
@@ -191,7 +272,7 @@ public class MVMap<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V
         } else {
             index++;
         }
-        Page c = p.getChildPage(index).copy(writeVersion);
+        Page c = copy(p.getChildPage(index), writeVersion, removedPages);
         if (c.getMemory() > store.getPageSplitSize() && c.getKeyCount() > 1) {
             // split on the way down
             int at = c.getKeyCount() / 2;
@@ -200,13 +281,159 @@ public class MVMap<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V
             p.setChild(index, split);
             p.insertNode(index, k, c);
             // now we are not sure where to add
-            return put(p, writeVersion, key, value);
+            return put(p, writeVersion, key, value, removedPages);
         }
-        Object result = put(c, writeVersion, key, value);
+        Object result = put(c, writeVersion, key, value, removedPages);
         p.setChild(index, c);
         return result;
     }
 
+    /**
+     * Add the entries of a sorted stream.
+     * <p>
+     * The entries are collected into full leaf pages, and each leaf page is appended to the right edge of the tree,
+     * so only the rightmost path is copied once per leaf instead of once per key. Full nodes on the right edge get
+     * a new right sibling instead of being split in the middle, so the pages stay full. Keys that are not larger
+     * than the last key of the map are added with put.
+     *
+     * @param entries the entries, the keys in ascending order and without duplicates
+     */
+    @Override
+    public void bulkLoad(Iterator<? extends Map.Entry<K, V>> entries) {
+        beforeWrite();
+        int pageSplitSize = store.getPageSplitSize();
+        K lastKey = lastKey();
+        Object previous = null;
+        ArrayList<Object> keys = New.arrayList();
+        ArrayList<Object> values = New.arrayList();
+        int memory = DataUtils.PAGE_MEMORY;
+        while (entries.hasNext()) {
+            Map.Entry<K, V> e = entries.next();
+            K key = e.getKey();
+            V value = e.getValue();
+            DataUtils.checkArgument(value != null, "The value may not be null");
+            if (previous != null && keyType.compare(previous, key) >= 0) {
+                throw DataUtils.newIllegalArgumentException("The keys are not in ascending order: {0} after {1}", key,
+                        previous);
+            }
+            previous = key;
+            if (lastKey != null && keyType.compare(key, lastKey) <= 0) {
+                put(key, value);
+                continue;
+            }
+            int mem = getKeyMemory(key) + valueType.getMemory(value);
+            if (!keys.isEmpty() && memory + mem > pageSplitSize) {
+                appendLeaf(keys.toArray(), values.toArray(), memory);
+                keys.clear();
+                values.clear();
+                memory = DataUtils.PAGE_MEMORY;
+            }
+            keys.add(key);
+            values.add(value);
+            memory += mem;
+        }
+        if (!keys.isEmpty())
+            appendLeaf(keys.toArray(), values.toArray(), memory);
+    }
+
+    /**
+     * Append a leaf page to the right edge of the tree. If another writer added a larger key in the meantime,
+     * the entries are added with put.
+     *
+     * @param keys the keys, all larger than the keys of the map
+     * @param values the values
+     * @param memory the memory of the leaf page
+     */
+    @SuppressWarnings("unchecked")
+    private void appendLeaf(Object[] keys, Object[] values, int memory) {
+        // 让store有机会在写入过程中保存已经追加的页
+        beforeWrite();
+        ArrayList<Page> removedPages = new ArrayList<>();
+        Page leaf = null;
+        while (true) {
+            Page r = root;
+            long v = writeVersion;
+            if (leaf == null)
+                leaf = Page.create(this, v, keys, values, null, keys.length, memory);
+            Page last = r;
+            while (!last.isLeaf())
+                last = last.getChildPage(last.getRawChildPageCount() - 1);
+            int lastIndex = last.getKeyCount() - 1;
+            if ((lastIndex < 0 && r != last)
+                    || (lastIndex >= 0 && keyType.compare(last.getKey(lastIndex), keys[0]) >= 0)) {
+                removePage(0, leaf.getMemory());
+                for (int i = 0; i < keys.length; i++)
+                    put((K) keys[i], (V) values[i]);
+                return;
+            }
+            Page p;
+            if (lastIndex < 0) {
+                // 空的map
+                removedPages.add(r);
+                p = leaf;
+            } else if (r.isLeaf()) {
+                Object[] rootKeys = { keys[0] };
+                Page.PageReference[] children = { new Page.PageReference(r, r.getPos(), r.getTotalCount()),
+                        new Page.PageReference(leaf, leaf.getPos(), leaf.getTotalCount()) };
+                p = Page.create(this, v, rootKeys, null, children, r.getTotalCount() + leaf.getTotalCount(), 0);
+            } else {
+                Object[] sibling = new Object[2];
+                p = appendLeaf(r, v, keys[0], leaf, removedPages, sibling);
+                if (sibling[0] != null) {
+                    Page s = (Page) sibling[1];
+                    Object[] rootKeys = { sibling[0] };
+                    Page.PageReference[] children = { new Page.PageReference(p, p.getPos(), p.getTotalCount()),
+                            new Page.PageReference(s, s.getPos(), s.getTotalCount()) };
+                    p = Page.create(this, v, rootKeys, null, children, p.getTotalCount() + s.getTotalCount(), 0);
+                }
+            }
+            if (newRoot(r, p)) {
+                for (int i = 0, size = removedPages.size(); i < size; i++)
+                    removedPages.get(i).removePage();
+                return;
+            }
+            for (int i = 0, size = removedPages.size(); i < size; i++)
+                removePage(0, removedPages.get(i).getMemory());
+            removedPages.clear();
+        }
+    }
+
+    /**
+     * Append a leaf page below the rightmost path of a node.
+     *
+     * @param p the node
+     * @param writeVersion the write version
+     * @param key the first key of the leaf page
+     * @param leaf the leaf page
+     * @param removedPages the copied pages, to be marked as deleted when the new root is in use
+     * @param sibling set to the key and the new right sibling of the node, if the node was full
+     * @return the copy of the node
+     */
+    private Page appendLeaf(Page p, long writeVersion, Object key, Page leaf, ArrayList<Page> removedPages,
+            Object[] sibling) {
+        int last = p.getKeyCount();
+        Page c = p.getChildPage(last);
+        Page child = leaf;
+        p = copy(p, writeVersion, removedPages);
+        if (!c.isLeaf()) {
+            Object[] childSibling = new Object[2];
+            c = appendLeaf(c, writeVersion, key, leaf, removedPages, childSibling);
+            p.setChild(last, c);
+            if (childSibling[0] == null)
+                return p;
+            key = childSibling[0];
+            child = (Page) childSibling[1];
+        }
+        if (p.getMemory() > store.getPageSplitSize() && p.getKeyCount() > 1) {
+            // 最右边的节点满了，把它的最后一个子页和新的子页放到新的右兄弟节点中
+            sibling[0] = p.getKey(last - 1);
+            sibling[1] = p.splitLastChild(writeVersion, key, child);
+        } else {
+            p.appendNode(key, child);
+        }
+        return p;
+    }
+
     /**
      * Get the first key, or null if the map is empty.
      *
@@ -511,10 +738,15 @@ public class MVMap<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V
      * Remove all entries.
      */
     @Override
-    public synchronized void clear() {
+    public void clear() {
         beforeWrite();
-        root.removeAllRecursive();
-        newRoot(Page.createEmpty(this, writeVersion));
+        while (true) {
+            Page r = root;
+            if (newRoot(r, Page.createEmpty(this, writeVersion))) {
+                r.removeAllRecursive();
+                return;
+            }
+        }
     }
 
     /**
@@ -541,21 +773,7 @@ public class MVMap<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V
     @SuppressWarnings("unchecked")
     public V remove(Object key) {
         beforeWrite();
-        V result = get(key);
-        if (result == null) {
-            return null;
-        }
-        long v = writeVersion;
-        synchronized (this) {
-            Page p = root.copy(v);
-            result = (V) remove(p, v, key);
-            if (!p.isLeaf() && p.getTotalCount() == 0) {
-                p.removePage();
-                p = Page.createEmpty(this, p.getVersion());
-            }
-            newRoot(p);
-        }
-        return result;
+        return (V) update(key, null, ANY_VALUE);
     }
 
     /**
@@ -566,12 +784,11 @@ public class MVMap<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V
      * @return the old value if the key existed, or null otherwise
      */
     @Override
-    public synchronized V putIfAbsent(K key, V value) {
-        V old = get(key);
-        if (old == null) {
-            put(key, value);
-        }
-        return old;
+    @SuppressWarnings("unchecked")
+    public V putIfAbsent(K key, V value) {
+        DataUtils.checkArgument(value != null, "The value may not be null");
+        beforeWrite();
+        return (V) update(key, value, null);
     }
 
     /**
@@ -582,13 +799,9 @@ public class MVMap<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V
      * @return true if the item was removed
      */
     @Override
-    public synchronized boolean remove(Object key, Object value) {
-        V old = get(key);
-        if (areValuesEqual(old, value)) {
-            remove(key);
-            return true;
-        }
-        return false;
+    public boolean remove(Object key, Object value) {
+        beforeWrite();
+        return areValuesEqual(update(key, null, value), value);
     }
 
     /**
@@ -617,13 +830,10 @@ public class MVMap<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V
      * @return true if the value was replaced
      */
     @Override
-    public synchronized boolean replace(K key, V oldValue, V newValue) {
-        V old = get(key);
-        if (areValuesEqual(old, oldValue)) {
-            put(key, newValue);
-            return true;
-        }
-        return false;
+    public boolean replace(K key, V oldValue, V newValue) {
+        DataUtils.checkArgument(newValue != null, "The value may not be null");
+        beforeWrite();
+        return areValuesEqual(update(key, newValue, oldValue), oldValue);
     }
 
     /**
@@ -634,13 +844,11 @@ public class MVMap<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V
      * @return the old value, if the value was replaced, or null
      */
     @Override
-    public synchronized V replace(K key, V value) {
-        V old = get(key);
-        if (old != null) {
-            put(key, value);
-            return old;
-        }
-        return null;
+    @SuppressWarnings("unchecked")
+    public V replace(K key, V value) {
+        DataUtils.checkArgument(value != null, "The value may not be null");
+        beforeWrite();
+        return (V) update(key, value, PRESENT_VALUE);
     }
 
     /**
@@ -649,9 +857,10 @@ public class MVMap<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V
      * @param p the page (may not be null)
      * @param writeVersion the write version
      * @param key the key
+     * @param removedPages the copied pages, to be marked as deleted when the new root is in use
      * @return the old value, or null if the key did not exist
      */
-    protected Object remove(Page p, long writeVersion, Object key) {
+    protected Object remove(Page p, long writeVersion, Object key, ArrayList<Page> removedPages) {
         int index = p.binarySearch(key);
         Object result = null;
         if (p.isLeaf()) {
@@ -667,9 +876,8 @@ public class MVMap<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V
         } else {
             index++;
         }
-        Page cOld = p.getChildPage(index);
-        Page c = cOld.copy(writeVersion);
-        result = remove(c, writeVersion, key);
+        Page c = copy(p.getChildPage(index), writeVersion, removedPages);
+        result = remove(c, writeVersion, key, removedPages);
         if (result == null || c.getTotalCount() != 0) {
             // no change, or
             // there are more nodes
@@ -678,7 +886,7 @@ public class MVMap<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V
             // this child was deleted
             if (p.getKeyCount() == 0) {
                 p.setChild(index, c);
-                c.removePage();
+                removedPages.add(c);
             } else {
                 p.remove(index);
             }
@@ -704,6 +912,31 @@ public class MVMap<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V
         }
     }
 
+    /**
+     * Replace the root page if it is still the expected one.
+     *
+     * @param oldRoot the expected root page
+     * @param newRoot the new root page
+     * @return true if the root was replaced
+     */
+    protected boolean newRoot(Page oldRoot, Page newRoot) {
+        if (oldRoot.getVersion() == newRoot.getVersion()) {
+            return rootUpdater.compareAndSet(this, oldRoot, newRoot);
+        }
+        // 每个版本只有第一次写时会进入这里，加锁保证oldRoots按版本的顺序增加
+        synchronized (this) {
+            if (!rootUpdater.compareAndSet(this, oldRoot, newRoot)) {
+                return false;
+            }
+            removeUnusedOldVersions();
+            Page last = oldRoots.peekLast();
+            if (last == null || last.getVersion() != oldRoot.getVersion()) {
+                oldRoots.add(oldRoot);
+            }
+            return true;
+        }
+    }
+
     /**
      * Compare two keys.
      *
@@ -725,6 +958,34 @@ public class MVMap<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V
         return keyType;
     }
 
+    /**
+     * Get the key type if the pages keep the keys in a long array.
+     *
+     * @return the key type, or null
+     */
+    LongKeyDataType getLongKeyType() {
+        return longKeyType;
+    }
+
+    /**
+     * Get the key type if the pages search the keys after their common prefix.
+     *
+     * @return the key type, or null
+     */
+    PrefixKeyDataType getPrefixKeyType() {
+        return prefixKeyType;
+    }
+
+    /**
+     * Get the memory used by a key in a page.
+     *
+     * @param key the key
+     * @return the memory in bytes
+     */
+    int getKeyMemory(Object key) {
+        return longKeyType != null ? 8 : keyType.getMemory(key);
+    }
+
     /**
      * Get the value type.
      *
@@ -745,6 +1006,26 @@ public class MVMap<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V
         return store.readPage(this, pos);
     }
 
+    /**
+     * Read the child pages of the node in the given range in the background,
+     * if they are not in memory yet.
+     *
+     * @param p the node
+     * @param from the index of the first child page
+     * @param to the index after the last child page
+     */
+    void readAhead(Page p, int from, int to) {
+        long[] positions = new long[to - from];
+        int len = 0;
+        for (int i = from; i < to; i++) {
+            long pos = p.getChildPagePos(i);
+            if (pos != 0 && !p.isChildPageLoaded(i)) {
+                positions[len++] = pos;
+            }
+        }
+        store.readAhead(this, positions, len);
+    }
+
     /**
      * Set the position of the root page.
      *
@@ -773,6 +1054,18 @@ public class MVMap<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V
      * @return whether rewriting was successful
      */
     boolean rewrite(Set<Integer> set) {
+        return rewrite(set, null);
+    }
+
+    /**
+     * Re-write the pages that belong to one of the chunks in the given set,
+     * until the budget is used up.
+     *
+     * @param set the set of chunk ids
+     * @param budget the budget, or null to re-write all pages
+     * @return whether rewriting was successful
+     */
+    boolean rewrite(Set<Integer> set, ChunkCompactor.Budget budget) {
         // read from old version, to avoid concurrent reads
         long previousVersion = store.getCurrentVersion() - 1;
         if (previousVersion < createVersion) {
@@ -788,7 +1081,7 @@ public class MVMap<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V
             return true;
         }
         try {
-            rewrite(readMap.root, set);
+            rewrite(readMap.root, set, budget);
             return true;
         } catch (IllegalStateException e) {
             // TODO should not rely on exception handling
@@ -800,13 +1093,16 @@ public class MVMap<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V
         }
     }
 
-    private int rewrite(Page p, Set<Integer> set) {
+    private int rewrite(Page p, Set<Integer> set, ChunkCompactor.Budget budget) {
         if (p.isLeaf()) {
             long pos = p.getPos();
             int chunkId = DataUtils.getPageChunkId(pos);
             if (!set.contains(chunkId)) {
                 return 0;
             }
+            if (budget != null) {
+                budget.use(pos);
+            }
             if (p.getKeyCount() > 0) {
                 @SuppressWarnings("unchecked")
                 K key = (K) p.getKey(0);
@@ -819,6 +1115,10 @@ public class MVMap<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V
         }
         int writtenPageCount = 0;
         for (int i = 0; i < getChildPageCount(p); i++) {
+            if (budget != null && budget.isUsedUp()) {
+                // 剩下的页留给下一步，父节点也不用重写了
+                return writtenPageCount + 1;
+            }
             long childPos = p.getChildPagePos(i);
             if (childPos != 0 && DataUtils.getPageType(childPos) == DataUtils.PAGE_TYPE_LEAF) {
                 // we would need to load the page, and it's a leaf:
@@ -829,7 +1129,7 @@ public class MVMap<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V
                     continue;
                 }
             }
-            writtenPageCount += rewrite(p.getChildPage(i), set);
+            writtenPageCount += rewrite(p.getChildPage(i), set, budget);
         }
         if (writtenPageCount == 0) {
             long pos = p.getPos();
@@ -851,6 +1151,9 @@ public class MVMap<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V
                 if (value != null) {
                     replace(key, value, value);
                 }
+                if (budget != null) {
+                    budget.use(pos);
+                }
                 writtenPageCount++;
             }
         }
@@ -1353,17 +1656,99 @@ public class MVMap<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V
 
     @Override
     public void save() {
+        // 检查点在截断redo log之前调用这个方法，所以必须把map的修改写到文件
+        FileStore fs = store.getFileStore();
+        if (fs != null && !fs.isReadOnly() && !store.isClosed())
+            store.commit();
     }
 
     @Override
     public void transferTo(WritableByteChannel target, K firstKey, K lastKey) throws IOException {
-        // TODO Auto-generated method stub
+        // 格式: 多个块，每个块是块的长度 + 若干个key/value对
+        WriteBuffer buff = new WriteBuffer();
+        buff.putInt(0);
+        StorageMapCursor<K, V> cursor = cursor(firstKey);
+        while (cursor.hasNext()) {
+            K key = cursor.next();
+            if (lastKey != null && keyType.compare(key, lastKey) > 0)
+                break;
+            keyType.write(buff, key);
+            valueType.write(buff, cursor.getValue());
+            if (buff.position() >= TRANSFER_BLOCK_SIZE) {
+                writeBlock(target, buff);
+                buff.clear();
+                buff.putInt(0);
+            }
+        }
+        if (buff.position() > 4)
+            writeBlock(target, buff);
+    }
 
+    private static void writeBlock(WritableByteChannel target, WriteBuffer buff) throws IOException {
+        buff.putInt(0, buff.position() - 4);
+        ByteBuffer b = buff.getBuffer();
+        b.flip();
+        while (b.hasRemaining())
+            target.write(b);
     }
 
+    /**
+     * Read the entries written by transferTo and add them with bulkLoad.
+     *
+     * @param src the source channel
+     */
     @Override
-    public void transferFrom(ReadableByteChannel src) throws IOException {
-        // TODO Auto-generated method stub
+    public void transferFrom(final ReadableByteChannel src) throws IOException {
+        final ByteBuffer header = ByteBuffer.allocate(4);
+        Iterator<Map.Entry<K, V>> entries = new Iterator<Map.Entry<K, V>>() {
+            private ByteBuffer block;
+
+            @Override
+            public boolean hasNext() {
+                if (block != null && block.hasRemaining())
+                    return true;
+                try {
+                    header.clear();
+                    if (!readFully(src, header))
+                        return false;
+                    header.flip();
+                    block = ByteBuffer.allocate(header.getInt());
+                    if (!readFully(src, block))
+                        throw DataUtils.newIllegalStateException(DataUtils.ERROR_READING_FAILED,
+                                "Unexpected end of the transfer");
+                    block.flip();
+                } catch (IOException e) {
+                    throw DataUtils.newIllegalStateException(DataUtils.ERROR_READING_FAILED, "Transfer failed", e);
+                }
+                return block.hasRemaining();
+            }
 
+            @Override
+            @SuppressWarnings("unchecked")
+            public Map.Entry<K, V> next() {
+                K key = (K) keyType.read(block);
+                V value = (V) valueType.read(block);
+                return new AbstractMap.SimpleImmutableEntry<K, V>(key, value);
+            }
+
+            @Override
+            public void remove() {
+                throw DataUtils.newUnsupportedOperationException("Removing is not supported");
+            }
+        };
+        bulkLoad(entries);
+    }
+
+    // 返回false表示已经到了末尾，没有读到任何数据
+    private static boolean readFully(ReadableByteChannel src, ByteBuffer dst) throws IOException {
+        while (dst.hasRemaining()) {
+            if (src.read(dst) < 0) {
+                if (dst.position() == 0)
+                    return false;
+                throw DataUtils.newIllegalStateException(DataUtils.ERROR_READING_FAILED,
+                        "Unexpected end of the transfer");
+            }
+        }
+        return true;
     }
 }
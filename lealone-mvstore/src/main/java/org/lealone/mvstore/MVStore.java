@@ -18,10 +18,19 @@ import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
@@ -39,6 +48,7 @@ import org.lealone.mvstore.Page.PageChildren;
 import org.lealone.storage.Storage;
 import org.lealone.storage.StorageMap;
 import org.lealone.storage.cache.CacheLongKeyLIRS;
+import org.lealone.storage.cache.CacheLongKeyOffHeap;
 import org.lealone.storage.fs.FileChannelInputStream;
 import org.lealone.storage.fs.FileUtils;
 import org.lealone.storage.type.DataType;
@@ -160,6 +170,15 @@ public class MVStore implements Storage {
      */
     private static final int MARKED_FREE = 10000000;
 
+    /**
+     * The maximum number of bytes read at once when reading ahead.
+     */
+    private static final int MAX_READ_AHEAD_LENGTH = 1024 * 1024;
+
+    private static final int READ_AHEAD_QUEUE_SIZE = 16;
+
+    private static final int MAX_READ_AHEAD_CACHE_SIZE = 256;
+
     /**
      * The background thread, if any.
      */
@@ -188,6 +207,12 @@ public class MVStore implements Storage {
      */
     private CacheLongKeyLIRS<PageChildren> cacheChunkRef;
 
+    /**
+     * The off-heap cache of the bytes of the pages, between the page cache and
+     * the file. Disabled by default.
+     */
+    private CacheLongKeyOffHeap offHeapCache;
+
     /**
      * The newest chunk. If nothing was stored yet, this field is not set.
      */
@@ -231,6 +256,43 @@ public class MVStore implements Storage {
 
     private Compressor compressorHigh;
 
+    /**
+     * The number of threads that serialize and compress the changed pages
+     * when a chunk is stored, 1 to do it in the storing thread.
+     */
+    private final int writeThreads;
+
+    private ForkJoinPool writePool;
+
+    /**
+     * The number of sibling pages a cursor reads ahead once it scans
+     * sequentially, 0 to disable the read-ahead.
+     */
+    private final int readAheadPages;
+
+    private ThreadPoolExecutor readAheadExecutor;
+
+    /**
+     * The pages that are being read ahead. A thread that needs one of them
+     * waits for the read instead of reading the page again.
+     */
+    private final ConcurrentHashMap<Long, ReadAheadTask> pendingReads = new ConcurrentHashMap<>();
+
+    /**
+     * The pages that were read ahead but not used yet. They are only put in
+     * the page cache when they are used, otherwise the cache would see every
+     * page of a scan twice and keep them as frequently used pages.
+     */
+    private final Map<Long, ReadAheadPage> readAheadCache = Collections
+            .synchronizedMap(new LinkedHashMap<Long, ReadAheadPage>() {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Entry<Long, ReadAheadPage> eldest) {
+                    return size() > MAX_READ_AHEAD_CACHE_SIZE;
+                }
+            });
+
     private final UncaughtExceptionHandler backgroundExceptionHandler;
 
     private long currentVersion;
@@ -281,6 +343,8 @@ public class MVStore implements Storage {
 
     private final Object compactSync = new Object();
 
+    private ChunkCompactor compactor;
+
     private IllegalStateException panicException;
 
     /**
@@ -303,6 +367,10 @@ public class MVStore implements Storage {
         }
         o = config.get("backgroundExceptionHandler");
         this.backgroundExceptionHandler = (UncaughtExceptionHandler) o;
+        o = config.get("writeThreads");
+        writeThreads = o == null ? Runtime.getRuntime().availableProcessors() : (Integer) o;
+        o = config.get("readAheadPages");
+        readAheadPages = o == null ? 16 : (Integer) o;
         meta = new MVMap<String, String>(StringDataType.INSTANCE, StringDataType.INSTANCE);
         HashMap<String, Object> c = New.hashMap();
         c.put("id", 0);
@@ -331,6 +399,11 @@ public class MVStore implements Storage {
             cc.maxMemory /= 4;
             cacheChunkRef = new CacheLongKeyLIRS<PageChildren>(cc);
         }
+        o = config.get("offHeapCacheSize");
+        mb = o == null ? 0 : (Integer) o;
+        if (mb > 0) {
+            offHeapCache = new CacheLongKeyOffHeap(mb * 1024L * 1024L);
+        }
         o = config.get("autoCommitBufferSize");
         int kb = o == null ? 1024 : (Integer) o;
         // 19 KB memory is about 1 KB storage
@@ -338,11 +411,13 @@ public class MVStore implements Storage {
 
         o = config.get("autoCompactFillRate");
         autoCompactFillRate = o == null ? 50 : (Integer) o;
+        o = config.get("autoCompactWriteRate");
+        compactor = new ChunkCompactor(this, o == null ? 16 : (Integer) o);
 
         char[] encryptionKey = (char[]) config.get("encryptionKey");
         try {
             if (!fileStoreIsProvided) {
-                fileStore.open(fileName, readOnly, encryptionKey);
+                fileStore.open(fileName, readOnly, encryptionKey, config.containsKey("mappedReads"));
             }
             if (fileStore.size() == 0) {
                 creationTime = getTime();
@@ -839,6 +914,20 @@ public class MVStore implements Storage {
             // because of out of memory
             cache = null;
             cacheChunkRef = null;
+            offHeapCache = null;
+            if (writePool != null) {
+                writePool.shutdown();
+                writePool = null;
+            }
+            if (readAheadExecutor != null) {
+                // 不能中断正在读的线程，否则文件通道会被关闭
+                for (Runnable r : readAheadExecutor.getQueue()) {
+                    ((FutureTask<?>) r).cancel(false);
+                }
+                readAheadExecutor.shutdown();
+                readAheadExecutor = null;
+            }
+            readAheadCache.clear();
             for (MVMap<?, ?> m : New.arrayList(maps.values())) {
                 m.close();
             }
@@ -1053,6 +1142,7 @@ public class MVStore implements Storage {
         c.pageCountLive = 0;
         c.maxLen = 0;
         c.maxLenLive = 0;
+        prepareWrite(changed);
         for (MVMap<?, ?> m : changed) {
             Page p = m.getRoot();
             String key = MVMap.getMapRootKey(m.getId());
@@ -1177,7 +1267,77 @@ public class MVStore implements Storage {
         return version;
     }
 
-    private synchronized void freeUnusedChunks() {
+    /**
+     * Serialize and compress the changed pages of the maps on the worker
+     * threads. The positions of the pages are only known when they are
+     * written to the chunk, but the keys and values do not depend on them,
+     * so only the page headers and the child positions are left to the
+     * storing thread.
+     *
+     * @param changed the changed maps
+     */
+    private void prepareWrite(ArrayList<MVMap<?, ?>> changed) {
+        if (writeThreads <= 1) {
+            return;
+        }
+        ArrayList<Page> pages = New.arrayList();
+        for (MVMap<?, ?> m : changed) {
+            Page p = m.getRoot();
+            if (p.getTotalCount() > 0) {
+                p.collectUnsaved(pages);
+            }
+        }
+        if (pages.size() < PrepareWriteTask.PAGES_PER_TASK * 2) {
+            return;
+        }
+        getWritePool().invoke(new PrepareWriteTask(pages, 0, pages.size(), Page.getCompressType(compressionLevel)));
+    }
+
+    private synchronized ForkJoinPool getWritePool() {
+        if (writePool == null) {
+            writePool = new ForkJoinPool(writeThreads);
+        }
+        return writePool;
+    }
+
+    private static class PrepareWriteTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private static final int PAGES_PER_TASK = 64;
+        private final ArrayList<Page> pages;
+        private final int from;
+        private final int to;
+        private final int compressType;
+
+        PrepareWriteTask(ArrayList<Page> pages, int from, int to, int compressType) {
+            this.pages = pages;
+            this.from = from;
+            this.to = to;
+            this.compressType = compressType;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > PAGES_PER_TASK) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new PrepareWriteTask(pages, from, mid, compressType),
+                        new PrepareWriteTask(pages, mid, to, compressType));
+                return;
+            }
+            // 压缩器不是线程安全的，每个任务用自己的
+            Compressor compressor = null;
+            if (compressType == DataUtils.PAGE_COMPRESSED) {
+                compressor = new CompressLZF();
+            } else if (compressType == DataUtils.PAGE_COMPRESSED_HIGH) {
+                compressor = new CompressDeflate();
+            }
+            WriteBuffer buff = new WriteBuffer();
+            for (int i = from; i < to; i++) {
+                pages.get(i).prepareWrite(buff, compressor, compressType);
+            }
+        }
+    }
+
+    synchronized void freeUnusedChunks() {
         if (lastChunk == null || !reuseSpace) {
             return;
         }
@@ -1289,7 +1449,12 @@ public class MVStore implements Storage {
                             "Negative position {0}; p={1}, c={2}", filePos, pos, c.toString());
                 }
                 long maxPos = (c.block + c.len) * BLOCK_SIZE;
-                r = PageChildren.read(fileStore, pos, mapId, filePos, maxPos);
+                try {
+                    r = PageChildren.read(fileStore, pos, mapId, filePos, maxPos, true);
+                } catch (InternalError e) {
+                    // 映射的区域在文件截短之后再读会得到InternalError，改成从文件中读
+                    r = PageChildren.read(fileStore, pos, mapId, filePos, maxPos, false);
+                }
             }
             r.removeDuplicateChunkReferences();
             if (cacheChunkRef != null) {
@@ -1698,6 +1863,65 @@ public class MVStore implements Storage {
         }
     }
 
+    /**
+     * Get the chunks that should be compacted first.
+     *
+     * @param targetFillRate the minimum percentage of live entries
+     * @param write the minimum number of bytes to write
+     * @return the chunks, or null if the fill rate is high enough
+     */
+    synchronized ArrayList<Chunk> getChunksToCompact(int targetFillRate, int write) {
+        return compactGetOldChunks(targetFillRate, write);
+    }
+
+    /**
+     * Re-write the live pages of the given chunks in all open maps, until the
+     * budget is used up. The changes are stored with the next commit.
+     *
+     * @param set the chunk ids
+     * @param budget the budget
+     * @return false if one of the chunks no longer exists
+     */
+    boolean compactRewrite(Set<Integer> set, ChunkCompactor.Budget budget) {
+        for (MVMap<?, ?> m : maps.values()) {
+            if (!m.rewrite(set, budget)) {
+                return false;
+            }
+            if (budget.isUsedUp()) {
+                return true;
+            }
+        }
+        return meta.rewrite(set, budget);
+    }
+
+    /**
+     * Get the fill rate of all chunks combined, the percentage of the chunk
+     * space that contains live pages.
+     *
+     * @return the fill rate, 100 if there are no chunks
+     */
+    public int getChunksFillRate() {
+        long maxLengthSum = 0;
+        long maxLengthLiveSum = 0;
+        for (Chunk c : chunks.values()) {
+            maxLengthSum += c.maxLen;
+            maxLengthLiveSum += c.maxLenLive;
+        }
+        if (maxLengthSum <= 0) {
+            return 100;
+        }
+        return (int) (100 * maxLengthLiveSum / maxLengthSum);
+    }
+
+    /**
+     * Get the background compactor, it provides the compaction progress.
+     *
+     * @return the compactor
+     */
+    public ChunkCompactor getCompactor() {
+        return compactor;
+    }
+
     private ArrayList<Chunk> compactGetOldChunks(int targetFillRate, int write) {
         if (lastChunk == null) {
             // nothing to do
@@ -1822,21 +2046,222 @@ public class MVStore implements Storage {
             throw DataUtils.newIllegalStateException(DataUtils.ERROR_FILE_CORRUPT, "Position 0");
         }
         Page p = cache == null ? null : cache.get(pos);
+        if (p == null && readAheadPages > 0) {
+            p = getReadAheadPage(pos);
+        }
         if (p == null) {
             Chunk c = getChunk(pos);
-            long filePos = c.block * BLOCK_SIZE;
-            filePos += DataUtils.getPageOffset(pos);
-            if (filePos < 0) {
-                throw DataUtils
-                        .newIllegalStateException(DataUtils.ERROR_FILE_CORRUPT, "Negative position {0}", filePos);
+            CacheLongKeyOffHeap offHeapCache = this.offHeapCache;
+            // chunk id会被重用，用chunk的版本来识别过期的页
+            ByteBuffer buff = offHeapCache == null ? null : offHeapCache.get(pos, c.version);
+            if (buff != null) {
+                p = Page.read(buff, pos, map);
+            } else {
+                long filePos = c.block * BLOCK_SIZE;
+                filePos += DataUtils.getPageOffset(pos);
+                if (filePos < 0) {
+                    throw DataUtils.newIllegalStateException(DataUtils.ERROR_FILE_CORRUPT, "Negative position {0}",
+                            filePos);
+                }
+                long maxPos = (c.block + c.len) * BLOCK_SIZE;
+                try {
+                    p = readPage(map, pos, c, filePos, maxPos, offHeapCache, true);
+                } catch (InternalError e) {
+                    // 映射的区域在文件截短之后再读会得到InternalError，改成从文件中读
+                    p = readPage(map, pos, c, filePos, maxPos, offHeapCache, false);
+                }
             }
-            long maxPos = (c.block + c.len) * BLOCK_SIZE;
-            p = Page.read(fileStore, pos, map, filePos, maxPos);
             cachePage(pos, p, p.getMemory());
         }
         return p;
     }
 
+    private Page readPage(MVMap<?, ?> map, long pos, Chunk c, long filePos, long maxPos,
+            CacheLongKeyOffHeap offHeapCache, boolean mapped) {
+        ByteBuffer buff = Page.readBuffer(fileStore, pos, filePos, maxPos, mapped);
+        Page p = Page.read(buff, pos, map);
+        if (offHeapCache != null) {
+            // 读到的是页的最大长度，只缓存页的实际长度
+            buff.limit(buff.getInt(0));
+            buff.position(0);
+            offHeapCache.put(pos, c.version, buff);
+        }
+        return p;
+    }
+
+    /**
+     * Get the number of pages a cursor reads ahead when it scans sequentially.
+     *
+     * @return the number of pages, 0 if there is nothing to read ahead
+     */
+    int getReadAheadPages() {
+        return cache == null ? 0 : readAheadPages;
+    }
+
+    private Page getReadAheadPage(long pos) {
+        ReadAheadTask task = pendingReads.get(pos);
+        if (task != null) {
+            try {
+                // 后台线程还没开始读的话就在当前线程读，否则等它读完
+                task.run();
+                task.get();
+            } catch (Exception e) {
+                // 预读失败了，由调用者再读一次
+            }
+        }
+        ReadAheadPage rp = readAheadCache.remove(pos);
+        // chunk已经被释放的话，它的id可能被新的chunk重用了，同样的位置不一定还是这个页
+        if (rp == null || chunks.get(rp.chunk.id) != rp.chunk) {
+            return null;
+        }
+        Page p = rp.page;
+        cachePage(pos, p, p.getMemory());
+        return p;
+    }
+
+    private static class ReadAheadPage {
+        final Page page;
+        final Chunk chunk;
+
+        ReadAheadPage(Page page, Chunk chunk) {
+            this.page = page;
+            this.chunk = chunk;
+        }
+    }
+
+    /**
+     * Read the given pages in the background, so that they are in memory
+     * when a cursor needs them.
+     * The pages that are close to each other in the same chunk are read with
+     * one read operation. Reading ahead is best effort: if the background
+     * thread is busy, or a chunk is no longer available, the pages are read
+     * when they are needed.
+     *
+     * @param map the map
+     * @param positions the page positions, the array is modified
+     * @param len the number of positions
+     */
+    void readAhead(MVMap<?, ?> map, long[] positions, int len) {
+        if (len == 0 || getReadAheadPages() <= 0) {
+            return;
+        }
+        CacheLongKeyLIRS<Page> cache = this.cache;
+        if (cache == null) {
+            return;
+        }
+        int count = 0;
+        for (int i = 0; i < len; i++) {
+            long pos = positions[i];
+            if (!pendingReads.containsKey(pos) && !readAheadCache.containsKey(pos) && !cache.containsKey(pos)) {
+                positions[count++] = pos;
+            }
+        }
+        if (count == 0) {
+            return;
+        }
+        ReadAheadTask task = new ReadAheadTask(map, Arrays.copyOf(positions, count));
+        for (int i = 0; i < count; i++) {
+            pendingReads.put(positions[i], task);
+        }
+        try {
+            getReadAheadExecutor().execute(task);
+        } catch (RejectedExecutionException e) {
+            // 正在关闭或者队列已满，不需要预读了
+            task.cancel(false);
+        }
+    }
+
+    /**
+     * Reads the pages and removes them from the pending reads when it is done
+     * or cancelled.
+     */
+    private class ReadAheadTask extends FutureTask<Void> {
+
+        private final long[] positions;
+
+        ReadAheadTask(final MVMap<?, ?> map, final long[] positions) {
+            super(new Runnable() {
+                @Override
+                public void run() {
+                    readPages(map, positions);
+                }
+            }, null);
+            this.positions = positions;
+        }
+
+        @Override
+        protected void done() {
+            for (long pos : positions) {
+                pendingReads.remove(pos, this);
+            }
+        }
+    }
+
+    private synchronized ThreadPoolExecutor getReadAheadExecutor() {
+        if (readAheadExecutor == null) {
+            readAheadExecutor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<Runnable>(READ_AHEAD_QUEUE_SIZE), new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "MVStore read ahead");
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+        }
+        return readAheadExecutor;
+    }
+
+    private void readPages(MVMap<?, ?> map, long[] positions) {
+        int len = positions.length;
+        // 页的位置是按chunk id和chunk内的偏移量编码的，排序后同一个chunk的相邻页就挨在一起了
+        Arrays.sort(positions);
+        int i = 0;
+        while (i < len) {
+            long pos = positions[i];
+            Chunk c = chunks.get(DataUtils.getPageChunkId(pos));
+            int maxLength = DataUtils.getPageMaxLength(pos);
+            if (c == null || maxLength == DataUtils.PAGE_LARGE) {
+                i++;
+                continue;
+            }
+            long chunkStart = c.block * BLOCK_SIZE;
+            long maxPos = (c.block + c.len) * BLOCK_SIZE;
+            long start = chunkStart + DataUtils.getPageOffset(pos);
+            long end = Math.min(maxPos, start + maxLength);
+            int from = i++;
+            while (i < len) {
+                long p = positions[i];
+                maxLength = DataUtils.getPageMaxLength(p);
+                if (DataUtils.getPageChunkId(p) != c.id || maxLength == DataUtils.PAGE_LARGE) {
+                    break;
+                }
+                // 只合并紧挨着的页，end是按页的最大长度算的，所以中间不会读到太多无关的数据
+                long pageStart = chunkStart + DataUtils.getPageOffset(p);
+                long pageEnd = Math.min(maxPos, pageStart + maxLength);
+                if (pageStart > end || pageEnd - start > MAX_READ_AHEAD_LENGTH) {
+                    break;
+                }
+                end = Math.max(end, pageEnd);
+                i++;
+            }
+            try {
+                ByteBuffer buff = fileStore.readFully(start, (int) (end - start));
+                for (int j = from; j < i; j++) {
+                    pos = positions[j];
+                    ByteBuffer b = buff.duplicate();
+                    b.position((int) (chunkStart + DataUtils.getPageOffset(pos) - start));
+                    Page p = Page.read(b, pos, map);
+                    readAheadCache.put(pos, new ReadAheadPage(p, c));
+                }
+            } catch (Exception | InternalError e) {
+                // 文件已关闭，或者chunk已经被覆盖，需要时再按正常方式读
+                // (映射的区域在文件截短之后再读会得到InternalError)
+                return;
+            }
+        }
+    }
+
     /**
      * Remove a page.
      *
@@ -1867,6 +2292,10 @@ public class MVStore implements Storage {
                 cache.remove(pos);
             }
         }
+        CacheLongKeyOffHeap offHeapCache = this.offHeapCache;
+        if (offHeapCache != null && DataUtils.getPageType(pos) == DataUtils.PAGE_TYPE_LEAF) {
+            offHeapCache.remove(pos);
+        }
 
         Chunk c = getChunk(pos);
         long version = currentVersion;
@@ -2128,6 +2557,10 @@ public class MVStore implements Storage {
      */
     public synchronized void rollbackTo(long version) {
         checkOpen();
+        if (offHeapCache != null) {
+            // 回滚后新的chunk可能重用被删除的chunk的id和版本
+            offHeapCache.clear();
+        }
         if (version == 0) {
             // special case: remove all data
             for (MVMap<?, ?> m : maps.values()) {
@@ -2368,7 +2801,12 @@ public class MVStore implements Storage {
                 int fillRate = fileOps ? autoCompactFillRate / 3 : autoCompactFillRate;
                 // TODO how to avoid endless compaction if there is a bug
                 // in the bookkeeping?
-                compact(fillRate, autoCommitMemory);
+                if (reuseSpace) {
+                    synchronized (compactSync) {
+                        checkOpen();
+                        compactor.step(fillRate);
+                    }
+                }
                 autoCompactLastFileOpCount = fileStore.getWriteCount() + fileStore.getReadCount();
             } catch (Exception e) {
                 if (backgroundExceptionHandler != null) {
@@ -2525,6 +2963,15 @@ public class MVStore implements Storage {
         return cache;
     }
 
+    /**
+     * Get the off-heap cache of the bytes of the pages.
+     *
+     * @return the cache, or null if it is disabled
+     */
+    public CacheLongKeyOffHeap getOffHeapCache() {
+        return offHeapCache;
+    }
+
     /**
      * A background writer thread to automatically store changes from time to
      * time.
@@ -2624,6 +3071,19 @@ public class MVStore implements Storage {
             return set("autoCompactFillRate", percent);
         }
 
+        /**
+         * Set the maximum rate in MB per second at which the background
+         * compaction re-writes pages. The pages are re-written in small steps,
+         * so that other writers are not blocked for long. The default is 16,
+         * 0 means no limit.
+         *
+         * @param mb the rate in MB per second
+         * @return this
+         */
+        public Builder autoCompactWriteRate(int mb) {
+            return set("autoCompactWriteRate", mb);
+        }
+
         /**
          * Use the following file name. If the file does not exist, it is
          * automatically created. The parent directory already must exist.
@@ -2676,6 +3136,54 @@ public class MVStore implements Storage {
             return set("cacheSize", mb);
         }
 
+        /**
+         * Set the size of the off-heap cache in MB. The cache keeps the bytes
+         * of the pages that were read from the file in direct memory, so that
+         * the pages evicted from the read cache do not need to be read again.
+         * The default is 0 (disabled).
+         *
+         * @param mb the cache size in megabytes
+         * @return this
+         */
+        public Builder offHeapCacheSize(int mb) {
+            return set("offHeapCacheSize", mb);
+        }
+
+        /**
+         * Set the number of threads that serialize and compress the changed
+         * pages when a chunk is stored. The default is the number of
+         * processors, 1 disables the parallel serialization.
+         *
+         * @param threads the number of threads
+         * @return this
+         */
+        public Builder writeThreads(int threads) {
+            return set("writeThreads", threads);
+        }
+
+        /**
+         * Set the number of sibling pages a cursor reads ahead in the
+         * background once it scans the pages sequentially. The default is 16,
+         * 0 disables the read-ahead.
+         *
+         * @param pages the number of pages
+         * @return this
+         */
+        public Builder readAheadPages(int pages) {
+            return set("readAheadPages", pages);
+        }
+
+        /**
+         * Read the pages from read-only memory mapped regions of the file
+         * instead of copying them into a new buffer for each read. Only used
+         * if the file is on disk and not encrypted.
+         *
+         * @return this
+         */
+        public Builder mappedReads() {
+            return set("mappedReads", 1);
+        }
+
         /**
          * Compress data before writing using the LZF algorithm. This will save
          * about 50% of the disk space, but will slow down read and write
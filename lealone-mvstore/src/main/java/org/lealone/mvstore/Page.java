@@ -6,6 +6,8 @@
 package org.lealone.mvstore;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -13,6 +15,8 @@ import org.lealone.common.compress.Compressor;
 import org.lealone.common.util.DataUtils;
 import org.lealone.common.util.New;
 import org.lealone.storage.type.DataType;
+import org.lealone.storage.type.LongKeyDataType;
+import org.lealone.storage.type.PrefixKeyDataType;
 import org.lealone.storage.type.WriteBuffer;
 
 /**
@@ -26,9 +30,9 @@ import org.lealone.storage.type.WriteBuffer;
  * check value: short
  * map id: varInt
  * number of keys: varInt
- * type: byte (0: leaf, 1: node; +2: compressed)
+ * type: byte (0: leaf, 1: node; +2: compressed; +8: long keys)
  * compressed: bytes saved (varInt)
- * keys
+ * keys (long keys: the first key and the differences to the previous key, varLong)
  * leaf: values (one for each key)
  * node: children (1 more than keys)
  */
@@ -39,6 +43,15 @@ public class Page {
      */
     public static final Object[] EMPTY_OBJECT_ARRAY = new Object[0];
 
+    private static final long[] EMPTY_LONG_ARRAY = new long[0];
+
+    /**
+     * The number of keys a page needs to have more than, so that the common
+     * prefix of its keys is compared first. For fewer keys this costs more
+     * than it saves.
+     */
+    private static final int MIN_PREFIX_SEARCH_KEYS = 8;
+
     private final MVMap<?, ?> map;
     private long version;
     private long pos;
@@ -65,6 +78,11 @@ public class Page {
      */
     private Object[] keys;
 
+    /**
+     * The keys if the key type of the map is a LongKeyDataType, keys is null then.
+     */
+    private long[] longKeys;
+
     /**
      * The values.
      * <p>
@@ -87,6 +105,13 @@ public class Page {
      */
     private volatile boolean removedInMemory;
 
+    /**
+     * The keys and values serialized (and compressed) by a worker thread
+     * before the chunk is written, or null.
+     */
+    private byte[] preparedBody;
+    private int preparedCompressType;
+
     Page(MVMap<?, ?> map, long version) {
         this.map = map;
         this.version = version;
@@ -117,9 +142,19 @@ public class Page {
      */
     public static Page create(MVMap<?, ?> map, long version, Object[] keys, Object[] values, PageReference[] children,
             long totalCount, int memory) {
+        LongKeyDataType longKeyType = map.getLongKeyType();
+        if (longKeyType != null) {
+            return create(map, version, null, toLongKeys(longKeyType, keys), values, children, totalCount, memory);
+        }
+        return create(map, version, keys, null, values, children, totalCount, memory);
+    }
+
+    private static Page create(MVMap<?, ?> map, long version, Object[] keys, long[] longKeys, Object[] values,
+            PageReference[] children, long totalCount, int memory) {
         Page p = new Page(map, version);
         // the position is 0
         p.keys = keys;
+        p.longKeys = longKeys;
         p.values = values;
         p.children = children;
         p.totalCount = totalCount;
@@ -147,6 +182,7 @@ public class Page {
         Page p = new Page(map, version);
         // the position is 0
         p.keys = source.keys;
+        p.longKeys = source.longKeys;
         p.values = source.values;
         p.children = source.children;
         p.totalCount = source.totalCount;
@@ -159,20 +195,20 @@ public class Page {
     }
 
     /**
-     * Read a page.
+     * Read the bytes of a page.
      *
      * @param fileStore the file store
      * @param pos the position
-     * @param map the map
      * @param filePos the position in the file
      * @param maxPos the maximum position (the end of the chunk)
-     * @return the page
+     * @param mapped whether the bytes may be read from a mapped region
+     * @return the buffer, the limit is the maximum length of the page
      */
-    static Page read(FileStore fileStore, long pos, MVMap<?, ?> map, long filePos, long maxPos) {
+    static ByteBuffer readBuffer(FileStore fileStore, long pos, long filePos, long maxPos, boolean mapped) {
         ByteBuffer buff;
         int maxLength = DataUtils.getPageMaxLength(pos);
         if (maxLength == DataUtils.PAGE_LARGE) {
-            buff = fileStore.readFully(filePos, 128);
+            buff = fileStore.readFully(filePos, 128, mapped);
             maxLength = buff.getInt();
             // read the first bytes again
         }
@@ -182,12 +218,23 @@ public class Page {
             throw DataUtils.newIllegalStateException(DataUtils.ERROR_FILE_CORRUPT,
                     "Illegal page length {0} reading at {1}; max pos {2} ", length, filePos, maxPos);
         }
-        buff = fileStore.readFully(filePos, length);
+        return fileStore.readFully(filePos, length, mapped);
+    }
+
+    /**
+     * Read a page.
+     *
+     * @param buff the bytes of the page
+     * @param pos the position
+     * @param map the map
+     * @return the page
+     */
+    static Page read(ByteBuffer buff, long pos, MVMap<?, ?> map) {
         Page p = new Page(map, 0);
         p.pos = pos;
         int chunkId = DataUtils.getPageChunkId(pos);
         int offset = DataUtils.getPageOffset(pos);
-        p.read(buff, chunkId, offset, maxLength);
+        p.read(buff, chunkId, offset, buff.remaining());
         return p;
     }
 
@@ -198,7 +245,7 @@ public class Page {
      * @return the key
      */
     public Object getKey(int index) {
-        return keys[index];
+        return keys != null ? keys[index] : map.getLongKeyType().toKey(longKeys[index]);
     }
 
     /**
@@ -212,6 +259,16 @@ public class Page {
         return ref.page != null ? ref.page : map.readPage(ref.pos);
     }
 
+    /**
+     * Check whether the child page at the given index is in memory.
+     *
+     * @param index the index
+     * @return true if the child page does not need to be read
+     */
+    boolean isChildPageLoaded(int index) {
+        return children[index].page != null;
+    }
+
     /**
      * Get the position of the child.
      *
@@ -238,7 +295,7 @@ public class Page {
      * @return the number of keys
      */
     public int getKeyCount() {
-        return keys.length;
+        return keys != null ? keys.length : longKeys.length;
     }
 
     /**
@@ -269,15 +326,15 @@ public class Page {
             int chunkId = DataUtils.getPageChunkId(pos);
             buff.append("chunk: ").append(Long.toHexString(chunkId)).append("\n");
         }
-        for (int i = 0; i <= keys.length; i++) {
+        for (int i = 0, len = getKeyCount(); i <= len; i++) {
             if (i > 0) {
                 buff.append(" ");
             }
             if (children != null) {
                 buff.append("[" + Long.toHexString(children[i].pos) + "] ");
             }
-            if (i < keys.length) {
-                buff.append(keys[i]);
+            if (i < len) {
+                buff.append(getKey(i));
                 if (values != null) {
                     buff.append(':');
                     buff.append(values[i]);
@@ -294,9 +351,23 @@ public class Page {
      * @return a page with the given version
      */
     public Page copy(long version) {
-        Page newPage = create(map, version, keys, values, children, totalCount, getMemory());
-        // mark the old as deleted
-        removePage();
+        return copy(version, true);
+    }
+
+    /**
+     * Create a copy of this page.
+     *
+     * @param version the new version
+     * @param removeOld whether to mark this page as deleted,
+     *        concurrent writers do it only when the copy is in use
+     * @return a page with the given version
+     */
+    public Page copy(long version, boolean removeOld) {
+        Page newPage = create(map, version, keys, longKeys, values, children, totalCount, getMemory());
+        if (removeOld) {
+            // mark the old as deleted
+            removePage();
+        }
         newPage.cachedCompare = cachedCompare;
         return newPage;
     }
@@ -313,6 +384,9 @@ public class Page {
      * @return the value or null
      */
     public int binarySearch(Object key) {
+        if (longKeys != null) {
+            return binarySearch(longKeys, map.getLongKeyType().toLong(key));
+        }
         int low = 0, high = keys.length - 1;
         // the cached index minus one, so that
         // for the first time (when cachedCompare is 0),
@@ -322,6 +396,20 @@ public class Page {
             x = high >>> 1;
         }
         Object[] k = keys;
+        PrefixKeyDataType prefixKeyType = map.getPrefixKeyType();
+        if (prefixKeyType != null && high >= MIN_PREFIX_SEARCH_KEYS) {
+            // 页中所有key都相同的前缀只跟要找的key比较一次，之后每次只比较前缀后面的元素
+            int prefixLength = prefixKeyType.getCommonPrefixLength(k[0], k[high]);
+            if (prefixLength > 0) {
+                int compare = prefixKeyType.comparePrefix(key, k[0], prefixLength);
+                if (compare != 0) {
+                    low = compare < 0 ? 0 : high + 1;
+                    cachedCompare = low;
+                    return -(low + 1);
+                }
+                return binarySearch(prefixKeyType, prefixLength, key, low, high, x);
+            }
+        }
         while (low <= high) {
             int compare = map.compare(key, k[x]);
             if (compare > 0) {
@@ -353,6 +441,63 @@ public class Page {
         // return -(low + 1);
     }
 
+    private int binarySearch(PrefixKeyDataType prefixKeyType, int prefixLength, Object key, int low, int high,
+            int x) {
+        Object[] k = keys;
+        while (low <= high) {
+            int compare = prefixKeyType.compare(key, k[x], prefixLength);
+            if (compare > 0) {
+                low = x + 1;
+            } else if (compare < 0) {
+                high = x - 1;
+            } else {
+                cachedCompare = x + 1;
+                return x;
+            }
+            x = (low + high) >>> 1;
+        }
+        cachedCompare = low;
+        return -(low + 1);
+    }
+
+    /**
+     * Search a long key. The loop only moves the base of the range, without a branch on the result of the
+     * comparison, so it always runs log2(length) times and the JIT can use a conditional move.
+     *
+     * @param a the keys
+     * @param key the key
+     * @return the index, or -(insertion point + 1) if not found
+     */
+    private static int binarySearch(long[] a, long key) {
+        int n = a.length;
+        if (n == 0) {
+            return -1;
+        }
+        int base = 0;
+        while (n > 1) {
+            int half = n >>> 1;
+            base = a[base + half] <= key ? base + half : base;
+            n -= half;
+        }
+        long k = a[base];
+        if (k == key) {
+            return base;
+        }
+        return k < key ? -(base + 2) : -(base + 1);
+    }
+
+    private static long[] toLongKeys(LongKeyDataType longKeyType, Object[] keys) {
+        int len = keys.length;
+        if (len == 0) {
+            return EMPTY_LONG_ARRAY;
+        }
+        long[] a = new long[len];
+        for (int i = 0; i < len; i++) {
+            a[i] = longKeyType.toLong(keys[i]);
+        }
+        return a;
+    }
+
     /**
      * Split the page. This modifies the current page.
      *
@@ -364,12 +509,19 @@ public class Page {
     }
 
     private Page splitLeaf(int at) {
-        int a = at, b = keys.length - a;
-        Object[] aKeys = new Object[a];
-        Object[] bKeys = new Object[b];
-        System.arraycopy(keys, 0, aKeys, 0, a);
-        System.arraycopy(keys, a, bKeys, 0, b);
-        keys = aKeys;
+        int a = at, b = getKeyCount() - a;
+        Object[] bKeys = null;
+        long[] bLongKeys = null;
+        if (keys != null) {
+            Object[] aKeys = new Object[a];
+            bKeys = new Object[b];
+            System.arraycopy(keys, 0, aKeys, 0, a);
+            System.arraycopy(keys, a, bKeys, 0, b);
+            keys = aKeys;
+        } else {
+            bLongKeys = Arrays.copyOfRange(longKeys, a, a + b);
+            longKeys = Arrays.copyOf(longKeys, a);
+        }
         Object[] aValues = new Object[a];
         Object[] bValues = new Object[b];
         bValues = new Object[b];
@@ -377,19 +529,26 @@ public class Page {
         System.arraycopy(values, a, bValues, 0, b);
         values = aValues;
         totalCount = a;
-        Page newPage = create(map, version, bKeys, bValues, null, bKeys.length, 0);
+        Page newPage = create(map, version, bKeys, bLongKeys, bValues, null, b, 0);
         recalculateMemory();
         return newPage;
     }
 
     private Page splitNode(int at) {
-        int a = at, b = keys.length - a;
-
-        Object[] aKeys = new Object[a];
-        Object[] bKeys = new Object[b - 1];
-        System.arraycopy(keys, 0, aKeys, 0, a);
-        System.arraycopy(keys, a + 1, bKeys, 0, b - 1);
-        keys = aKeys;
+        int a = at, b = getKeyCount() - a;
+
+        Object[] bKeys = null;
+        long[] bLongKeys = null;
+        if (keys != null) {
+            Object[] aKeys = new Object[a];
+            bKeys = new Object[b - 1];
+            System.arraycopy(keys, 0, aKeys, 0, a);
+            System.arraycopy(keys, a + 1, bKeys, 0, b - 1);
+            keys = aKeys;
+        } else {
+            bLongKeys = Arrays.copyOfRange(longKeys, a + 1, a + b);
+            longKeys = Arrays.copyOf(longKeys, a);
+        }
 
         PageReference[] aChildren = new PageReference[a + 1];
         PageReference[] bChildren = new PageReference[b];
@@ -406,7 +565,7 @@ public class Page {
         for (PageReference x : bChildren) {
             t += x.count;
         }
-        Page newPage = create(map, version, bKeys, null, bChildren, t, 0);
+        Page newPage = create(map, version, bKeys, bLongKeys, null, bChildren, t, 0);
         recalculateMemory();
         return newPage;
     }
@@ -420,7 +579,7 @@ public class Page {
         if (MVStore.ASSERT) {
             long check = 0;
             if (isLeaf()) {
-                check = keys.length;
+                check = getKeyCount();
             } else {
                 for (PageReference x : children) {
                     check += x.count;
@@ -477,6 +636,11 @@ public class Page {
      * @param key the new key
      */
     public void setKey(int index, Object key) {
+        if (longKeys != null) {
+            longKeys = longKeys.clone();
+            longKeys[index] = map.getLongKeyType().toLong(key);
+            return;
+        }
         // this is slightly slower:
         // keys = Arrays.copyOf(keys, keys.length);
         keys = keys.clone();
@@ -540,17 +704,14 @@ public class Page {
      * @param value the value
      */
     public void insertLeaf(int index, Object key, Object value) {
-        int len = keys.length + 1;
-        Object[] newKeys = new Object[len];
-        DataUtils.copyWithGap(keys, newKeys, len - 1, index);
-        keys = newKeys;
+        int len = getKeyCount() + 1;
+        insertKey(index, key);
         Object[] newValues = new Object[len];
         DataUtils.copyWithGap(values, newValues, len - 1, index);
         values = newValues;
-        keys[index] = key;
         values[index] = value;
         totalCount++;
-        addMemory(map.getKeyType().getMemory(key) + map.getValueType().getMemory(value));
+        addMemory(map.getKeyMemory(key) + map.getValueType().getMemory(value));
     }
 
     /**
@@ -561,11 +722,7 @@ public class Page {
      * @param childPage the child page
      */
     public void insertNode(int index, Object key, Page childPage) {
-
-        Object[] newKeys = new Object[keys.length + 1];
-        DataUtils.copyWithGap(keys, newKeys, keys.length, index);
-        newKeys[index] = key;
-        keys = newKeys;
+        insertKey(index, key);
 
         int childCount = children.length;
         PageReference[] newChildren = new PageReference[childCount + 1];
@@ -574,7 +731,61 @@ public class Page {
         children = newChildren;
 
         totalCount += childPage.totalCount;
-        addMemory(map.getKeyType().getMemory(key) + DataUtils.PAGE_MEMORY_CHILD);
+        addMemory(map.getKeyMemory(key) + DataUtils.PAGE_MEMORY_CHILD);
+    }
+
+    private void insertKey(int index, Object key) {
+        if (longKeys != null) {
+            int len = longKeys.length;
+            long[] newKeys = new long[len + 1];
+            DataUtils.copyWithGap(longKeys, newKeys, len, index);
+            newKeys[index] = map.getLongKeyType().toLong(key);
+            longKeys = newKeys;
+        } else {
+            int len = keys.length;
+            Object[] newKeys = new Object[len + 1];
+            DataUtils.copyWithGap(keys, newKeys, len, index);
+            newKeys[index] = key;
+            keys = newKeys;
+        }
+    }
+
+    /**
+     * Append a child page to this node. The key must be larger than all keys of this node.
+     *
+     * @param key the key
+     * @param childPage the child page
+     */
+    void appendNode(Object key, Page childPage) {
+        int keyLength = getKeyCount();
+        insertKey(keyLength, key);
+
+        PageReference[] newChildren = new PageReference[keyLength + 2];
+        System.arraycopy(children, 0, newChildren, 0, keyLength + 1);
+        newChildren[keyLength + 1] = new PageReference(childPage, childPage.getPos(), childPage.totalCount);
+        children = newChildren;
+
+        totalCount += childPage.totalCount;
+        addMemory(map.getKeyMemory(key) + DataUtils.PAGE_MEMORY_CHILD);
+    }
+
+    /**
+     * Move the last child of this node to a new node that also gets the given child page.
+     * The last key of this node is removed, the caller has to use it as the key of the new node.
+     *
+     * @param version the version of the new node
+     * @param key the key that separates the last child and the given child page
+     * @param childPage the child page
+     * @return the new node
+     */
+    Page splitLastChild(long version, Object key, Page childPage) {
+        int last = getKeyCount();
+        PageReference ref = children[last];
+        Object[] newKeys = { key };
+        PageReference[] newChildren = { ref,
+                new PageReference(childPage, childPage.getPos(), childPage.totalCount) };
+        remove(last);
+        return create(map, version, newKeys, null, newChildren, ref.count + childPage.totalCount, 0);
     }
 
     /**
@@ -583,16 +794,22 @@ public class Page {
      * @param index the index
      */
     public void remove(int index) {
-        int keyLength = keys.length;
+        int keyLength = getKeyCount();
         int keyIndex = index >= keyLength ? index - 1 : index;
-        Object old = keys[keyIndex];
-        addMemory(-map.getKeyType().getMemory(old));
-        Object[] newKeys = new Object[keyLength - 1];
-        DataUtils.copyExcept(keys, newKeys, keyLength, keyIndex);
-        keys = newKeys;
+        if (longKeys != null) {
+            addMemory(-8);
+            long[] newKeys = new long[keyLength - 1];
+            DataUtils.copyExcept(longKeys, newKeys, keyLength, keyIndex);
+            longKeys = newKeys;
+        } else {
+            addMemory(-map.getKeyType().getMemory(keys[keyIndex]));
+            Object[] newKeys = new Object[keyLength - 1];
+            DataUtils.copyExcept(keys, newKeys, keyLength, keyIndex);
+            keys = newKeys;
+        }
 
         if (values != null) {
-            old = values[index];
+            Object old = values[index];
             addMemory(-map.getValueType().getMemory(old));
             Object[] newValues = new Object[keyLength - 1];
             DataUtils.copyExcept(values, newValues, keyLength, index);
@@ -643,7 +860,6 @@ public class Page {
                     "File corrupted in chunk {0}, expected check value {1}, got {2}", chunkId, checkTest, check);
         }
         int len = DataUtils.readVarInt(buff);
-        keys = new Object[len];
         int type = buff.get();
         boolean node = (type & 1) == DataUtils.PAGE_TYPE_NODE;
         if (node) {
@@ -676,7 +892,7 @@ public class Page {
             buff = ByteBuffer.allocate(l);
             compressor.expand(comp, 0, compLen, buff.array(), buff.arrayOffset(), l);
         }
-        map.getKeyType().read(buff, keys, len, true);
+        readKeys(buff, len, (type & DataUtils.PAGE_LONG_KEYS) != 0);
         if (!node) {
             values = new Object[len];
             map.getValueType().read(buff, values, len, false);
@@ -685,6 +901,34 @@ public class Page {
         recalculateMemory();
     }
 
+    private void readKeys(ByteBuffer buff, int len, boolean deltaEncoded) {
+        LongKeyDataType longKeyType = map.getLongKeyType();
+        if (deltaEncoded) {
+            long[] a = new long[len];
+            long k = 0;
+            for (int i = 0; i < len; i++) {
+                k += DataUtils.readVarLong(buff);
+                a[i] = k;
+            }
+            if (longKeyType != null) {
+                longKeys = a;
+            } else {
+                // 用其他key类型打开的map(比如删除map时)，只能得到Long
+                keys = new Object[len];
+                for (int i = 0; i < len; i++)
+                    keys[i] = a[i];
+            }
+        } else {
+            keys = new Object[len];
+            map.getKeyType().read(buff, keys, len, true);
+            // 旧格式的页
+            if (longKeyType != null) {
+                longKeys = toLongKeys(longKeyType, keys);
+                keys = null;
+            }
+        }
+    }
+
     /**
      * Store the page and update the position.
      *
@@ -694,46 +938,39 @@ public class Page {
      */
     private int write(Chunk chunk, WriteBuffer buff) {
         int start = buff.position();
-        int len = keys.length;
+        int len = getKeyCount();
         int type = children != null ? DataUtils.PAGE_TYPE_NODE : DataUtils.PAGE_TYPE_LEAF;
+        int keysType = longKeys != null ? DataUtils.PAGE_LONG_KEYS : 0;
         buff.putInt(0).putShort((byte) 0).putVarInt(map.getId()).putVarInt(len);
         int typePos = buff.position();
-        buff.put((byte) type);
+        buff.put((byte) (type + keysType));
         if (type == DataUtils.PAGE_TYPE_NODE) {
             writeChildren(buff);
             for (int i = 0; i <= len; i++) {
                 buff.putVarLong(children[i].count);
             }
         }
-        int compressStart = buff.position();
-        map.getKeyType().write(buff, keys, len, true);
-        if (type == DataUtils.PAGE_TYPE_LEAF) {
-            map.getValueType().write(buff, values, len, false);
-        }
         MVStore store = map.getStore();
-        int expLen = buff.position() - compressStart;
-        if (expLen > 16) {
-            int compressionLevel = store.getCompressionLevel();
-            if (compressionLevel > 0) {
-                Compressor compressor;
-                int compressType;
-                if (compressionLevel == 1) {
-                    compressor = map.getStore().getCompressorFast();
-                    compressType = DataUtils.PAGE_COMPRESSED;
-                } else {
-                    compressor = map.getStore().getCompressorHigh();
-                    compressType = DataUtils.PAGE_COMPRESSED_HIGH;
-                }
-                byte[] exp = new byte[expLen];
-                buff.position(compressStart).get(exp);
-                byte[] comp = new byte[expLen * 2];
-                int compLen = compressor.compress(exp, expLen, comp, 0);
-                int plus = DataUtils.getVarIntLen(compLen - expLen);
-                if (compLen + plus < expLen) {
-                    buff.position(typePos).put((byte) (type + compressType));
-                    buff.position(compressStart).putVarInt(expLen - compLen).put(comp, 0, compLen);
-                }
+        int compressType;
+        byte[] body = preparedBody;
+        if (body != null) {
+            preparedBody = null;
+            compressType = preparedCompressType;
+            buff.put(body);
+        } else {
+            compressType = getCompressType(store.getCompressionLevel());
+            Compressor compressor = null;
+            if (compressType == DataUtils.PAGE_COMPRESSED) {
+                compressor = store.getCompressorFast();
+            } else if (compressType == DataUtils.PAGE_COMPRESSED_HIGH) {
+                compressor = store.getCompressorHigh();
             }
+            compressType = writeBody(buff, compressor, compressType);
+        }
+        if (compressType != 0) {
+            int end = buff.position();
+            buff.position(typePos).put((byte) (type + keysType + compressType));
+            buff.position(end);
         }
         int pageLength = buff.position() - start;
         int chunkId = chunk.id;
@@ -764,8 +1001,97 @@ public class Page {
         return typePos + 1;
     }
 
+    /**
+     * Get the compression flags of the page type for the compression level.
+     *
+     * @param compressionLevel the compression level of the store
+     * @return 0, PAGE_COMPRESSED or PAGE_COMPRESSED_HIGH
+     */
+    static int getCompressType(int compressionLevel) {
+        if (compressionLevel <= 0) {
+            return 0;
+        }
+        return compressionLevel == 1 ? DataUtils.PAGE_COMPRESSED : DataUtils.PAGE_COMPRESSED_HIGH;
+    }
+
+    /**
+     * Write the keys and the values (for leaves), and compress them if that
+     * saves space.
+     *
+     * @param buff the target buffer
+     * @param compressor the compressor, or null
+     * @param compressType the compression flags of the compressor
+     * @return the compression flags of the page type, 0 if not compressed
+     */
+    private int writeBody(WriteBuffer buff, Compressor compressor, int compressType) {
+        int compressStart = buff.position();
+        int len = getKeyCount();
+        if (longKeys != null) {
+            long last = 0;
+            for (int i = 0; i < len; i++) {
+                buff.putVarLong(longKeys[i] - last);
+                last = longKeys[i];
+            }
+        } else {
+            map.getKeyType().write(buff, keys, len, true);
+        }
+        if (children == null) {
+            map.getValueType().write(buff, values, len, false);
+        }
+        int expLen = buff.position() - compressStart;
+        if (expLen > 16 && compressor != null) {
+            byte[] exp = new byte[expLen];
+            buff.position(compressStart).get(exp);
+            byte[] comp = new byte[expLen * 2];
+            int compLen = compressor.compress(exp, expLen, comp, 0);
+            int plus = DataUtils.getVarIntLen(compLen - expLen);
+            if (compLen + plus < expLen) {
+                buff.position(compressStart).putVarInt(expLen - compLen).put(comp, 0, compLen);
+                return compressType;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Serialize (and compress) the keys and values in advance, so writing the
+     * page to the chunk only needs to copy the bytes. This is called by the
+     * worker threads, each with its own buffer and compressor.
+     *
+     * @param buff the buffer of the worker thread
+     * @param compressor the compressor of the worker thread, or null
+     * @param compressType the compression flags of the compressor
+     */
+    void prepareWrite(WriteBuffer buff, Compressor compressor, int compressType) {
+        buff.clear();
+        preparedCompressType = writeBody(buff, compressor, compressType);
+        byte[] body = new byte[buff.position()];
+        buff.position(0).get(body);
+        preparedBody = body;
+    }
+
+    /**
+     * Add this page and the changed child pages that are not stored yet.
+     *
+     * @param pages the list of pages
+     */
+    void collectUnsaved(ArrayList<Page> pages) {
+        if (pos != 0) {
+            return;
+        }
+        pages.add(this);
+        if (!isLeaf()) {
+            for (PageReference ref : children) {
+                Page p = ref.page;
+                if (p != null) {
+                    p.collectUnsaved(pages);
+                }
+            }
+        }
+    }
+
     private void writeChildren(WriteBuffer buff) {
-        int len = keys.length;
+        int len = getKeyCount();
         for (int i = 0; i <= len; i++) {
             buff.putLong(children[i].pos);
         }
@@ -864,13 +1190,18 @@ public class Page {
 
     private void recalculateMemory() {
         int mem = DataUtils.PAGE_MEMORY;
-        DataType keyType = map.getKeyType();
-        for (int i = 0; i < keys.length; i++) {
-            mem += keyType.getMemory(keys[i]);
+        int len = getKeyCount();
+        if (longKeys != null) {
+            mem += 8 * len;
+        } else {
+            DataType keyType = map.getKeyType();
+            for (int i = 0; i < len; i++) {
+                mem += keyType.getMemory(keys[i]);
+            }
         }
         if (this.isLeaf()) {
             DataType valueType = map.getValueType();
-            for (int i = 0; i < keys.length; i++) {
+            for (int i = 0; i < len; i++) {
                 mem += valueType.getMemory(values[i]);
             }
         } else {
@@ -980,13 +1311,15 @@ public class Page {
          * @param mapId the map id
          * @param filePos the position in the file
          * @param maxPos the maximum position (the end of the chunk)
+         * @param mapped whether the bytes may be read from a mapped region
          * @return the page children object
          */
-        static PageChildren read(FileStore fileStore, long pos, int mapId, long filePos, long maxPos) {
+        static PageChildren read(FileStore fileStore, long pos, int mapId, long filePos, long maxPos,
+                boolean mapped) {
             ByteBuffer buff;
             int maxLength = DataUtils.getPageMaxLength(pos);
             if (maxLength == DataUtils.PAGE_LARGE) {
-                buff = fileStore.readFully(filePos, 128);
+                buff = fileStore.readFully(filePos, 128, mapped);
                 maxLength = buff.getInt();
                 // read the first bytes again
             }
@@ -996,7 +1329,7 @@ public class Page {
                 throw DataUtils.newIllegalStateException(DataUtils.ERROR_FILE_CORRUPT,
                         "Illegal page length {0} reading at {1}; max pos {2} ", length, filePos, maxPos);
             }
-            buff = fileStore.readFully(filePos, length);
+            buff = fileStore.readFully(filePos, length, mapped);
             int chunkId = DataUtils.getPageChunkId(pos);
             int offset = DataUtils.getPageOffset(pos);
             int start = buff.position();
@@ -18,7 +18,6 @@
 package org.lealone.mvstore.mvcc;
 
 import java.util.HashMap;
-import java.util.LinkedList;
 
 import org.lealone.api.ErrorCode;
 import org.lealone.common.exceptions.DbException;
@@ -42,11 +41,20 @@ public class MVCCTransaction implements Transaction {
     private int status;
     private boolean autoCommit;
 
-    private long commitTimestamp;
+    // 快照读: 只能看到提交时间不大于startTimestamp的事务所做的修改
+    volatile long startTimestamp;
+    private volatile long commitTimestamp;
 
     private HashMap<String, Integer> savepoints;
 
-    LinkedList<LogRecord> logRecords = new LinkedList<>();
+    UndoLog undoLog = new UndoLog();
+
+    // 当前事务在等待哪个事务释放行锁，用于死锁检测
+    private volatile MVCCTransaction lockOwner;
+    // 等待当前事务释放行锁的事务在这个对象上等待，事务结束时唤醒它们
+    private final Object lockWaitQueue = new Object();
+    // 等待者持有这个对象的锁，在它上面等待，事务结束时也要唤醒它
+    private Object lockWaitSyncObject;
 
     MVCCTransaction(MVCCTransactionEngine engine, long tid) {
         transactionEngine = engine;
@@ -56,12 +64,16 @@ public class MVCCTransaction implements Transaction {
     }
 
     static class LogRecord {
-        final String mapName;
-        final Object key;
-        final VersionedValue oldValue;
-        final VersionedValue newValue;
+        String mapName;
+        Object key;
+        VersionedValue oldValue;
+        VersionedValue newValue;
 
         public LogRecord(String mapName, Object key, VersionedValue oldValue, VersionedValue newValue) {
+            set(mapName, key, oldValue, newValue);
+        }
+
+        void set(String mapName, Object key, VersionedValue oldValue, VersionedValue newValue) {
             this.mapName = mapName;
             this.key = key;
             this.oldValue = oldValue;
@@ -70,12 +82,13 @@ public class MVCCTransaction implements Transaction {
     }
 
     void log(String mapName, Object key, VersionedValue oldValue, VersionedValue newValue) {
-        logRecords.add(new LogRecord(mapName, key, oldValue, newValue));
+        undoLog.add(mapName, key, oldValue, newValue);
         logId++;
     }
 
+    // 修改没有写入map，没有其他事务能看到这条记录，下一次log时可以重用它
     void logUndo() {
-        logRecords.removeLast();
+        undoLog.removeLast(true);
         --logId;
     }
 
@@ -125,6 +138,69 @@ public class MVCCTransaction implements Transaction {
     public void addParticipant(Participant participant) {
     }
 
+    /**
+     * Record that this transaction failed to get a row lock held by the owner,
+     * the wait-for graph is checked for a cycle that goes back to this transaction.
+     *
+     * @param owner the transaction that holds the row lock
+     * @throws IllegalStateException if waiting for the owner would cause a deadlock
+     */
+    void setLockOwner(MVCCTransaction owner) {
+        lockOwner = owner;
+        // 环中不一定有当前事务，所以最多只走当前活跃事务的个数步
+        int steps = transactionEngine.currentTransactions.size();
+        for (MVCCTransaction t = owner; t != null && steps-- >= 0; t = t.lockOwner) {
+            if (t == this) {
+                lockOwner = null;
+                transactionEngine.deadlockCount.incrementAndGet();
+                throw DataUtils.newIllegalStateException(DataUtils.ERROR_TRANSACTION_DEADLOCK,
+                        "Transaction {0} is waiting for transaction {1} that is waiting for it", transactionId,
+                        owner.transactionId);
+            }
+        }
+    }
+
+    @Override
+    public boolean waitForLockRelease(long timeoutMillis) {
+        return waitForLockRelease(timeoutMillis, null);
+    }
+
+    @Override
+    public boolean waitForLockRelease(long timeoutMillis, Object sync) {
+        // 自动提交的事务只有当前这一条语句，重试时可以使用新的快照，不然快照之后提交的修改会一直冲突
+        if (autoCommit)
+            startTimestamp = transactionEngine.getLastCommitTimestamp();
+        MVCCTransaction owner = lockOwner;
+        if (owner == null)
+            return false;
+        if (timeoutMillis > 0) {
+            long start = System.nanoTime();
+            long deadline = start + timeoutMillis * 1000000;
+            Object queue = owner.lockWaitQueue;
+            if (sync != null) {
+                synchronized (owner.lockWaitQueue) {
+                    owner.lockWaitSyncObject = sync;
+                }
+                queue = sync;
+            }
+            synchronized (queue) {
+                long remaining = timeoutMillis;
+                while (owner.status != STATUS_CLOSED && remaining > 0) {
+                    try {
+                        queue.wait(remaining);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                    remaining = (deadline - System.nanoTime()) / 1000000;
+                }
+            }
+            transactionEngine.lockWaitCount.incrementAndGet();
+            transactionEngine.lockWaitTimeNanos.addAndGet(System.nanoTime() - start);
+        }
+        lockOwner = null;
+        return true;
+    }
+
     @Override
     public <K, V> MVCCTransactionMap<K, V> openMap(String name, Storage storage) {
         return openMap(name, null, null, storage);
@@ -176,15 +252,35 @@ public class MVCCTransaction implements Transaction {
     }
 
     void endTransaction() {
+        // 结束后不再持有快照，还通过这个事务读取时看到的是最新提交的值
+        startTimestamp = Long.MAX_VALUE;
         savepoints = null;
-        logRecords = null;
+        // 已提交事务的undoLog要留到map中的事务ID被清除之后
+        if (commitTimestamp == 0)
+            undoLog = null;
+        lockOwner = null;
         status = STATUS_CLOSED;
+        Object sync;
+        synchronized (lockWaitQueue) {
+            lockWaitQueue.notifyAll();
+            sync = lockWaitSyncObject;
+        }
+        if (sync != null) {
+            synchronized (sync) {
+                sync.notifyAll();
+            }
+        }
 
         transactionEngine.currentTransactions.remove(transactionId);
     }
 
     private void commitLocal() {
         checkNotClosed();
+        if (undoLog.isEmpty()) {
+            // 只读事务不需要写redoLog
+            endTransaction();
+            return;
+        }
         RedoLogValue v = transactionEngine.getRedoLog(this);
         transactionEngine.commit(this, v);
     }
@@ -242,7 +338,8 @@ public class MVCCTransaction implements Transaction {
 
     private void rollbackTo(long toLogId) {
         while (--logId >= toLogId) {
-            LogRecord r = logRecords.removeLast();
+            LogRecord r = undoLog.getLast();
+            undoLog.removeLast(false);
             String mapName = r.mapName;
             StorageMap<Object, VersionedValue> map = transactionEngine.getMap(mapName);
             if (map != null) {
@@ -19,10 +19,10 @@ package org.lealone.mvstore.mvcc;
 
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.Collections;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.Semaphore;
@@ -39,7 +39,6 @@ import org.lealone.mvstore.mvcc.log.RedoLogValue;
 import org.lealone.mvstore.mvcc.log.RedoLogValueType;
 import org.lealone.storage.StorageMap;
 import org.lealone.storage.StorageMapCursor;
-import org.lealone.storage.type.DataType;
 import org.lealone.storage.type.StringDataType;
 import org.lealone.storage.type.WriteBuffer;
 import org.lealone.storage.type.WriteBufferPool;
@@ -50,10 +49,15 @@ public class MVCCTransactionEngine extends TransactionEngineBase {
 
     private static final int DEFAULT_MAP_CACHE_SIZE = 32 * 1024 * 1024; // 32M
     private static final int DEFAULT_MAP_SAVE_PERIOD = 1 * 60 * 60 * 1000; // 1小时
+    private static final int DEFAULT_MAP_SAVE_THROTTLE = 10; // 保存两个map之间暂停10毫秒
+    private static final int DEFAULT_VERSION_GC_INTERVAL = 1000; // 1秒
+    private static final int CLEAN_THRESHOLD = 1024; // 没有清除事务ID的已提交事务达到这个数时马上清除
 
     private int mapCacheSize = DEFAULT_MAP_CACHE_SIZE;
     private int mapSavePeriod = DEFAULT_MAP_SAVE_PERIOD;
+    private int mapSaveThrottle = DEFAULT_MAP_SAVE_THROTTLE;
     private StorageMapSaveService storageMapSaveService;
+    private VersionGcService versionGcService;
 
     // key: mapName
     private final ConcurrentHashMap<String, StorageMap<Object, VersionedValue>> maps = new ConcurrentHashMap<>();
@@ -61,8 +65,14 @@ public class MVCCTransactionEngine extends TransactionEngineBase {
     private final ConcurrentHashMap<String, Integer> estimatedMemory = new ConcurrentHashMap<>();
 
     private final AtomicLong lastTransactionId = new AtomicLong();
-    // key: mapName, value: map key/value ByteBuffer list
-    private final HashMap<String, ArrayList<ByteBuffer>> pendingRedoLog = new HashMap<>();
+    // 快照读使用的逻辑时间，每个事务提交时加1
+    private final AtomicLong lastCommitTimestamp = new AtomicLong();
+    final VersionStore versionStore = new VersionStore();
+    // 已经提交但是map中的值还带有它们的事务ID的事务，key: transactionId
+    final ConcurrentSkipListMap<Long, MVCCTransaction> committedTransactions = new ConcurrentSkipListMap<>();
+    private final AtomicLong cleanedTransactionCount = new AtomicLong();
+
+    private RedoLogRecovery recovery;
 
     // key: transactionId
     private LogMap<Long, RedoLogValue> redoLog;
@@ -72,6 +82,14 @@ public class MVCCTransactionEngine extends TransactionEngineBase {
 
     // key: transactionId
     final ConcurrentSkipListMap<Long, MVCCTransaction> currentTransactions = new ConcurrentSkipListMap<>();
+    // 行锁等待的统计
+    final AtomicLong lockWaitCount = new AtomicLong();
+    final AtomicLong lockWaitTimeNanos = new AtomicLong();
+    final AtomicLong deadlockCount = new AtomicLong();
+
+    // 已经开始写redoLog但还没有把修改应用到map的事务
+    private final Set<MVCCTransaction> committingTransactions = Collections
+            .newSetFromMap(new ConcurrentHashMap<MVCCTransaction, Boolean>());
 
     public MVCCTransactionEngine() {
         super(Constants.DEFAULT_TRANSACTION_ENGINE_NAME);
@@ -82,19 +100,25 @@ public class MVCCTransactionEngine extends TransactionEngineBase {
     }
 
     void addMap(StorageMap<Object, VersionedValue> map) {
-        estimatedMemory.put(map.getName(), 0);
+        estimatedMemory.putIfAbsent(map.getName(), 0);
         maps.put(map.getName(), map);
     }
 
     void removeMap(String mapName) {
-        estimatedMemory.remove(mapName);
+        boolean logged = estimatedMemory.remove(mapName) != null;
         maps.remove(mapName);
+        versionStore.removeMap(mapName);
+        // 删除的map不用再重做，也不用在检查点时复制它的日志，
+        // 还要在日志中记下删除，重启时之前的日志就不会重做到同名的新map中
+        if (recovery.removeMap(mapName) || logged)
+            redoLog.append(0L, RedoLogRecovery.createRemoveRecord(mapName));
     }
 
     private class StorageMapSaveService extends Thread {
         private volatile boolean isClosed;
         private volatile long lastSavedAt = System.currentTimeMillis();
         private final Semaphore semaphore = new Semaphore(1);
+        private final Object checkpointLock = new Object();
         private final int sleep;
 
         StorageMapSaveService(int sleep) {
@@ -123,7 +147,6 @@ public class MVCCTransactionEngine extends TransactionEngineBase {
 
         @Override
         public void run() {
-            Long checkpoint = null;
             while (true) {
                 if (isClosed)
                     break;
@@ -135,28 +158,125 @@ public class MVCCTransactionEngine extends TransactionEngineBase {
                     throw new AssertionError();
                 }
 
+                checkpoint(false);
+
+                if (isClosed)
+                    break;
+            }
+        }
+
+        /**
+         * 增量检查点: 只保存有修改的map，map之间暂停一下以免集中的写操作影响前台事务，
+         * 保存完后写入检查点并删除检查点之前的日志文件。
+         *
+         * @param force 是否保存所有有修改的map
+         */
+        private void checkpoint(boolean force) {
+            // 后台线程和checkpoint()可能同时调用
+            synchronized (checkpointLock) {
                 long now = System.currentTimeMillis();
+                boolean periodExpired = lastSavedAt + mapSavePeriod <= now;
 
-                if (redoLog.getLastSyncKey() != null)
-                    checkpoint = redoLog.getLastSyncKey();
+                // 在保存map之前取得已经同步的日志位置，
+                // 并等待这个位置之前的事务都提交完成，这样它们的修改都会被保存
+                long checkpoint = redoLog.getLastSyncedPosition();
+                waitForCommittingTransactions();
+                // 保存到文件中的值不能带有已提交事务的ID，重启后就不知道这些事务的状态了
+                cleanCommittedTransactions();
 
-                boolean writeCheckpoint = false;
+                boolean saved = false;
+                boolean allSaved = true; // 检查点之前有修改的map是否都保存了
                 for (Entry<String, Integer> e : estimatedMemory.entrySet()) {
-                    if (isClosed || e.getValue() > mapCacheSize || lastSavedAt + mapCacheSize > now) {
-                        maps.get(e.getKey()).save();
-                        writeCheckpoint = true;
+                    int memory = e.getValue();
+                    if (memory <= 0)
+                        continue;
+                    if (force || isClosed || periodExpired || memory > mapCacheSize) {
+                        StorageMap<Object, VersionedValue> map = maps.get(e.getKey());
+                        // 关闭的map保存的值可能还带有事务ID，要保留它的日志
+                        if (map == null || map.isClosed()) {
+                            allSaved = false;
+                            continue;
+                        }
+                        if (saved && mapSaveThrottle > 0 && !isClosed) {
+                            try {
+                                Thread.sleep(mapSaveThrottle);
+                            } catch (InterruptedException ex) {
+                                // ignore
+                            }
+                        }
+                        // 保存期间的新修改算到下一轮
+                        estimatedMemory.put(e.getKey(), 0);
+                        map.save();
+                        saved = true;
+                    } else {
+                        allSaved = false;
                     }
                 }
-                if (lastSavedAt + mapCacheSize > now)
+                if (periodExpired)
                     lastSavedAt = now;
 
-                if (writeCheckpoint && checkpoint != null) {
+                // 检查点之前的日志都不再需要了，还没有打开的map要重做的日志先复制到检查点之后，
+                // 检查点记录同步到硬盘后才能删除之前的日志文件
+                if (saved && allSaved) {
+                    recovery.carryForward(redoLog, checkpoint);
                     redoLog.put(checkpoint, new RedoLogValue(checkpoint));
-                    logStorage.logSyncService.maybeWaitForSync(redoLog, redoLog.getLastSyncKey());
+                    redoLog.removeChunksBefore(checkpoint);
                 }
+            }
+        }
+
+        private void waitForCommittingTransactions() {
+            ArrayList<MVCCTransaction> list = new ArrayList<>(committingTransactions);
+            for (MVCCTransaction t : list) {
+                while (committingTransactions.contains(t)) {
+                    try {
+                        Thread.sleep(1);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Cleans the ids of the committed transactions from the maps,
+     * and drops the old versions that are not visible to the open transactions.
+     */
+    private class VersionGcService extends Thread {
+        private volatile boolean isClosed;
+        private final Semaphore semaphore = new Semaphore(0);
+        private final int sleep;
+
+        VersionGcService(int sleep) {
+            super("VersionGcService");
+            this.sleep = sleep;
+            setDaemon(true);
+        }
+
+        // 不能用interrupt，清除事务ID时可能正在读文件，中断会导致FileChannel被关闭
+        void close() {
+            isClosed = true;
+            semaphore.release();
+        }
 
+        void wakeUp() {
+            semaphore.release();
+        }
+
+        @Override
+        public void run() {
+            while (!isClosed) {
+                try {
+                    semaphore.tryAcquire(sleep, TimeUnit.MILLISECONDS);
+                    semaphore.drainPermits();
+                } catch (InterruptedException e) {
+                    break;
+                }
                 if (isClosed)
                     break;
+                cleanCommittedTransactions();
+                versionStore.gc(getOldestSnapshot());
             }
         }
     }
@@ -175,6 +295,10 @@ public class MVCCTransactionEngine extends TransactionEngineBase {
         if (v != null)
             mapSavePeriod = Integer.parseInt(v);
 
+        v = config.get("map_save_throttle");
+        if (v != null)
+            mapSaveThrottle = Integer.parseInt(v);
+
         int sleep = 1 * 60 * 1000;// 1分钟
         v = config.get("map_save_service_sleep_interval");
         if (v != null)
@@ -183,66 +307,168 @@ public class MVCCTransactionEngine extends TransactionEngineBase {
         if (mapSavePeriod < sleep)
             sleep = mapSavePeriod;
 
+        int recoveryThreads = Runtime.getRuntime().availableProcessors();
+        v = config.get("recovery_threads");
+        if (v != null)
+            recoveryThreads = Integer.parseInt(v);
+        recovery = new RedoLogRecovery(recoveryThreads);
+
+        int versionGcInterval = DEFAULT_VERSION_GC_INTERVAL;
+        v = config.get("version_gc_interval");
+        if (v != null)
+            versionGcInterval = Integer.parseInt(v);
+
         logStorage = new LogStorage(config);
 
         // 不使用ObjectDataType，因为ObjectDataType需要自动侦测，会有一些开销
         redoLog = logStorage.openLogMap("redoLog", new RedoLogKeyType(), new RedoLogValueType());
         initPendingRedoLog();
 
-        Long key = redoLog.lastKey();
-        if (key != null)
-            lastTransactionId.set(key);
-
         storageMapSaveService = new StorageMapSaveService(sleep);
         storageMapSaveService.start();
+
+        versionGcService = new VersionGcService(versionGcInterval);
+        versionGcService.start();
     }
 
     private void initPendingRedoLog() {
-        Long checkpoint = null;
-        for (Entry<Long, RedoLogValue> e : redoLog.entrySet()) {
-            if (e.getValue().checkpoint != null)
-                checkpoint = e.getValue().checkpoint;
-        }
-
-        StorageMapCursor<Long, RedoLogValue> cursor = redoLog.cursor(checkpoint);
+        // 第一遍找出最后一个检查点和最大的事务ID，日志是流式读取的，不会一次性读入整个文件
+        long checkpoint = 0;
+        long lastTransactionId = 0;
+        StorageMapCursor<Long, RedoLogValue> cursor = redoLog.cursor(0);
         while (cursor.hasNext()) {
-            cursor.next();
+            Long key = cursor.next();
             RedoLogValue v = cursor.getValue();
-            ByteBuffer buff = v.values;
-            while (buff.hasRemaining()) {
-                String mapName = StringDataType.INSTANCE.read(buff);
-
-                ArrayList<ByteBuffer> logs = pendingRedoLog.get(mapName);
-                if (logs == null) {
-                    logs = new ArrayList<>();
-                    pendingRedoLog.put(mapName, logs);
-                }
-                int len = buff.getInt();
-                byte[] keyValue = new byte[len];
-                buff.get(keyValue);
-                logs.add(ByteBuffer.wrap(keyValue));
-            }
+            if (v.checkpoint != null)
+                checkpoint = v.checkpoint;
+            else if (key > lastTransactionId)
+                lastTransactionId = key;
         }
+        this.lastTransactionId.set(lastTransactionId);
+
+        // 第二遍从检查点开始，在fork-join池中找出每个map的记录的位置
+        recovery.scan(redoLog.cursor(checkpoint));
     }
 
-    @SuppressWarnings("unchecked")
     <K> void redo(StorageMap<K, VersionedValue> map) {
-        ArrayList<ByteBuffer> logs = pendingRedoLog.remove(map.getName());
-        if (logs != null) {
-            K key;
-            Object value;
-            DataType kt = map.getKeyType();
-            DataType vt = ((VersionedValueType) map.getValueType()).valueType;
-            for (ByteBuffer log : logs) {
-                key = (K) kt.read(log);
-                if (log.get() == 0)
-                    map.remove(key);
-                else {
-                    value = vt.read(log);
-                    map.put(key, new VersionedValue(value));
-                }
-            }
+        int memory = recovery.redo(map, redoLog);
+        // 重做的修改还没有保存，下一个检查点要保存这个map
+        if (memory > 0)
+            estimatedMemory.put(map.getName(), memory);
+    }
+
+    /**
+     * Save all the changed maps and write a checkpoint at once,
+     * then remove the log files that are only needed before the checkpoint.
+     */
+    public void checkpoint() {
+        storageMapSaveService.checkpoint(true);
+    }
+
+    /**
+     * The time in milliseconds used to read and scan the redo log when the engine starts.
+     *
+     * @return the time in milliseconds
+     */
+    public long getRecoveryTimeMillis() {
+        return recovery.getScanTimeMillis();
+    }
+
+    /**
+     * The number of maps that have redo log records when the engine starts.
+     *
+     * @return the number of maps
+     */
+    public int getRecoveryMapCount() {
+        return recovery.getMapCount();
+    }
+
+    /**
+     * The number of redo log records that have not been applied, they are applied when the maps are opened.
+     *
+     * @return the number of records
+     */
+    public long getPendingRedoLogRecordCount() {
+        return recovery.getPendingRecordCount();
+    }
+
+    public long getReplayedRedoLogRecordCount() {
+        return recovery.getReplayedRecordCount();
+    }
+
+    public long getReplayTimeMillis() {
+        return recovery.getReplayTimeMillis();
+    }
+
+    /**
+     * The number of changes of the maps that had not been opened, which were copied to the end of the log by
+     * the checkpoints.
+     *
+     * @return the number of changes
+     */
+    public long getCarriedRedoLogRecordCount() {
+        return recovery.getCarriedRecordCount();
+    }
+
+    /**
+     * The number of times a transaction waited for a row lock held by another transaction.
+     *
+     * @return the number of waits
+     */
+    public long getLockWaitCount() {
+        return lockWaitCount.get();
+    }
+
+    public long getLockWaitTimeMillis() {
+        return lockWaitTimeNanos.get() / 1000000;
+    }
+
+    public long getDeadlockCount() {
+        return deadlockCount.get();
+    }
+
+    /**
+     * The number of keys that still have old versions for the open snapshots.
+     *
+     * @return the number of keys
+     */
+    public int getVersionChainCount() {
+        return versionStore.size();
+    }
+
+    public long getAddedVersionCount() {
+        return versionStore.getVersionCount();
+    }
+
+    public long getRemovedVersionCount() {
+        return versionStore.getRemovedVersionCount();
+    }
+
+    /**
+     * The number of committed transactions whose ids have not been cleaned from the maps yet.
+     *
+     * @return the number of transactions
+     */
+    public int getUncleanedTransactionCount() {
+        return committedTransactions.size();
+    }
+
+    public long getCleanedTransactionCount() {
+        return cleanedTransactionCount.get();
+    }
+
+    long getLastCommitTimestamp() {
+        return lastCommitTimestamp.get();
+    }
+
+    // 最老的活跃事务的快照，提交时间不大于它的旧版本都不再需要了
+    long getOldestSnapshot() {
+        long min = lastCommitTimestamp.get();
+        for (MVCCTransaction t : currentTransactions.values()) {
+            if (t.startTimestamp < min)
+                min = t.startTimestamp;
         }
+        return min;
     }
 
     @Override
@@ -254,12 +480,14 @@ public class MVCCTransactionEngine extends TransactionEngineBase {
         MVCCTransaction t = new MVCCTransaction(this, tid);
         t.setAutoCommit(autoCommit);
         currentTransactions.put(tid, t);
+        // 先登记再取快照，这样提交的事务总能看到比它早开始的事务，不会漏掉要保留的旧版本
+        t.startTimestamp = lastCommitTimestamp.get();
         return t;
     }
 
     @Override
     public void close() {
-        logStorage.close();
+        // 最后一个检查点还要写日志，所以先停止保存map的线程再关闭日志
         if (storageMapSaveService != null) {
             storageMapSaveService.close();
             try {
@@ -267,6 +495,11 @@ public class MVCCTransactionEngine extends TransactionEngineBase {
             } catch (InterruptedException e) {
             }
         }
+        if (versionGcService != null)
+            versionGcService.close();
+        if (recovery != null)
+            recovery.close();
+        logStorage.close();
     }
 
     private long getTransactionId(boolean autoCommit) {
@@ -299,38 +532,100 @@ public class MVCCTransactionEngine extends TransactionEngineBase {
     }
 
     void commit(MVCCTransaction t, RedoLogValue v) {
-        // 先写redoLog
-        redoLog.put(t.transactionId, v);
-        logStorage.logSyncService.maybeWaitForSync(redoLog, t.transactionId);
-
-        commitFinal(t.transactionId);
+        // 要在写redoLog之前登记，检查点要等待已经写了redoLog的事务提交完成
+        committingTransactions.add(t);
+        try {
+            // 先写redoLog，并发提交的事务的日志由LogSyncService合并成一次写和一次sync
+            long logSequence = redoLog.append(t.transactionId, v);
+            logStorage.logSyncService.maybeWaitForSync(redoLog, logSequence);
+
+            commitFinal(t.transactionId);
+        } finally {
+            committingTransactions.remove(t);
+        }
     }
 
     private void commitFinal(long tid) {
-        // 避免并发提交(TransactionValidator线程和其他读写线程都有可能在检查到分布式事务有效后帮助提交最终事务)
-        MVCCTransaction t = currentTransactions.remove(tid);
+        // 事务要留在currentTransactions中直到修改都应用到map，读者还需要通过它找到提交时间和undo log
+        MVCCTransaction t = currentTransactions.get(tid);
         if (t == null)
             return;
-        LinkedList<LogRecord> logRecords = t.logRecords;
-        StorageMap<Object, VersionedValue> map;
-        for (LogRecord r : logRecords) {
-            map = getMap(r.mapName);
-            if (map == null) {
-                // map was later removed
-            } else {
+        long commitTimestamp;
+        // 避免并发提交(TransactionValidator线程和其他读写线程都有可能在检查到分布式事务有效后帮助提交最终事务)
+        synchronized (t) {
+            if (t.getCommitTimestamp() != 0)
+                return;
+            commitTimestamp = nextCommitTimestamp(t);
+        }
+        // 提交时不再重写map中的每个值，只要登记事务已经提交，读者就能知道带有这个事务ID的值是已提交的，
+        // map中的事务ID由后台线程清除
+        if (hasOlderSnapshot(t, commitTimestamp)) {
+            UndoLog undoLog = t.undoLog;
+            for (int i = 0, size = undoLog.size(); i < size; i++) {
+                LogRecord r = undoLog.get(i);
+                StorageMap<Object, VersionedValue> map = getMap(r.mapName);
+                // 只保留事务第一次修改这个key之前的已提交值，要在登记事务已经提交之前加入
+                if (map != null && (r.oldValue == null || r.oldValue.tid != tid))
+                    versionStore.add(r.mapName, map.getKeyType(), r.key, commitTimestamp, r.oldValue);
+            }
+        }
+        committedTransactions.put(tid, t);
+        t.endTransaction();
+        if (committedTransactions.size() >= CLEAN_THRESHOLD && versionGcService != null)
+            versionGcService.wakeUp();
+    }
+
+    /**
+     * Replace the values that still carry the id of a committed transaction with plain committed values.
+     * After that the transaction is forgotten and its undo log is released.
+     *
+     * @return the number of cleaned transactions
+     */
+    synchronized int cleanCommittedTransactions() {
+        int count = 0;
+        for (MVCCTransaction t : committedTransactions.values()) {
+            UndoLog undoLog = t.undoLog;
+            for (int i = 0, size = undoLog.size(); i < size; i++) {
+                LogRecord r = undoLog.get(i);
+                StorageMap<Object, VersionedValue> map = getMap(r.mapName);
+                // map was later removed, 或者数据库关闭时已经关闭了map，重启后重做日志时会清除事务ID
+                if (map == null || map.isClosed())
+                    continue;
                 VersionedValue value = map.get(r.key);
-                if (value == null) {
-                    // nothing to do
-                } else if (value.value == null) {
-                    // remove the value
-                    map.remove(r.key);
-                } else {
-                    map.put(r.key, new VersionedValue(value.value));
-                }
+                // 已经清除了，或者已经被其他事务修改了
+                if (value == null || value.tid != t.transactionId)
+                    continue;
+                // 只在值没有被其他事务修改时才替换
+                if (value.value == null)
+                    map.remove(r.key, value);
+                else
+                    map.replace(r.key, value, new VersionedValue(value.value));
             }
+            committedTransactions.remove(t.transactionId);
+            t.undoLog = null;
+            count++;
         }
+        cleanedTransactionCount.addAndGet(count);
+        return count;
+    }
 
-        t.endTransaction();
+    // 先设置事务的提交时间再发布，取到新时间作为快照的读者一定能看到这个事务的提交时间
+    // 不能用CAS重试，否则读者可能看到一个还没有发布成功的提交时间
+    private long nextCommitTimestamp(MVCCTransaction t) {
+        synchronized (lastCommitTimestamp) {
+            long commitTimestamp = lastCommitTimestamp.get() + 1;
+            t.setCommitTimestamp(commitTimestamp);
+            lastCommitTimestamp.set(commitTimestamp);
+            return commitTimestamp;
+        }
+    }
+
+    private boolean hasOlderSnapshot(MVCCTransaction t, long commitTimestamp) {
+        for (MVCCTransaction other : currentTransactions.values()) {
+            if (other != t && other.startTimestamp < commitTimestamp)
+                return true;
+        }
+        return false;
     }
 
     RedoLogValue getRedoLog(MVCCTransaction t) {
@@ -341,10 +636,15 @@ public class MVCCTransactionEngine extends TransactionEngineBase {
         StorageMap<?, ?> map;
         int lastPosition = 0, keyValueStart, memory;
 
-        for (LogRecord r : t.logRecords) {
+        UndoLog undoLog = t.undoLog;
+        for (int i = 0, size = undoLog.size(); i < size; i++) {
+            LogRecord r = undoLog.get(i);
             mapName = r.mapName;
             value = r.newValue;
             map = maps.get(mapName);
+            // 事务中创建又删除的map(比如临时结果集用的表)不需要写redo log
+            if (map == null)
+                continue;
 
             StringDataType.INSTANCE.write(writeBuffer, mapName);
             keyValueStart = writeBuffer.position();
@@ -367,7 +667,7 @@ public class MVCCTransactionEngine extends TransactionEngineBase {
 
         ByteBuffer buffer = writeBuffer.getBuffer();
         buffer.flip();
-        ByteBuffer values = ByteBuffer.allocateDirect(buffer.limit());
+        ByteBuffer values = ByteBuffer.allocate(buffer.limit());
         values.put(buffer);
         values.flip();
 
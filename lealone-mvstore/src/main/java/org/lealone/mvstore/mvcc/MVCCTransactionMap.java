@@ -8,12 +8,14 @@ package org.lealone.mvstore.mvcc;
 import java.io.IOException;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
+import java.util.AbstractMap;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentSkipListMap;
 
 import org.lealone.common.util.DataUtils;
 import org.lealone.mvstore.mvcc.MVCCTransaction.LogRecord;
+import org.lealone.mvstore.mvcc.VersionStore.Version;
 import org.lealone.storage.StorageMap;
 import org.lealone.storage.StorageMapCursor;
 import org.lealone.storage.type.DataType;
@@ -76,31 +78,44 @@ public class MVCCTransactionMap<K, V> implements TransactionMap<K, V> {
     }
 
     /**
-     * Get the versioned value for the given key.
+     * Get the versioned value for the given key as seen by the snapshot of this transaction.
      *
      * @param key the key
      * @param data the value stored in the main map
      * @return the value
      */
     private VersionedValue getValue(K key, VersionedValue data) {
+        long snapshot = transaction.startTimestamp;
         while (true) {
-            if (data == null) {
-                // doesn't exist or deleted by a committed transaction
-                return null;
+            if (data == null || data.tid == 0) {
+                // committed, or doesn't exist or deleted by a committed transaction,
+                // the value might be replaced after the snapshot was taken
+                return VersionStore.get(getVersions(), key, data, snapshot);
             }
             long tid = data.tid;
-            if (tid == 0) {
-                // it is committed
-                return data;
-            }
             if (tid == transaction.transactionId) {
                 return data;
             }
 
+            MVCCTransaction t = transaction.transactionEngine.currentTransactions.get(tid);
+            if (t == null) {
+                if (transaction.transactionEngine.committedTransactions.containsKey(tid)) {
+                    // 已经提交了，只是map中的事务ID还没有被清除，快照之后提交的修改之前的值在旧版本中
+                    return VersionStore.get(getVersions(), key, data, snapshot);
+                }
+            } else {
+                long commitTimestamp = t.getCommitTimestamp();
+                if (commitTimestamp != 0 && commitTimestamp <= snapshot) {
+                    // 事务在快照之前已经提交了，只是还没有结束
+                    return data;
+                }
+            }
+
             // get the value before the uncommitted transaction
-            LinkedList<LogRecord> d = transaction.transactionEngine.currentTransactions.get(tid).logRecords;
+            UndoLog d = t == null ? null : t.undoLog;
+            LogRecord r = d == null ? null : d.get(data.logId);
 
-            if (d == null) {
+            if (r == null) {
                 // this entry should be committed or rolled back
                 // in the meantime (the transaction might still be open)
                 // or it might be changed again in a different
@@ -112,7 +127,6 @@ public class MVCCTransactionMap<K, V> implements TransactionMap<K, V> {
                             "The transaction log might be corrupt for key {0}", key);
                 }
             } else {
-                LogRecord r = d.get(data.logId);
                 data = r.oldValue;
             }
         }
@@ -142,6 +156,19 @@ public class MVCCTransactionMap<K, V> implements TransactionMap<K, V> {
         if (ok) {
             return old;
         }
+        // 记下持有行锁的事务，调用者可以等它结束后再重试
+        VersionedValue current = map.get(key);
+        boolean committed = isCommitted(current);
+        if (!committed && current.tid != transaction.transactionId) {
+            MVCCTransaction owner = transaction.transactionEngine.currentTransactions.get(current.tid);
+            if (owner != null)
+                transaction.setLockOwner(owner);
+        } else if (committed && !transaction.isAutoCommit() && isChangedAfterSnapshot(key)) {
+            // 自动提交的事务在调用者重试语句时会换一个新的快照，见MVCCTransaction.waitForLockRelease
+            throw DataUtils.newIllegalStateException(DataUtils.ERROR_TRANSACTION_WRITE_CONFLICT,
+                    "Entry was changed by a transaction that committed after transaction {0} started",
+                    transaction.transactionId);
+        }
         throw DataUtils.newIllegalStateException(DataUtils.ERROR_TRANSACTION_LOCKED, "Entry is locked");
     }
 
@@ -185,6 +212,11 @@ public class MVCCTransactionMap<K, V> implements TransactionMap<K, V> {
      */
     public boolean trySet(K key, V value) {
         VersionedValue current = map.get(key);
+        boolean committed = isCommitted(current);
+        if (committed && isChangedAfterSnapshot(key)) {
+            // 快照之后有其他事务提交了对这个key的修改，不能覆盖它
+            return false;
+        }
         VersionedValue newValue = new VersionedValue(transaction.transactionId, transaction.logId, value);
 
         String mapName = getName();
@@ -199,9 +231,10 @@ public class MVCCTransactionMap<K, V> implements TransactionMap<K, V> {
             return true;
         }
         long tid = current.tid;
-        if (tid == 0) {
-            // committed
-            transaction.log(mapName, key, current, newValue);
+        if (committed) {
+            // committed, the id of the committed transaction might not be cleaned yet,
+            // only the value is kept in the undo log
+            transaction.log(mapName, key, tid == 0 ? current : new VersionedValue(current.value), newValue);
             // the transaction is committed:
             // overwrite the value
             if (!map.replace(key, current, newValue)) {
@@ -227,6 +260,31 @@ public class MVCCTransactionMap<K, V> implements TransactionMap<K, V> {
         return false;
     }
 
+    // 事务已经提交，但是后台线程还没有清除map中的事务ID时，也当成已经提交的值
+    private boolean isCommitted(VersionedValue current) {
+        return current == null || current.tid == 0
+                || transaction.transactionEngine.committedTransactions.containsKey(current.tid);
+    }
+
+    private boolean isChangedAfterSnapshot(K key) {
+        return transaction.transactionEngine.versionStore.getLastCommitTimestamp(getName(),
+                key) > transaction.startTimestamp;
+    }
+
+    private ConcurrentSkipListMap<Object, Version> getVersions() {
+        return transaction.transactionEngine.versionStore.getVersions(getName());
+    }
+
+    // 快照之后被删除的key只在旧版本中还有，遍历时要和map中的key合并，
+    // 包含未提交记录的遍历只关心map中当前的key
+    private StorageMapCursor<K, VersionedValue> openCursor(K from, boolean raw) {
+        StorageMapCursor<K, VersionedValue> cursor = map.cursor(from);
+        ConcurrentSkipListMap<Object, Version> versions = raw ? null : getVersions();
+        if (versions == null)
+            return cursor;
+        return VersionStore.merge(cursor, versions, map.getKeyType(), from);
+    }
+
     @Override
     public V putIfAbsent(K key, V value) {
         V v = get(key);
@@ -249,6 +307,16 @@ public class MVCCTransactionMap<K, V> implements TransactionMap<K, V> {
         return set(key, null);
     }
 
+    @Override
+    public boolean remove(K key, V value) {
+        V old = get(key);
+        if (areValuesEqual(old, value)) {
+            remove(key);
+            return true;
+        }
+        return false;
+    }
+
     @Override
     public boolean replace(K key, V oldValue, V newValue) {
         V old = get(key);
@@ -277,7 +345,7 @@ public class MVCCTransactionMap<K, V> implements TransactionMap<K, V> {
      */
     @Override
     public K lastKey() {
-        K k = map.lastKey();
+        K k = max(map.lastKey(), lastVersionKey());
         while (true) {
             if (k == null) {
                 return null;
@@ -285,7 +353,7 @@ public class MVCCTransactionMap<K, V> implements TransactionMap<K, V> {
             if (get(k) != null) {
                 return k;
             }
-            k = map.lowerKey(k);
+            k = lower(k, false);
         }
     }
 
@@ -299,7 +367,7 @@ public class MVCCTransactionMap<K, V> implements TransactionMap<K, V> {
     @Override
     public K lowerKey(K key) {
         while (true) {
-            K k = map.lowerKey(key);
+            K k = lower(key, false);
             if (k == null || get(k) != null) {
                 return k;
             }
@@ -309,12 +377,12 @@ public class MVCCTransactionMap<K, V> implements TransactionMap<K, V> {
 
     @Override
     public K floorKey(K key) {
+        K k = lower(key, true);
         while (true) {
-            K k = map.floorKey(key);
             if (k == null || get(k) != null) {
                 return k;
             }
-            key = k;
+            k = lower(k, false);
         }
     }
 
@@ -341,13 +409,31 @@ public class MVCCTransactionMap<K, V> implements TransactionMap<K, V> {
 
     @Override
     public K ceilingKey(K key) {
-        while (true) {
-            K k = map.ceilingKey(key);
-            if (k == null || get(k) != null) {
-                return k;
-            }
-            key = k;
-        }
+        Iterator<K> it = keyIterator(key);
+        return it.hasNext() ? it.next() : null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private K lastVersionKey() {
+        ConcurrentSkipListMap<Object, Version> versions = getVersions();
+        return versions == null ? null : (K) versions.lastKey();
+    }
+
+    @SuppressWarnings("unchecked")
+    private K lower(K key, boolean inclusive) {
+        K k = inclusive ? map.floorKey(key) : map.lowerKey(key);
+        ConcurrentSkipListMap<Object, Version> versions = getVersions();
+        if (versions == null)
+            return k;
+        return max(k, (K) (inclusive ? versions.floorKey(key) : versions.lowerKey(key)));
+    }
+
+    private K max(K a, K b) {
+        if (a == null)
+            return b;
+        if (b == null)
+            return a;
+        return map.getKeyType().compare(a, b) >= 0 ? a : b;
     }
 
     @Override
@@ -371,16 +457,21 @@ public class MVCCTransactionMap<K, V> implements TransactionMap<K, V> {
         long sizeRaw = map.sizeAsLong();
         long undoLogSize = 0;
         for (MVCCTransaction t : transaction.transactionEngine.currentTransactions.values()) {
-            undoLogSize += t.logRecords.size();
+            UndoLog undoLog = t.undoLog;
+            if (undoLog != null)
+                undoLogSize += undoLog.size();
         }
-        if (undoLogSize == 0) {
+        // 已提交但是还没有清除事务ID的删除操作会在map中留下值为null的记录
+        boolean hasHiddenEntries = getVersions() != null
+                || !transaction.transactionEngine.committedTransactions.isEmpty();
+        if (undoLogSize == 0 && !hasHiddenEntries) {
             return sizeRaw;
         }
-        if (undoLogSize > sizeRaw) {
-            // the undo log is larger than the map -
+        if (undoLogSize > sizeRaw || hasHiddenEntries) {
+            // the undo log is larger than the map, or there are old versions or uncleaned entries -
             // count the entries of the map
             long size = 0;
-            StorageMapCursor<K, VersionedValue> cursor = map.cursor(null);
+            StorageMapCursor<K, VersionedValue> cursor = openCursor(null, false);
             while (cursor.hasNext()) {
                 K key = cursor.next();
                 VersionedValue data = cursor.getValue();
@@ -399,8 +490,13 @@ public class MVCCTransactionMap<K, V> implements TransactionMap<K, V> {
         StorageMap<Object, Integer> temp = transaction.transactionEngine.logStorage.createTempMap();
         try {
             for (MVCCTransaction t : transaction.transactionEngine.currentTransactions.values()) {
-                LinkedList<LogRecord> records = t.logRecords;
-                for (LogRecord r : records) {
+                UndoLog undoLog = t.undoLog;
+                if (undoLog == null)
+                    continue;
+                for (int i = 0, n = undoLog.size(); i < n; i++) {
+                    LogRecord r = undoLog.get(i);
+                    if (r == null)
+                        continue;
                     String m = r.mapName;
                     if (!mapName.equals(m)) {
                         // a different map - ignore
@@ -486,6 +582,7 @@ public class MVCCTransactionMap<K, V> implements TransactionMap<K, V> {
     public void clear() {
         // TODO truncate transactionally?
         map.clear();
+        transaction.transactionEngine.versionStore.removeMap(getName());
     }
 
     @Override
@@ -561,6 +658,34 @@ public class MVCCTransactionMap<K, V> implements TransactionMap<K, V> {
         return (V) (oldValue == null ? null : oldValue.value);
     }
 
+    /**
+     * Add the entries of a sorted stream as committed values, without adding undo log entries (like putCommitted).
+     *
+     * @param entries the entries, the keys in ascending order and without duplicates
+     */
+    @Override
+    public void bulkLoad(final Iterator<? extends Entry<K, V>> entries) {
+        map.bulkLoad(new Iterator<Entry<K, VersionedValue>>() {
+            @Override
+            public boolean hasNext() {
+                return entries.hasNext();
+            }
+
+            @Override
+            public Entry<K, VersionedValue> next() {
+                Entry<K, V> e = entries.next();
+                DataUtils.checkArgument(e.getValue() != null, "The value may not be null");
+                return new AbstractMap.SimpleImmutableEntry<K, VersionedValue>(e.getKey(),
+                        new VersionedValue(e.getValue()));
+            }
+
+            @Override
+            public void remove() {
+                throw DataUtils.newUnsupportedOperationException("Removing is not supported");
+            }
+        });
+    }
+
     /**
      * Whether the entry for this key was added or removed from this
      * session.
@@ -590,7 +715,7 @@ public class MVCCTransactionMap<K, V> implements TransactionMap<K, V> {
         return new Iterator<Entry<K, V>>() {
             private Entry<K, V> current;
             private K currentKey = from;
-            private StorageMapCursor<K, VersionedValue> cursor = map.cursor(currentKey);
+            private StorageMapCursor<K, VersionedValue> cursor = openCursor(currentKey, false);
 
             {
                 fetchNext();
@@ -604,7 +729,7 @@ public class MVCCTransactionMap<K, V> implements TransactionMap<K, V> {
                     } catch (IllegalStateException e) {
                         // TODO this is a bit ugly
                         if (DataUtils.getErrorCode(e.getMessage()) == DataUtils.ERROR_CHUNK_NOT_FOUND) {
-                            cursor = map.cursor(currentKey);
+                            cursor = openCursor(currentKey, false);
                             // we (should) get the current key again,
                             // we need to ignore that one
                             if (!cursor.hasNext()) {
@@ -677,7 +802,7 @@ public class MVCCTransactionMap<K, V> implements TransactionMap<K, V> {
     public Iterator<K> keyIterator(final K from, final boolean includeUncommitted) {
         return new Iterator<K>() {
             private K currentKey = from;
-            private StorageMapCursor<K, VersionedValue> cursor = map.cursor(currentKey);
+            private StorageMapCursor<K, VersionedValue> cursor = openCursor(currentKey, includeUncommitted);
 
             {
                 fetchNext();
@@ -691,7 +816,7 @@ public class MVCCTransactionMap<K, V> implements TransactionMap<K, V> {
                     } catch (IllegalStateException e) {
                         // TODO this is a bit ugly
                         if (DataUtils.getErrorCode(e.getMessage()) == DataUtils.ERROR_CHUNK_NOT_FOUND) {
-                            cursor = map.cursor(currentKey);
+                            cursor = openCursor(currentKey, includeUncommitted);
                             // we (should) get the current key again,
                             // we need to ignore that one
                             if (!cursor.hasNext()) {
@@ -0,0 +1,504 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.mvstore.mvcc;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map.Entry;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.lealone.mvstore.mvcc.log.LogMap;
+import org.lealone.mvstore.mvcc.log.LogMap.LogMapCursor;
+import org.lealone.mvstore.mvcc.log.LogMap.LogMapReader;
+import org.lealone.mvstore.mvcc.log.RedoLogValue;
+import org.lealone.storage.StorageMap;
+import org.lealone.storage.type.DataType;
+import org.lealone.storage.type.StringDataType;
+import org.lealone.storage.type.WriteBuffer;
+import org.lealone.storage.type.WriteBufferPool;
+
+/**
+ * Recovers the redo log records written after the last checkpoint on a fork-join pool.
+ *
+ * When the engine starts, the records are read sequentially from the log files in batches,
+ * each batch is scanned on the pool while the next batch is being read. Only the positions of the records
+ * that contain changes of a map are kept in memory, the records are read again from the log files
+ * when the map is replayed.
+ *
+ * The maps are opened lazily by the storage engines, only then their key and value types are known.
+ * When a map is opened its records are read and decoded in parallel, then the changes are applied
+ * in parallel by partitions of the keys, the changes of the same key are applied in the log order.
+ *
+ * The records of the maps that have not been opened when a checkpoint is written are copied
+ * to the end of the log, so they never prevent the log files before the checkpoint from being removed.
+ * When a map is removed a record is written, the records of the map before it are never replayed or copied.
+ *
+ * @author zhh
+ */
+class RedoLogRecovery {
+
+    private static final int BATCH_SIZE = 1024; // 每个扫描任务处理的事务日志记录数
+    private static final int REPLAY_BATCH_SIZE = 64 * 1024; // 重做时一次读入内存的事务日志记录数
+    private static final int PARALLEL_THRESHOLD = 1024; // 记录数超过这个值时才并行读取和应用
+    private static final int CARRY_FORWARD_SIZE = 1024 * 1024; // 复制到日志末尾的一条记录的最大字节数
+    private static final int REMOVED = -1; // 删除map的记录用它代替key/value的长度
+
+    private final int parallelism;
+    private ForkJoinPool pool;
+
+    // key: mapName, value: 包含这个map的修改的事务日志记录的位置，按日志的顺序排列
+    private final HashMap<String, Positions> pendingRedoLog = new HashMap<>();
+
+    private final AtomicLong pendingRecordCount = new AtomicLong();
+    private final AtomicLong replayedRecordCount = new AtomicLong();
+    private final AtomicLong replayTimeNanos = new AtomicLong();
+    private final AtomicLong carriedRecordCount = new AtomicLong();
+    private volatile long scanTimeMillis;
+    private volatile int mapCount;
+
+    RedoLogRecovery(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    private synchronized ForkJoinPool getPool() {
+        if (pool == null)
+            pool = new ForkJoinPool(parallelism);
+        return pool;
+    }
+
+    /**
+     * Read the transaction log records and remember the positions of the records of each map.
+     *
+     * @param cursor the cursor that starts at the last checkpoint
+     */
+    synchronized void scan(LogMapCursor<Long, RedoLogValue> cursor) {
+        long start = System.currentTimeMillis();
+        ArrayDeque<ForkJoinTask<HashMap<String, Positions>>> tasks = new ArrayDeque<>();
+        long[] positions = new long[BATCH_SIZE];
+        ArrayList<ByteBuffer> batch = new ArrayList<>(BATCH_SIZE);
+        while (cursor.hasNext()) {
+            cursor.next();
+            RedoLogValue v = cursor.getValue();
+            if (v.checkpoint != null)
+                continue;
+            positions[batch.size()] = cursor.getPosition();
+            batch.add(v.values);
+            if (batch.size() >= BATCH_SIZE) {
+                tasks.add(getPool().submit(new ScanTask(positions, batch)));
+                positions = new long[BATCH_SIZE];
+                batch = new ArrayList<>(BATCH_SIZE);
+                // 按批次的顺序合并已经扫描完的批次，读入内存的批次数是有限的
+                while (tasks.size() > parallelism * 2)
+                    merge(tasks.poll().join());
+            }
+        }
+        if (!batch.isEmpty())
+            tasks.add(getPool().submit(new ScanTask(positions, batch)));
+        while (!tasks.isEmpty())
+            merge(tasks.poll().join());
+
+        mapCount = pendingRedoLog.size();
+        scanTimeMillis = System.currentTimeMillis() - start;
+        if (pendingRedoLog.isEmpty())
+            close();
+    }
+
+    private void merge(HashMap<String, Positions> partitions) {
+        for (Entry<String, Positions> e : partitions.entrySet()) {
+            Positions p = e.getValue();
+            // map在这个批次中被删除了，之前的批次中的记录都不用重做
+            if (p.removed)
+                removeMap(e.getKey());
+            if (p.size == 0)
+                continue;
+            Positions positions = pendingRedoLog.get(e.getKey());
+            if (positions == null)
+                pendingRedoLog.put(e.getKey(), p);
+            else
+                positions.addAll(p);
+            pendingRecordCount.addAndGet(p.entryCount);
+        }
+    }
+
+    /**
+     * Read the records of the map from the log files and apply them to the map.
+     *
+     * @param map the map
+     * @param redoLog the redo log
+     * @return the number of bytes of the records, 0 if the map has no records
+     */
+    synchronized <K> int redo(StorageMap<K, VersionedValue> map, LogMap<Long, RedoLogValue> redoLog) {
+        Positions positions = pendingRedoLog.remove(map.getName());
+        if (positions == null)
+            return 0;
+        long start = System.nanoTime();
+        DataType kt = map.getKeyType();
+        DataType vt = ((VersionedValueType) map.getValueType()).valueType;
+        int memory = 0;
+        for (int from = 0; from < positions.size; from += REPLAY_BATCH_SIZE) {
+            int to = Math.min(from + REPLAY_BATCH_SIZE, positions.size);
+            ReadTask task = new ReadTask(redoLog, map.getName(), kt, vt, positions.positions, from, to);
+            Changes changes = to - from > PARALLEL_THRESHOLD ? getPool().invoke(task) : task.compute();
+            apply(map, changes);
+            memory += changes.memory;
+        }
+        pendingRecordCount.addAndGet(-positions.entryCount);
+        replayedRecordCount.addAndGet(positions.entryCount);
+        replayTimeNanos.addAndGet(System.nanoTime() - start);
+        if (pendingRedoLog.isEmpty())
+            close();
+        return memory;
+    }
+
+    // 不同的key的修改互不影响，按key的哈希值分区并行应用，同一个key的修改在同一个分区中按日志的顺序应用
+    private <K> void apply(StorageMap<K, VersionedValue> map, Changes changes) {
+        if (changes.size <= PARALLEL_THRESHOLD || parallelism <= 1) {
+            new ApplyTask<>(map, changes, 0, 1).compute();
+            return;
+        }
+        ArrayList<ForkJoinTask<Void>> tasks = new ArrayList<>(parallelism);
+        for (int i = 0; i < parallelism; i++)
+            tasks.add(getPool().submit(new ApplyTask<>(map, changes, i, parallelism)));
+        for (ForkJoinTask<Void> task : tasks)
+            task.join();
+    }
+
+    /**
+     * Copy the records of the maps that have not been opened to the end of the log,
+     * after that the log files before the checkpoint are not needed by these maps any more.
+     *
+     * @param redoLog the redo log
+     * @param checkpoint the position of the checkpoint
+     */
+    synchronized void carryForward(LogMap<Long, RedoLogValue> redoLog, long checkpoint) {
+        for (Entry<String, Positions> e : pendingRedoLog.entrySet()) {
+            Positions positions = e.getValue();
+            if (positions.size == 0 || positions.positions[0] >= checkpoint)
+                continue;
+            String mapName = e.getKey();
+            Positions newPositions = new Positions();
+            newPositions.entryCount = positions.entryCount;
+            LogMapReader<Long, RedoLogValue> reader = redoLog.reader();
+            WriteBuffer buff = WriteBufferPool.poll();
+            try {
+                for (int i = 0; i < positions.size; i++) {
+                    ByteBuffer values = reader.read(positions.positions[i]).values;
+                    while (values.hasRemaining()) {
+                        String name = StringDataType.INSTANCE.read(values);
+                        int len = values.getInt();
+                        if (name.equals(mapName)) {
+                            ByteBuffer keyValue = values.slice();
+                            keyValue.limit(len);
+                            StringDataType.INSTANCE.write(buff, name);
+                            buff.putInt(len);
+                            buff.put(keyValue);
+                        }
+                        values.position(values.position() + len);
+                    }
+                    if (buff.position() >= CARRY_FORWARD_SIZE)
+                        newPositions.add(writeCarriedRecord(redoLog, buff));
+                }
+                if (buff.position() > 0)
+                    newPositions.add(writeCarriedRecord(redoLog, buff));
+            } finally {
+                WriteBufferPool.offer(buff);
+                reader.close();
+            }
+            e.setValue(newPositions);
+            carriedRecordCount.addAndGet(newPositions.entryCount);
+        }
+    }
+
+    // 复制的记录不属于任何事务，用0作为key
+    private static long writeCarriedRecord(LogMap<Long, RedoLogValue> redoLog, WriteBuffer buff) {
+        ByteBuffer buffer = buff.getBuffer();
+        buffer.flip();
+        ByteBuffer values = ByteBuffer.allocate(buffer.limit());
+        values.put(buffer);
+        values.flip();
+        buff.clear();
+        return redoLog.put(0L, new RedoLogValue(values));
+    }
+
+    /**
+     * Forget the records of a removed map.
+     *
+     * @param mapName the map name
+     * @return true if the map had records that were not replayed
+     */
+    synchronized boolean removeMap(String mapName) {
+        Positions positions = pendingRedoLog.remove(mapName);
+        if (positions == null)
+            return false;
+        pendingRecordCount.addAndGet(-positions.entryCount);
+        return true;
+    }
+
+    /**
+     * Create the record that is written to the redo log when a map is removed.
+     *
+     * @param mapName the map name
+     * @return the record
+     */
+    static RedoLogValue createRemoveRecord(String mapName) {
+        WriteBuffer buff = WriteBufferPool.poll();
+        try {
+            StringDataType.INSTANCE.write(buff, mapName);
+            buff.putInt(REMOVED);
+            ByteBuffer buffer = buff.getBuffer();
+            buffer.flip();
+            ByteBuffer values = ByteBuffer.allocate(buffer.limit());
+            values.put(buffer);
+            values.flip();
+            return new RedoLogValue(values);
+        } finally {
+            WriteBufferPool.offer(buff);
+        }
+    }
+
+    synchronized void close() {
+        if (pool != null) {
+            pool.shutdown();
+            pool = null;
+        }
+    }
+
+    long getPendingRecordCount() {
+        return pendingRecordCount.get();
+    }
+
+    long getReplayedRecordCount() {
+        return replayedRecordCount.get();
+    }
+
+    long getReplayTimeMillis() {
+        return replayTimeNanos.get() / 1000000;
+    }
+
+    long getCarriedRecordCount() {
+        return carriedRecordCount.get();
+    }
+
+    long getScanTimeMillis() {
+        return scanTimeMillis;
+    }
+
+    int getMapCount() {
+        return mapCount;
+    }
+
+    /**
+     * The positions of the transaction log records that contain changes of one map.
+     */
+    private static class Positions {
+        long[] positions = new long[8];
+        int size;
+        long entryCount; // 这个map的修改数，一条事务日志记录中可以有一个map的多个修改
+        boolean removed; // map在这些记录之前被删除了
+
+        void add(long position) {
+            if (size > 0 && positions[size - 1] == position)
+                return;
+            if (size == positions.length)
+                positions = Arrays.copyOf(positions, size * 2);
+            positions[size++] = position;
+        }
+
+        void addAll(Positions other) {
+            if (size + other.size > positions.length)
+                positions = Arrays.copyOf(positions, Math.max(size * 2, size + other.size));
+            System.arraycopy(other.positions, 0, positions, size, other.size);
+            size += other.size;
+            entryCount += other.entryCount;
+        }
+    }
+
+    private static class ScanTask extends RecursiveTask<HashMap<String, Positions>> {
+        private static final long serialVersionUID = 1L;
+        private final long[] positions;
+        private final ArrayList<ByteBuffer> batch;
+
+        ScanTask(long[] positions, ArrayList<ByteBuffer> batch) {
+            this.positions = positions;
+            this.batch = batch;
+        }
+
+        @Override
+        protected HashMap<String, Positions> compute() {
+            HashMap<String, Positions> partitions = new HashMap<>();
+            for (int i = 0, size = batch.size(); i < size; i++) {
+                ByteBuffer buff = batch.get(i);
+                while (buff.hasRemaining()) {
+                    String mapName = StringDataType.INSTANCE.read(buff);
+                    int len = buff.getInt();
+                    if (len == REMOVED) {
+                        // 丢弃这个批次中之前的记录，合并时再丢弃之前的批次中的记录
+                        Positions p = new Positions();
+                        p.removed = true;
+                        partitions.put(mapName, p);
+                        continue;
+                    }
+                    Positions p = partitions.get(mapName);
+                    if (p == null) {
+                        p = new Positions();
+                        partitions.put(mapName, p);
+                    }
+                    p.add(positions[i]);
+                    p.entryCount++;
+                    buff.position(buff.position() + len);
+                }
+            }
+            return partitions;
+        }
+    }
+
+    /**
+     * The decoded changes of a map in the log order.
+     */
+    private static class Changes {
+        Object[] keys = new Object[16];
+        Object[] values = new Object[16]; // null表示删除
+        int[] hashes = new int[16];
+        int size;
+        int memory;
+
+        void add(Object key, Object value, int hash) {
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, size * 2);
+                values = Arrays.copyOf(values, size * 2);
+                hashes = Arrays.copyOf(hashes, size * 2);
+            }
+            keys[size] = key;
+            values[size] = value;
+            hashes[size++] = hash;
+        }
+
+        void addAll(Changes other) {
+            for (int i = 0; i < other.size; i++)
+                add(other.keys[i], other.values[i], other.hashes[i]);
+            memory += other.memory;
+        }
+    }
+
+    /**
+     * Reads the records at the given positions from the log files and decodes the changes of one map.
+     */
+    private static class ReadTask extends RecursiveTask<Changes> {
+        private static final long serialVersionUID = 1L;
+        private final LogMap<Long, RedoLogValue> redoLog;
+        private final String mapName;
+        private final DataType kt;
+        private final DataType vt;
+        private final long[] positions;
+        private final int from;
+        private final int to;
+
+        ReadTask(LogMap<Long, RedoLogValue> redoLog, String mapName, DataType kt, DataType vt, long[] positions,
+                int from, int to) {
+            this.redoLog = redoLog;
+            this.mapName = mapName;
+            this.kt = kt;
+            this.vt = vt;
+            this.positions = positions;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Changes compute() {
+            if (to - from > PARALLEL_THRESHOLD) {
+                int mid = (from + to) >>> 1;
+                ReadTask right = new ReadTask(redoLog, mapName, kt, vt, positions, mid, to);
+                right.fork();
+                Changes changes = new ReadTask(redoLog, mapName, kt, vt, positions, from, mid).compute();
+                changes.addAll(right.join());
+                return changes;
+            }
+            Changes changes = new Changes();
+            LogMapReader<Long, RedoLogValue> reader = redoLog.reader();
+            try {
+                for (int i = from; i < to; i++) {
+                    ByteBuffer values = reader.read(positions[i]).values;
+                    while (values.hasRemaining()) {
+                        String name = StringDataType.INSTANCE.read(values);
+                        int len = values.getInt();
+                        int end = values.position() + len;
+                        if (name.equals(mapName)) {
+                            int keyStart = values.position();
+                            Object key = kt.read(values);
+                            int hash = hash(values, keyStart, values.position());
+                            Object value = values.get() != 0 ? vt.read(values) : null;
+                            changes.add(key, value, hash);
+                            changes.memory += len;
+                        }
+                        values.position(end);
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+            return changes;
+        }
+
+        // 同一个map的相同的key序列化后的字节是相同的
+        private static int hash(ByteBuffer buff, int start, int end) {
+            int h = 1;
+            for (int i = start; i < end; i++)
+                h = 31 * h + buff.get(i);
+            return h;
+        }
+    }
+
+    private static class ApplyTask<K> extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final StorageMap<K, VersionedValue> map;
+        private final Changes changes;
+        private final int partition;
+        private final int partitionCount;
+
+        ApplyTask(StorageMap<K, VersionedValue> map, Changes changes, int partition, int partitionCount) {
+            this.map = map;
+            this.changes = changes;
+            this.partition = partition;
+            this.partitionCount = partitionCount;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        protected void compute() {
+            Object[] keys = changes.keys;
+            Object[] values = changes.values;
+            int[] hashes = changes.hashes;
+            for (int i = 0, size = changes.size; i < size; i++) {
+                if ((hashes[i] & Integer.MAX_VALUE) % partitionCount != partition)
+                    continue;
+                if (values[i] == null)
+                    map.remove((K) keys[i]);
+                else
+                    map.put((K) keys[i], new VersionedValue(values[i]));
+            }
+        }
+    }
+}
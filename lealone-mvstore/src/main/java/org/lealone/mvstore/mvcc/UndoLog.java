@@ -0,0 +1,103 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.mvstore.mvcc;
+
+import org.lealone.mvstore.mvcc.MVCCTransaction.LogRecord;
+
+/**
+ * The undo log of a transaction, the log id of a record is its index.
+ *
+ * The records are stored in fixed-size chunks, a chunk never moves once it is allocated,
+ * so other transactions can read a record by log id in O(1) while the owner is still appending.
+ *
+ * Only the owner transaction modifies the log.
+ * A record becomes visible to other transactions through the map entry that carries its log id,
+ * the entry is always written after the record.
+ *
+ * @author zhh
+ */
+class UndoLog {
+
+    private static final int CHUNK_SHIFT = 10;
+    private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    private volatile LogRecord[][] chunks = new LogRecord[4][];
+    private volatile int size;
+
+    /**
+     * Append a record, the record left by the last {@link #removeLast(boolean)} is reused if possible.
+     *
+     * @return the log id of the record
+     */
+    int add(String mapName, Object key, VersionedValue oldValue, VersionedValue newValue) {
+        int logId = size;
+        int chunkIndex = logId >>> CHUNK_SHIFT;
+        LogRecord[][] chunks = this.chunks;
+        if (chunkIndex >= chunks.length) {
+            LogRecord[][] newChunks = new LogRecord[chunks.length * 2][];
+            System.arraycopy(chunks, 0, newChunks, 0, chunks.length);
+            this.chunks = chunks = newChunks;
+        }
+        LogRecord[] chunk = chunks[chunkIndex];
+        if (chunk == null)
+            chunk = chunks[chunkIndex] = new LogRecord[CHUNK_SIZE];
+
+        LogRecord r = chunk[logId & CHUNK_MASK];
+        if (r == null)
+            chunk[logId & CHUNK_MASK] = new LogRecord(mapName, key, oldValue, newValue);
+        else
+            r.set(mapName, key, oldValue, newValue);
+        size = logId + 1;
+        return logId;
+    }
+
+    /**
+     * Get the record with the given log id.
+     *
+     * @param logId the log id
+     * @return the record, or null if it has been removed
+     */
+    LogRecord get(int logId) {
+        LogRecord[] chunk = chunks[logId >>> CHUNK_SHIFT];
+        return chunk == null ? null : chunk[logId & CHUNK_MASK];
+    }
+
+    LogRecord getLast() {
+        return get(size - 1);
+    }
+
+    /**
+     * Remove the last record.
+     *
+     * @param reusable true if no map entry refers to the record, so the next add can overwrite it
+     */
+    void removeLast(boolean reusable) {
+        int logId = --size;
+        if (!reusable)
+            chunks[logId >>> CHUNK_SHIFT][logId & CHUNK_MASK] = null;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.mvstore.mvcc;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.lealone.common.util.DataUtils;
+import org.lealone.storage.StorageMapCursor;
+import org.lealone.storage.type.DataType;
+
+/**
+ * Keeps the committed versions that were overwritten while older snapshots were still open.
+ *
+ * For each key there is a chain of versions, the newest first. A version holds the value that was replaced
+ * by a transaction and the commit timestamp of that transaction, so a reader whose snapshot is older than
+ * the commit timestamp reads the replaced value instead.
+ *
+ * The chains are not stored in the pages of the maps, because the pages are written to disk and read back
+ * without them. Versions that are not visible to any open snapshot are dropped by {@link #gc(long)}.
+ *
+ * @author zhh
+ */
+class VersionStore {
+
+    static class Version {
+        final long commitTimestamp;
+        final VersionedValue value; // 被替换的已提交值，null表示那时key还不存在
+        volatile Version next;
+
+        Version(long commitTimestamp, VersionedValue value, Version next) {
+            this.commitTimestamp = commitTimestamp;
+            this.value = value;
+            this.next = next;
+        }
+    }
+
+    // key: mapName
+    private final ConcurrentHashMap<String, ConcurrentSkipListMap<Object, Version>> maps = new ConcurrentHashMap<>();
+
+    private final AtomicLong versionCount = new AtomicLong();
+    private final AtomicLong removedVersionCount = new AtomicLong();
+
+    ConcurrentSkipListMap<Object, Version> getVersions(String mapName) {
+        ConcurrentSkipListMap<Object, Version> versions = maps.get(mapName);
+        return versions == null || versions.isEmpty() ? null : versions;
+    }
+
+    /**
+     * Record the committed value that is replaced by a transaction.
+     *
+     * @param mapName the map name
+     * @param keyType the key type of the map
+     * @param key the key
+     * @param commitTimestamp the commit timestamp of the transaction that replaces the value
+     * @param value the replaced value, or null if the key did not exist
+     */
+    void add(String mapName, final DataType keyType, Object key, long commitTimestamp, VersionedValue value) {
+        ConcurrentSkipListMap<Object, Version> versions = maps.get(mapName);
+        if (versions == null) {
+            versions = new ConcurrentSkipListMap<>(new Comparator<Object>() {
+                @Override
+                public int compare(Object a, Object b) {
+                    return keyType.compare(a, b);
+                }
+            });
+            ConcurrentSkipListMap<Object, Version> old = maps.putIfAbsent(mapName, versions);
+            if (old != null)
+                versions = old;
+        }
+        // 同一个key的行锁保证了提交是按顺序的，这里只需要处理和gc的并发
+        while (true) {
+            Version head = versions.get(key);
+            Version v = new Version(commitTimestamp, value, head);
+            if (head == null ? versions.putIfAbsent(key, v) == null : versions.replace(key, head, v))
+                break;
+        }
+        versionCount.incrementAndGet();
+    }
+
+    /**
+     * Get the value that was committed when the snapshot was taken.
+     *
+     * @param versions the versions of the map, may be null
+     * @param key the key
+     * @param data the latest committed value
+     * @param snapshot the start timestamp of the reader
+     * @return the value
+     */
+    static VersionedValue get(ConcurrentSkipListMap<Object, Version> versions, Object key, VersionedValue data,
+            long snapshot) {
+        if (versions == null)
+            return data;
+        for (Version v = versions.get(key); v != null && v.commitTimestamp > snapshot; v = v.next)
+            data = v.value;
+        return data;
+    }
+
+    /**
+     * Get the commit timestamp of the transaction that last changed the key, if it is still kept.
+     *
+     * @param mapName the map name
+     * @param key the key
+     * @return the commit timestamp, or 0 if there is no version
+     */
+    long getLastCommitTimestamp(String mapName, Object key) {
+        ConcurrentSkipListMap<Object, Version> versions = maps.get(mapName);
+        if (versions == null)
+            return 0;
+        Version v = versions.get(key);
+        return v == null ? 0 : v.commitTimestamp;
+    }
+
+    /**
+     * Drop the versions that are not visible to any snapshot.
+     *
+     * @param oldestSnapshot the start timestamp of the oldest open transaction
+     * @return the number of dropped versions
+     */
+    int gc(long oldestSnapshot) {
+        int count = 0;
+        for (ConcurrentSkipListMap<Object, Version> versions : maps.values()) {
+            for (Entry<Object, Version> e : versions.entrySet()) {
+                Version head = e.getValue();
+                // 提交时间不大于最老快照的版本，所有读者都看到了比它新的值
+                if (head.commitTimestamp <= oldestSnapshot) {
+                    if (versions.remove(e.getKey(), head))
+                        count += length(head);
+                    continue;
+                }
+                for (Version v = head; v.next != null; v = v.next) {
+                    if (v.next.commitTimestamp <= oldestSnapshot) {
+                        count += length(v.next);
+                        v.next = null;
+                        break;
+                    }
+                }
+            }
+        }
+        removedVersionCount.addAndGet(count);
+        return count;
+    }
+
+    private static int length(Version v) {
+        int length = 0;
+        for (; v != null; v = v.next)
+            length++;
+        return length;
+    }
+
+    void removeMap(String mapName) {
+        maps.remove(mapName);
+    }
+
+    int size() {
+        int size = 0;
+        for (ConcurrentSkipListMap<Object, Version> versions : maps.values())
+            size += versions.size();
+        return size;
+    }
+
+    long getVersionCount() {
+        return versionCount.get();
+    }
+
+    long getRemovedVersionCount() {
+        return removedVersionCount.get();
+    }
+
+    /**
+     * Merge the keys of the map with the keys that only have old versions (removed after the snapshot was taken).
+     *
+     * @param cursor the cursor of the map
+     * @param versions the versions of the map
+     * @param keyType the key type of the map
+     * @param from the first key, or null
+     * @return a cursor that returns the keys in order, the value of a key that is not in the map is null
+     */
+    @SuppressWarnings("unchecked")
+    static <K> StorageMapCursor<K, VersionedValue> merge(final StorageMapCursor<K, VersionedValue> cursor,
+            ConcurrentSkipListMap<Object, Version> versions, final DataType keyType, K from) {
+        final Iterator<Object> versionKeys = (from == null ? versions.keySet()
+                : versions.tailMap(from, true).keySet()).iterator();
+        return new StorageMapCursor<K, VersionedValue>() {
+            private K mapKey = cursor.hasNext() ? cursor.next() : null;
+            private K versionKey = versionKeys.hasNext() ? (K) versionKeys.next() : null;
+            private K key;
+            private VersionedValue value;
+
+            @Override
+            public boolean hasNext() {
+                return mapKey != null || versionKey != null;
+            }
+
+            @Override
+            public K next() {
+                int cmp;
+                if (mapKey == null)
+                    cmp = 1;
+                else if (versionKey == null)
+                    cmp = -1;
+                else
+                    cmp = keyType.compare(mapKey, versionKey);
+                if (cmp <= 0) {
+                    key = mapKey;
+                    value = cursor.getValue();
+                    mapKey = cursor.hasNext() ? cursor.next() : null;
+                    if (cmp == 0)
+                        versionKey = versionKeys.hasNext() ? (K) versionKeys.next() : null;
+                } else {
+                    key = versionKey;
+                    value = null;
+                    versionKey = versionKeys.hasNext() ? (K) versionKeys.next() : null;
+                }
+                return key;
+            }
+
+            @Override
+            public K getKey() {
+                return key;
+            }
+
+            @Override
+            public VersionedValue getValue() {
+                return value;
+            }
+
+            @Override
+            public void remove() {
+                throw DataUtils.newUnsupportedOperationException("Removing is not supported");
+            }
+        };
+    }
+}
@@ -19,8 +19,6 @@ package org.lealone.mvstore.mvcc.log;
 
 import java.util.Map;
 
-import org.lealone.common.concurrent.WaitQueue;
-
 public class BatchLogSyncService extends LogSyncService {
     private static final long DEFAULT_LOG_SYNC_BATCH_WINDOW = 5;
 
@@ -34,20 +32,10 @@ public class BatchLogSyncService extends LogSyncService {
     }
 
     @Override
-    public void maybeWaitForSync(LogMap<Long, RedoLogValue> redoLog, Long lastOperationId) {
-        haveWork.release();
-        Long lastSyncKey = redoLog.getLastSyncKey();
-
-        if (lastSyncKey == null || lastSyncKey < lastOperationId) {
-            while (true) {
-                WaitQueue.Signal signal = syncComplete.register();
-                lastSyncKey = redoLog.getLastSyncKey();
-                if (lastSyncKey != null && lastSyncKey >= lastOperationId) {
-                    signal.cancel();
-                    return;
-                } else
-                    signal.awaitUninterruptibly();
-            }
+    public void maybeWaitForSync(LogMap<Long, RedoLogValue> redoLog, long logSequence) {
+        if (redoLog.getLastSyncedSequence() < logSequence) {
+            haveWork.release();
+            waitForSync(redoLog, logSequence);
         }
     }
 }
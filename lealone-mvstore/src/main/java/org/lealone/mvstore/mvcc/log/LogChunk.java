@@ -0,0 +1,113 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.mvstore.mvcc.log;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+import org.lealone.common.util.DataUtils;
+import org.lealone.storage.fs.FileStorage;
+import org.lealone.storage.type.WriteBuffer;
+
+/**
+ * A segment file of a log map, the records are only appended to the end of the file,
+ * nothing is kept in memory.
+ * 
+ * @author zhh
+ */
+class LogChunk implements Comparable<LogChunk> {
+
+    private final FileStorage fileStorage;
+
+    final int id;
+    private long pos;
+    int refCount; // 打开这个chunk的游标数，由LogMap同步
+
+    LogChunk(int id, String name, Map<String, String> config) {
+        this.id = id;
+        fileStorage = new FileStorage();
+        fileStorage.open(getChunkFileName(config, id, name), config);
+        pos = fileStorage.size();
+    }
+
+    static String getChunkFileName(Map<String, String> config, int id, String name) {
+        String storageName = config.get("storageName");
+        name = storageName + File.separator + name + LogStorage.MAP_NAME_ID_SEPARATOR + id;
+        return name;
+    }
+
+    /**
+     * Append the records to the end of the file and sync it.
+     *
+     * @param buff the serialized records
+     */
+    void write(WriteBuffer buff) {
+        int chunkLength = buff.position();
+        if (chunkLength > 0) {
+            buff.limit(chunkLength);
+            buff.position(0);
+            fileStorage.writeFully(pos, buff.getBuffer());
+            pos += chunkLength;
+            fileStorage.sync();
+        }
+    }
+
+    /**
+     * Read the bytes starting at the given offset until the buffer is full.
+     *
+     * @param offset the offset in the file
+     * @param dst the target buffer
+     */
+    void read(long offset, ByteBuffer dst) {
+        DataUtils.readFully(fileStorage.getFile(), offset, dst);
+    }
+
+    /**
+     * Discard the incomplete record at the end of the file, it is left by a crash during the write.
+     *
+     * @param size the new size
+     */
+    void truncate(long size) {
+        fileStorage.truncate(size);
+        pos = size;
+    }
+
+    long logChunkSize() {
+        return pos;
+    }
+
+    void close() {
+        fileStorage.close();
+    }
+
+    void remove() {
+        fileStorage.close();
+        fileStorage.delete();
+    }
+
+    @Override
+    public int compareTo(LogChunk o) {
+        return this.id - o.id;
+    }
+
+    @Override
+    public String toString() {
+        return "LogChunk[" + id + ", " + fileStorage.getFileName() + "]";
+    }
+}
@@ -17,262 +17,533 @@
  */
 package org.lealone.mvstore.mvcc.log;
 
-import java.io.IOException;
-import java.nio.channels.ReadableByteChannel;
-import java.nio.channels.WritableByteChannel;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Map;
-import java.util.Map.Entry;
-import java.util.Set;
-import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.NoSuchElementException;
+import java.util.zip.CRC32;
 
-import org.lealone.storage.StorageMap;
+import org.lealone.common.util.DataUtils;
 import org.lealone.storage.StorageMapCursor;
 import org.lealone.storage.fs.FileUtils;
 import org.lealone.storage.type.DataType;
 import org.lealone.storage.type.ObjectDataType;
+import org.lealone.storage.type.WriteBuffer;
+import org.lealone.storage.type.WriteBufferPool;
 
 /**
- * A log map
- * 
+ * An append-only log, the records are written sequentially to a list of chunk files (segments).
+ *
+ * Only the records that have not been written yet are kept in memory,
+ * the written records can only be read back by a cursor that streams the chunk files through a fixed-size buffer.
+ *
+ * Each record is stored as: length(int), checksum(int), key, value, the checksum is the CRC32 of the key and value,
+ * reading stops at the first record that is incomplete or whose checksum does not match.
+ * A position in the log is the chunk id in the high 32 bits and the offset in the chunk file in the low 32 bits.
+ *
  * @param <K> the key class
  * @param <V> the value class
- * 
+ *
  * @author zhh
  */
-public class LogMap<K, V> implements StorageMap<K, V> {
+public class LogMap<K, V> {
 
     private static final long DEFAULT_LOG_CHUNK_SIZE = 32 * 1024 * 1024;
+    private static final int READ_BUFFER_SIZE = 256 * 1024;
+    private static final int RECORD_HEADER_SIZE = 8;
 
-    private final ConcurrentSkipListSet<LogChunkMap<K, V>> chunks = new ConcurrentSkipListSet<>();
-    private LogChunkMap<K, V> current;
-
-    private int id;
+    private final LogStorage storage;
     private final String name;
     private final DataType keyType;
     private final DataType valueType;
     private final Map<String, String> config;
     private final long logChunkSize;
 
-    public LogMap(int id, String name, DataType keyType, DataType valueType, Map<String, String> config) {
+    private LogChunk current;
+    // 被游标打开的旧chunk，一个chunk文件只能打开一次
+    private final HashMap<Integer, LogChunk> openChunks = new HashMap<>();
+
+    // 还没有写到文件的记录，按append的顺序排列，由save()一次性写入
+    private final Object pendingLock = new Object();
+    private ArrayList<K> pendingKeys = new ArrayList<>();
+    private ArrayList<V> pendingValues = new ArrayList<>();
+    private long lastAddedSequence;
+    private volatile long lastSyncedSequence;
+    private volatile long lastSyncedPosition;
+    private volatile K lastSyncKey;
+
+    LogMap(LogStorage storage, int id, String name, DataType keyType, DataType valueType, Map<String, String> config) {
         if (keyType == null)
             keyType = new ObjectDataType();
         if (valueType == null)
             valueType = new ObjectDataType();
 
-        this.id = id;
+        this.storage = storage;
         this.name = name;
         this.keyType = keyType;
         this.valueType = valueType;
         this.config = config;
 
-        current = new LogChunkMap<>(id, name, keyType, valueType, config);
         if (config.containsKey("log_chunk_size"))
             logChunkSize = Long.parseLong(config.get("log_chunk_size"));
         else
             logChunkSize = DEFAULT_LOG_CHUNK_SIZE;
+
+        storage.addMapId(name, id);
+        current = new LogChunk(id, name, config);
+        truncateIncompleteRecord();
+        lastSyncedPosition = getPosition(current.id, current.logChunkSize());
+    }
+
+    // 写记录时崩溃可能会在最后一个chunk的末尾留下不完整的记录，从第一条不完整或者校验和不对的记录开始丢弃
+    private void truncateIncompleteRecord() {
+        Cursor cursor = new Cursor(current, 0);
+        while (cursor.hasNext())
+            cursor.next();
+        if (cursor.offset < current.logChunkSize())
+            current.truncate(cursor.offset);
     }
 
     public int getId() {
         return current.id;
     }
 
-    @Override
     public String getName() {
-        return current.getName();
+        return name;
     }
 
-    @Override
     public DataType getKeyType() {
-        return current.getKeyType();
+        return keyType;
     }
 
-    @Override
     public DataType getValueType() {
-        return current.getValueType();
-    }
-
-    @Override
-    public V get(K key) {
-        V v = current.get(key);
-        if (v == null) {
-            if (chunks.isEmpty()) {
-                return getFromPreviousChunk(key, id);
-            } else {
-                for (LogChunkMap<K, V> c : chunks) {
-                    v = c.get(key);
-                    if (v != null)
-                        return v;
-                }
-                return getFromPreviousChunk(key, chunks.first().id);
-            }
+        return valueType;
+    }
+
+    /**
+     * Add a record, it will be written to the log file by the next save.
+     *
+     * @param key the key
+     * @param value the value
+     * @return the sequence number of the record, see {@link #getLastSyncedSequence()}
+     */
+    public long append(K key, V value) {
+        synchronized (pendingLock) {
+            pendingKeys.add(key);
+            pendingValues.add(value);
+            return ++lastAddedSequence;
         }
-        return v;
     }
 
-    private V getFromPreviousChunk(K key, Integer currentId) {
-        V v;
-        while (true) {
-            Integer previousId = LogStorage.getPreviousId(getName(), currentId);
-            if (previousId == null)
-                return null;
-
-            LogChunkMap<K, V> chunk = new LogChunkMap<>(previousId, name, keyType, valueType, config);
-            chunks.add(chunk);
-            v = chunk.get(key);
-            if (v != null)
-                return v;
-            currentId = previousId;
-        }
+    /**
+     * All records whose sequence number is less than or equal to the returned value have been synced to disk.
+     *
+     * @return the sequence number of the last synced record
+     */
+    public long getLastSyncedSequence() {
+        return lastSyncedSequence;
     }
 
-    @Override
-    public V put(K key, V value) {
-        return current.put(key, value);
+    /**
+     * All records before the returned position have been synced to disk.
+     *
+     * @return the end position of the synced records
+     */
+    public long getLastSyncedPosition() {
+        return lastSyncedPosition;
     }
 
-    @Override
-    public V putIfAbsent(K key, V value) {
-        return current.putIfAbsent(key, value);
+    public K getLastSyncKey() {
+        return lastSyncKey;
     }
 
-    @Override
-    public V remove(K key) {
-        return current.remove(key);
+    /**
+     * Open a cursor that reads the records starting at the given position in the order they were written.
+     *
+     * @param from the position of the first record, 0 means the beginning of the log
+     * @return the cursor
+     */
+    public LogMapCursor<K, V> cursor(long from) {
+        return new LogMapCursor<>(this, from);
     }
 
-    @Override
-    public boolean replace(K key, V oldValue, V newValue) {
-        return current.replace(key, oldValue, newValue);
+    /**
+     * Open a reader that reads the records at the positions returned by {@link LogMapCursor#getPosition()}
+     * or {@link #put(Object, Object)}.
+     *
+     * @return the reader
+     */
+    public LogMapReader<K, V> reader() {
+        return new LogMapReader<>(this);
     }
 
-    @Override
-    public K firstKey() {
-        return current.firstKey();
-    }
+    public void remove() {
+        synchronized (pendingLock) {
+            pendingKeys.clear();
+            pendingValues.clear();
+        }
+        current.close();
+        Integer id = current.id;
+        do {
+            FileUtils.delete(LogChunk.getChunkFileName(config, id, name));
+            id = storage.getPreviousId(name, id);
+        } while (id != null);
 
-    @Override
-    public K lastKey() {
-        return current.lastKey();
+        storage.logMaps.remove(this);
+    }
+
+    /**
+     * Delete the chunk files that only contain records before the given position.
+     *
+     * @param position the position of the checkpoint
+     * @return the number of deleted chunks
+     */
+    public synchronized int removeChunksBefore(long position) {
+        int count = 0;
+        int chunkId = getChunkId(position);
+        Integer id = storage.getFirstId(name);
+        while (id != null && id < chunkId && id != current.id) {
+            LogChunk chunk = openChunks.remove(id);
+            if (chunk != null)
+                chunk.close();
+            FileUtils.delete(LogChunk.getChunkFileName(config, id, name));
+            storage.removeMapId(name, id);
+            count++;
+            id = storage.getFirstId(name);
+        }
+        return count;
     }
 
-    @Override
-    public K lowerKey(K key) {
-        return current.lowerKey(key);
+    public synchronized void close() {
+        save();
+        current.close();
+        for (LogChunk chunk : openChunks.values())
+            chunk.close();
+        openChunks.clear();
     }
 
-    @Override
-    public K floorKey(K key) {
-        return current.floorKey(key);
-    }
+    public void save() {
+        sync();
+    }
+
+    /**
+     * Write all pending records to the current chunk with one write and one sync.
+     *
+     * @return the number of records written
+     */
+    synchronized int sync() {
+        ArrayList<K> keys;
+        ArrayList<V> values;
+        long sequence;
+        synchronized (pendingLock) {
+            if (pendingKeys.isEmpty())
+                return 0;
+            keys = pendingKeys;
+            values = pendingValues;
+            sequence = lastAddedSequence;
+            pendingKeys = new ArrayList<>(keys.size());
+            pendingValues = new ArrayList<>(values.size());
+        }
 
-    @Override
-    public K higherKey(K key) {
-        return current.higherKey(key);
+        int size = keys.size();
+        WriteBuffer buff = WriteBufferPool.poll();
+        try {
+            for (int i = 0; i < size; i++)
+                writeRecord(buff, keys.get(i), values.get(i));
+            current.write(buff);
+        } finally {
+            WriteBufferPool.offer(buff);
+        }
+        lastSyncKey = keys.get(size - 1);
+        lastSyncedPosition = getPosition(current.id, current.logChunkSize());
+        lastSyncedSequence = sequence;
+        nextChunkIfFull();
+        return size;
+    }
+
+    /**
+     * Write a record and sync it at once, the pending records are written before it.
+     *
+     * @param key the key
+     * @param value the value
+     * @return the position of the record
+     */
+    public synchronized long put(K key, V value) {
+        sync();
+        long position = getPosition(current.id, current.logChunkSize());
+        WriteBuffer buff = WriteBufferPool.poll();
+        try {
+            writeRecord(buff, key, value);
+            current.write(buff);
+        } finally {
+            WriteBufferPool.offer(buff);
+        }
+        lastSyncKey = key;
+        lastSyncedPosition = getPosition(current.id, current.logChunkSize());
+        nextChunkIfFull();
+        return position;
     }
 
-    @Override
-    public K ceilingKey(K key) {
-        return current.ceilingKey(key);
+    private void writeRecord(WriteBuffer buff, K key, V value) {
+        int start = buff.position();
+        buff.putInt(0).putInt(0);
+        keyType.write(buff, key);
+        valueType.write(buff, value);
+        int len = buff.position() - start - RECORD_HEADER_SIZE;
+        buff.putInt(start, len);
+        buff.putInt(start + 4, checksum(buff.getBuffer(), start + RECORD_HEADER_SIZE, len));
     }
 
-    @Override
-    public boolean areValuesEqual(Object a, Object b) {
-        return current.areValuesEqual(a, b);
+    private void nextChunkIfFull() {
+        if (current.logChunkSize() > logChunkSize) {
+            // 还有游标在读这个chunk时由最后一个游标关闭
+            if (current.refCount > 0)
+                openChunks.put(current.id, current);
+            else
+                current.close();
+            current = new LogChunk(current.id + 1, name, config);
+            storage.addMapId(name, current.id);
+        }
     }
 
-    @Override
-    public int size() {
-        return current.size();
+    private static int checksum(ByteBuffer buff, int start, int len) {
+        CRC32 crc = new CRC32();
+        crc.update(buff.array(), buff.arrayOffset() + start, len);
+        return (int) crc.getValue();
     }
 
     @Override
-    public long sizeAsLong() {
-        return current.sizeAsLong();
+    public String toString() {
+        return "LogMap[" + getId() + ", " + getName() + "]";
     }
 
-    @Override
-    public boolean containsKey(K key) {
-        return current.containsKey(key);
+    static long getPosition(int chunkId, long offset) {
+        return ((long) chunkId << 32) | offset;
     }
 
-    @Override
-    public boolean isEmpty() {
-        return current.isEmpty();
+    static int getChunkId(long position) {
+        return (int) (position >>> 32);
     }
 
-    @Override
-    public boolean isInMemory() {
-        return current.isInMemory();
+    static long getOffset(long position) {
+        return position & 0xFFFFFFFFL;
     }
 
-    @Override
-    public StorageMapCursor<K, V> cursor(K from) {
-        return current.cursor(from);
-    }
+    private synchronized LogChunk openChunk(int id) {
+        LogChunk chunk = id == current.id ? current : openChunks.get(id);
+        if (chunk == null) {
+            chunk = new LogChunk(id, name, config);
+            openChunks.put(id, chunk);
+        }
+        chunk.refCount++;
+        return chunk;
+    }
+
+    private synchronized void closeChunk(LogChunk chunk) {
+        if (--chunk.refCount == 0 && chunk != current && openChunks.remove(chunk.id) != null)
+            chunk.close();
+    }
+
+    /**
+     * Reads the records of one chunk through a fixed-size buffer.
+     */
+    private class Cursor {
+        private final LogChunk chunk;
+        private final long size;
+        private ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private long bufferOffset; // buffer中第一个字节在文件中的位置
+        private long offset; // 下一条记录在文件中的位置
+        private long recordOffset;
+        private K key;
+        private V value;
+
+        Cursor(LogChunk chunk, long offset) {
+            this.chunk = chunk;
+            this.size = chunk.logChunkSize();
+            this.offset = offset;
+            bufferOffset = offset;
+            buffer.limit(0);
+        }
 
-    @Override
-    public void clear() {
-        current.clear();
-        for (LogChunkMap<K, V> c : chunks) {
-            c.clear();
+        @SuppressWarnings("unchecked")
+        boolean hasNext() {
+            if (key != null)
+                return true;
+            if (offset + RECORD_HEADER_SIZE > size || !fill(RECORD_HEADER_SIZE))
+                return false;
+            int len = buffer.getInt(buffer.position());
+            int checksum = buffer.getInt(buffer.position() + 4);
+            if (len <= 0 || offset + RECORD_HEADER_SIZE + len > size || !fill(RECORD_HEADER_SIZE + len))
+                return false;
+            buffer.position(buffer.position() + RECORD_HEADER_SIZE);
+            if (checksum(buffer, buffer.position(), len) != checksum)
+                return false;
+            int end = buffer.position() + len;
+            key = (K) keyType.read(buffer);
+            value = (V) valueType.read(buffer);
+            buffer.position(end);
+            recordOffset = offset;
+            offset += RECORD_HEADER_SIZE + len;
+            return true;
+        }
+
+        void next() {
+            key = null;
+            value = null;
+        }
+
+        // 确保buffer中至少有len个字节可读，大记录会临时使用更大的buffer
+        private boolean fill(int len) {
+            if (buffer.remaining() >= len)
+                return true;
+            long readOffset = bufferOffset + buffer.position();
+            int capacity = Math.max(READ_BUFFER_SIZE, len);
+            if (buffer.capacity() != capacity)
+                buffer = ByteBuffer.allocate(capacity);
+            buffer.clear();
+            buffer.limit((int) Math.min(capacity, size - readOffset));
+            if (buffer.limit() < len)
+                return false;
+            chunk.read(readOffset, buffer); // 读完后position会回到0
+            bufferOffset = readOffset;
+            return true;
         }
     }
 
-    @Override
-    public void remove() {
-        current.close();
-        for (LogChunkMap<K, V> c : chunks) {
-            c.close();
+    /**
+     * A cursor that streams the records of all chunks starting at a position.
+     */
+    public static class LogMapCursor<K, V> implements StorageMapCursor<K, V> {
+
+        private final LogMap<K, V> map;
+        private LogMap<K, V>.Cursor cursor;
+        private K key;
+        private V value;
+        private long position;
+
+        LogMapCursor(LogMap<K, V> map, long from) {
+            this.map = map;
+            Integer id = map.storage.getFirstId(map.name);
+            if (id != null) {
+                long offset = 0;
+                if (getChunkId(from) > id) {
+                    id = getChunkId(from);
+                    offset = getOffset(from);
+                } else if (getChunkId(from) == id) {
+                    offset = getOffset(from);
+                }
+                cursor = map.new Cursor(map.openChunk(id), offset);
+            }
         }
 
-        Integer id = current.id;
+        @Override
+        public boolean hasNext() {
+            while (cursor != null) {
+                if (cursor.hasNext())
+                    return true;
+                map.closeChunk(cursor.chunk);
+                // 在chunk的中间碰到了不完整或者校验和不对的记录，后面的记录都不能再用了
+                Integer id = cursor.offset < cursor.size ? null : map.storage.getNextId(map.name, cursor.chunk.id);
+                cursor = id == null ? null : map.new Cursor(map.openChunk(id), 0);
+            }
+            return false;
+        }
 
-        do {
-            FileUtils.delete(LogChunkMap.getChunkFileName(config, id, name));
-            id = LogStorage.getPreviousId(name, id);
-        } while (id != null);
+        /**
+         * Close the chunk file that is being read, only needed if the cursor is not read to the end.
+         */
+        public void close() {
+            if (cursor != null) {
+                map.closeChunk(cursor.chunk);
+                cursor = null;
+            }
+        }
 
-        LogStorage.logMaps.remove(this);
-    }
+        @Override
+        public K next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            key = cursor.key;
+            value = cursor.value;
+            position = LogMap.getPosition(cursor.chunk.id, cursor.recordOffset);
+            cursor.next();
+            return key;
+        }
 
-    @Override
-    public boolean isClosed() {
-        return current.isClosed();
-    }
+        @Override
+        public K getKey() {
+            return key;
+        }
 
-    @Override
-    public void close() {
-        current.close();
-    }
+        @Override
+        public V getValue() {
+            return value;
+        }
 
-    @Override
-    public void save() {
-        current.save();
-        if (current.logChunkSize() > logChunkSize) {
-            current.close();
-            LogStorage.addMapId(name, id);
-            current = new LogChunkMap<>(++id, name, keyType, valueType, config);
+        /**
+         * Get the position of the last read record.
+         *
+         * @return the position
+         */
+        public long getPosition() {
+            return position;
         }
-    }
 
-    public Set<Entry<K, V>> entrySet() {
-        return current.entrySet();
+        @Override
+        public void remove() {
+            throw DataUtils.newUnsupportedOperationException("Removing is not supported");
+        }
     }
 
-    public K getLastSyncKey() {
-        return current.getLastSyncKey();
-    }
+    /**
+     * Reads single records at given positions, the chunk file of the last read record is kept open.
+     */
+    public static class LogMapReader<K, V> {
 
-    @Override
-    public String toString() {
-        return "LogMap[" + getId() + ", " + getName() + "]";
-    }
+        private final LogMap<K, V> map;
+        private final ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        private LogChunk chunk;
 
-    @Override
-    public void transferTo(WritableByteChannel target, K firstKey, K lastKey) throws IOException {
-    }
+        LogMapReader(LogMap<K, V> map) {
+            this.map = map;
+        }
 
-    @Override
-    public void transferFrom(ReadableByteChannel src) throws IOException {
+        /**
+         * Read the value of the record at the given position.
+         *
+         * @param position the position of the record
+         * @return the value
+         * @throws IllegalStateException if the record is corrupt
+         */
+        @SuppressWarnings("unchecked")
+        public V read(long position) {
+            int id = getChunkId(position);
+            if (chunk == null || chunk.id != id) {
+                close();
+                chunk = map.openChunk(id);
+            }
+            long offset = getOffset(position);
+            header.clear();
+            chunk.read(offset, header);
+            int len = header.getInt(0);
+            if (len <= 0 || offset + RECORD_HEADER_SIZE + len > chunk.logChunkSize())
+                throw DataUtils.newIllegalStateException(DataUtils.ERROR_FILE_CORRUPT,
+                        "Record at {0} of {1} is incomplete", position, map.name);
+            ByteBuffer buff = ByteBuffer.allocate(len);
+            chunk.read(offset + RECORD_HEADER_SIZE, buff);
+            if (checksum(buff, 0, len) != header.getInt(4))
+                throw DataUtils.newIllegalStateException(DataUtils.ERROR_FILE_CORRUPT,
+                        "Checksum of the record at {0} of {1} does not match", position, map.name);
+            map.keyType.read(buff);
+            return (V) map.valueType.read(buff);
+        }
+
+        public void close() {
+            if (chunk != null) {
+                map.closeChunk(chunk);
+                chunk = null;
+            }
+        }
     }
 }
@@ -27,7 +27,9 @@ import org.lealone.db.Constants;
 import org.lealone.storage.StorageMap;
 import org.lealone.storage.fs.FilePath;
 import org.lealone.storage.fs.FileUtils;
+import org.lealone.storage.memory.MemoryMap;
 import org.lealone.storage.type.DataType;
+import org.lealone.storage.type.ObjectDataType;
 
 /**
  * A log storage
@@ -44,11 +46,12 @@ public class LogStorage {
 
     private static final String TEMP_MAP_NAME_PREFIX = "temp" + MAP_NAME_ID_SEPARATOR;
 
-    private static final ConcurrentHashMap<String, ConcurrentSkipListSet<Integer>> ids = new ConcurrentHashMap<>();
+    // 每个LogStorage有自己的日志目录，同一个进程中可以有多个事务引擎
+    private final ConcurrentHashMap<String, ConcurrentSkipListSet<Integer>> ids = new ConcurrentHashMap<>();
 
-    static final CopyOnWriteArrayList<LogMap<?, ?>> logMaps = new CopyOnWriteArrayList<>();
+    final CopyOnWriteArrayList<LogMap<?, ?>> logMaps = new CopyOnWriteArrayList<>();
 
-    static LogMap<?, ?> redoLog;
+    volatile LogMap<?, ?> redoLog;
 
     private final Map<String, String> config;
 
@@ -94,19 +97,21 @@ public class LogStorage {
         else
             throw new IllegalArgumentException("Unknow log_sync_type: " + logSyncType);
 
+        logSyncService.logStorage = this;
         logSyncService.start();
     }
 
     public synchronized StorageMap<Object, Integer> createTempMap() {
         String mapName = LogStorage.TEMP_MAP_NAME_PREFIX + (++nextTempMapId);
-        return openLogMap(mapName, null, null);
+        // 临时map只在内存中使用，不需要写日志
+        return new MemoryMap<>(mapName, new ObjectDataType(), new ObjectDataType());
     }
 
     public <K, V> LogMap<K, V> openLogMap(String name, DataType keyType, DataType valueType) {
         int mapId = 1;
         if (ids.containsKey(name))
             mapId = ids.get(name).last();
-        LogMap<K, V> m = new LogMap<>(mapId, name, keyType, valueType, config);
+        LogMap<K, V> m = new LogMap<>(this, mapId, name, keyType, valueType, config);
         logMaps.add(m);
         if ("redoLog".equals(name))
             redoLog = m;
@@ -114,7 +119,7 @@ public class LogStorage {
     }
 
     public synchronized void close() {
-        for (StorageMap<?, ?> map : logMaps)
+        for (LogMap<?, ?> map : logMaps)
             map.save();
 
         if (logSyncService != null) {
@@ -125,21 +130,41 @@ public class LogStorage {
             }
         }
 
-        for (StorageMap<?, ?> map : logMaps)
+        for (LogMap<?, ?> map : logMaps)
             map.close();
 
         logMaps.clear();
         ids.clear();
     }
 
-    public static Integer getPreviousId(String name, Integer currentId) {
+    Integer getPreviousId(String name, Integer currentId) {
         Integer id = null;
         if (ids.containsKey(name))
             id = ids.get(name).lower(currentId);
         return id;
     }
 
-    public static void addMapId(String mapName, Integer mapId) {
+    Integer getNextId(String name, Integer currentId) {
+        Integer id = null;
+        if (ids.containsKey(name))
+            id = ids.get(name).higher(currentId);
+        return id;
+    }
+
+    Integer getFirstId(String name) {
+        Integer id = null;
+        if (ids.containsKey(name) && !ids.get(name).isEmpty())
+            id = ids.get(name).first();
+        return id;
+    }
+
+    void removeMapId(String mapName, Integer mapId) {
+        ConcurrentSkipListSet<Integer> set = ids.get(mapName);
+        if (set != null)
+            set.remove(mapId);
+    }
+
+    void addMapId(String mapName, Integer mapId) {
         ConcurrentSkipListSet<Integer> set = ids.get(mapName);
         if (set == null) {
             set = new ConcurrentSkipListSet<Integer>();
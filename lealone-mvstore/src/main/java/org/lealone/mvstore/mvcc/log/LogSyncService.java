@@ -30,13 +30,68 @@ public abstract class LogSyncService extends Thread {
     protected long syncIntervalMillis;
     protected volatile long lastSyncedAt = System.currentTimeMillis();
     protected boolean running = true;
+    LogStorage logStorage;
+
+    // 只由同步线程更新
+    private volatile long syncCount;
+    private volatile long syncedRecordCount;
+    private volatile long syncTimeNanos;
+    private volatile int maxBatchSize;
 
     public LogSyncService(String name) {
         super(name);
         setDaemon(true);
     }
 
-    public abstract void maybeWaitForSync(LogMap<Long, RedoLogValue> redoLog, Long lastOperationId);
+    /**
+     * Wait until the log entry has been synced to disk, if the sync policy requires it.
+     *
+     * @param redoLog the log map
+     * @param logSequence the sequence number returned by {@link LogMap#append(Object, Object)}
+     */
+    public abstract void maybeWaitForSync(LogMap<Long, RedoLogValue> redoLog, long logSequence);
+
+    /**
+     * Wait until all log entries up to the given sequence number have been synced.
+     */
+    protected void waitForSync(LogMap<Long, RedoLogValue> redoLog, long logSequence) {
+        while (redoLog.getLastSyncedSequence() < logSequence) {
+            WaitQueue.Signal signal = syncComplete.register();
+            if (redoLog.getLastSyncedSequence() >= logSequence) {
+                signal.cancel();
+                return;
+            }
+            signal.awaitUninterruptibly();
+        }
+    }
+
+    /**
+     * The number of syncs that have written at least one log entry.
+     */
+    public long getSyncCount() {
+        return syncCount;
+    }
+
+    /**
+     * The number of log entries that have been synced.
+     */
+    public long getSyncedRecordCount() {
+        return syncedRecordCount;
+    }
+
+    /**
+     * The total time spent on writing and syncing the log file, in nanoseconds.
+     */
+    public long getSyncTimeNanos() {
+        return syncTimeNanos;
+    }
+
+    /**
+     * The largest number of log entries that have been written by one sync.
+     */
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
 
     void close() {
         running = false;
@@ -65,10 +120,21 @@ public abstract class LogSyncService extends Thread {
     }
 
     private void sync() {
-        if (LogStorage.redoLog != null)
-            LogStorage.redoLog.save();
+        LogMap<?, ?> redoLog = logStorage.redoLog;
+        if (redoLog != null) {
+            // 把这段时间内所有提交的事务的日志合并成一次写和一次sync
+            long start = System.nanoTime();
+            int batchSize = redoLog.sync();
+            if (batchSize > 0) {
+                syncTimeNanos += System.nanoTime() - start;
+                syncCount++;
+                syncedRecordCount += batchSize;
+                if (batchSize > maxBatchSize)
+                    maxBatchSize = batchSize;
+            }
+        }
         // TODO 是否要保存其他map?
-        // for (LogMap<?, ?> map : LogStorage.logMaps) {
+        // for (LogMap<?, ?> map : logStorage.logMaps) {
         // map.save();
         // }
     }
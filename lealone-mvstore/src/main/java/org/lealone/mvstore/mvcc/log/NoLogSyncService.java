@@ -32,7 +32,7 @@ public class NoLogSyncService extends LogSyncService {
     }
 
     @Override
-    public void maybeWaitForSync(LogMap<Long, RedoLogValue> redoLog, Long lastOperationId) {
+    public void maybeWaitForSync(LogMap<Long, RedoLogValue> redoLog, long logSequence) {
     }
 
 }
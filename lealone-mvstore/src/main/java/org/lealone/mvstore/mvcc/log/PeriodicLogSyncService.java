@@ -39,11 +39,10 @@ public class PeriodicLogSyncService extends LogSyncService {
     }
 
     @Override
-    public void maybeWaitForSync(LogMap<Long, RedoLogValue> redoLog, Long lastOperationId) {
+    public void maybeWaitForSync(LogMap<Long, RedoLogValue> redoLog, long logSequence) {
         haveWork.release();
-        Long lastSyncKey = redoLog.getLastSyncKey();
 
-        if (lastSyncKey == null || lastSyncKey < lastOperationId) {
+        if (redoLog.getLastSyncedSequence() < logSequence) {
             // 因为Long.MAX_VALUE > Long.MAX_VALUE + 1
             // lastSyncedAt是long类型，当lastSyncedAt为Long.MAX_VALUE时，
             // 再加一个int类型的blockWhenSyncLagsMillis时还是小于Long.MAX_VALUE；
@@ -54,8 +53,7 @@ public class PeriodicLogSyncService extends LogSyncService {
                 long started = System.currentTimeMillis();
                 while (waitForSyncToCatchUp(started)) {
                     WaitQueue.Signal signal = syncComplete.register();
-                    lastSyncKey = redoLog.getLastSyncKey();
-                    if (lastSyncKey != null && lastSyncKey >= lastOperationId) {
+                    if (redoLog.getLastSyncedSequence() >= logSequence) {
                         signal.cancel();
                         return;
                     } else if (waitForSyncToCatchUp(started))
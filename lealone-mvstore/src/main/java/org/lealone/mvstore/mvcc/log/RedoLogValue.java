@@ -21,6 +21,8 @@ import java.nio.ByteBuffer;
 
 //RedoLog文件中会有三种类型的日志条目
 public class RedoLogValue {
+    public static final ByteBuffer EMPTY_BUFFER = ByteBuffer.allocate(0);
+
     // 1. 本地事务只包含这个字段
     public ByteBuffer values;
 
@@ -29,7 +31,7 @@ public class RedoLogValue {
     public String allLocalTransactionNames;
     public long commitTimestamp;
 
-    // 3. 检查点只有这个字段
+    // 3. 检查点只有这个字段，它是一个日志位置，在它之前的日志对应的map都已经保存过了
     public Long checkpoint;
 
     public RedoLogValue() {
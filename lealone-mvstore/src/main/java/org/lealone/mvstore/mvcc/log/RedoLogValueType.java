@@ -84,7 +84,7 @@ public class RedoLogValueType implements DataType {
             buff.get(value);
             v.values = ByteBuffer.wrap(value);
         } else {
-            v.values = LogChunkMap.EMPTY_BUFFER;
+            v.values = RedoLogValue.EMPTY_BUFFER;
         }
         return v;
     }
@@ -0,0 +1,189 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.lealone.common.exceptions.DbException;
+
+/**
+ * An I/O thread of {@link NioServer}, it owns a selector and only does non-blocking reads and writes,
+ * the client requests are never executed in this thread.
+ *
+ * @author zhh
+ */
+class NioEventLoop implements Runnable {
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final long RETRY_INTERVAL = 10; // 单位: 毫秒
+
+    private final NioServer server;
+    private final Selector selector;
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+
+    private final ConcurrentLinkedQueue<NioServerConnection> newConnections = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<NioServerConnection> writeInterests = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<NioServerConnection> redispatchConnections = new ConcurrentLinkedQueue<>();
+    // 工作线程池满了时还不能执行的连接，下一轮再尝试
+    private final ArrayList<NioServerConnection> pendingConnections = new ArrayList<>();
+
+    private volatile boolean stop;
+
+    NioEventLoop(NioServer server) {
+        this.server = server;
+        try {
+            selector = Selector.open();
+        } catch (IOException e) {
+            throw DbException.convertIOException(e, "open selector");
+        }
+    }
+
+    /**
+     * Register a new connection, it will be processed in the I/O thread.
+     *
+     * @param conn the connection
+     */
+    void register(NioServerConnection conn) {
+        newConnections.add(conn);
+        selector.wakeup();
+    }
+
+    /**
+     * The connection has pending output that can not be written without blocking.
+     *
+     * @param conn the connection
+     */
+    void enableWrite(NioServerConnection conn) {
+        writeInterests.add(conn);
+        selector.wakeup();
+    }
+
+    /**
+     * A worker thread can not dispatch the connection again because the worker thread pool is full,
+     * let the I/O thread retry it later.
+     *
+     * @param conn the connection
+     */
+    void redispatch(NioServerConnection conn) {
+        redispatchConnections.add(conn);
+        selector.wakeup();
+    }
+
+    void close() {
+        stop = true;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!stop) {
+                if (pendingConnections.isEmpty() && redispatchConnections.isEmpty())
+                    selector.select();
+                else
+                    selector.select(RETRY_INTERVAL);
+                if (stop)
+                    break;
+                registerNewConnections();
+                registerWriteInterests();
+                dispatchPendingConnections();
+                processSelectedKeys();
+            }
+        } catch (Throwable e) {
+            if (!stop)
+                DbException.traceThrowable(e);
+        } finally {
+            try {
+                selector.close();
+            } catch (IOException e) {
+                DbException.traceThrowable(e);
+            }
+        }
+    }
+
+    private void registerNewConnections() {
+        NioServerConnection conn;
+        while ((conn = newConnections.poll()) != null) {
+            try {
+                conn.setSelectionKey(conn.getChannel().register(selector, SelectionKey.OP_READ, conn));
+            } catch (IOException e) {
+                server.traceError(e);
+                conn.close();
+            }
+        }
+    }
+
+    private void registerWriteInterests() {
+        NioServerConnection conn;
+        while ((conn = writeInterests.poll()) != null) {
+            SelectionKey key = conn.getSelectionKey();
+            if (key != null && key.isValid())
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        }
+    }
+
+    private void dispatchPendingConnections() {
+        NioServerConnection conn;
+        while ((conn = redispatchConnections.poll()) != null) {
+            if (!pendingConnections.contains(conn))
+                pendingConnections.add(conn);
+        }
+        if (pendingConnections.isEmpty())
+            return;
+        for (Iterator<NioServerConnection> it = pendingConnections.iterator(); it.hasNext();) {
+            if (it.next().dispatch())
+                it.remove();
+            else
+                break;
+        }
+    }
+
+    private void processSelectedKeys() {
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+            SelectionKey key = keys.next();
+            keys.remove();
+            NioServerConnection conn = (NioServerConnection) key.attachment();
+            try {
+                if (key.isWritable()) {
+                    if (conn.writePendingOutput())
+                        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                }
+                if (key.isValid() && key.isReadable()) {
+                    readBuffer.clear();
+                    if (!conn.read(readBuffer)) {
+                        // 对端关闭了，不再关注读事件，由工作线程处理完剩下的请求后关闭连接
+                        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                    }
+                    if (!conn.dispatch() && !pendingConnections.contains(conn))
+                        pendingConnections.add(conn);
+                }
+            } catch (CancelledKeyException e) {
+                // 连接已经被关闭
+            }
+        }
+    }
+
+}
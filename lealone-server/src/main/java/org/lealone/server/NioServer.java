@@ -0,0 +1,225 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.server;
+
+import java.io.IOException;
+import java.net.BindException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.lealone.api.ErrorCode;
+import org.lealone.common.exceptions.DbException;
+
+/**
+ * A protocol server that speaks the same protocol as {@link TcpServer},
+ * but does not need one thread per client connection.
+ *
+ * The sockets are multiplexed by a few I/O threads(each one owns a selector),
+ * the client requests are executed by a bounded worker thread pool,
+ * so idle connections do not hold any thread.
+ *
+ * @author zhh
+ */
+public class NioServer extends TcpServer {
+
+    private final Set<NioServerConnection> connections = Collections
+            .newSetFromMap(new ConcurrentHashMap<NioServerConnection, Boolean>());
+    private final AtomicInteger nextEventLoop = new AtomicInteger();
+
+    private int ioThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    private int workerThreads = Runtime.getRuntime().availableProcessors() * 4;
+    private int workerQueueSize = 1024;
+
+    private ServerSocketChannel serverChannel;
+    private NioEventLoop[] eventLoops;
+    private ThreadPoolExecutor workers;
+    private Thread acceptorThread;
+
+    private volatile boolean stop;
+
+    @Override
+    public void init(Map<String, String> config) {
+        super.init(config);
+        if (config.containsKey("io_threads"))
+            ioThreads = Integer.parseInt(config.get("io_threads"));
+        if (config.containsKey("worker_threads"))
+            workerThreads = Integer.parseInt(config.get("worker_threads"));
+        if (config.containsKey("worker_queue_size"))
+            workerQueueSize = Integer.parseInt(config.get("worker_queue_size"));
+    }
+
+    @Override
+    public synchronized void start() {
+        if (isSSL())
+            throw DbException.getUnsupportedException("ssl");
+
+        stop = false; // 同一个实例可以在stop之后再次start
+        String name = getName() + " (" + getURL() + ")";
+        try {
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.socket().setReuseAddress(true);
+            serverChannel.socket().bind(new InetSocketAddress(getListenAddress(), getPort()));
+        } catch (BindException e) {
+            throw DbException.get(ErrorCode.EXCEPTION_OPENING_PORT_2, e, "" + getPort(), e.toString());
+        } catch (IOException e) {
+            throw DbException.convertIOException(e, "port: " + getPort());
+        }
+
+        workers = new ThreadPoolExecutor(workerThreads, workerThreads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(workerQueueSize), new NamedThreadFactory(getName() + " worker"));
+        workers.allowCoreThreadTimeOut(true);
+
+        eventLoops = new NioEventLoop[ioThreads];
+        for (int i = 0; i < ioThreads; i++) {
+            eventLoops[i] = new NioEventLoop(this);
+            Thread t = new Thread(eventLoops[i], getName() + " io-" + i);
+            t.setDaemon(isDaemon());
+            t.start();
+        }
+
+        Thread t = new Thread(this, name);
+        t.setDaemon(isDaemon());
+        t.start();
+    }
+
+    @Override
+    public void run() {
+        acceptorThread = Thread.currentThread();
+        try {
+            while (!stop) {
+                SocketChannel channel = serverChannel.accept();
+                if (stop) {
+                    channel.close();
+                    break;
+                }
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                NioEventLoop eventLoop = eventLoops[(nextEventLoop.getAndIncrement() & Integer.MAX_VALUE)
+                        % eventLoops.length];
+                String connectionName = getName() + " connection-" + channel.socket().getPort();
+                NioServerConnection conn = new NioServerConnection(channel, this, eventLoop, connectionName);
+                connections.add(conn);
+                eventLoop.register(conn);
+            }
+        } catch (Exception e) {
+            if (!stop) {
+                DbException.traceThrowable(e);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (stop)
+            return;
+
+        stop = true;
+        try {
+            if (serverChannel != null)
+                serverChannel.close();
+        } catch (IOException e) {
+            DbException.traceThrowable(e);
+        }
+        if (acceptorThread != null) {
+            try {
+                acceptorThread.join(1000);
+            } catch (InterruptedException e) {
+                DbException.traceThrowable(e);
+            }
+        }
+        for (NioServerConnection c : connections) {
+            c.close();
+        }
+        connections.clear();
+        if (eventLoops != null) {
+            for (NioEventLoop eventLoop : eventLoops)
+                eventLoop.close();
+        }
+        if (workers != null)
+            workers.shutdown();
+    }
+
+    @Override
+    public synchronized boolean isRunning(boolean traceError) {
+        return serverChannel != null && serverChannel.isOpen();
+    }
+
+    @Override
+    public String getName() {
+        return "NIO Server";
+    }
+
+    @Override
+    public String getType() {
+        return "NIO";
+    }
+
+    @Override
+    void cancelStatement(String sessionId, int statementId) {
+        for (NioServerConnection c : connections) {
+            c.cancelStatement(sessionId, statementId);
+        }
+    }
+
+    /**
+     * Submit the connection to the worker thread pool.
+     *
+     * @param conn the connection which has pending requests
+     * @return false if the worker thread pool is full, the caller should retry later
+     */
+    boolean execute(NioServerConnection conn) {
+        try {
+            workers.execute(conn);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    void remove(NioServerConnection conn) {
+        connections.remove(conn);
+    }
+
+    private class NamedThreadFactory implements ThreadFactory {
+        private final String id;
+        private final AtomicInteger n = new AtomicInteger(1);
+
+        NamedThreadFactory(String id) {
+            this.id = id;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, id + "-" + n.getAndIncrement());
+            thread.setDaemon(isDaemon());
+            return thread;
+        }
+    }
+
+}
@@ -0,0 +1,487 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+
+import org.lealone.db.Constants;
+import org.lealone.db.value.Transfer;
+
+/**
+ * A client connection of {@link NioServer}.
+ *
+ * The I/O thread appends the received bytes to the input buffer and finds out the complete requests
+ * by the frame headers of the protocol (the handshake is not framed, so it is scanned by its format),
+ * only then the connection is dispatched to the worker thread pool. A worker thread processes all complete
+ * requests in the input buffer and then releases the connection, so at most one worker thread processes
+ * a connection at the same time, and a slow client never blocks a worker thread by a partial request.
+ *
+ * The requests of the clients that only support the protocol versions before
+ * {@link Constants#TCP_PROTOCOL_VERSION_3} are not framed, all the received bytes are handed over to
+ * the worker thread, which waits for the rest of a partial request like {@link TcpServerThread} does.
+ *
+ * @author zhh
+ */
+class NioServerConnection implements Runnable {
+
+    private static final int MAX_PENDING_OUTPUT_SIZE = 1024 * 1024;
+
+    private final SocketChannel channel;
+    private final NioServer server;
+    private final NioEventLoop eventLoop;
+    private final String name;
+
+    private final ChannelInputStream in = new ChannelInputStream();
+    private final ChannelOutputStream out = new ChannelOutputStream();
+    private final Transfer transfer;
+    private final TcpServerThread conn;
+
+    private volatile SelectionKey selectionKey;
+    private boolean scheduled; // 是否已经提交给工作线程池
+    private boolean handshaked;
+    private boolean closed;
+
+    NioServerConnection(SocketChannel channel, NioServer server, NioEventLoop eventLoop, String name) {
+        this.channel = channel;
+        this.server = server;
+        this.eventLoop = eventLoop;
+        this.name = name;
+        transfer = new Transfer(channel.socket());
+        transfer.init(in, out);
+        conn = new TcpServerThread(transfer, server, name);
+    }
+
+    SocketChannel getChannel() {
+        return channel;
+    }
+
+    SelectionKey getSelectionKey() {
+        return selectionKey;
+    }
+
+    void setSelectionKey(SelectionKey selectionKey) {
+        this.selectionKey = selectionKey;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+    /**
+     * Read the available bytes from the channel, only called by the I/O thread.
+     *
+     * @param buffer the read buffer of the I/O thread
+     * @return false if the end of stream has been reached
+     */
+    boolean read(ByteBuffer buffer) {
+        try {
+            int n = channel.read(buffer);
+            if (n < 0) {
+                in.setEndOfStream();
+                return false;
+            }
+            buffer.flip();
+            in.append(buffer);
+            return true;
+        } catch (IOException e) {
+            server.traceError(e);
+            in.setEndOfStream();
+            return false;
+        }
+    }
+
+    /**
+     * Write the pending output to the channel, only called by the I/O thread.
+     *
+     * @return true if all pending output has been written
+     */
+    boolean writePendingOutput() {
+        return out.writePendingOutput();
+    }
+
+    /**
+     * Submit this connection to the worker thread pool if it is not yet submitted
+     * and there is a complete request or the end of stream has been reached.
+     *
+     * @return false if the worker thread pool is full
+     */
+    boolean dispatch() {
+        synchronized (this) {
+            if (scheduled || closed)
+                return true;
+            if (!in.hasCompleteRequest() && !in.isEndOfStream())
+                return true;
+            scheduled = true;
+        }
+        if (server.execute(this))
+            return true;
+        synchronized (this) {
+            scheduled = false;
+        }
+        return false;
+    }
+
+    @Override
+    public void run() {
+        try {
+            if (!handshaked) {
+                handshaked = true;
+                if (!conn.handshake()) {
+                    close();
+                    return;
+                }
+                in.setFramed(transfer.getVersion() >= Constants.TCP_PROTOCOL_VERSION_3);
+            }
+            while (!conn.isStopped() && in.hasCompleteRequest()) {
+                conn.processRequest();
+            }
+        } catch (Throwable e) {
+            server.traceError(e);
+            close();
+            return;
+        }
+
+        if (conn.isStopped() || in.isEndOfStream()) {
+            if (server.isTraceEnabled())
+                server.trace(name + " Disconnect");
+            close();
+            return;
+        }
+        synchronized (this) {
+            scheduled = false;
+        }
+        // I/O线程可能在scheduled重置之前又收到了新的数据
+        if (in.hasCompleteRequest() && !dispatch())
+            eventLoop.redispatch(this);
+    }
+
+    /**
+     * Close a connection.
+     */
+    void close() {
+        synchronized (this) {
+            if (closed)
+                return;
+            closed = true;
+        }
+        try {
+            in.setEndOfStream();
+            conn.close();
+        } finally {
+            out.close();
+            // conn.close()在发送剩余数据出错时不会关闭socket，所以这里总是关闭channel
+            try {
+                channel.close();
+            } catch (IOException e) {
+                server.traceError(e);
+            }
+            SelectionKey key = selectionKey;
+            if (key != null)
+                key.cancel();
+            server.remove(this);
+        }
+    }
+
+    /**
+     * Cancel a running statement.
+     *
+     * @param targetSessionId the session id
+     * @param statementId the statement to cancel
+     */
+    void cancelStatement(String targetSessionId, int statementId) {
+        conn.cancelStatement(targetSessionId, statementId);
+    }
+
+    /**
+     * The bytes received by the I/O thread, a worker thread only reads the complete messages,
+     * a complete message ends at a frame without the {@link Transfer#FRAME_CONTINUED} flag.
+     * If the protocol is not framed, all received bytes are complete and a worker thread waits for more.
+     */
+    private static class ChannelInputStream extends InputStream {
+
+        private static final int INITIAL_SIZE = 1024;
+        private static final int SHRINK_SIZE = 64 * 1024;
+
+        private byte[] buff = new byte[INITIAL_SIZE];
+        private int readPos;
+        private int writePos;
+        private int scanPos; // 下一个待扫描的帧的开始位置
+        private int completeEnd; // 已经完整接收的消息的结束位置
+        private boolean handshakeScanned;
+        private boolean negotiated; // 握手之后是否已经知道协议版本
+        private boolean framed;
+        private boolean endOfStream;
+        private boolean broken;
+
+        synchronized void append(ByteBuffer src) {
+            int len = src.remaining();
+            if (writePos + len > buff.length) {
+                int size = writePos - readPos;
+                byte[] newBuff = buff;
+                if (size + len > buff.length)
+                    newBuff = new byte[Math.max(buff.length * 2, size + len)];
+                System.arraycopy(buff, readPos, newBuff, 0, size);
+                buff = newBuff;
+                scanPos -= readPos;
+                completeEnd -= readPos;
+                readPos = 0;
+                writePos = size;
+            }
+            src.get(buff, writePos, len);
+            writePos += len;
+            scan();
+            notifyAll();
+        }
+
+        synchronized void setFramed(boolean framed) {
+            this.framed = framed;
+            negotiated = true;
+            scan();
+        }
+
+        private void scan() {
+            if (!handshakeScanned) {
+                int end = scanHandshake();
+                if (end < 0)
+                    return;
+                handshakeScanned = true;
+                scanPos = completeEnd = end;
+            }
+            // 客户端在收到握手的响应之前不会发送请求，所以协商好版本之前不用扫描
+            if (!negotiated)
+                return;
+            if (!framed) {
+                scanPos = completeEnd = writePos;
+                return;
+            }
+            while (writePos - scanPos >= 4) {
+                int header = getInt(scanPos);
+                int end = scanPos + 4 + (header & ~Transfer.FRAME_CONTINUED);
+                if (end < 0 || end > writePos)
+                    break;
+                scanPos = end;
+                if ((header & Transfer.FRAME_CONTINUED) == 0)
+                    completeEnd = end;
+            }
+        }
+
+        /**
+         * Scan the handshake written by the client, see TcpServerThread.handshake().
+         *
+         * @return the end position of the handshake, or -1 if it is not complete
+         */
+        private int scanHandshake() {
+            int pos = readPos + 8; // minClientVersion, maxClientVersion
+            if (pos + 4 > writePos)
+                return -1;
+            boolean isCancel = getInt(pos) == -1;
+            pos = skip(pos, 2); // dbName
+            if (pos < 0 || pos + 4 > writePos)
+                return -1;
+            isCancel = isCancel && getInt(pos) == -1;
+            pos = skip(pos, 2); // originalURL
+            if (isCancel) {
+                pos = skip(pos, 2); // targetSessionId
+                pos = pos < 0 ? -1 : pos + 8; // command, statementId
+            } else {
+                pos = skip(pos, 2); // userName
+                pos = skip(pos, 1); // userPasswordHash
+                pos = skip(pos, 1); // filePasswordHash
+                pos = skip(pos, 1); // fileEncryptionKey
+                if (pos < 0 || pos + 4 > writePos)
+                    return -1;
+                int len = getInt(pos);
+                pos += 4;
+                for (int i = 0; i < len && pos >= 0; i++) {
+                    pos = skip(pos, 2); // key
+                    pos = skip(pos, 2); // value
+                }
+            }
+            return pos < 0 || pos > writePos ? -1 : pos;
+        }
+
+        // 跳过一个字符串或字节数组，不完整时返回-1
+        private int skip(int pos, int elementSize) {
+            if (pos < 0 || pos + 4 > writePos)
+                return -1;
+            int len = getInt(pos);
+            pos += 4;
+            if (len <= 0) // 负数由工作线程按协议出错处理
+                return pos;
+            long end = pos + (long) len * elementSize;
+            return end > writePos ? -1 : (int) end;
+        }
+
+        private int getInt(int pos) {
+            return ((buff[pos] & 0xff) << 24) | ((buff[pos + 1] & 0xff) << 16) | ((buff[pos + 2] & 0xff) << 8)
+                    | (buff[pos + 3] & 0xff);
+        }
+
+        synchronized boolean hasCompleteRequest() {
+            return !broken && completeEnd > readPos;
+        }
+
+        synchronized void setEndOfStream() {
+            endOfStream = true;
+            notifyAll();
+        }
+
+        /**
+         * Whether the end of stream has been reached and all complete requests have been read,
+         * the bytes of an incomplete request at the end of stream are discarded.
+         *
+         * @return true if the connection can be closed
+         */
+        synchronized boolean isEndOfStream() {
+            return broken || endOfStream && completeEnd == readPos;
+        }
+
+        private void checkAvailable() throws IOException {
+            // 不分帧的请求可能还没有收完，等I/O线程收到剩下的数据
+            while (readPos == completeEnd && negotiated && !framed && !endOfStream) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+            if (readPos == completeEnd) {
+                if (endOfStream)
+                    throw new EOFException();
+                // 客户端发送的请求跟帧头不一致，后面的数据已经无法解析了
+                broken = true;
+                throw new IOException("Incomplete request");
+            }
+        }
+
+        private void consumed() {
+            if (readPos == writePos) {
+                readPos = writePos = scanPos = completeEnd = 0;
+                // 避免空闲连接长期占用一个大的缓冲区
+                if (buff.length > SHRINK_SIZE)
+                    buff = new byte[INITIAL_SIZE];
+            }
+        }
+
+        @Override
+        public synchronized int read() throws IOException {
+            checkAvailable();
+            int b = buff[readPos++] & 0xff;
+            consumed();
+            return b;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+            checkAvailable();
+            len = Math.min(len, completeEnd - readPos);
+            System.arraycopy(buff, readPos, b, off, len);
+            readPos += len;
+            consumed();
+            return len;
+        }
+
+        @Override
+        public synchronized int available() {
+            return completeEnd - readPos;
+        }
+    }
+
+    /**
+     * Writes to the channel directly if possible, otherwise the bytes are queued
+     * and written by the I/O thread when the channel is writable.
+     */
+    private class ChannelOutputStream extends OutputStream {
+
+        private final ArrayDeque<ByteBuffer> pendingOutput = new ArrayDeque<>();
+        private int pendingOutputSize;
+        private boolean closed;
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) throws IOException {
+            if (closed)
+                throw new EOFException();
+            ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+            if (pendingOutput.isEmpty()) {
+                channel.write(buffer);
+                if (!buffer.hasRemaining())
+                    return;
+                eventLoop.enableWrite(NioServerConnection.this);
+            }
+            // 调用者会重用b，所以要复制
+            ByteBuffer copy = ByteBuffer.allocate(buffer.remaining());
+            copy.put(buffer);
+            copy.flip();
+            pendingOutput.add(copy);
+            pendingOutputSize += copy.remaining();
+
+            // 客户端读得太慢时让工作线程等待，避免积压太多待发送的数据
+            while (pendingOutputSize > MAX_PENDING_OUTPUT_SIZE && !closed) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+        }
+
+        synchronized boolean writePendingOutput() {
+            try {
+                while (!pendingOutput.isEmpty()) {
+                    ByteBuffer buffer = pendingOutput.peek();
+                    int n = channel.write(buffer);
+                    pendingOutputSize -= n;
+                    if (buffer.hasRemaining())
+                        return false;
+                    pendingOutput.poll();
+                }
+            } catch (IOException e) {
+                server.traceError(e);
+                close();
+                in.setEndOfStream();
+            }
+            notifyAll();
+            return true;
+        }
+
+        @Override
+        public synchronized void close() {
+            closed = true;
+            pendingOutput.clear();
+            pendingOutputSize = 0;
+            notifyAll();
+        }
+    }
+
+}
@@ -51,6 +51,8 @@ public class TcpServer implements ProtocolServer {
             listenAddress = config.get("listen_address");
         if (config.containsKey("listen_port"))
             port = Integer.parseInt(config.get("listen_port"));
+        else if (config.containsKey("port"))
+            port = Integer.parseInt(config.get("port"));
 
         baseDir = config.get("base_dir");
 
@@ -226,6 +228,10 @@ public class TcpServer implements ProtocolServer {
         return baseDir;
     }
 
+    boolean isSSL() {
+        return ssl;
+    }
+
     boolean getIfExists() {
         return ifExists;
     }
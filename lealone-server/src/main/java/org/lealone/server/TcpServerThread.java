@@ -47,6 +47,9 @@ import org.lealone.storage.type.WriteBufferPool;
 /**
  * One server thread is opened per client connection.
  * 
+ * {@link NioServer} does not start the thread, its worker threads call {@link #handshake()}
+ * and {@link #processRequest()} when the requests of the client have been received.
+ * 
  * @author H2 Group
  * @author zhh
  */
@@ -60,6 +63,7 @@ public class TcpServerThread extends Thread implements Comparable<TcpServerThrea
 
     private Session session;
     private String sessionId;
+    private int requestId; // 当前正在处理的请求的ID，响应包需要带上它
     private boolean stop;
 
     protected TcpServerThread(Socket socket, TcpServer server) {
@@ -67,6 +71,12 @@ public class TcpServerThread extends Thread implements Comparable<TcpServerThrea
         this.transfer = new Transfer(socket);
     }
 
+    TcpServerThread(Transfer transfer, TcpServer server, String name) {
+        super(name);
+        this.server = server;
+        this.transfer = transfer;
+    }
+
     private void trace(String s) {
         server.trace(this + " " + s);
     }
@@ -80,66 +90,9 @@ public class TcpServerThread extends Thread implements Comparable<TcpServerThrea
     public void run() {
         try {
             transfer.init();
-            if (server.isTraceEnabled())
-                trace("Connect");
-            // TODO server: should support a list of allowed databases
-            // and a list of allowed clients
-            try {
-                if (!server.allow(transfer.getSocket())) {
-                    throw DbException.get(ErrorCode.REMOTE_CONNECTION_NOT_ALLOWED);
-                }
-                int minClientVersion = transfer.readInt();
-                if (minClientVersion < Constants.TCP_PROTOCOL_VERSION_MIN) {
-                    throw DbException.get(ErrorCode.DRIVER_VERSION_ERROR_2, "" + minClientVersion, ""
-                            + Constants.TCP_PROTOCOL_VERSION_MIN);
-                } else if (minClientVersion > Constants.TCP_PROTOCOL_VERSION_MAX) {
-                    throw DbException.get(ErrorCode.DRIVER_VERSION_ERROR_2, "" + minClientVersion, ""
-                            + Constants.TCP_PROTOCOL_VERSION_MAX);
-                }
-                int clientVersion;
-                int maxClientVersion = transfer.readInt();
-                if (maxClientVersion >= Constants.TCP_PROTOCOL_VERSION_MAX) {
-                    clientVersion = Constants.TCP_PROTOCOL_VERSION_CURRENT;
-                } else {
-                    clientVersion = minClientVersion;
-                }
-                transfer.setVersion(clientVersion);
-                String dbName = transfer.readString();
-                String originalURL = transfer.readString();
-                if (dbName == null && originalURL == null) {
-                    String targetSessionId = transfer.readString();
-                    int command = transfer.readInt();
-                    stop = true;
-                    if (command == Session.SESSION_CANCEL_STATEMENT) {
-                        // cancel a running statement
-                        int statementId = transfer.readInt();
-                        server.cancelStatement(targetSessionId, statementId);
-                    } else {
-                        throw DbException.throwInternalError();
-                    }
-                }
-
-                String userName = transfer.readString();
-                userName = StringUtils.toUpperEnglish(userName);
-                session = createSession(originalURL, dbName, userName);
-                transfer.setSession(session);
-                transfer.writeInt(Session.STATUS_OK);
-                transfer.writeInt(clientVersion);
-                transfer.flush();
-                if (server.isTraceEnabled())
-                    trace("Connected");
-            } catch (Throwable e) {
-                sendError(e);
-                stop = true;
-            }
+            handshake();
             while (!stop) {
-                try {
-                    process();
-                } catch (Throwable e) {
-                    if (server.isTraceEnabled())
-                        server.traceError(e);
-                    sendError(e);
-                }
+                processRequest();
             }
             if (server.isTraceEnabled())
                 trace("Disconnect");
@@ -150,6 +103,85 @@ public class TcpServerThread extends Thread implements Comparable<TcpServerThrea
         }
     }
 
+    boolean isStopped() {
+        return stop;
+    }
+
+    /**
+     * Read the connection request of the client and create the server side session.
+     *
+     * @return true if the connection can continue to process requests
+     */
+    boolean handshake() {
+        if (server.isTraceEnabled())
+            trace("Connect");
+        // TODO server: should support a list of allowed databases
+        // and a list of allowed clients
+        try {
+            if (!server.allow(transfer.getSocket())) {
+                throw DbException.get(ErrorCode.REMOTE_CONNECTION_NOT_ALLOWED);
+            }
+            int minClientVersion = transfer.readInt();
+            if (minClientVersion < Constants.TCP_PROTOCOL_VERSION_MIN) {
+                throw DbException.get(ErrorCode.DRIVER_VERSION_ERROR_2, "" + minClientVersion, ""
+                        + Constants.TCP_PROTOCOL_VERSION_MIN);
+            } else if (minClientVersion > Constants.TCP_PROTOCOL_VERSION_MAX) {
+                throw DbException.get(ErrorCode.DRIVER_VERSION_ERROR_2, "" + minClientVersion, ""
+                        + Constants.TCP_PROTOCOL_VERSION_MAX);
+            }
+            int clientVersion;
+            int maxClientVersion = transfer.readInt();
+            if (maxClientVersion >= Constants.TCP_PROTOCOL_VERSION_MAX) {
+                clientVersion = Constants.TCP_PROTOCOL_VERSION_CURRENT;
+            } else {
+                clientVersion = minClientVersion;
+            }
+            String dbName = transfer.readString();
+            String originalURL = transfer.readString();
+            if (dbName == null && originalURL == null) {
+                String targetSessionId = transfer.readString();
+                int command = transfer.readInt();
+                stop = true;
+                if (command == Session.SESSION_CANCEL_STATEMENT) {
+                    // cancel a running statement
+                    int statementId = transfer.readInt();
+                    server.cancelStatement(targetSessionId, statementId);
+                } else {
+                    throw DbException.throwInternalError();
+                }
+            }
+
+            String userName = transfer.readString();
+            userName = StringUtils.toUpperEnglish(userName);
+            session = createSession(originalURL, dbName, userName);
+            transfer.setSession(session);
+            transfer.writeInt(Session.STATUS_OK);
+            transfer.writeInt(clientVersion);
+            transfer.flush();
+            // 握手的响应包不带请求ID，从下一个请求开始才按协商好的版本处理
+            transfer.setVersion(clientVersion);
+            if (server.isTraceEnabled())
+                trace("Connected");
+        } catch (Throwable e) {
+            sendError(e);
+            stop = true;
+        }
+        return !stop;
+    }
+
+    /**
+     * Process one client request, if the request fails the error is sent back to the client.
+     */
+    void processRequest() {
+        try {
+            process();
+        } catch (Throwable e) {
+            if (server.isTraceEnabled())
+                server.traceError(e);
+            sendError(e);
+        }
+    }
+
     private Session createSession(String originalURL, String dbName, String userName) throws IOException {
         ConnectionInfo ci = new ConnectionInfo(originalURL, dbName);
         ci.setUserName(userName);
@@ -265,8 +297,8 @@ public class TcpServerThread extends Thread implements Comparable<TcpServerThrea
 
             transfer.reset(); // 为什么要reset? 见reset中的注释
 
-            transfer.writeInt(Session.STATUS_ERROR).writeString(e.getSQLState()).writeString(message).writeString(sql)
-                    .writeInt(e.getErrorCode()).writeString(trace).flush();
+            transfer.writeResponseHeader(requestId, Session.STATUS_ERROR).writeString(e.getSQLState())
+                    .writeString(message).writeString(sql).writeInt(e.getErrorCode()).writeString(trace).flush();
         } catch (Exception e2) {
             if (!transfer.isClosed()) {
                 server.traceError(e2);
@@ -358,7 +390,7 @@ public class TcpServerThread extends Thread implements Comparable<TcpServerThrea
         } else {
             status = getState(old);
         }
-        transfer.writeInt(status);
+        transfer.writeResponseHeader(requestId, status);
         int[] result = command.getResult();
         command.close();
         for (int i = 0; i < size; i++)
@@ -373,7 +405,7 @@ public class TcpServerThread extends Thread implements Comparable<TcpServerThrea
             result = command.query(maxRows, false);
         }
         cache.addObject(objectId, result);
-        transfer.writeInt(getState(oldModificationId));
+        transfer.writeResponseHeader(requestId, getState(oldModificationId));
 
         if (operation == Session.COMMAND_DISTRIBUTED_TRANSACTION_QUERY
                 || operation == Session.COMMAND_DISTRIBUTED_TRANSACTION_PREPARED_QUERY)
@@ -404,7 +436,7 @@ public class TcpServerThread extends Thread implements Comparable<TcpServerThrea
         } else {
             status = getState(oldModificationId);
         }
-        transfer.writeInt(status);
+        transfer.writeResponseHeader(requestId, status);
         if (operation == Session.COMMAND_DISTRIBUTED_TRANSACTION_UPDATE
                 || operation == Session.COMMAND_DISTRIBUTED_TRANSACTION_PREPARED_UPDATE)
             transfer.writeString(session.getTransaction().getLocalTransactionNames());
@@ -415,6 +447,7 @@ public class TcpServerThread extends Thread implements Comparable<TcpServerThrea
 
     private void process() throws IOException {
         int operation = transfer.readInt();
+        requestId = transfer.readRequestId();
         switch (operation) {
         case Session.COMMAND_PREPARE_READ_PARAMS:
         case Session.COMMAND_PREPARE: {
@@ -424,7 +457,7 @@ public class TcpServerThread extends Thread implements Comparable<TcpServerThrea
             PreparedStatement command = session.prepareStatement(sql, -1);
             cache.addObject(id, command);
             boolean isQuery = command.isQuery();
-            transfer.writeInt(getState(old)).writeBoolean(isQuery);
+            transfer.writeResponseHeader(requestId, getState(old)).writeBoolean(isQuery);
             if (operation == Session.COMMAND_PREPARE_READ_PARAMS) {
                 List<? extends CommandParameter> params = command.getParameters();
                 transfer.writeInt(params.size());
@@ -525,7 +558,7 @@ public class TcpServerThread extends Thread implements Comparable<TcpServerThrea
             } else {
                 status = getState(old);
             }
-            transfer.writeInt(status);
+            transfer.writeResponseHeader(requestId, status);
             if (operation == Session.COMMAND_STORAGE_DISTRIBUTED_PUT)
                 transfer.writeString(session.getTransaction().getLocalTransactionNames());
 
@@ -560,7 +593,7 @@ public class TcpServerThread extends Thread implements Comparable<TcpServerThrea
             } else {
                 status = getState(old);
             }
-            transfer.writeInt(status);
+            transfer.writeResponseHeader(requestId, status);
             if (operation == Session.COMMAND_STORAGE_DISTRIBUTED_PUT)
                 transfer.writeString(session.getTransaction().getLocalTransactionNames());
 
@@ -590,7 +623,7 @@ public class TcpServerThread extends Thread implements Comparable<TcpServerThrea
             } else {
                 status = getState(old);
             }
-            transfer.writeInt(status);
+            transfer.writeResponseHeader(requestId, status);
             transfer.flush();
             break;
         }
@@ -610,7 +643,7 @@ public class TcpServerThread extends Thread implements Comparable<TcpServerThrea
             } else {
                 status = getState(old);
             }
-            transfer.writeInt(status);
+            transfer.writeResponseHeader(requestId, status);
             transfer.flush();
             break;
         }
@@ -621,7 +654,7 @@ public class TcpServerThread extends Thread implements Comparable<TcpServerThrea
             Result result = command.getMetaData();
             cache.addObject(objectId, result);
             int columnCount = result.getVisibleColumnCount();
-            transfer.writeInt(Session.STATUS_OK).writeInt(columnCount).writeInt(0);
+            transfer.writeResponseHeader(requestId, Session.STATUS_OK).writeInt(columnCount).writeInt(0);
             for (int i = 0; i < columnCount; i++) {
                 writeColumn(result, i);
             }
@@ -639,7 +672,7 @@ public class TcpServerThread extends Thread implements Comparable<TcpServerThrea
             } else {
                 status = getState(old);
             }
-            transfer.writeInt(status);
+            transfer.writeResponseHeader(requestId, status);
             transfer.flush();
             break;
         }
@@ -654,7 +687,7 @@ public class TcpServerThread extends Thread implements Comparable<TcpServerThrea
             } else {
                 status = getState(old);
             }
-            transfer.writeInt(status);
+            transfer.writeResponseHeader(requestId, status);
             transfer.flush();
             break;
         }
@@ -674,7 +707,7 @@ public class TcpServerThread extends Thread implements Comparable<TcpServerThrea
             } else {
                 status = getState(old);
             }
-            transfer.writeInt(status);
+            transfer.writeResponseHeader(requestId, status);
             transfer.flush();
             break;
         }
@@ -687,7 +720,7 @@ public class TcpServerThread extends Thread implements Comparable<TcpServerThrea
             } else {
                 status = getState(old);
             }
-            transfer.writeInt(status);
+            transfer.writeResponseHeader(requestId, status);
             transfer.writeBoolean(isValid);
             transfer.flush();
             break;
@@ -733,7 +766,7 @@ public class TcpServerThread extends Thread implements Comparable<TcpServerThrea
             int id = transfer.readInt();
             int count = transfer.readInt();
             Result result = (Result) cache.getObject(id, false);
-            transfer.writeInt(Session.STATUS_OK);
+            transfer.writeResponseHeader(requestId, Session.STATUS_OK);
             writeRow(result, count);
             transfer.flush();
             break;
@@ -763,7 +796,7 @@ public class TcpServerThread extends Thread implements Comparable<TcpServerThrea
         }
         case Session.SESSION_SET_ID: {
             sessionId = transfer.readString();
-            transfer.writeInt(Session.STATUS_OK);
+            transfer.writeResponseHeader(requestId, Session.STATUS_OK);
             transfer.writeBoolean(session.isAutoCommit());
             transfer.flush();
             break;
@@ -771,13 +804,13 @@ public class TcpServerThread extends Thread implements Comparable<TcpServerThrea
         case Session.SESSION_SET_AUTO_COMMIT: {
             boolean autoCommit = transfer.readBoolean();
             session.setAutoCommit(autoCommit);
-            transfer.writeInt(Session.STATUS_OK).flush();
+            transfer.writeResponseHeader(requestId, Session.STATUS_OK).flush();
             break;
         }
         case Session.SESSION_CLOSE: {
             stop = true;
             closeSession();
-            transfer.writeInt(Session.STATUS_OK).flush();
+            transfer.writeResponseHeader(requestId, Session.STATUS_OK).flush();
             close();
             break;
         }
@@ -809,7 +842,7 @@ public class TcpServerThread extends Thread implements Comparable<TcpServerThrea
             length = Math.min(16 * Constants.IO_BUFFER_SIZE, length);
             byte[] buff = new byte[length];
             length = IOUtils.readFully(in, buff, length);
-            transfer.writeInt(Session.STATUS_OK);
+            transfer.writeResponseHeader(requestId, Session.STATUS_OK);
             transfer.writeInt(length);
             transfer.writeBytes(buff, 0, length);
             transfer.flush();
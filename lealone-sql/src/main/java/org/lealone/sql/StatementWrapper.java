@@ -12,7 +12,6 @@ import org.lealone.api.DatabaseEventListener;
 import org.lealone.api.ErrorCode;
 import org.lealone.common.exceptions.DbException;
 import org.lealone.common.trace.Trace;
-import org.lealone.common.util.MathUtils;
 import org.lealone.db.Constants;
 import org.lealone.db.Database;
 import org.lealone.db.ServerSession;
@@ -21,6 +20,7 @@ import org.lealone.db.value.Value;
 import org.lealone.db.value.ValueNull;
 import org.lealone.sql.expression.Parameter;
 import org.lealone.sql.router.RouterHolder;
+import org.lealone.transaction.Transaction;
 
 /**
  * Represents a SQL statement wrapper.
@@ -348,27 +348,22 @@ class StatementWrapper extends StatementBase {
             throw e;
         }
         long now = System.nanoTime() / 1000000;
-        if (start != 0 && now - start > session.getLockTimeout()) {
-            throw DbException.get(ErrorCode.LOCK_TIMEOUT_1, e.getCause(), "");
+        if (start == 0) {
+            start = now;
         }
+        long timeout = session.getLockTimeout() - (now - start);
         Database database = session.getDatabase();
-        int sleep = 1 + MathUtils.randomInt(10);
-        while (true) {
-            try {
-                if (database.isMultiThreaded()) {
-                    Thread.sleep(sleep);
-                } else {
-                    database.wait(sleep);
-                }
-            } catch (InterruptedException e1) {
-                // ignore
-            }
-            long slept = System.nanoTime() / 1000000 - now;
-            if (slept >= sleep) {
-                break;
-            }
+        Transaction transaction = session.getTransaction();
+        // 等待持有行锁的事务结束后马上重试，没有在等行锁时(比如自动提交的事务换了新的快照)也马上重试；
+        // 非多线程模式下当前线程持有database的锁，要在database上等待，这样持有行锁的事务才能结束
+        if (database.isMultiThreaded())
+            transaction.waitForLockRelease(timeout);
+        else
+            transaction.waitForLockRelease(timeout, database);
+        if (timeout < 0) {
+            throw DbException.get(ErrorCode.LOCK_TIMEOUT_1, e.getCause(), "");
         }
-        return start == 0 ? now : start;
+        return start;
     }
 
     private void stop() {
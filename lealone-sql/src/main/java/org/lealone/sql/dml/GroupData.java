@@ -0,0 +1,107 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.sql.dml;
+
+/**
+ * The aggregate state of one group of a group query.
+ * <p>
+ * Each aggregate function and each column that is read in the group gets a
+ * fixed slot number from the select statement (see
+ * {@link Select#allocateGroupSlot}), so a group only needs an array instead of
+ * a hash map. Counters (COUNT(*), COUNT(x)) are kept in a long array, so no
+ * object is created for them at all.
+ */
+public class GroupData {
+
+    private Object[] values;
+    private long[] counts;
+    private final int slotCount;
+
+    GroupData(int slotCount) {
+        this.slotCount = slotCount;
+    }
+
+    /**
+     * Get the object stored in the given slot.
+     *
+     * @param slot the slot number
+     * @return the object, or null if not set
+     */
+    public Object get(int slot) {
+        if (values == null || slot >= values.length) {
+            return null;
+        }
+        return values[slot];
+    }
+
+    /**
+     * Store an object in the given slot.
+     *
+     * @param slot the slot number
+     * @param value the object
+     */
+    public void put(int slot, Object value) {
+        if (values == null) {
+            values = new Object[Math.max(slotCount, slot + 1)];
+        } else if (slot >= values.length) {
+            Object[] newValues = new Object[slot + 1];
+            System.arraycopy(values, 0, newValues, 0, values.length);
+            values = newValues;
+        }
+        values[slot] = value;
+    }
+
+    /**
+     * Get the counter of the given slot.
+     *
+     * @param slot the slot number
+     * @return the counter
+     */
+    public long getCount(int slot) {
+        if (counts == null || slot >= counts.length) {
+            return 0;
+        }
+        return counts[slot];
+    }
+
+    /**
+     * Increment the counter of the given slot.
+     *
+     * @param slot the slot number
+     */
+    public void increment(int slot) {
+        addCount(slot, 1);
+    }
+
+    /**
+     * Add to the counter of the given slot.
+     *
+     * @param slot the slot number
+     * @param count the number to add
+     */
+    public void addCount(int slot, long count) {
+        if (counts == null) {
+            counts = new long[Math.max(slotCount, slot + 1)];
+        } else if (slot >= counts.length) {
+            long[] newCounts = new long[slot + 1];
+            System.arraycopy(counts, 0, newCounts, 0, counts.length);
+            counts = newCounts;
+        }
+        counts[slot] += count;
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.sql.dml;
+
+import org.lealone.db.ServerSession;
+import org.lealone.db.result.LocalResult;
+import org.lealone.db.result.Row;
+import org.lealone.db.table.TableFilter;
+import org.lealone.db.value.Value;
+import org.lealone.db.value.ValueArray;
+import org.lealone.db.value.ValueInt;
+import org.lealone.db.value.ValueLong;
+import org.lealone.db.value.ValueNull;
+import org.lealone.sql.expression.Expression;
+import org.lealone.sql.expression.ValueExpression;
+
+/**
+ * The rows of a group query that belong to groups that did not fit in memory.
+ * <p>
+ * The rows are split into partitions by the hash code of the group key, so
+ * that all rows of a group are in the same partition and each partition can
+ * be aggregated on its own later. A partition is a local result, which is
+ * moved to a temporary table once it has more than MAX_MEMORY_ROWS rows.
+ * <p>
+ * Instead of the aggregate state, the current rows of all table filters are
+ * stored, so that any aggregate function can be calculated when the rows are
+ * read again.
+ */
+class GroupPartitions {
+
+    private static final int PARTITIONS = 16;
+
+    /**
+     * The hash code has 32 bits and each level uses 4 of them. After the last
+     * level, the groups are kept in memory even if there are too many.
+     */
+    private static final int MAX_LEVEL = 3;
+
+    private static final Expression[] EXPRESSIONS = { ValueExpression.get(ValueArray.get(new Value[0])) };
+
+    private final ServerSession session;
+    private final TableFilter[] filters;
+    private final int level;
+    private final LocalResult[] partitions = new LocalResult[PARTITIONS];
+
+    private int partitionId = -1;
+    private LocalResult current;
+    private Value key;
+    private int rowNumber;
+
+    GroupPartitions(ServerSession session, TableFilter[] filters, int level) {
+        this.session = session;
+        this.filters = filters;
+        this.level = level;
+    }
+
+    /**
+     * Create the partitions that are used for the groups of one partition
+     * that again do not fit in memory.
+     *
+     * @return the partitions, or null if the groups should be kept in memory
+     */
+    GroupPartitions createChild() {
+        return level >= MAX_LEVEL ? null : new GroupPartitions(session, filters, level + 1);
+    }
+
+    /**
+     * Add the current rows of the table filters.
+     *
+     * @param groupKey the group key
+     * @param currentRowNumber the current row number
+     */
+    void addRow(Value groupKey, int currentRowNumber) {
+        Value[] data = new Value[filters.length + 2];
+        data[0] = groupKey;
+        data[1] = ValueInt.get(currentRowNumber);
+        for (int i = 0; i < filters.length; i++) {
+            Row row = filters[i].get();
+            if (row == null) {
+                data[i + 2] = ValueNull.INSTANCE;
+            } else {
+                Value[] values = row.getValueList();
+                Value[] list = new Value[values.length + 1];
+                System.arraycopy(values, 0, list, 0, values.length);
+                list[values.length] = ValueLong.get(row.getKey());
+                data[i + 2] = ValueArray.get(list);
+            }
+        }
+        addRow(groupKey, ValueArray.get(data));
+    }
+
+    private void addRow(Value groupKey, Value data) {
+        int id = (groupKey.hashCode() >>> (level * 4)) & (PARTITIONS - 1);
+        LocalResult result = partitions[id];
+        if (result == null) {
+            result = new LocalResult(session, EXPRESSIONS, 1);
+            partitions[id] = result;
+        }
+        result.addRow(new Value[] { data });
+    }
+
+    /**
+     * Add the row that was read last to the given partitions.
+     *
+     * @param child the partitions of the next level
+     */
+    void moveRow(GroupPartitions child) {
+        child.addRow(key, current.currentRow()[0]);
+    }
+
+    /**
+     * Go to the next partition that contains rows.
+     *
+     * @return true if there is such a partition
+     */
+    boolean nextPartition() {
+        if (current != null) {
+            current.close();
+            partitions[partitionId] = null;
+            current = null;
+        }
+        while (++partitionId < PARTITIONS) {
+            if (partitions[partitionId] != null) {
+                current = partitions[partitionId];
+                current.done();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Read the next row of the current partition, and set the current rows of
+     * the table filters.
+     *
+     * @return true if there is a row
+     */
+    boolean next() {
+        if (!current.next()) {
+            return false;
+        }
+        Value[] data = ((ValueArray) current.currentRow()[0]).getList();
+        key = data[0];
+        rowNumber = data[1].getInt();
+        for (int i = 0; i < filters.length; i++) {
+            Value v = data[i + 2];
+            if (v == ValueNull.INSTANCE) {
+                filters[i].set(null);
+            } else {
+                Value[] list = ((ValueArray) v).getList();
+                Value[] values = new Value[list.length - 1];
+                System.arraycopy(list, 0, values, 0, values.length);
+                Row row = new Row(values, Row.MEMORY_CALCULATE);
+                row.setKey(list[values.length].getLong());
+                filters[i].set(row);
+            }
+        }
+        return true;
+    }
+
+    Value getKey() {
+        return key;
+    }
+
+    int getRowNumber() {
+        return rowNumber;
+    }
+
+    /**
+     * Remove the rows that were not read.
+     */
+    void close() {
+        for (int i = 0; i < PARTITIONS; i++) {
+            if (partitions[i] != null) {
+                partitions[i].close();
+                partitions[i] = null;
+            }
+        }
+        current = null;
+    }
+}
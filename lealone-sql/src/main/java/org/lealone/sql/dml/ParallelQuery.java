@@ -0,0 +1,475 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.sql.dml;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.lealone.common.exceptions.DbException;
+import org.lealone.db.ServerSession;
+import org.lealone.db.expression.ExpressionVisitor;
+import org.lealone.db.index.Cursor;
+import org.lealone.db.index.Index;
+import org.lealone.db.result.LocalResult;
+import org.lealone.db.result.ResultTarget;
+import org.lealone.db.result.SearchRow;
+import org.lealone.db.table.Table;
+import org.lealone.db.table.TableFilter;
+import org.lealone.db.util.ValueHashMap;
+import org.lealone.db.value.Value;
+import org.lealone.sql.PreparedStatement;
+import org.lealone.sql.expression.Parameter;
+
+/**
+ * Executes a select statement in several threads.
+ * <p>
+ * The rows of the first table are split into ranges of the row key, and each
+ * range is read by its own copy of the select statement, which is prepared
+ * again from the plan SQL of the original statement, so that no expression is
+ * shared between threads. Each copy is prepared in its own partition session,
+ * see {@link ServerSession#createPartitionSession()}, so that only the
+ * transaction of the session is shared, and it is only read.
+ * <p>
+ * For a flat query, the rows of the partitions are sent in batches to the
+ * calling thread, which adds them to the result. For a group query, each
+ * partition aggregates its rows in memory, and the groups are then merged by
+ * the calling thread. The number of partitions is limited by the session
+ * setting MAX_PARALLEL_DEGREE. The partitions are executed by a pool with one
+ * thread per processor, which is shared by all sessions; a query only uses the
+ * threads that are free when it starts.
+ */
+class ParallelQuery {
+
+    /**
+     * A partition should have at least this many rows, otherwise starting a
+     * thread costs more than it saves.
+     */
+    private static final int MIN_PARTITION_ROWS = 1000;
+
+    private static final int BATCH_SIZE = 256;
+
+    private static final Object END_OF_PARTITION = new Object();
+
+    private static final int THREADS = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * The threads of the pool that are not used by a query.
+     */
+    private static final Semaphore freeThreads = new Semaphore(THREADS);
+
+    private static ThreadPoolExecutor pool;
+
+    private final ServerSession session;
+    private final Select[] partitions;
+    private final ServerSession[] partitionSessions;
+
+    private ArrayBlockingQueue<Object> queue;
+    private volatile boolean stopped;
+    private volatile Throwable error;
+
+    private ParallelQuery(ServerSession session, Select[] partitions, ServerSession[] partitionSessions) {
+        this.session = session;
+        this.partitions = partitions;
+        this.partitionSessions = partitionSessions;
+    }
+
+    private static synchronized ThreadPoolExecutor getPool() {
+        if (pool == null) {
+            // 只有拿到freeThreads许可的分区才会提交，所以队列不会满，
+            // 队列里只会有刚结束的分区的线程还没来得及取走的任务
+            pool = new ThreadPoolExecutor(THREADS, THREADS, 60, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<Runnable>(THREADS), new ThreadFactory() {
+                        private final AtomicInteger count = new AtomicInteger();
+
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "ParallelQuery-" + count.incrementAndGet());
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+            pool.allowCoreThreadTimeOut(true);
+        }
+        return pool;
+    }
+
+    /**
+     * Split the given select statement into partitions.
+     *
+     * @param select the select statement
+     * @return the parallel query, or null if the statement should be executed
+     *         in the current thread
+     */
+    static ParallelQuery create(Select select) {
+        ServerSession session = select.getSession();
+        int degree = session.getMaxParallelDegree();
+        // 分区会话的并行度是1，所以嵌套的子查询不再并行执行
+        if (degree <= 1) {
+            return null;
+        }
+        // 没有MVCC时读也要加表锁，分区会话和当前会话的锁会互相等待
+        if (!session.getDatabase().isMultiVersion()) {
+            return null;
+        }
+        TableFilter filter = select.getTopTableFilter();
+        if (!isRangeScan(filter)) {
+            return null;
+        }
+        if (!select.isEverything(ExpressionVisitor.DETERMINISTIC_VISITOR)
+                || !select.isEverything(ExpressionVisitor.INDEPENDENT_VISITOR)) {
+            return null;
+        }
+        Table table = filter.getTable();
+        int count = (int) Math.min(degree, table.getRowCountApproximation() / MIN_PARTITION_ROWS);
+        if (count < 2) {
+            return null;
+        }
+        Index index = filter.getIndex();
+        long first = getKey(index.findFirstOrLast(session, true));
+        long last = getKey(index.findFirstOrLast(session, false));
+        if (first < 0 || last < first || last - first < count) {
+            return null;
+        }
+        Select[] partitions = new Select[count];
+        ServerSession[] partitionSessions = new ServerSession[count];
+        String sql = select.getPlanSQL();
+        for (int i = 0; i < count; i++) {
+            partitionSessions[i] = session.createPartitionSession();
+            Select s = createPartition(select, partitionSessions[i], sql);
+            if (s == null) {
+                return null;
+            }
+            partitions[i] = s;
+        }
+        // 只用空闲的线程，其他查询已经占用了所有线程时就在当前线程中执行
+        int threads = count;
+        while (!freeThreads.tryAcquire(threads)) {
+            threads = Math.min(threads - 1, freeThreads.availablePermits());
+            if (threads < 2) {
+                return null;
+            }
+        }
+        if (threads < count) {
+            count = threads;
+            partitions = Arrays.copyOf(partitions, count);
+            partitionSessions = Arrays.copyOf(partitionSessions, count);
+        }
+        // 第一个和最后一个分区不设边界，这样也能读到刚插入的行
+        long size = (last - first) / count + 1;
+        for (int i = 0; i < count; i++) {
+            SearchRow start = null, end = null;
+            if (i > 0) {
+                start = table.getTemplateRow();
+                start.setKey(first + i * size);
+            }
+            if (i < count - 1) {
+                end = table.getTemplateRow();
+                end.setKey(first + (i + 1) * size - 1);
+            }
+            partitions[i].getTopTableFilter().setScanRange(start, end);
+        }
+        return new ParallelQuery(session, partitions, partitionSessions);
+    }
+
+    private static boolean isRangeScan(TableFilter filter) {
+        Index index = filter.getIndex();
+        return index != null && index.getIndexType().isScan() && index.isRowIdIndex() && index.canGetFirstOrLast()
+                && filter.getIndexConditions().isEmpty();
+    }
+
+    private static long getKey(Cursor cursor) {
+        SearchRow row = cursor.getSearchRow();
+        return row == null ? -1 : row.getKey();
+    }
+
+    private static Select createPartition(Select select, ServerSession session, String sql) {
+        PreparedStatement p;
+        try {
+            p = session.prepareStatement(sql, true).getWrappedStatement();
+        } catch (DbException e) {
+            // 不是所有的计划SQL都能再解析一次，这时就不用并行执行了
+            return null;
+        }
+        if (!(p instanceof Select)) {
+            return null;
+        }
+        Select s = (Select) p;
+        if (!isRangeScan(s.getTopTableFilter()) || s.getExpressions().size() != select.getExpressions().size()) {
+            return null;
+        }
+        ArrayList<Parameter> params = s.getParameters();
+        if (params != null) {
+            for (Parameter param : params) {
+                if (param == null) {
+                    continue;
+                }
+                Parameter source = getParameter(select, param.getIndex());
+                if (source == null) {
+                    return null;
+                }
+                param.setValue(source.getValue());
+            }
+        }
+        return s;
+    }
+
+    private static Parameter getParameter(Select select, int index) {
+        ArrayList<Parameter> params = select.getParameters();
+        if (params != null) {
+            for (Parameter param : params) {
+                if (param != null && param.getIndex() == index) {
+                    return param;
+                }
+            }
+        }
+        return null;
+    }
+
+    private void startQuery() {
+        for (int i = 0; i < partitions.length; i++) {
+            TableFilter filter = partitions[i].getTopTableFilter();
+            filter.startQuery(partitionSessions[i]);
+            filter.reset();
+        }
+    }
+
+    private void endPartition(int i) {
+        partitions[i].getTopTableFilter().endQuery();
+        partitionSessions[i].closeTemporaryResults();
+    }
+
+    /**
+     * Read the rows of all partitions and add them to the result.
+     *
+     * @param columnCount the number of columns
+     * @param result the result
+     * @param limitRows the maximum number of rows (including the offset), or a
+     *            value &lt;= 0 to read all rows
+     */
+    void queryFlat(final int columnCount, ResultTarget result, long limitRows) {
+        int count = partitions.length;
+        queue = new ArrayBlockingQueue<>(count * 4);
+        final CountDownLatch latch = new CountDownLatch(count);
+        try {
+            startQuery();
+            ThreadPoolExecutor pool = getPool();
+            for (int i = 0; i < count; i++) {
+                final int index = i;
+                pool.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            partitions[index].queryFlatPartition(columnCount, new PartitionRows(ParallelQuery.this));
+                        } catch (Throwable t) {
+                            setError(t);
+                        } finally {
+                            endPartition(index);
+                            put(END_OF_PARTITION);
+                            latch.countDown();
+                        }
+                    }
+                });
+            }
+        } catch (RuntimeException e) {
+            stopped = true;
+            freeThreads.release(count);
+            throw e;
+        }
+        try {
+            int running = count;
+            while (running > 0 && error == null) {
+                Object o = queue.poll(10, TimeUnit.MILLISECONDS);
+                if (o == null) {
+                    session.checkCanceled();
+                } else if (o == END_OF_PARTITION) {
+                    running--;
+                } else {
+                    @SuppressWarnings("unchecked")
+                    ArrayList<Value[]> rows = (ArrayList<Value[]>) o;
+                    for (Value[] row : rows) {
+                        result.addRow(row);
+                    }
+                    if (limitRows > 0 && result.getRowCount() >= limitRows) {
+                        break;
+                    }
+                }
+            }
+            if (error != null) {
+                throw DbException.convert(error);
+            }
+        } catch (InterruptedException e) {
+            throw DbException.convert(e);
+        } finally {
+            stopped = true;
+            // 分区还在用会话的事务，所以要等它们都结束后才能返回
+            boolean done = false;
+            while (!done) {
+                queue.clear();
+                try {
+                    done = latch.await(10, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    // ignore
+                }
+            }
+            freeThreads.release(count);
+        }
+    }
+
+    /**
+     * Aggregate the rows of all partitions and add the merged groups to the
+     * result.
+     *
+     * @param columnCount the number of columns
+     * @param result the result
+     */
+    void queryGroup(final int columnCount, LocalResult result) {
+        int count = partitions.length;
+        ArrayList<Future<ValueHashMap<GroupData>>> tasks = new ArrayList<>(count);
+        ArrayList<ValueHashMap<GroupData>> groups = new ArrayList<>(count);
+        Throwable failure = null;
+        try {
+            startQuery();
+            ThreadPoolExecutor pool = getPool();
+            for (int i = 0; i < count; i++) {
+                final int index = i;
+                tasks.add(pool.submit(new Callable<ValueHashMap<GroupData>>() {
+                    @Override
+                    public ValueHashMap<GroupData> call() {
+                        try {
+                            return partitions[index].queryGroupPartition(columnCount);
+                        } finally {
+                            endPartition(index);
+                        }
+                    }
+                }));
+            }
+        } catch (RuntimeException e) {
+            failure = e;
+        }
+        // 分区还在用会话的事务，所以出错时也要等它们都结束
+        for (Future<ValueHashMap<GroupData>> task : tasks) {
+            boolean done = false;
+            while (!done) {
+                try {
+                    groups.add(task.get());
+                    done = true;
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = e.getCause();
+                    }
+                    done = true;
+                } catch (InterruptedException e) {
+                    // ignore
+                }
+            }
+        }
+        freeThreads.release(count);
+        if (failure != null) {
+            throw DbException.convert(failure);
+        }
+        // 只有处理过行的Select才分配了分组槽位，所以用它来合并
+        int target = 0;
+        for (int i = 0; i < count; i++) {
+            if (groups.get(i).size() > 0) {
+                target = i;
+                break;
+            }
+        }
+        Select[] list = partitions.clone();
+        if (target > 0) {
+            list[0] = partitions[target];
+            list[target] = partitions[0];
+            groups.set(target, groups.set(0, groups.get(target)));
+        }
+        list[0].mergeGroupPartitions(list, groups, columnCount, result);
+    }
+
+    private void setError(Throwable t) {
+        if (error == null) {
+            error = t;
+        }
+        stopped = true;
+    }
+
+    private void put(Object o) {
+        try {
+            while (!stopped) {
+                if (queue.offer(o, 10, TimeUnit.MILLISECONDS)) {
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            setError(e);
+        }
+    }
+
+    /**
+     * The rows that a partition of a flat query reads. They are sent to the
+     * calling thread in batches.
+     */
+    static class PartitionRows {
+
+        private final ParallelQuery query;
+        private ArrayList<Value[]> rows = new ArrayList<>(BATCH_SIZE);
+
+        PartitionRows(ParallelQuery query) {
+            this.query = query;
+        }
+
+        /**
+         * Check whether the query does not need more rows.
+         *
+         * @return true if the partition should stop reading
+         */
+        boolean isStopped() {
+            return query.stopped;
+        }
+
+        /**
+         * Add a row.
+         *
+         * @param row the row
+         */
+        void addRow(Value[] row) {
+            rows.add(row);
+            if (rows.size() >= BATCH_SIZE) {
+                flush();
+            }
+        }
+
+        /**
+         * Send the remaining rows to the calling thread.
+         */
+        void flush() {
+            if (!rows.isEmpty()) {
+                query.put(rows);
+                rows = new ArrayList<>(BATCH_SIZE);
+            }
+        }
+    }
+}
@@ -303,7 +303,8 @@ public abstract class Query extends ManipulateStatement implements org.lealone.d
             return queryWithoutCache(limit, target);
         }
         Value[] params = getParameterValues();
-        long now = session.getDatabase().getModificationDataId();
+        // 结果只包含事务快照能看到的修改
+        long now = Math.min(session.getDatabase().getModificationDataId(), session.getTransactionModificationDataId());
         if (isEverything(ExpressionVisitor.DETERMINISTIC_VISITOR)) {
             if (lastResult != null && !lastResult.isClosed() && limit == lastLimit) {
                 if (sameResultAsLast(session, params, lastParameters, lastEvaluated)) {
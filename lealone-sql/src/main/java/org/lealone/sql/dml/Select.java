@@ -8,7 +8,6 @@ package org.lealone.sql.dml;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.HashSet;
 
 import org.lealone.api.ErrorCode;
@@ -44,12 +43,18 @@ import org.lealone.db.value.ValueArray;
 import org.lealone.db.value.ValueNull;
 import org.lealone.sql.PreparedStatement;
 import org.lealone.sql.SQLStatement;
+import org.lealone.sql.expression.Aggregate;
 import org.lealone.sql.expression.Calculator;
 import org.lealone.sql.expression.Comparison;
+import org.lealone.sql.expression.CompiledExpression;
 import org.lealone.sql.expression.ConditionAndOr;
 import org.lealone.sql.expression.Expression;
 import org.lealone.sql.expression.ExpressionColumn;
+import org.lealone.sql.expression.ExpressionCompiler;
 import org.lealone.sql.expression.Parameter;
+import org.lealone.sql.vector.RowBatch;
+import org.lealone.sql.vector.SelectionVector;
+import org.lealone.sql.vector.ValueVector;
 
 /**
  * This class represents a simple SELECT statement.
@@ -77,7 +82,9 @@ public class Select extends Query implements org.lealone.db.expression.Select {
     private ArrayList<Expression> group;
     private int[] groupIndex;
     private boolean[] groupByExpression;
-    private HashMap<Expression, Object> currentGroup;
+    private GroupData currentGroup;
+    private final ArrayList<Expression> groupSlots = New.arrayList();
+    private boolean hasUnmergeableAggregate;
     private int havingIndex;
     private boolean isGroupQuery, isGroupSortedQuery;
     private boolean isForUpdate, isForUpdateMvcc;
@@ -88,6 +95,15 @@ public class Select extends Query implements org.lealone.db.expression.Select {
     private SortOrder sort;
     private int currentGroupRowId;
 
+    /**
+     * The condition and the expressions compiled to Java classes. They are
+     * created when the statement is executed the first time and kept until it
+     * is prepared again.
+     */
+    private boolean expressionsCompiled, useCompiledExpressions;
+    private CompiledExpression compiledCondition;
+    private CompiledExpression[] compiledExpressions;
+
     public Select(ServerSession session) {
         super(session);
     }
@@ -135,10 +151,34 @@ public class Select extends Query implements org.lealone.db.expression.Select {
         orderList = order;
     }
 
-    public HashMap<Expression, Object> getCurrentGroup() {
+    public GroupData getCurrentGroup() {
         return currentGroup;
     }
 
+    /**
+     * Allocate a slot in the group data for an aggregate function or a
+     * column of this query.
+     *
+     * @param expr the aggregate function or column
+     * @return the slot number
+     */
+    public int allocateGroupSlot(Expression expr) {
+        groupSlots.add(expr);
+        return groupSlots.size() - 1;
+    }
+
+    /**
+     * Called if this query contains an aggregate function whose state can not
+     * be merged, so the groups can not be calculated in parallel.
+     */
+    public void setUnmergeableAggregate() {
+        hasUnmergeableAggregate = true;
+    }
+
+    boolean hasUnmergeableAggregate() {
+        return hasUnmergeableAggregate;
+    }
+
     public int getCurrentGroupRowId() {
         return currentGroupRowId;
     }
@@ -440,6 +480,9 @@ public class Select extends Query implements org.lealone.db.expression.Select {
         }
         expressionArray = new Expression[expressions.size()];
         expressions.toArray(expressionArray);
+        expressionsCompiled = false;
+        compiledCondition = null;
+        compiledExpressions = null;
         isPrepared = true;
 
         return this;
@@ -703,20 +746,48 @@ public class Select extends Query implements org.lealone.db.expression.Select {
             }
         }
         topTableFilter.lock(session, exclusive, exclusive);
+        useCompiledExpressions = session.isCompileExpressions();
+        if (useCompiledExpressions && !expressionsCompiled) {
+            compileExpressions();
+        }
         ResultTarget to = result != null ? result : target;
         if (limitRows != 0) {
-            if (isQuickAggregateQuery) {
-                queryQuick(columnCount, to);
-            } else if (isGroupQuery) {
-                if (isGroupSortedQuery) {
-                    queryGroupSorted(columnCount, to);
+            try {
+                if (isQuickAggregateQuery) {
+                    queryQuick(columnCount, to);
+                } else if (isGroupQuery) {
+                    if (isGroupSortedQuery) {
+                        queryGroupSorted(columnCount, to);
+                    } else {
+                        ParallelQuery parallel = null;
+                        if (!hasUnmergeableAggregate && getSampleSizeValue(session) == 0) {
+                            parallel = ParallelQuery.create(this);
+                        }
+                        if (parallel != null) {
+                            parallel.queryGroup(columnCount, result);
+                        } else if (groupIndex == null && isBatchQuery()) {
+                            queryGroupBatch(columnCount, result);
+                        } else {
+                            queryGroup(columnCount, result);
+                        }
+                    }
+                } else if (isDistinctQuery) {
+                    queryDistinct(to, limitRows);
                 } else {
-                    queryGroup(columnCount, result);
+                    ParallelQuery parallel = null;
+                    if (!isForUpdate && !sortUsingIndex && getSampleSizeValue(session) == 0) {
+                        parallel = ParallelQuery.create(this);
+                    }
+                    if (parallel != null) {
+                        parallel.queryFlat(columnCount, to, sort == null ? addOffset(limitRows) : -1);
+                    } else if (isBatchQuery()) {
+                        queryFlatBatch(columnCount, to, limitRows);
+                    } else {
+                        queryFlat(columnCount, to, limitRows);
+                    }
                 }
-            } else if (isDistinctQuery) {
-                queryDistinct(to, limitRows);
-            } else {
-                queryFlat(columnCount, to, limitRows);
+            } finally {
+                topTableFilter.endQuery();
             }
         }
         if (offsetExpr != null) {
@@ -743,7 +814,7 @@ public class Select extends Query implements org.lealone.db.expression.Select {
         return old != null ? old : new LocalResult(session, expressionArray, visibleColumnCount);
     }
 
-    private void queryDistinct(ResultTarget result, long limitRows) {
+    private long addOffset(long limitRows) {
         // limitRows must be long, otherwise we get an int overflow
         // if limitRows is at or near Integer.MAX_VALUE
         // limitRows is never 0 here
@@ -753,6 +824,11 @@ public class Select extends Query implements org.lealone.db.expression.Select {
                 limitRows += offset;
             }
         }
+        return limitRows;
+    }
+
+    private void queryDistinct(ResultTarget result, long limitRows) {
+        limitRows = addOffset(limitRows);
         int rowNumber = 0;
         setCurrentRowNumber(0);
         Index index = topTableFilter.getIndex();
@@ -775,16 +851,45 @@ public class Select extends Query implements org.lealone.db.expression.Select {
         }
     }
 
-    private void queryFlat(int columnCount, ResultTarget result, long limitRows) {
-        // limitRows must be long, otherwise we get an int overflow
-        // if limitRows is at or near Integer.MAX_VALUE
-        // limitRows is never 0 here
-        if (limitRows > 0 && offsetExpr != null) {
-            int offset = offsetExpr.getValue(session).getInt();
-            if (offset > 0) {
-                limitRows += offset;
+    private void compileExpressions() {
+        expressionsCompiled = true;
+        try {
+            if (condition != null) {
+                compiledCondition = ExpressionCompiler.compile(session, condition);
+            }
+            if (!isGroupQuery) {
+                int columnCount = expressions.size();
+                CompiledExpression[] list = new CompiledExpression[columnCount];
+                for (int i = 0; i < columnCount; i++) {
+                    list[i] = ExpressionCompiler.compile(session, expressions.get(i));
+                    if (list[i] != null) {
+                        compiledExpressions = list;
+                    }
+                }
             }
+        } catch (DbException e) {
+            // 例如没有Java编译器时，还是解释执行
+            compiledCondition = null;
+            compiledExpressions = null;
+            session.getTrace().error(e, "compile expressions of {0}", getSQL());
         }
+    }
+
+    private boolean isCompiled() {
+        return useCompiledExpressions && (compiledCondition != null || compiledExpressions != null);
+    }
+
+    private boolean isConditionTrue() {
+        if (condition == null) {
+            return true;
+        } else if (useCompiledExpressions && compiledCondition != null) {
+            return Boolean.TRUE.equals(compiledCondition.getBooleanValue(session));
+        }
+        return Boolean.TRUE.equals(condition.getBooleanValue(session));
+    }
+
+    private void queryFlat(int columnCount, ResultTarget result, long limitRows) {
+        limitRows = addOffset(limitRows);
         int rowNumber = 0;
         setCurrentRowNumber(0);
         ArrayList<Row> forUpdateRows = null;
@@ -792,13 +897,21 @@ public class Select extends Query implements org.lealone.db.expression.Select {
             forUpdateRows = New.arrayList();
         }
         int sampleSize = getSampleSizeValue(session);
+        CompiledExpression[] compiled = useCompiledExpressions ? compiledExpressions : null;
+        if (isCompiled()) {
+            session.addCompiledQuery();
+        }
         while (topTableFilter.next()) {
             setCurrentRowNumber(rowNumber + 1);
-            if (condition == null || Boolean.TRUE.equals(condition.getBooleanValue(session))) {
+            if (isConditionTrue()) {
                 Value[] row = new Value[columnCount];
                 for (int i = 0; i < columnCount; i++) {
-                    Expression expr = expressions.get(i);
-                    row[i] = expr.getValue(session);
+                    if (compiled != null && compiled[i] != null) {
+                        row[i] = compiled[i].getValue(session);
+                    } else {
+                        Expression expr = expressions.get(i);
+                        row[i] = expr.getValue(session);
+                    }
                 }
                 if (isForUpdateMvcc) {
                     topTableFilter.lockRowAdd(forUpdateRows);
@@ -818,6 +931,114 @@ public class Select extends Query implements org.lealone.db.expression.Select {
         }
     }
 
+    /**
+     * Check whether the rows can be read and evaluated in batches, see
+     * {@link RowBatch}. This is only done for queries that read one table.
+     *
+     * @return true if batches can be used
+     */
+    private boolean isBatchQuery() {
+        if (isForUpdate || topTableFilter.getJoin() != null || topTableFilter.getNestedJoin() != null
+                || getSampleSizeValue(session) > 0) {
+            return false;
+        }
+        // 只在扫描主索引并且表中的行数至少有一个批次时才按批次读取，
+        // 主键点查和索引范围查询只读很少的行，复制到向量的开销比逐行计算还大
+        if (!topTableFilter.getIndex().getIndexType().isScan()
+                || topTableFilter.getTable().getRowCountApproximation() < RowBatch.MAX_ROWS) {
+            return false;
+        }
+        // 编译后的条件和表达式是逐行计算的，编译成功时就不按批次读取了
+        if (isCompiled()) {
+            return false;
+        }
+        // ROWNUM、RAND()这类表达式只能逐行计算
+        return isEverything(ExpressionVisitor.DETERMINISTIC_VISITOR);
+    }
+
+    private void queryFlatBatch(int columnCount, ResultTarget result, long limitRows) {
+        limitRows = addOffset(limitRows);
+        int rowNumber = 0;
+        setCurrentRowNumber(0);
+        RowBatch batch = new RowBatch(topTableFilter);
+        ValueVector[] columns = new ValueVector[columnCount];
+        while (batch.next()) {
+            setCurrentRowNumber(rowNumber + 1);
+            SelectionVector selection = batch.getSelection();
+            if (condition != null) {
+                selection = condition.filter(session, batch, selection);
+            }
+            int size = selection.size();
+            if (size == 0) {
+                continue;
+            }
+            for (int i = 0; i < columnCount; i++) {
+                columns[i] = expressions.get(i).getValueVector(session, batch, selection);
+            }
+            for (int j = 0; j < size; j++) {
+                int r = selection.get(j);
+                Value[] row = new Value[columnCount];
+                for (int i = 0; i < columnCount; i++) {
+                    row[i] = columns[i].getValue(r);
+                }
+                result.addRow(row);
+                rowNumber++;
+                if ((sort == null || sortUsingIndex) && limitRows > 0 && result.getRowCount() >= limitRows) {
+                    return;
+                }
+            }
+        }
+    }
+
+    // 没有GROUP BY时只有一个分组，如果所有的列都是聚合函数，每个批次只需更新一次
+    private void queryGroupBatch(int columnCount, LocalResult result) {
+        GroupData group = new GroupData(groupSlots.size());
+        boolean batchAggregate = isBatchAggregate(columnCount);
+        int rowNumber = 0;
+        setCurrentRowNumber(0);
+        RowBatch batch = new RowBatch(topTableFilter);
+        while (batch.next()) {
+            setCurrentRowNumber(rowNumber + 1);
+            currentGroup = null;
+            SelectionVector selection = batch.getSelection();
+            if (condition != null) {
+                selection = condition.filter(session, batch, selection);
+            }
+            int size = selection.size();
+            if (size == 0) {
+                continue;
+            }
+            rowNumber += size;
+            currentGroup = group;
+            if (batchAggregate) {
+                currentGroupRowId++;
+                for (int i = 0; i < columnCount; i++) {
+                    Aggregate a = (Aggregate) expressions.get(i).getNonAliasExpression();
+                    a.updateAggregate(session, batch, selection);
+                }
+            } else {
+                for (int j = 0; j < size; j++) {
+                    batch.setCurrentRow(selection.get(j));
+                    currentGroupRowId++;
+                    updateAggregate(columnCount);
+                }
+            }
+        }
+        ValueHashMap<GroupData> groups = ValueHashMap.newInstance();
+        groups.put(ValueArray.get(new Value[0]), group);
+        addGroupRows(groups, columnCount, result);
+    }
+
+    private boolean isBatchAggregate(int columnCount) {
+        for (int i = 0; i < columnCount; i++) {
+            Expression e = expressions.get(i).getNonAliasExpression();
+            if (!(e instanceof Aggregate) || !((Aggregate) e).isBatchSupported()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     private void queryQuick(int columnCount, ResultTarget result) {
         Value[] row = new Value[columnCount];
         for (int i = 0; i < columnCount; i++) {
@@ -846,11 +1067,11 @@ public class Select extends Query implements org.lealone.db.expression.Select {
 
                 if (previousKeyValues == null) {
                     previousKeyValues = keyValues;
-                    currentGroup = New.hashMap();
+                    currentGroup = new GroupData(groupSlots.size());
                 } else if (!Arrays.equals(previousKeyValues, keyValues)) {
                     addGroupSortedRow(previousKeyValues, columnCount, result);
                     previousKeyValues = keyValues;
-                    currentGroup = New.hashMap();
+                    currentGroup = new GroupData(groupSlots.size());
                 }
                 currentGroupRowId++;
 
@@ -911,54 +1132,266 @@ public class Select extends Query implements org.lealone.db.expression.Select {
 
     // 除了QuickAggregateQuery和GroupSortedQuery外，其他场景的聚合函数、group by、having都在这里处理
     // groupIndex和groupByExpression为null的时候，表示没有group by
+    // 分组数超过MAX_MEMORY_ROWS后，新分组的行按分组key的hash值写到GroupPartitions，
+    // 内存中的分组处理完后再逐个处理每个分区
     private void queryGroup(int columnCount, LocalResult result) {
-        ValueHashMap<HashMap<Expression, Object>> groups = ValueHashMap.newInstance();
+        ValueHashMap<GroupData> groups = ValueHashMap.newInstance();
+        int maxGroups = session.getDatabase().getMaxMemoryRows();
+        GroupPartitions partitions = null;
         int rowNumber = 0;
         setCurrentRowNumber(0);
         currentGroup = null;
         ValueArray defaultGroup = ValueArray.get(new Value[0]);
         int sampleSize = getSampleSizeValue(session);
+        if (useCompiledExpressions && compiledCondition != null) {
+            session.addCompiledQuery();
+        }
+        try {
+            while (topTableFilter.next()) {
+                setCurrentRowNumber(rowNumber + 1);
+                if (isConditionTrue()) {
+                    rowNumber++;
+                    Value key = getGroupKey(defaultGroup);
+                    GroupData values = groups.get(key);
+                    if (values == null) {
+                        if (groupIndex != null && groups.size() >= maxGroups) {
+                            if (partitions == null) {
+                                partitions = new GroupPartitions(session, getAllFilters(), 0);
+                            }
+                            partitions.addRow(key, rowNumber);
+                        } else {
+                            values = new GroupData(groupSlots.size());
+                            groups.put(key, values);
+                        }
+                    }
+                    if (values != null) {
+                        currentGroup = values;
+                        currentGroupRowId++;
+                        updateAggregate(columnCount);
+                    }
+                    if (sampleSize > 0 && rowNumber >= sampleSize) {
+                        break;
+                    }
+                }
+            }
+            if (groupIndex == null && groups.size() == 0) {
+                groups.put(defaultGroup, new GroupData(groupSlots.size()));
+            }
+            addGroupRows(groups, columnCount, result);
+            if (partitions != null) {
+                queryGroupPartitions(partitions, maxGroups, columnCount, result);
+            }
+        } finally {
+            if (partitions != null) {
+                partitions.close();
+            }
+        }
+    }
+
+    private void queryGroupPartitions(GroupPartitions partitions, int maxGroups, int columnCount,
+            LocalResult result) {
+        while (partitions.nextPartition()) {
+            ValueHashMap<GroupData> groups = ValueHashMap.newInstance();
+            GroupPartitions child = null;
+            try {
+                while (partitions.next()) {
+                    Value key = partitions.getKey();
+                    GroupData values = groups.get(key);
+                    if (values == null) {
+                        if (groups.size() >= maxGroups) {
+                            if (child == null) {
+                                child = partitions.createChild();
+                            }
+                            if (child != null) {
+                                partitions.moveRow(child);
+                                continue;
+                            }
+                        }
+                        values = new GroupData(groupSlots.size());
+                        groups.put(key, values);
+                    }
+                    setCurrentRowNumber(partitions.getRowNumber());
+                    currentGroup = values;
+                    currentGroupRowId++;
+                    updateAggregate(columnCount);
+                }
+                addGroupRows(groups, columnCount, result);
+                groups = null;
+                if (child != null) {
+                    queryGroupPartitions(child, maxGroups, columnCount, result);
+                }
+            } finally {
+                if (child != null) {
+                    child.close();
+                }
+            }
+        }
+    }
+
+    private Value getGroupKey(ValueArray defaultGroup) {
+        if (groupIndex == null) {
+            return defaultGroup;
+        }
+        // 避免在ExpressionColumn.getValue中取到旧值
+        // 例如SELECT id/3 AS A, COUNT(*) FROM mytable GROUP BY A HAVING A>=0
+        currentGroup = null;
+        Value[] keyValues = new Value[groupIndex.length];
+        // update group
+        for (int i = 0; i < groupIndex.length; i++) {
+            int idx = groupIndex[i];
+            Expression expr = expressions.get(idx);
+            keyValues[i] = expr.getValue(session);
+        }
+        return ValueArray.get(keyValues);
+    }
+
+    // 以下几个方法用于并行查询，在每个分区的Select上执行，见ParallelQuery
+
+    /**
+     * Read the rows of the partition and send the rows of the select list to
+     * the calling thread.
+     *
+     * @param columnCount the number of columns
+     * @param out the rows of the partition
+     */
+    void queryFlatPartition(int columnCount, ParallelQuery.PartitionRows out) {
+        int rowNumber = 0;
+        setCurrentRowNumber(0);
+        while (!out.isStopped() && topTableFilter.next()) {
+            setCurrentRowNumber(rowNumber + 1);
+            if (condition == null || Boolean.TRUE.equals(condition.getBooleanValue(session))) {
+                Value[] row = new Value[columnCount];
+                for (int i = 0; i < columnCount; i++) {
+                    Expression expr = expressions.get(i);
+                    row[i] = expr.getValue(session);
+                }
+                out.addRow(row);
+                rowNumber++;
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * Aggregate the rows of the partition. The groups are kept in memory.
+     *
+     * @param columnCount the number of columns
+     * @return the groups
+     */
+    ValueHashMap<GroupData> queryGroupPartition(int columnCount) {
+        ValueHashMap<GroupData> groups = ValueHashMap.newInstance();
+        int rowNumber = 0;
+        setCurrentRowNumber(0);
+        currentGroup = null;
+        ValueArray defaultGroup = ValueArray.get(new Value[0]);
         while (topTableFilter.next()) {
             setCurrentRowNumber(rowNumber + 1);
             if (condition == null || Boolean.TRUE.equals(condition.getBooleanValue(session))) {
-                Value key;
                 rowNumber++;
-                if (groupIndex == null) {
-                    key = defaultGroup;
-                } else {
-                    // 避免在ExpressionColumn.getValue中取到旧值
-                    // 例如SELECT id/3 AS A, COUNT(*) FROM mytable GROUP BY A HAVING A>=0
-                    currentGroup = null;
-                    Value[] keyValues = new Value[groupIndex.length];
-                    // update group
-                    for (int i = 0; i < groupIndex.length; i++) {
-                        int idx = groupIndex[i];
-                        Expression expr = expressions.get(idx);
-                        keyValues[i] = expr.getValue(session);
-                    }
-                    key = ValueArray.get(keyValues);
-                }
-                HashMap<Expression, Object> values = groups.get(key);
+                Value key = getGroupKey(defaultGroup);
+                GroupData values = groups.get(key);
                 if (values == null) {
-                    values = new HashMap<Expression, Object>();
+                    values = new GroupData(groupSlots.size());
                     groups.put(key, values);
                 }
                 currentGroup = values;
                 currentGroupRowId++;
-                for (int i = 0; i < columnCount; i++) {
-                    if (groupByExpression == null || !groupByExpression[i]) {
-                        Expression expr = expressions.get(i);
-                        expr.updateAggregate(session);
-                    }
-                }
-                if (sampleSize > 0 && rowNumber >= sampleSize) {
-                    break;
+                updateAggregate(columnCount);
+            }
+        }
+        return groups;
+    }
+
+    /**
+     * Merge the groups that another partition select calculated into the
+     * groups of this select, and add the result rows.
+     *
+     * @param partitions the partition selects, with this select first
+     * @param partitionGroups the groups of each partition
+     * @param columnCount the number of columns
+     * @param result the result
+     */
+    void mergeGroupPartitions(Select[] partitions, ArrayList<ValueHashMap<GroupData>> partitionGroups,
+            int columnCount, LocalResult result) {
+        ValueHashMap<GroupData> groups = partitionGroups.get(0);
+        for (int p = 1; p < partitions.length; p++) {
+            ValueHashMap<GroupData> other = partitionGroups.get(p);
+            if (other.size() == 0) {
+                continue;
+            }
+            int[] slots = mapGroupSlots(partitions[p]);
+            for (Value key : other.keys()) {
+                GroupData source = other.get(key);
+                GroupData target = groups.get(key);
+                if (target == null) {
+                    target = new GroupData(groupSlots.size());
+                    groups.put(key, target);
                 }
+                mergeGroupData(target, source, slots);
             }
+            partitionGroups.set(p, null);
         }
         if (groupIndex == null && groups.size() == 0) {
-            groups.put(defaultGroup, new HashMap<Expression, Object>());
+            groups.put(ValueArray.get(new Value[0]), new GroupData(groupSlots.size()));
         }
+        addGroupRows(groups, columnCount, result);
+    }
+
+    // 每个分区Select的槽位是第一次更新分组时按相同的顺序分配的，
+    // 所以只要这个Select已经处理过行，按表达式的SQL就能找到对应的槽位
+    private int[] mapGroupSlots(Select other) {
+        int size = other.groupSlots.size();
+        int[] slots = new int[size];
+        boolean[] used = new boolean[groupSlots.size()];
+        for (int i = 0; i < size; i++) {
+            Expression e = other.groupSlots.get(i);
+            int slot = -1;
+            if (i < used.length && !used[i] && isSameGroupSlot(groupSlots.get(i), e)) {
+                slot = i;
+            } else {
+                for (int j = 0; j < used.length; j++) {
+                    if (!used[j] && isSameGroupSlot(groupSlots.get(j), e)) {
+                        slot = j;
+                        break;
+                    }
+                }
+            }
+            if (slot < 0) {
+                throw DbException.throwInternalError("group slot " + e.getSQL());
+            }
+            used[slot] = true;
+            slots[i] = slot;
+        }
+        return slots;
+    }
+
+    private static boolean isSameGroupSlot(Expression a, Expression b) {
+        return a.getClass() == b.getClass() && a.getSQL().equals(b.getSQL());
+    }
+
+    private void mergeGroupData(GroupData target, GroupData source, int[] slots) {
+        for (int i = 0; i < slots.length; i++) {
+            int slot = slots[i];
+            Expression e = groupSlots.get(slot);
+            if (e instanceof Aggregate) {
+                ((Aggregate) e).mergeGroupData(session, target, slot, source, i);
+            } else if (target.get(slot) == null) {
+                // 分组中没有聚合的列，保留第一个值
+                target.put(slot, source.get(i));
+            }
+        }
+    }
+
+    private void updateAggregate(int columnCount) {
+        for (int i = 0; i < columnCount; i++) {
+            if (groupByExpression == null || !groupByExpression[i]) {
+                Expression expr = expressions.get(i);
+                expr.updateAggregate(session);
+            }
+        }
+    }
+
+    private void addGroupRows(ValueHashMap<GroupData> groups, int columnCount, LocalResult result) {
         ArrayList<Value> keys = groups.keys();
         for (Value v : keys) {
             ValueArray key = (ValueArray) v;
@@ -983,10 +1416,23 @@ public class Select extends Query implements org.lealone.db.expression.Select {
         }
     }
 
+    private TableFilter[] getAllFilters() {
+        ArrayList<TableFilter> list = New.arrayList();
+        addFilters(topTableFilter, list);
+        return list.toArray(new TableFilter[list.size()]);
+    }
+
+    private static void addFilters(TableFilter f, ArrayList<TableFilter> list) {
+        for (; f != null; f = f.getJoin()) {
+            list.add(f);
+            addFilters(f.getNestedJoin(), list);
+        }
+    }
+
     public Result queryGroupMerge() {
         int columnCount = expressions.size();
         LocalResult result = new LocalResult(session, expressionArray, columnCount);
-        ValueHashMap<HashMap<Expression, Object>> groups = ValueHashMap.newInstance();
+        ValueHashMap<GroupData> groups = ValueHashMap.newInstance();
         int rowNumber = 0;
         setCurrentRowNumber(0);
         ValueArray defaultGroup = ValueArray.get(new Value[0]);
@@ -1007,9 +1453,9 @@ public class Select extends Query implements org.lealone.db.expression.Select {
                 }
                 key = ValueArray.get(keyValues);
             }
-            HashMap<Expression, Object> values = groups.get(key);
+            GroupData values = groups.get(key);
             if (values == null) {
-                values = new HashMap<Expression, Object>();
+                values = new GroupData(groupSlots.size());
                 groups.put(key, values);
             }
             currentGroup = values;
@@ -1025,7 +1471,7 @@ public class Select extends Query implements org.lealone.db.expression.Select {
             }
         }
         if (groupIndex == null && groups.size() == 0) {
-            groups.put(defaultGroup, new HashMap<Expression, Object>());
+            groups.put(defaultGroup, new GroupData(groupSlots.size()));
         }
         ArrayList<Value> keys = groups.keys();
         for (Value v : keys) {
@@ -1334,6 +1780,8 @@ public class Select extends Query implements org.lealone.db.expression.Select {
             } else {
                 condition = new ConditionAndOr(ConditionAndOr.AND, condition, comp);
             }
+            expressionsCompiled = false;
+            compiledCondition = null;
         }
     }
 
@@ -65,6 +65,8 @@ public class Set extends ManipulateStatement {
         case SetTypes.CLUSTER:
         case SetTypes.VARIABLE:
         case SetTypes.QUERY_TIMEOUT:
+        case SetTypes.MAX_PARALLEL_DEGREE:
+        case SetTypes.COMPILE_EXPRESSIONS:
         case SetTypes.LOCK_TIMEOUT:
         case SetTypes.TRACE_LEVEL_SYSTEM_OUT:
         case SetTypes.TRACE_LEVEL_FILE:
@@ -315,6 +317,17 @@ public class Set extends ManipulateStatement {
             session.setQueryTimeout(value);
             break;
         }
+        case SetTypes.MAX_PARALLEL_DEGREE: {
+            if (getIntValue() < 0) {
+                throw DbException.getInvalidValueException("MAX_PARALLEL_DEGREE", getIntValue());
+            }
+            session.setMaxParallelDegree(getIntValue());
+            break;
+        }
+        case SetTypes.COMPILE_EXPRESSIONS: {
+            session.setCompileExpressions(getIntValue() == 1);
+            break;
+        }
         case SetTypes.REDO_LOG_BINARY: { // 这个参数已不再使用
             // int value = getIntValue();
             // session.setRedoLogBinary(value == 1);
@@ -15,6 +15,7 @@ import org.lealone.common.exceptions.DbException;
 import org.lealone.common.util.New;
 import org.lealone.common.util.StatementBuilder;
 import org.lealone.common.util.StringUtils;
+import org.lealone.db.Database;
 import org.lealone.db.ServerSession;
 import org.lealone.db.expression.ExpressionVisitor;
 import org.lealone.db.index.Cursor;
@@ -35,7 +36,11 @@ import org.lealone.db.value.ValueInt;
 import org.lealone.db.value.ValueLong;
 import org.lealone.db.value.ValueNull;
 import org.lealone.db.value.ValueString;
+import org.lealone.sql.dml.GroupData;
 import org.lealone.sql.dml.Select;
+import org.lealone.sql.vector.RowBatch;
+import org.lealone.sql.vector.SelectionVector;
+import org.lealone.sql.vector.ValueVector;
 
 /**
  * Implements the integrated aggregate functions, such as COUNT, MAX, SUM.
@@ -141,6 +146,7 @@ public class Aggregate extends Expression {
     private long precision;
     private int displaySize;
     private int lastGroupRowId;
+    private int groupSlot = -1;
 
     /**
      * Create a new aggregate object.
@@ -155,6 +161,9 @@ public class Aggregate extends Expression {
         this.on = on;
         this.select = select;
         this.distinct = distinct;
+        if (select != null && !isMergeable()) {
+            select.setUnmergeableAggregate();
+        }
     }
 
     static {
@@ -234,13 +243,74 @@ public class Aggregate extends Expression {
         return new SortOrder(session.getDatabase(), index, sortType, null);
     }
 
+    private int getGroupSlot() {
+        if (groupSlot < 0) {
+            groupSlot = select.allocateGroupSlot(this);
+        }
+        return groupSlot;
+    }
+
+    /**
+     * COUNT(*) and COUNT(x) without DISTINCT only need a counter, which is
+     * kept in the group data directly instead of an AggregateData object.
+     */
+    private boolean isCounter() {
+        return (type == COUNT_ALL || type == COUNT) && !distinct;
+    }
+
+    /**
+     * Check if the aggregate state of groups that were calculated on
+     * different rows can be merged, see {@link #mergeGroupData}.
+     */
+    private boolean isMergeable() {
+        if (distinct) {
+            return false;
+        }
+        switch (type) {
+        case GROUP_CONCAT:
+        case HISTOGRAM:
+        case SELECTIVITY:
+            return false;
+        default:
+            return true;
+        }
+    }
+
+    /**
+     * Merge the state of this aggregate of a group that was calculated on
+     * other rows into a group. This is used by the parallel query.
+     *
+     * @param session the session
+     * @param target the group to merge into
+     * @param targetSlot the slot of this aggregate in the target group
+     * @param source the other group
+     * @param sourceSlot the slot of this aggregate in the other group
+     */
+    public void mergeGroupData(ServerSession session, GroupData target, int targetSlot, GroupData source,
+            int sourceSlot) {
+        if (isCounter()) {
+            target.addCount(targetSlot, source.getCount(sourceSlot));
+            return;
+        }
+        AggregateDataDefault data = (AggregateDataDefault) source.get(sourceSlot);
+        if (data == null) {
+            return;
+        }
+        AggregateDataDefault old = (AggregateDataDefault) target.get(targetSlot);
+        if (old == null) {
+            target.put(targetSlot, data);
+        } else {
+            old.mergeData(session.getDatabase(), dataType, data);
+        }
+    }
+
     @Override
     public void updateAggregate(ServerSession session) {
         // TODO aggregates: check nested MIN(MAX(ID)) and so on
         // if (on != null) {
         // on.updateAggregate();
         // }
-        HashMap<Expression, Object> group = select.getCurrentGroup();
+        GroupData group = select.getCurrentGroup();
         if (group == null) {
             // this is a different level (the enclosing query)
             return;
@@ -253,10 +323,17 @@ public class Aggregate extends Expression {
         }
         lastGroupRowId = groupRowId;
 
-        AggregateData data = (AggregateData) group.get(this);
+        int slot = getGroupSlot();
+        if (isCounter()) {
+            if (type == COUNT_ALL || on.getValue(session) != ValueNull.INSTANCE) {
+                group.increment(slot);
+            }
+            return;
+        }
+        AggregateData data = (AggregateData) group.get(slot);
         if (data == null) {
             data = AggregateData.create(type);
-            group.put(this, data);
+            group.put(slot, data);
         }
         Value v = on == null ? null : on.getValue(session);
         if (type == GROUP_CONCAT) {
@@ -277,9 +354,113 @@ public class Aggregate extends Expression {
         data.add(session.getDatabase(), dataType, distinct, v);
     }
 
+    /**
+     * Check whether the aggregate can be updated with all selected rows of a
+     * batch at once.
+     *
+     * @return true if it can
+     */
+    public boolean isBatchSupported() {
+        return type != GROUP_CONCAT;
+    }
+
+    /**
+     * Update the aggregate with the selected rows of a batch.
+     *
+     * @param session the session
+     * @param batch the batch
+     * @param selection the selected rows
+     */
+    public void updateAggregate(ServerSession session, RowBatch batch, SelectionVector selection) {
+        GroupData group = select.getCurrentGroup();
+        if (group == null) {
+            // this is a different level (the enclosing query)
+            return;
+        }
+
+        int groupRowId = select.getCurrentGroupRowId();
+        if (lastGroupRowId == groupRowId) {
+            // already visited
+            return;
+        }
+        lastGroupRowId = groupRowId;
+
+        int slot = getGroupSlot();
+        int size = selection.size();
+        if (type == COUNT_ALL) {
+            group.addCount(slot, size);
+            return;
+        }
+        ValueVector v = on.getValueVector(session, batch, selection);
+        if (isCounter()) {
+            long count = 0;
+            for (int i = 0; i < size; i++) {
+                if (!v.isNull(selection.get(i))) {
+                    count++;
+                }
+            }
+            group.addCount(slot, count);
+            return;
+        }
+        AggregateData data = (AggregateData) group.get(slot);
+        if (data == null) {
+            data = AggregateData.create(type);
+            group.put(slot, data);
+        }
+        Database database = session.getDatabase();
+        if (!distinct && v.hasLongs()) {
+            if (type == MIN || type == MAX) {
+                // 只需把这个批次中最小或最大的值加进去
+                int found = -1;
+                long best = 0;
+                for (int i = 0; i < size; i++) {
+                    int row = selection.get(i);
+                    if (!v.isNull(row)) {
+                        long x = v.getLong(row);
+                        if (found < 0 || (type == MIN ? x < best : x > best)) {
+                            found = row;
+                            best = x;
+                        }
+                    }
+                }
+                if (found >= 0) {
+                    data.add(database, dataType, false, v.getValue(found));
+                }
+                return;
+            } else if (type == SUM && dataType == Value.LONG && addLongSum(database, data, v, selection)) {
+                return;
+            }
+        }
+        for (int i = 0; i < size; i++) {
+            data.add(database, dataType, distinct, v.getValue(selection.get(i)));
+        }
+    }
+
+    private boolean addLongSum(Database database, AggregateData data, ValueVector v, SelectionVector selection) {
+        long sum = 0;
+        boolean found = false;
+        for (int i = 0, size = selection.size(); i < size; i++) {
+            int row = selection.get(i);
+            if (!v.isNull(row)) {
+                long x = v.getLong(row);
+                long s = sum + x;
+                if (((sum ^ s) & (x ^ s)) < 0) {
+                    // 溢出了，逐行加
+                    return false;
+                }
+                sum = s;
+                found = true;
+            }
+        }
+        if (found) {
+            data.add(database, dataType, false, ValueLong.get(sum));
+        }
+        return true;
+    }
+
     @Override
     public void mergeAggregate(ServerSession session, Value v) {
-        HashMap<Expression, Object> group = select.getCurrentGroup();
+        GroupData group = select.getCurrentGroup();
         if (group == null) {
             // this is a different level (the enclosing query)
             return;
@@ -292,10 +473,11 @@ public class Aggregate extends Expression {
         }
         lastGroupRowId = groupRowId;
 
-        AggregateData data = (AggregateData) group.get(this);
+        int slot = getGroupSlot();
+        AggregateData data = (AggregateData) group.get(slot);
         if (data == null) {
             data = AggregateData.create(type);
-            group.put(this, data);
+            group.put(slot, data);
         }
         if (type == GROUP_CONCAT) {
             if (v != ValueNull.INSTANCE) {
@@ -344,11 +526,14 @@ public class Aggregate extends Expression {
                 DbException.throwInternalError("type=" + type);
             }
         }
-        HashMap<Expression, Object> group = select.getCurrentGroup();
+        GroupData group = select.getCurrentGroup();
         if (group == null) {
             throw DbException.get(ErrorCode.INVALID_USE_OF_AGGREGATE_FUNCTION_1, getSQL());
         }
-        AggregateData data = (AggregateData) group.get(this);
+        if (isCounter()) {
+            return ValueLong.get(group.getCount(getGroupSlot())).convertTo(dataType);
+        }
+        AggregateData data = (AggregateData) group.get(getGroupSlot());
         if (data == null) {
             data = AggregateData.create(type);
         }
@@ -393,11 +578,11 @@ public class Aggregate extends Expression {
 
     @Override
     public Value getMergedValue(ServerSession session) {
-        HashMap<Expression, Object> group = select.getCurrentGroup();
+        GroupData group = select.getCurrentGroup();
         if (group == null) {
             throw DbException.get(ErrorCode.INVALID_USE_OF_AGGREGATE_FUNCTION_1, getSQL());
         }
-        AggregateData data = (AggregateData) group.get(this);
+        AggregateData data = (AggregateData) group.get(getGroupSlot());
         if (data == null) {
             data = AggregateData.create(type);
         }
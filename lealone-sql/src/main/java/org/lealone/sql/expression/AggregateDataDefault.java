@@ -125,6 +125,44 @@ class AggregateDataDefault extends AggregateData {
         }
     }
 
+    /**
+     * Merge the data of the same aggregate that was calculated on other rows.
+     * DISTINCT is not supported.
+     *
+     * @param database the database
+     * @param dataType the datatype of the computed result
+     * @param other the data calculated on the other rows
+     */
+    void mergeData(Database database, int dataType, AggregateDataDefault other) {
+        if (other.count == 0) {
+            return;
+        }
+        switch (aggregateType) {
+        case Aggregate.STDDEV_POP:
+        case Aggregate.STDDEV_SAMP:
+        case Aggregate.VAR_POP:
+        case Aggregate.VAR_SAMP: {
+            // 合并两部分的均值和平方差之和，见Welford's method的并行版本
+            if (count == 0) {
+                mean = other.mean;
+                m2 = other.m2;
+            } else {
+                double n = count + other.count;
+                double delta = other.mean - mean;
+                mean += delta * other.count / n;
+                m2 += other.m2 + delta * delta * count * other.count / n;
+            }
+            count += other.count;
+            break;
+        }
+        default:
+            // SUM和AVG累加value，count用于AVG
+            long c = count;
+            add(database, dataType, false, other.value);
+            count = c + other.count;
+        }
+    }
+
     @Override
     Value getValue(Database database, int dataType, boolean distinct) {
         if (distinct) {
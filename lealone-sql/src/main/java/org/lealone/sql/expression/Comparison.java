@@ -20,6 +20,9 @@ import org.lealone.db.table.TableFilter;
 import org.lealone.db.value.Value;
 import org.lealone.db.value.ValueBoolean;
 import org.lealone.db.value.ValueNull;
+import org.lealone.sql.vector.RowBatch;
+import org.lealone.sql.vector.SelectionVector;
+import org.lealone.sql.vector.ValueVector;
 
 /**
  * Example comparison expressions are ID=1, NAME=NAME, NAME IS NULL.
@@ -233,7 +236,10 @@ public class Comparison extends Condition {
                 return ValueNull.INSTANCE;
             }
         }
-        Value r = right.getValue(session);
+        return compare(l, right.getValue(session));
+    }
+
+    private Value compare(Value l, Value r) {
         if (r == ValueNull.INSTANCE) {
             if ((compareType & NULL_SAFE) == 0) {
                 return ValueNull.INSTANCE;
@@ -246,6 +252,80 @@ public class Comparison extends Condition {
         return ValueBoolean.get(result);
     }
 
+    @Override
+    public SelectionVector filter(ServerSession session, RowBatch batch, SelectionVector selection) {
+        ValueVector l = left.getValueVector(session, batch, selection);
+        if (right == null) {
+            boolean isNull = compareType == IS_NULL;
+            int size = selection.size();
+            int[] rows = new int[size];
+            int n = 0;
+            for (int i = 0; i < size; i++) {
+                int row = selection.get(i);
+                if (l.isNull(row) == isNull) {
+                    rows[n++] = row;
+                }
+            }
+            return new SelectionVector(rows, n);
+        }
+        boolean nullSafe = (compareType & NULL_SAFE) != 0;
+        if (!nullSafe) {
+            // 跟getValue一样，左边是NULL时不计算右边
+            selection = selection.notNull(l);
+        }
+        ValueVector r = right.getValueVector(session, batch, selection);
+        int dataType = Value.getHigherOrder(left.getType(), right.getType());
+        int size = selection.size();
+        int[] rows = new int[size];
+        int n = 0;
+        if (!nullSafe && ValueVector.isLongType(dataType) && l.hasLongs() && r.hasLongs()) {
+            for (int i = 0; i < size; i++) {
+                int row = selection.get(i);
+                if (!r.isNull(row) && isTrue(compareLong(l.getLong(row), r.getLong(row)))) {
+                    rows[n++] = row;
+                }
+            }
+        } else if (!nullSafe && dataType == Value.DOUBLE && l.hasDoubles() && r.hasDoubles()) {
+            for (int i = 0; i < size; i++) {
+                int row = selection.get(i);
+                if (!r.isNull(row) && isTrue(Double.compare(l.getDouble(row), r.getDouble(row)))) {
+                    rows[n++] = row;
+                }
+            }
+        } else {
+            for (int i = 0; i < size; i++) {
+                int row = selection.get(i);
+                if (Boolean.TRUE.equals(compare(l.getValue(row), r.getValue(row)).getBoolean())) {
+                    rows[n++] = row;
+                }
+            }
+        }
+        return new SelectionVector(rows, n);
+    }
+
+    private static int compareLong(long a, long b) {
+        return a == b ? 0 : (a < b ? -1 : 1);
+    }
+
+    private boolean isTrue(int compareResult) {
+        switch (compareType) {
+        case EQUAL:
+            return compareResult == 0;
+        case NOT_EQUAL:
+            return compareResult != 0;
+        case BIGGER_EQUAL:
+            return compareResult >= 0;
+        case BIGGER:
+            return compareResult > 0;
+        case SMALLER_EQUAL:
+            return compareResult <= 0;
+        case SMALLER:
+            return compareResult < 0;
+        default:
+            throw DbException.throwInternalError("type=" + compareType);
+        }
+    }
+
     /**
      * Compare two values, given the values are not NULL.
      *
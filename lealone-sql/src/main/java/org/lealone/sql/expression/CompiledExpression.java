@@ -0,0 +1,67 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.sql.expression;
+
+import org.lealone.db.Database;
+import org.lealone.db.ServerSession;
+import org.lealone.db.value.Value;
+
+/**
+ * The base class of the classes that {@link ExpressionCompiler} generates for
+ * an expression tree. An instance is bound to the expression objects it was
+ * generated from, and evaluates them without going through the tree.
+ */
+public abstract class CompiledExpression {
+
+    protected final Database database;
+
+    protected CompiledExpression(Database database) {
+        this.database = database;
+    }
+
+    /**
+     * Evaluate the expression for the current row.
+     *
+     * @param session the session
+     * @return the value
+     */
+    public abstract Value getValue(ServerSession session);
+
+    /**
+     * Evaluate a condition for the current row.
+     *
+     * @param session the session
+     * @return true, false, or null
+     */
+    public Boolean getBooleanValue(ServerSession session) {
+        return getValue(session).getBoolean();
+    }
+
+    /**
+     * Compare two values that are not NULL the same way as
+     * {@link Comparison} does.
+     *
+     * @param l the first value
+     * @param r the second value
+     * @param compareType the compare type
+     * @return the result of the comparison
+     */
+    protected boolean compare(Value l, Value r, int compareType) {
+        return Comparison.compareNotNull(database, l, r, compareType);
+    }
+}
@@ -15,6 +15,8 @@ import org.lealone.db.table.TableFilter;
 import org.lealone.db.value.Value;
 import org.lealone.db.value.ValueBoolean;
 import org.lealone.db.value.ValueNull;
+import org.lealone.sql.vector.RowBatch;
+import org.lealone.sql.vector.SelectionVector;
 
 /**
  * An 'and' or 'or' condition as in WHERE ID=1 AND NAME=?
@@ -125,6 +127,25 @@ public class ConditionAndOr extends Condition {
         }
     }
 
+    @Override
+    public SelectionVector filter(ServerSession session, RowBatch batch, SelectionVector selection) {
+        SelectionVector l = left.filter(session, batch, selection);
+        switch (andOrType) {
+        case AND:
+            if (l.size() == 0) {
+                return l;
+            }
+            return right.filter(session, batch, l);
+        case OR:
+            if (l.size() == selection.size()) {
+                return l;
+            }
+            return l.union(right.filter(session, batch, selection.except(l)));
+        default:
+            throw DbException.throwInternalError("type=" + andOrType);
+        }
+    }
+
     @Override
     public Expression optimize(ServerSession session) {
         // NULL handling: see wikipedia,
@@ -283,4 +304,8 @@ public class ConditionAndOr extends Condition {
     public Expression getExpression(boolean getLeft) {
         return getLeft ? this.left : right;
     }
+
+    int getAndOrType() {
+        return andOrType;
+    }
 }
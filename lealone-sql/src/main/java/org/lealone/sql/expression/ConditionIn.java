@@ -18,6 +18,9 @@ import org.lealone.db.table.TableFilter;
 import org.lealone.db.value.Value;
 import org.lealone.db.value.ValueBoolean;
 import org.lealone.db.value.ValueNull;
+import org.lealone.sql.vector.RowBatch;
+import org.lealone.sql.vector.SelectionVector;
+import org.lealone.sql.vector.ValueVector;
 
 /**
  * An 'in' condition with a list of values, as in WHERE NAME IN(...)
@@ -68,6 +71,33 @@ public class ConditionIn extends Condition {
         return ValueBoolean.get(result);
     }
 
+    @Override
+    public SelectionVector filter(ServerSession session, RowBatch batch, SelectionVector selection) {
+        ValueVector l = left.getValueVector(session, batch, selection);
+        selection = selection.notNull(l);
+        int listSize = valueList.size();
+        ValueVector[] list = new ValueVector[listSize];
+        for (int j = 0; j < listSize; j++) {
+            list[j] = valueList.get(j).getValueVector(session, batch, selection);
+        }
+        int size = selection.size();
+        int[] rows = new int[size];
+        int n = 0;
+        for (int i = 0; i < size; i++) {
+            int row = selection.get(i);
+            Value v = l.getValue(row);
+            for (int j = 0; j < listSize; j++) {
+                Value r = list[j].getValue(row);
+                if (r != ValueNull.INSTANCE
+                        && Comparison.compareNotNull(database, v, r.convertTo(v.getType()), Comparison.EQUAL)) {
+                    rows[n++] = row;
+                    break;
+                }
+            }
+        }
+        return new SelectionVector(rows, n);
+    }
+
     @Override
     public void mapColumns(ColumnResolver resolver, int level) {
         left.mapColumns(resolver, level);
@@ -7,6 +7,7 @@
 package org.lealone.sql.expression;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 
 import org.lealone.common.exceptions.DbException;
@@ -19,6 +20,9 @@ import org.lealone.db.table.TableFilter;
 import org.lealone.db.value.Value;
 import org.lealone.db.value.ValueBoolean;
 import org.lealone.db.value.ValueNull;
+import org.lealone.sql.vector.RowBatch;
+import org.lealone.sql.vector.SelectionVector;
+import org.lealone.sql.vector.ValueVector;
 
 /**
  * Used for optimised IN(...) queries where the contents of the IN list are all
@@ -33,6 +37,7 @@ public class ConditionInConstantSet extends Condition {
     private int queryLevel;
     private final ArrayList<Expression> valueList;
     private final HashSet<Value> valueSet;
+    private long[] sortedLongs;
 
     /**
      * Create a new IN(..) condition.
@@ -67,6 +72,48 @@ public class ConditionInConstantSet extends Condition {
         return ValueBoolean.get(result);
     }
 
+    @Override
+    public SelectionVector filter(ServerSession session, RowBatch batch, SelectionVector selection) {
+        ValueVector l = left.getValueVector(session, batch, selection);
+        int size = selection.size();
+        int[] rows = new int[size];
+        int n = 0;
+        if (l.hasLongs() && ValueVector.isLongType(left.getType())) {
+            long[] set = getSortedLongs();
+            for (int i = 0; i < size; i++) {
+                int row = selection.get(i);
+                if (!l.isNull(row) && Arrays.binarySearch(set, l.getLong(row)) >= 0) {
+                    rows[n++] = row;
+                }
+            }
+        } else {
+            for (int i = 0; i < size; i++) {
+                int row = selection.get(i);
+                Value v = l.getValue(row);
+                if (v != ValueNull.INSTANCE && valueSet.contains(v)) {
+                    rows[n++] = row;
+                }
+            }
+        }
+        return new SelectionVector(rows, n);
+    }
+
+    private long[] getSortedLongs() {
+        if (sortedLongs == null) {
+            long[] list = new long[valueSet.size()];
+            int n = 0;
+            for (Value v : valueSet) {
+                if (v != ValueNull.INSTANCE) {
+                    list[n++] = v.getLong();
+                }
+            }
+            list = Arrays.copyOf(list, n);
+            Arrays.sort(list);
+            sortedLongs = list;
+        }
+        return sortedLongs;
+    }
+
     @Override
     public void mapColumns(ColumnResolver resolver, int level) {
         left.mapColumns(resolver, level);
@@ -156,6 +203,7 @@ public class ConditionInConstantSet extends Condition {
             if (add.isConstant()) {
                 valueList.add(add);
                 valueSet.add(add.getValue(session).convertTo(left.getType()));
+                sortedLongs = null;
                 return this;
             }
         }
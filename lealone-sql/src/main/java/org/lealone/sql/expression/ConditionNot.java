@@ -29,6 +29,10 @@ public class ConditionNot extends Condition {
         return condition;
     }
 
+    Expression getCondition() {
+        return condition;
+    }
+
     @Override
     public Value getValue(ServerSession session) {
         Value v = condition.getValue(session);
@@ -21,6 +21,10 @@ import org.lealone.db.table.TableFilter;
 import org.lealone.db.value.DataType;
 import org.lealone.db.value.Value;
 import org.lealone.db.value.ValueArray;
+import org.lealone.sql.vector.ObjectVector;
+import org.lealone.sql.vector.RowBatch;
+import org.lealone.sql.vector.SelectionVector;
+import org.lealone.sql.vector.ValueVector;
 
 /**
  * An expression is a operation, a value, or a function in a query.
@@ -200,6 +204,48 @@ public abstract class Expression implements org.lealone.db.expression.Expression
         return getValue(session).getBoolean();
     }
 
+    /**
+     * Get the values of this expression for the selected rows of a batch.
+     * By default, the expression is evaluated one row at a time.
+     *
+     * @param session the session
+     * @param batch the batch
+     * @param selection the selected rows
+     * @return the values
+     */
+    public ValueVector getValueVector(ServerSession session, RowBatch batch, SelectionVector selection) {
+        Value[] values = new Value[batch.size()];
+        for (int i = 0, size = selection.size(); i < size; i++) {
+            int row = selection.get(i);
+            batch.setCurrentRow(row);
+            values[row] = getValue(session);
+        }
+        return new ObjectVector(values);
+    }
+
+    /**
+     * Get the selected rows of a batch for which this expression is true.
+     * By default, the expression is evaluated one row at a time.
+     *
+     * @param session the session
+     * @param batch the batch
+     * @param selection the selected rows
+     * @return the rows for which the expression is true
+     */
+    public SelectionVector filter(ServerSession session, RowBatch batch, SelectionVector selection) {
+        int size = selection.size();
+        int[] rows = new int[size];
+        int n = 0;
+        for (int i = 0; i < size; i++) {
+            int row = selection.get(i);
+            batch.setCurrentRow(row);
+            if (Boolean.TRUE.equals(getBooleanValue(session))) {
+                rows[n++] = row;
+            }
+        }
+        return new SelectionVector(rows, n);
+    }
+
     /**
      * Create index conditions if possible and attach them to the table filter.
      *
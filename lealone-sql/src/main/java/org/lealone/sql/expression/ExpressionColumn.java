@@ -6,8 +6,6 @@
  */
 package org.lealone.sql.expression;
 
-import java.util.HashMap;
-
 import org.lealone.api.ErrorCode;
 import org.lealone.common.exceptions.DbException;
 import org.lealone.db.Database;
@@ -23,7 +21,12 @@ import org.lealone.db.table.TableFilter;
 import org.lealone.db.value.Value;
 import org.lealone.db.value.ValueBoolean;
 import org.lealone.sql.Parser;
+import org.lealone.sql.dml.GroupData;
 import org.lealone.sql.dml.Select;
+import org.lealone.sql.vector.ConstantVector;
+import org.lealone.sql.vector.RowBatch;
+import org.lealone.sql.vector.SelectionVector;
+import org.lealone.sql.vector.ValueVector;
 
 /**
  * A expression that represents a column of a table or view.
@@ -38,6 +41,7 @@ public class ExpressionColumn extends Expression implements org.lealone.db.expre
     private int queryLevel;
     private Column column;
     private boolean evaluatable;
+    private int groupSlot = -1;
 
     private Select select;
 
@@ -164,14 +168,17 @@ public class ExpressionColumn extends Expression implements org.lealone.db.expre
         if (select == null) {
             throw DbException.get(ErrorCode.MUST_GROUP_BY_COLUMN_1, getSQL());
         }
-        HashMap<Expression, Object> values = select.getCurrentGroup();
+        GroupData values = select.getCurrentGroup();
         if (values == null) {
             // this is a different level (the enclosing query)
             return;
         }
-        Value v = (Value) values.get(this);
+        if (groupSlot < 0) {
+            groupSlot = select.allocateGroupSlot(this);
+        }
+        Value v = (Value) values.get(groupSlot);
         if (v == null) {
-            values.put(this, now);
+            values.put(groupSlot, now);
         }
     }
 
@@ -179,9 +186,9 @@ public class ExpressionColumn extends Expression implements org.lealone.db.expre
     public Value getValue(ServerSession session) {
         Select select = (Select) columnResolver.getSelect();
         if (select != null) {
-            HashMap<Expression, Object> values = select.getCurrentGroup();
-            if (values != null) {
-                Value v = (Value) values.get(this);
+            GroupData values = select.getCurrentGroup();
+            if (values != null && groupSlot >= 0) {
+                Value v = (Value) values.get(groupSlot);
                 if (v != null) {
                     return v;
                 }
@@ -195,6 +202,21 @@ public class ExpressionColumn extends Expression implements org.lealone.db.expre
         return value;
     }
 
+    @Override
+    public ValueVector getValueVector(ServerSession session, RowBatch batch, SelectionVector selection) {
+        TableFilter filter = columnResolver.getTableFilter();
+        if (filter == batch.getTableFilter() && groupSlot < 0) {
+            ValueVector v = batch.getColumnVector(column);
+            if (v != null) {
+                return v;
+            }
+        } else if (filter != null && filter != batch.getTableFilter()) {
+            // 外层查询的列在一个批次中是不变的
+            return new ConstantVector(getValue(session));
+        }
+        return super.getValueVector(session, batch, selection);
+    }
+
     @Override
     public int getType() {
         return column.getType();
@@ -207,6 +229,10 @@ public class ExpressionColumn extends Expression implements org.lealone.db.expre
         }
     }
 
+    ColumnResolver getColumnResolver() {
+        return columnResolver;
+    }
+
     @Override
     public Column getColumn() {
         return column;
@@ -0,0 +1,360 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.sql.expression;
+
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.lealone.common.exceptions.DbException;
+import org.lealone.common.util.New;
+import org.lealone.common.util.SmallLRUCache;
+import org.lealone.db.Database;
+import org.lealone.db.ServerSession;
+import org.lealone.db.table.ColumnResolver;
+import org.lealone.db.util.SourceCompiler;
+import org.lealone.db.value.Value;
+import org.lealone.sql.dml.Select;
+import org.lealone.sql.vector.ValueVector;
+
+/**
+ * Generates a Java class for an expression tree, so that the tree can be
+ * evaluated without a virtual call and a switch per node.
+ * <p>
+ * Columns, constants, comparisons, AND, OR, NOT and arithmetic operations are
+ * translated into Java code. Any other node (functions, subqueries, IN, LIKE,
+ * aggregates and so on) is kept as it is and called from the generated code.
+ * Values, columns and the kept nodes are passed to the constructor of the
+ * generated class, so expressions that only differ in their constants share
+ * the same class. The classes are compiled with the {@link SourceCompiler} of
+ * the database.
+ */
+public class ExpressionCompiler {
+
+    private static final String PACKAGE_NAME = "org.lealone.sql.expression.compiled";
+    private static final String CLASS_NAME = "@CLASS";
+
+    private static final AtomicInteger nextClassId = new AtomicInteger();
+
+    /**
+     * The generated source code (without the class name) to class map.
+     */
+    private static final SmallLRUCache<String, Class<?>> classes = SmallLRUCache.newInstance(256);
+
+    private final ServerSession session;
+    private final ArrayList<Object> args = New.arrayList();
+    private final StringBuilder fields = new StringBuilder();
+    private final StringBuilder init = new StringBuilder();
+    private final StringBuilder methods = new StringBuilder();
+    private int nextId;
+
+    private ExpressionCompiler(ServerSession session) {
+        this.session = session;
+    }
+
+    /**
+     * Compile the given expression.
+     *
+     * @param session the session
+     * @param expr the expression
+     * @return the compiled expression, or null if compiling would not help
+     *         (for example for a column or a function)
+     */
+    public static CompiledExpression compile(ServerSession session, Expression expr) {
+        expr = expr.getNonAliasExpression();
+        if (!(expr instanceof Comparison || expr instanceof ConditionAndOr || expr instanceof ConditionNot
+                || expr instanceof Operation)) {
+            return null;
+        }
+        ExpressionCompiler compiler = new ExpressionCompiler(session);
+        String value = compiler.compileExpression(expr);
+        Database database = session.getDatabase();
+        Class<?> clazz = getClass(database, compiler.getSource(value));
+        try {
+            Constructor<?> constructor = clazz.getConstructor(Database.class, Object[].class);
+            return (CompiledExpression) constructor.newInstance(database, compiler.args.toArray());
+        } catch (Exception e) {
+            throw DbException.convert(e);
+        }
+    }
+
+    private static Class<?> getClass(Database database, String source) {
+        synchronized (classes) {
+            Class<?> clazz = classes.get(source);
+            if (clazz == null) {
+                String className = "CompiledExpression" + nextClassId.incrementAndGet();
+                String fullClassName = PACKAGE_NAME + "." + className;
+                SourceCompiler compiler = database.getCompiler();
+                synchronized (compiler) {
+                    compiler.setSource(fullClassName, source.replace(CLASS_NAME, className));
+                    try {
+                        clazz = compiler.getClass(fullClassName);
+                    } catch (ClassNotFoundException e) {
+                        throw DbException.convert(e);
+                    }
+                }
+                classes.put(source, clazz);
+            }
+            return clazz;
+        }
+    }
+
+    private String getSource(String value) {
+        StringBuilder buff = new StringBuilder();
+        buff.append("package ").append(PACKAGE_NAME).append(";\n\n");
+        buff.append("import org.lealone.db.Database;\n");
+        buff.append("import org.lealone.db.ServerSession;\n");
+        buff.append("import org.lealone.db.table.Column;\n");
+        buff.append("import org.lealone.db.table.ColumnResolver;\n");
+        buff.append("import org.lealone.db.value.Value;\n");
+        buff.append("import org.lealone.db.value.ValueBoolean;\n");
+        buff.append("import org.lealone.db.value.ValueNull;\n");
+        buff.append("import org.lealone.sql.expression.CompiledExpression;\n");
+        buff.append("import org.lealone.sql.expression.Expression;\n\n");
+        buff.append("public class ").append(CLASS_NAME).append(" extends CompiledExpression {\n");
+        buff.append(fields);
+        buff.append("\n    public ").append(CLASS_NAME).append("(Database database, Object[] args) {\n");
+        buff.append("        super(database);\n");
+        buff.append(init);
+        buff.append("    }\n\n");
+        buff.append("    @Override\n");
+        buff.append("    public Value getValue(ServerSession session) {\n");
+        buff.append("        return ").append(value).append(";\n");
+        buff.append("    }\n");
+        buff.append(methods);
+        buff.append("}\n");
+        return buff.toString();
+    }
+
+    private String addField(String type, Object value) {
+        String name = "f" + args.size();
+        fields.append("    private final ").append(type).append(' ').append(name).append(";\n");
+        init.append("        ").append(name).append(" = (").append(type).append(") args[").append(args.size())
+                .append("];\n");
+        args.add(value);
+        return name;
+    }
+
+    /**
+     * Generate the code of the given expression.
+     *
+     * @param expr the expression
+     * @return Java code that evaluates to the value of the expression
+     */
+    private String compileExpression(Expression expr) {
+        expr = expr.getNonAliasExpression();
+        if (expr instanceof ValueExpression) {
+            return addField("Value", expr.getValue(session));
+        } else if (expr instanceof ExpressionColumn) {
+            return compileColumn((ExpressionColumn) expr);
+        } else if (expr instanceof Comparison) {
+            return compileComparison((Comparison) expr);
+        } else if (expr instanceof ConditionAndOr) {
+            return compileAndOr((ConditionAndOr) expr);
+        } else if (expr instanceof ConditionNot) {
+            return compileNot((ConditionNot) expr);
+        } else if (expr instanceof Operation) {
+            return compileOperation((Operation) expr);
+        }
+        return compileInterpreted(expr);
+    }
+
+    private String compileInterpreted(Expression expr) {
+        return addField("Expression", expr) + ".getValue(session)";
+    }
+
+    private String beginMethod() {
+        String name = "e" + nextId++;
+        methods.append("\n    private Value ").append(name).append("(ServerSession session) {\n");
+        return name + "(session)";
+    }
+
+    private void endMethod() {
+        methods.append("    }\n");
+    }
+
+    private void addLine(String line) {
+        methods.append("        ").append(line).append('\n');
+    }
+
+    private String compileColumn(ExpressionColumn expr) {
+        ColumnResolver resolver = expr.getColumnResolver();
+        Select select = (Select) resolver.getSelect();
+        if (select != null && select.isGroupQuery()) {
+            // 分组查询中的列可能要从当前分组中取值
+            return compileInterpreted(expr);
+        }
+        String r = addField("ColumnResolver", resolver);
+        String c = addField("Column", expr.getColumn());
+        String e = addField("Expression", expr);
+        String call = beginMethod();
+        addLine("Value v = " + r + ".getValue(" + c + ");");
+        // 没有值时让ExpressionColumn抛出异常
+        addLine("return v != null ? v : " + e + ".getValue(session);");
+        endMethod();
+        return call;
+    }
+
+    private String compileComparison(Comparison expr) {
+        int compareType = expr.getCompareType();
+        Expression left = expr.getExpression(true);
+        Expression right = expr.getExpression(false);
+        String l = compileExpression(left);
+        if (right == null) {
+            String call = beginMethod();
+            String op = compareType == Comparison.IS_NULL ? " == " : " != ";
+            addLine("return ValueBoolean.get(" + l + op + "ValueNull.INSTANCE);");
+            endMethod();
+            return call;
+        }
+        String r = compileExpression(right);
+        int dataType = Value.getHigherOrder(left.getType(), right.getType());
+        boolean nullSafe = (compareType & Comparison.NULL_SAFE) != 0;
+        String call = beginMethod();
+        addLine("Value l = " + l + ";");
+        if (!nullSafe) {
+            addLine("if (l == ValueNull.INSTANCE) {");
+            addLine("    return l;");
+            addLine("}");
+        }
+        addLine("Value r = " + r + ";");
+        if (!nullSafe) {
+            addLine("if (r == ValueNull.INSTANCE) {");
+            addLine("    return r;");
+            addLine("}");
+        }
+        addLine("l = l.convertTo(" + dataType + ");");
+        addLine("r = r.convertTo(" + dataType + ");");
+        String op = nullSafe ? null : getCompareOperator(compareType);
+        if (op != null && ValueVector.isLongType(dataType)) {
+            addLine("return ValueBoolean.get(l.getLong() " + op + " r.getLong());");
+        } else if (op != null && dataType == Value.DOUBLE) {
+            addLine("return ValueBoolean.get(Double.compare(l.getDouble(), r.getDouble()) " + op + " 0);");
+        } else {
+            addLine("return ValueBoolean.get(compare(l, r, " + compareType + "));");
+        }
+        endMethod();
+        return call;
+    }
+
+    private static String getCompareOperator(int compareType) {
+        switch (compareType) {
+        case Comparison.EQUAL:
+            return "==";
+        case Comparison.NOT_EQUAL:
+            return "!=";
+        case Comparison.BIGGER_EQUAL:
+            return ">=";
+        case Comparison.BIGGER:
+            return ">";
+        case Comparison.SMALLER_EQUAL:
+            return "<=";
+        case Comparison.SMALLER:
+            return "<";
+        default:
+            return null;
+        }
+    }
+
+    private String compileAndOr(ConditionAndOr expr) {
+        String l = compileExpression(expr.getExpression(true));
+        String r = compileExpression(expr.getExpression(false));
+        // 跟ConditionAndOr.getValue一样短路求值
+        String shortCut = expr.getAndOrType() == ConditionAndOr.AND ? "Boolean.FALSE" : "Boolean.TRUE";
+        String call = beginMethod();
+        addLine("Value l = " + l + ";");
+        addLine("if (" + shortCut + ".equals(l.getBoolean())) {");
+        addLine("    return l;");
+        addLine("}");
+        addLine("Value r = " + r + ";");
+        addLine("if (" + shortCut + ".equals(r.getBoolean())) {");
+        addLine("    return r;");
+        addLine("}");
+        addLine("if (l == ValueNull.INSTANCE) {");
+        addLine("    return l;");
+        addLine("}");
+        addLine("if (r == ValueNull.INSTANCE) {");
+        addLine("    return r;");
+        addLine("}");
+        addLine("return ValueBoolean.get(" + (expr.getAndOrType() == ConditionAndOr.AND) + ");");
+        endMethod();
+        return call;
+    }
+
+    private String compileNot(ConditionNot expr) {
+        String v = compileExpression(expr.getCondition());
+        String call = beginMethod();
+        addLine("Value v = " + v + ";");
+        addLine("if (v == ValueNull.INSTANCE) {");
+        addLine("    return v;");
+        addLine("}");
+        addLine("return v.convertTo(Value.BOOLEAN).negate();");
+        endMethod();
+        return call;
+    }
+
+    private String compileOperation(Operation expr) {
+        String method;
+        switch (expr.getOpType()) {
+        case Operation.NEGATE:
+            method = "negate";
+            break;
+        case Operation.PLUS:
+            method = "add";
+            break;
+        case Operation.MINUS:
+            method = "subtract";
+            break;
+        case Operation.MULTIPLY:
+            method = "multiply";
+            break;
+        case Operation.DIVIDE:
+            method = "divide";
+            break;
+        case Operation.MODULUS:
+            method = "modulus";
+            break;
+        default:
+            // CONCAT依赖于数据库的兼容模式
+            return compileInterpreted(expr);
+        }
+        int dataType = expr.getType();
+        String l = compileExpression(expr.getLeft());
+        if (expr.getRight() == null) {
+            String call = beginMethod();
+            addLine("Value l = " + l + ".convertTo(" + dataType + ");");
+            addLine("return l == ValueNull.INSTANCE ? l : l." + method + "();");
+            endMethod();
+            return call;
+        }
+        String r = compileExpression(expr.getRight());
+        String call = beginMethod();
+        addLine("Value l = " + l + ";");
+        addLine("Value r = " + r + ";");
+        addLine("l = l.convertTo(" + dataType + ");");
+        if (expr.isConvertRight()) {
+            addLine("r = r.convertTo(" + dataType + ");");
+        }
+        addLine("if (l == ValueNull.INSTANCE || r == ValueNull.INSTANCE) {");
+        addLine("    return ValueNull.INSTANCE;");
+        addLine("}");
+        addLine("return l." + method + "(r);");
+        endMethod();
+        return call;
+    }
+}
@@ -7,7 +7,6 @@ package org.lealone.sql.expression;
 
 import java.sql.Connection;
 import java.sql.SQLException;
-import java.util.HashMap;
 
 import org.lealone.api.Aggregate;
 import org.lealone.api.ErrorCode;
@@ -22,6 +21,7 @@ import org.lealone.db.value.DataType;
 import org.lealone.db.value.Value;
 import org.lealone.db.value.ValueNull;
 import org.lealone.sql.Parser;
+import org.lealone.sql.dml.GroupData;
 import org.lealone.sql.dml.Select;
 
 /**
@@ -36,6 +36,7 @@ public class JavaAggregate extends Expression {
     private int dataType;
     private Connection userConnection;
     private int lastGroupRowId;
+    private int groupSlot = -1;
 
     private Aggregate aggregate;
 
@@ -43,6 +44,10 @@ public class JavaAggregate extends Expression {
         this.userAggregate = userAggregate;
         this.args = args;
         this.select = select;
+        if (select != null) {
+            // 用户定义的聚合函数不能合并
+            select.setUnmergeableAggregate();
+        }
     }
 
     @Override
@@ -141,6 +146,13 @@ public class JavaAggregate extends Expression {
         }
     }
 
+    private int getGroupSlot() {
+        if (groupSlot < 0) {
+            groupSlot = select.allocateGroupSlot(this);
+        }
+        return groupSlot;
+    }
+
     private Aggregate getInstance() throws SQLException {
         if (aggregate == null) {
             aggregate = userAggregate.getInstance();
@@ -151,12 +163,12 @@ public class JavaAggregate extends Expression {
 
     @Override
     public Value getValue(ServerSession session) {
-        HashMap<Expression, Object> group = select.getCurrentGroup();
+        GroupData group = select.getCurrentGroup();
         if (group == null) {
             throw DbException.get(ErrorCode.INVALID_USE_OF_AGGREGATE_FUNCTION_1, getSQL());
         }
         try {
-            Aggregate agg = (Aggregate) group.get(this);
+            Aggregate agg = (Aggregate) group.get(getGroupSlot());
             if (agg == null) {
                 agg = getInstance();
             }
@@ -172,7 +184,7 @@ public class JavaAggregate extends Expression {
 
     @Override
     public void updateAggregate(ServerSession session) {
-        HashMap<Expression, Object> group = select.getCurrentGroup();
+        GroupData group = select.getCurrentGroup();
         if (group == null) {
             // this is a different level (the enclosing query)
             return;
@@ -185,11 +197,11 @@ public class JavaAggregate extends Expression {
         }
         lastGroupRowId = groupRowId;
 
-        Aggregate agg = (Aggregate) group.get(this);
+        Aggregate agg = (Aggregate) group.get(getGroupSlot());
         try {
             if (agg == null) {
                 agg = getInstance();
-                group.put(this, agg);
+                group.put(getGroupSlot(), agg);
             }
             Object[] argValues = new Object[args.length];
             Object arg = null;
@@ -18,6 +18,12 @@ import org.lealone.db.value.Value;
 import org.lealone.db.value.ValueInt;
 import org.lealone.db.value.ValueNull;
 import org.lealone.db.value.ValueString;
+import org.lealone.sql.vector.DoubleVector;
+import org.lealone.sql.vector.LongVector;
+import org.lealone.sql.vector.ObjectVector;
+import org.lealone.sql.vector.RowBatch;
+import org.lealone.sql.vector.SelectionVector;
+import org.lealone.sql.vector.ValueVector;
 
 /**
  * A mathematical expression, or string concatenation.
@@ -108,15 +114,15 @@ public class Operation extends Expression {
 
     @Override
     public Value getValue(ServerSession session) {
-        Value l = left.getValue(session).convertTo(dataType);
-        Value r;
-        if (right == null) {
-            r = null;
-        } else {
-            r = right.getValue(session);
-            if (convertRight) {
-                r = r.convertTo(dataType);
-            }
+        Value l = left.getValue(session);
+        Value r = right == null ? null : right.getValue(session);
+        return calculate(session, l, r);
+    }
+
+    private Value calculate(ServerSession session, Value l, Value r) {
+        l = l.convertTo(dataType);
+        if (r != null && convertRight) {
+            r = r.convertTo(dataType);
         }
         switch (opType) {
         case NEGATE:
@@ -169,6 +175,90 @@ public class Operation extends Expression {
         }
     }
 
+    @Override
+    public ValueVector getValueVector(ServerSession session, RowBatch batch, SelectionVector selection) {
+        ValueVector l = left.getValueVector(session, batch, selection);
+        ValueVector r = right == null ? null : right.getValueVector(session, batch, selection);
+        if (r != null && convertRight && (opType == PLUS || opType == MINUS || opType == MULTIPLY)) {
+            if ((dataType == Value.INT || dataType == Value.LONG) && l.hasLongs() && r.hasLongs()) {
+                return calculateLong(session, l, r, batch.size(), selection);
+            } else if (dataType == Value.DOUBLE && l.hasDoubles() && r.hasDoubles()) {
+                return calculateDouble(l, r, batch.size(), selection);
+            }
+        }
+        Value[] values = new Value[batch.size()];
+        for (int i = 0, size = selection.size(); i < size; i++) {
+            int row = selection.get(i);
+            values[row] = calculate(session, l.getValue(row), r == null ? null : r.getValue(row));
+        }
+        return new ObjectVector(values);
+    }
+
+    private ValueVector calculateLong(ServerSession session, ValueVector l, ValueVector r, int length,
+            SelectionVector selection) {
+        long[] values = new long[length];
+        boolean[] nulls = null;
+        for (int i = 0, size = selection.size(); i < size; i++) {
+            int row = selection.get(i);
+            if (l.isNull(row) || r.isNull(row)) {
+                if (nulls == null) {
+                    nulls = new boolean[length];
+                }
+                nulls[row] = true;
+                continue;
+            }
+            long a = l.getLong(row), b = r.getLong(row), x;
+            boolean overflow;
+            switch (opType) {
+            case PLUS:
+                x = a + b;
+                overflow = ((a ^ x) & (b ^ x)) < 0;
+                break;
+            case MINUS:
+                x = a - b;
+                overflow = ((a ^ b) & (a ^ x)) < 0;
+                break;
+            default:
+                x = a * b;
+                overflow = ((Math.abs(a) | Math.abs(b)) >>> 31 != 0)
+                        && ((b != 0 && x / b != a) || (a == Long.MIN_VALUE && b == -1));
+            }
+            if (overflow || (dataType == Value.INT && x != (int) x)) {
+                // 溢出时用Value计算，这样抛出的异常跟逐行计算时一样
+                x = calculate(session, l.getValue(row), r.getValue(row)).getLong();
+            }
+            values[row] = x;
+        }
+        return new LongVector(dataType, values, nulls);
+    }
+
+    private ValueVector calculateDouble(ValueVector l, ValueVector r, int length, SelectionVector selection) {
+        double[] values = new double[length];
+        boolean[] nulls = null;
+        for (int i = 0, size = selection.size(); i < size; i++) {
+            int row = selection.get(i);
+            if (l.isNull(row) || r.isNull(row)) {
+                if (nulls == null) {
+                    nulls = new boolean[length];
+                }
+                nulls[row] = true;
+                continue;
+            }
+            double a = l.getDouble(row), b = r.getDouble(row);
+            switch (opType) {
+            case PLUS:
+                values[row] = a + b;
+                break;
+            case MINUS:
+                values[row] = a - b;
+                break;
+            default:
+                values[row] = a * b;
+            }
+        }
+        return new DoubleVector(Value.DOUBLE, values, nulls);
+    }
+
     @Override
     public void mapColumns(ColumnResolver resolver, int level) {
         left.mapColumns(resolver, level);
@@ -343,6 +433,22 @@ public class Operation extends Expression {
         return dataType;
     }
 
+    int getOpType() {
+        return opType;
+    }
+
+    Expression getLeft() {
+        return left;
+    }
+
+    Expression getRight() {
+        return right;
+    }
+
+    boolean isConvertRight() {
+        return convertRight;
+    }
+
     @Override
     public long getPrecision() {
         if (right != null) {
@@ -17,6 +17,10 @@ import org.lealone.db.table.TableFilter;
 import org.lealone.db.value.Value;
 import org.lealone.db.value.ValueBoolean;
 import org.lealone.db.value.ValueNull;
+import org.lealone.sql.vector.ConstantVector;
+import org.lealone.sql.vector.RowBatch;
+import org.lealone.sql.vector.SelectionVector;
+import org.lealone.sql.vector.ValueVector;
 
 /**
  * A parameter of a prepared statement.
@@ -66,6 +70,11 @@ public class Parameter extends Expression implements CommandParameter {
         return getValue();
     }
 
+    @Override
+    public ValueVector getValueVector(ServerSession session, RowBatch batch, SelectionVector selection) {
+        return new ConstantVector(getValue(session));
+    }
+
     @Override
     public int getType() {
         if (value != null) {
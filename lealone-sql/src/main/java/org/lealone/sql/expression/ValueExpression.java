@@ -16,6 +16,10 @@ import org.lealone.db.value.Value;
 import org.lealone.db.value.ValueArray;
 import org.lealone.db.value.ValueBoolean;
 import org.lealone.db.value.ValueNull;
+import org.lealone.sql.vector.ConstantVector;
+import org.lealone.sql.vector.RowBatch;
+import org.lealone.sql.vector.SelectionVector;
+import org.lealone.sql.vector.ValueVector;
 
 /**
  * An expression representing a constant value.
@@ -75,6 +79,11 @@ public class ValueExpression extends Expression {
         return value;
     }
 
+    @Override
+    public ValueVector getValueVector(ServerSession session, RowBatch batch, SelectionVector selection) {
+        return new ConstantVector(getValue(session));
+    }
+
     @Override
     public int getType() {
         return value.getType();
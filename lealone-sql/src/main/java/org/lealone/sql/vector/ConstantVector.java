@@ -0,0 +1,73 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.sql.vector;
+
+import org.lealone.db.value.Value;
+import org.lealone.db.value.ValueNull;
+
+/**
+ * A vector that has the same value for all rows, for example a constant, a
+ * parameter or a column of an outer query.
+ */
+public class ConstantVector extends ValueVector {
+
+    private final Value value;
+    private final boolean isLong;
+    private final boolean isDouble;
+
+    public ConstantVector(Value value) {
+        this.value = value;
+        int type = value.getType();
+        isLong = isLongType(type);
+        isDouble = isLong || type == Value.DOUBLE || type == Value.FLOAT;
+    }
+
+    public Value getValue() {
+        return value;
+    }
+
+    @Override
+    public Value getValue(int row) {
+        return value;
+    }
+
+    @Override
+    public boolean isNull(int row) {
+        return value == ValueNull.INSTANCE;
+    }
+
+    @Override
+    public boolean hasLongs() {
+        return isLong;
+    }
+
+    @Override
+    public boolean hasDoubles() {
+        return isDouble;
+    }
+
+    @Override
+    public long getLong(int row) {
+        return value.getLong();
+    }
+
+    @Override
+    public double getDouble(int row) {
+        return value.getDouble();
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.sql.vector;
+
+import org.lealone.db.value.Value;
+import org.lealone.db.value.ValueDouble;
+import org.lealone.db.value.ValueFloat;
+import org.lealone.db.value.ValueNull;
+
+/**
+ * A vector of DOUBLE or FLOAT values.
+ */
+public class DoubleVector extends ValueVector {
+
+    private final int type;
+    private final double[] values;
+    private final boolean[] nulls;
+
+    /**
+     * Create a vector.
+     *
+     * @param type the value type
+     * @param values the values
+     * @param nulls which values are NULL, or null if none is NULL
+     */
+    public DoubleVector(int type, double[] values, boolean[] nulls) {
+        this.type = type;
+        this.values = values;
+        this.nulls = nulls;
+    }
+
+    @Override
+    public Value getValue(int row) {
+        if (nulls != null && nulls[row]) {
+            return ValueNull.INSTANCE;
+        }
+        if (type == Value.FLOAT) {
+            return ValueFloat.get((float) values[row]);
+        }
+        return ValueDouble.get(values[row]);
+    }
+
+    @Override
+    public boolean isNull(int row) {
+        return nulls != null && nulls[row];
+    }
+
+    @Override
+    public boolean hasDoubles() {
+        return true;
+    }
+
+    @Override
+    public double getDouble(int row) {
+        return values[row];
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.sql.vector;
+
+import org.lealone.db.result.Row;
+import org.lealone.db.table.Column;
+import org.lealone.db.table.TableFilter;
+import org.lealone.db.value.Value;
+import org.lealone.db.value.ValueNull;
+
+/**
+ * A batch of rows of a table filter, used to evaluate the conditions and the
+ * select list of a query for many rows at once.
+ * <p>
+ * The values of a column are copied to a vector the first time an expression
+ * reads the column in a batch. Expressions that can not be evaluated on
+ * vectors set the current row of the table filter to each selected row and
+ * are evaluated one row at a time.
+ */
+public class RowBatch {
+
+    /**
+     * The maximum number of rows in a batch.
+     */
+    public static final int MAX_ROWS = 1024;
+
+    private static final int[] ALL_ROWS = new int[MAX_ROWS];
+
+    static {
+        for (int i = 0; i < MAX_ROWS; i++) {
+            ALL_ROWS[i] = i;
+        }
+    }
+
+    private final TableFilter filter;
+    private final Row[] rows = new Row[MAX_ROWS];
+    private final ValueVector[] columns;
+    private int size;
+
+    public RowBatch(TableFilter filter) {
+        this.filter = filter;
+        columns = new ValueVector[filter.getTable().getColumns().length];
+    }
+
+    /**
+     * Read the next rows of the table filter.
+     *
+     * @return false if there are no more rows
+     */
+    public boolean next() {
+        size = filter.nextBatch(rows);
+        for (int i = 0; i < columns.length; i++) {
+            columns[i] = null;
+        }
+        return size > 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public TableFilter getTableFilter() {
+        return filter;
+    }
+
+    /**
+     * Get a selection of all rows of the batch.
+     *
+     * @return the selection
+     */
+    public SelectionVector getSelection() {
+        return new SelectionVector(ALL_ROWS, size);
+    }
+
+    /**
+     * Set the current row of the table filter.
+     *
+     * @param row the row position
+     */
+    public void setCurrentRow(int row) {
+        filter.set(rows[row]);
+    }
+
+    /**
+     * Get the values of a column of the table filter.
+     *
+     * @param column the column
+     * @return the vector, or null if the column is not a regular column
+     */
+    public ValueVector getColumnVector(Column column) {
+        int columnId = column.getColumnId();
+        if (columnId < 0 || columnId >= columns.length) {
+            return null;
+        }
+        ValueVector v = columns[columnId];
+        if (v == null) {
+            v = readColumn(columnId, column.getType());
+            columns[columnId] = v;
+        }
+        return v;
+    }
+
+    private ValueVector readColumn(int columnId, int type) {
+        boolean[] nulls = null;
+        switch (type) {
+        case Value.BYTE:
+        case Value.SHORT:
+        case Value.INT:
+        case Value.LONG: {
+            long[] values = new long[size];
+            for (int i = 0; i < size; i++) {
+                Value v = rows[i].getValue(columnId);
+                if (v == ValueNull.INSTANCE) {
+                    if (nulls == null) {
+                        nulls = new boolean[size];
+                    }
+                    nulls[i] = true;
+                } else {
+                    values[i] = v.getLong();
+                }
+            }
+            return new LongVector(type, values, nulls);
+        }
+        case Value.DOUBLE:
+        case Value.FLOAT: {
+            double[] values = new double[size];
+            for (int i = 0; i < size; i++) {
+                Value v = rows[i].getValue(columnId);
+                if (v == ValueNull.INSTANCE) {
+                    if (nulls == null) {
+                        nulls = new boolean[size];
+                    }
+                    nulls[i] = true;
+                } else {
+                    values[i] = v.getDouble();
+                }
+            }
+            return new DoubleVector(type, values, nulls);
+        }
+        default: {
+            Value[] values = new Value[size];
+            for (int i = 0; i < size; i++) {
+                values[i] = rows[i].getValue(columnId);
+            }
+            return new ObjectVector(values);
+        }
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.sql.vector;
+
+/**
+ * The positions of the rows of a batch that are still selected, in ascending
+ * order. A condition does not remove rows from a batch, it only returns a
+ * smaller selection.
+ */
+public class SelectionVector {
+
+    private final int[] rows;
+    private final int size;
+
+    public SelectionVector(int[] rows, int size) {
+        this.rows = rows;
+        this.size = size;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Get the position of the i-th selected row in the batch.
+     *
+     * @param i the index in this selection
+     * @return the row position
+     */
+    public int get(int i) {
+        return rows[i];
+    }
+
+    /**
+     * Get the selected rows for which the value of the given vector is not
+     * NULL.
+     *
+     * @param v the vector
+     * @return the rows, or this selection if no value is NULL
+     */
+    public SelectionVector notNull(ValueVector v) {
+        int[] list = null;
+        int n = 0;
+        for (int i = 0; i < size; i++) {
+            int row = rows[i];
+            if (v.isNull(row)) {
+                if (list == null) {
+                    list = new int[size];
+                    System.arraycopy(rows, 0, list, 0, i);
+                    n = i;
+                }
+            } else if (list != null) {
+                list[n++] = row;
+            }
+        }
+        return list == null ? this : new SelectionVector(list, n);
+    }
+
+    /**
+     * Get the rows of this selection that are not in the given selection.
+     *
+     * @param other a subset of this selection
+     * @return the remaining rows
+     */
+    public SelectionVector except(SelectionVector other) {
+        int[] list = new int[size - other.size];
+        int n = 0;
+        for (int i = 0, j = 0; i < size; i++) {
+            int row = rows[i];
+            if (j < other.size && other.rows[j] == row) {
+                j++;
+            } else {
+                list[n++] = row;
+            }
+        }
+        return new SelectionVector(list, n);
+    }
+
+    /**
+     * Get the rows that are in this or in the given selection.
+     *
+     * @param other a selection that has no row in common with this selection
+     * @return the merged selection
+     */
+    public SelectionVector union(SelectionVector other) {
+        if (other.size == 0) {
+            return this;
+        } else if (size == 0) {
+            return other;
+        }
+        int[] list = new int[size + other.size];
+        int i = 0, j = 0, n = 0;
+        while (i < size && j < other.size) {
+            list[n++] = rows[i] < other.rows[j] ? rows[i++] : other.rows[j++];
+        }
+        while (i < size) {
+            list[n++] = rows[i++];
+        }
+        while (j < other.size) {
+            list[n++] = other.rows[j++];
+        }
+        return new SelectionVector(list, n);
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.sql.vector;
+
+import org.lealone.common.exceptions.DbException;
+import org.lealone.db.value.Value;
+import org.lealone.db.value.ValueNull;
+
+/**
+ * The values of an expression for the rows of a batch. The vector is indexed
+ * by the row position in the batch; only the values of the selected rows are
+ * set.
+ * <p>
+ * Vectors of integer and floating point values keep the values in primitive
+ * arrays, so that comparisons and arithmetic do not need a Value object per
+ * row.
+ */
+public abstract class ValueVector {
+
+    /**
+     * Get the value of the given row.
+     *
+     * @param row the row position
+     * @return the value, ValueNull.INSTANCE if it is NULL
+     */
+    public abstract Value getValue(int row);
+
+    /**
+     * Check whether the value of the given row is NULL.
+     *
+     * @param row the row position
+     * @return true if it is NULL
+     */
+    public boolean isNull(int row) {
+        return getValue(row) == ValueNull.INSTANCE;
+    }
+
+    /**
+     * Whether the values can be read with getLong without losing information.
+     *
+     * @return true if all values are integers
+     */
+    public boolean hasLongs() {
+        return false;
+    }
+
+    /**
+     * Whether the values can be read with getDouble.
+     *
+     * @return true if all values are numbers that fit in a double
+     */
+    public boolean hasDoubles() {
+        return false;
+    }
+
+    /**
+     * Get the value of the given row, which must not be NULL, as a long.
+     *
+     * @param row the row position
+     * @return the value
+     */
+    public long getLong(int row) {
+        throw DbException.throwInternalError(getClass().getSimpleName() + " has no longs");
+    }
+
+    /**
+     * Get the value of the given row, which must not be NULL, as a double.
+     *
+     * @param row the row position
+     * @return the value
+     */
+    public double getDouble(int row) {
+        throw DbException.throwInternalError(getClass().getSimpleName() + " has no doubles");
+    }
+
+    /**
+     * Check whether values of the given type are kept in a LongVector.
+     *
+     * @param type the value type
+     * @return true for BYTE, SHORT, INT and LONG
+     */
+    public static boolean isLongType(int type) {
+        switch (type) {
+        case Value.BYTE:
+        case Value.SHORT:
+        case Value.INT:
+        case Value.LONG:
+            return true;
+        default:
+            return false;
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.test.client;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+import org.lealone.client.jdbc.JdbcPreparedStatement;
+import org.lealone.client.jdbc.JdbcStatement;
+import org.lealone.server.ProtocolServer;
+import org.lealone.server.ProtocolServerEngineManager;
+import org.lealone.test.UnitTestBase;
+
+public class AsyncUpdateTest extends UnitTestBase {
+
+    private static final int PORT = 5218;
+    private static final String DB = "AsyncUpdateTest";
+
+    @Test
+    public void run() throws Exception {
+        ProtocolServer server = ProtocolServerEngineManager.getInstance().getEngine("NioServer").getProtocolServer();
+        Map<String, String> config = new HashMap<>();
+        config.put("listen_address", getHost());
+        config.put("port", String.valueOf(PORT));
+        server.init(config);
+        server.start();
+        try {
+            setInMemory(true);
+            setPort(PORT);
+            Connection conn = getConnection(DB);
+            JdbcStatement stmt = (JdbcStatement) conn.createStatement();
+            stmt.executeUpdate("DROP TABLE IF EXISTS AsyncUpdateTest");
+            stmt.executeUpdate("CREATE TABLE AsyncUpdateTest (f1 int PRIMARY KEY, f2 int)");
+
+            // 连续发送多个请求，不用等前一个请求的响应
+            JdbcPreparedStatement ps = (JdbcPreparedStatement) conn
+                    .prepareStatement("INSERT INTO AsyncUpdateTest VALUES(?, ?)");
+            ArrayList<Future<Integer>> futures = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                ps.setInt(1, i);
+                ps.setInt(2, i * 10);
+                futures.add(ps.executeUpdateAsync());
+            }
+            futures.add(stmt.executeUpdateAsync("UPDATE AsyncUpdateTest SET f2 = f2 + 1 WHERE f1 < 10"));
+
+            // 主键冲突，只有这个请求失败
+            ps.setInt(1, 0);
+            ps.setInt(2, 0);
+            Future<Integer> failed = ps.executeUpdateAsync();
+            Future<Integer> last = stmt.executeUpdateAsync("DELETE FROM AsyncUpdateTest WHERE f1 = 99");
+
+            // 同步请求会先读取前面的异步请求的响应
+            ResultSet rs = stmt.executeQuery("SELECT count(*), sum(f2) FROM AsyncUpdateTest");
+            assertTrue(rs.next());
+            assertEquals(99, rs.getInt(1));
+            assertEquals(99 * 98 / 2 * 10 + 10, rs.getInt(2));
+            rs.close();
+
+            for (int i = 0; i < 100; i++) {
+                assertTrue(futures.get(i).isDone());
+                assertEquals(1, futures.get(i).get().intValue());
+            }
+            assertEquals(10, futures.get(100).get().intValue());
+            try {
+                failed.get();
+                fail();
+            } catch (ExecutionException e) {
+                // 主键冲突
+            }
+            assertEquals(1, last.get().intValue());
+
+            // 不发同步请求，直接等待响应
+            Future<Integer> f = stmt.executeUpdateAsync("DELETE FROM AsyncUpdateTest WHERE f1 >= 50");
+            assertEquals(49, f.get().intValue());
+
+            ps.close();
+            stmt.close();
+            conn.close();
+        } finally {
+            server.stop();
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.test.misc;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.lealone.mvstore.MVMap;
+import org.lealone.mvstore.MVStore;
+
+/**
+ * Measures the throughput of threads that insert into the same MVMap.
+ *
+ * Half of the keys are inserted twice with putIfAbsent, so the check of the expected value is verified as well.
+ */
+public class MVMapConcurrentInsertBenchmark {
+    private static final int ROW_COUNT = 1000000;
+
+    public static void main(String[] args) throws Exception {
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            run(threads); // 预热
+            run(threads);
+        }
+    }
+
+    private static void run(int threadCount) throws Exception {
+        MVStore store = MVStore.open(null);
+        final MVMap<Integer, Integer> map = store.openMap("MVMapConcurrentInsertBenchmark");
+        final int[] keys = new int[ROW_COUNT];
+        for (int i = 0; i < ROW_COUNT; i++)
+            keys[i] = i;
+        Random random = new Random(1);
+        for (int i = ROW_COUNT - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int tmp = keys[i];
+            keys[i] = keys[j];
+            keys[j] = tmp;
+        }
+
+        final AtomicInteger inserted = new AtomicInteger();
+        final CountDownLatch latch = new CountDownLatch(threadCount);
+        final int rowsPerThread = ROW_COUNT / threadCount;
+        Thread[] threads = new Thread[threadCount];
+        for (int t = 0; t < threadCount; t++) {
+            final int from = t * rowsPerThread;
+            final int to = t == threadCount - 1 ? ROW_COUNT : from + rowsPerThread;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    int count = 0;
+                    for (int i = from; i < to; i++) {
+                        if (map.putIfAbsent(keys[i], keys[i]) == null)
+                            count++;
+                        // 每个线程再插入一次下一个线程的一半key，只有一次能成功
+                        int k = keys[(i + rowsPerThread) % ROW_COUNT];
+                        if ((i & 1) == 0 && map.putIfAbsent(k, k) == null)
+                            count++;
+                    }
+                    inserted.addAndGet(count);
+                    latch.countDown();
+                }
+            };
+        }
+        long t1 = System.nanoTime();
+        for (Thread t : threads)
+            t.start();
+        latch.await();
+        long t2 = System.nanoTime();
+
+        if (map.size() != ROW_COUNT || inserted.get() != ROW_COUNT)
+            throw new AssertionError("size=" + map.size() + " inserted=" + inserted.get());
+        for (int i = 0; i < ROW_COUNT; i += 997) {
+            if (map.get(i) != i)
+                throw new AssertionError("key=" + i + " value=" + map.get(i));
+        }
+        long ms = (t2 - t1) / 1000000;
+        System.out.println(threadCount + " threads: " + ROW_COUNT + " rows, " + ms + " ms, "
+                + (ROW_COUNT * 1000L / Math.max(ms, 1)) + " rows/s");
+        store.close();
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.test.misc;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.Random;
+
+import org.lealone.test.TestBase;
+import org.lealone.test.UnitTestBase;
+
+/**
+ * Measures the latency of the readers of a table while a large transaction that updates the table is still open.
+ *
+ * The readers see the rows changed by the open transaction through its undo log.
+ */
+public class UndoLogBenchmark {
+    private static final int ROW_COUNT = 100000;
+    private static final int READ_COUNT = 20000;
+
+    public static void main(String[] args) throws Exception {
+        UnitTestBase test = new UnitTestBase();
+        test.setEmbedded(true);
+
+        Connection conn = test.getConnection();
+        Statement stmt = conn.createStatement();
+        stmt.executeUpdate("DROP TABLE IF EXISTS UndoLogBenchmark");
+        stmt.executeUpdate("CREATE TABLE UndoLogBenchmark (f1 int primary key, f2 long)");
+        conn.setAutoCommit(false);
+        PreparedStatement ps = conn.prepareStatement("INSERT INTO UndoLogBenchmark(f1, f2) VALUES(?, ?)");
+        for (int i = 0; i < ROW_COUNT; i++) {
+            ps.setInt(1, i);
+            ps.setLong(2, i);
+            ps.executeUpdate();
+        }
+        ps.close();
+        conn.commit();
+
+        Connection reader = test.getConnection();
+        read(reader, "no open writer");
+
+        long t1 = System.currentTimeMillis();
+        stmt.executeUpdate("UPDATE UndoLogBenchmark SET f2 = f2 + 1");
+        long t2 = System.currentTimeMillis();
+        System.out.println("update " + ROW_COUNT + " rows: " + (t2 - t1) + " ms");
+
+        read(reader, "open writer with " + ROW_COUNT + " undo log records");
+
+        conn.rollback();
+        conn.setAutoCommit(true);
+        stmt.executeUpdate("DROP TABLE IF EXISTS UndoLogBenchmark");
+        stmt.close();
+        reader.close();
+        conn.close();
+        TestBase.te.close();
+    }
+
+    private static void read(Connection conn, String title) throws Exception {
+        Random random = new Random(1);
+        PreparedStatement ps = conn.prepareStatement("SELECT f2 FROM UndoLogBenchmark WHERE f1 = ?");
+        long max = 0;
+        long t1 = System.nanoTime();
+        for (int i = 0; i < READ_COUNT; i++) {
+            int key = random.nextInt(ROW_COUNT);
+            long start = System.nanoTime();
+            ps.setInt(1, key);
+            ResultSet rs = ps.executeQuery();
+            rs.next();
+            if (rs.getLong(1) != key)
+                throw new AssertionError("f1=" + key + " f2=" + rs.getLong(1));
+            rs.close();
+            max = Math.max(max, System.nanoTime() - start);
+        }
+        long t2 = System.nanoTime();
+        ps.close();
+        System.out.println(title + ": " + READ_COUNT + " reads, avg " + (t2 - t1) / READ_COUNT / 1000 + " us, max "
+                + max / 1000 + " us");
+    }
+}
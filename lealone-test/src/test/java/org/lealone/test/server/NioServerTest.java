@@ -0,0 +1,188 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.test.server;
+
+import java.io.DataOutputStream;
+import java.net.Socket;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+import org.lealone.db.ConnectionInfo;
+import org.lealone.db.Constants;
+import org.lealone.db.Session;
+import org.lealone.db.value.Transfer;
+import org.lealone.server.ProtocolServer;
+import org.lealone.server.ProtocolServerEngine;
+import org.lealone.server.ProtocolServerEngineManager;
+import org.lealone.test.UnitTestBase;
+
+public class NioServerTest extends UnitTestBase {
+
+    private static final int PORT = 5219;
+    private static final String DB = "NioServerTest";
+
+    @Test
+    public void run() throws Exception {
+        ProtocolServerEngine pse = ProtocolServerEngineManager.getInstance().getEngine("NioServer");
+        assertNotNull(pse);
+        ProtocolServer server = pse.getProtocolServer();
+        Map<String, String> config = new HashMap<>();
+        config.put("listen_address", getHost());
+        config.put("port", String.valueOf(PORT));
+        config.put("io_threads", "1");
+        config.put("worker_threads", "2");
+        server.init(config);
+        server.start();
+        List<Socket> slowClients = new ArrayList<>();
+        try {
+            setInMemory(true);
+            setPort(PORT);
+            assertTrue(server.isRunning(false));
+
+            // 只发送了一部分握手数据的连接比工作线程多，它们不能占用工作线程
+            for (int i = 0; i < 4; i++) {
+                Socket socket = new Socket(getHost(), PORT);
+                DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                out.writeInt(Constants.TCP_PROTOCOL_VERSION_3);
+                out.writeInt(Constants.TCP_PROTOCOL_VERSION_3);
+                out.writeInt(DB.length());
+                out.flush();
+                slowClients.add(socket);
+            }
+
+            Connection conn = getConnection(DB);
+            Statement stmt = conn.createStatement();
+            stmt.executeUpdate("DROP TABLE IF EXISTS NioServerTest");
+            stmt.executeUpdate("CREATE TABLE NioServerTest (f1 int PRIMARY KEY, f2 varchar)");
+            stmt.close();
+            conn.close();
+
+            // 连接数多于工作线程数，空闲的连接不占用线程
+            int threadCount = 8;
+            final int rowsPerThread = 50;
+            final CountDownLatch latch = new CountDownLatch(threadCount);
+            final AtomicReference<Throwable> error = new AtomicReference<>();
+            for (int i = 0; i < threadCount; i++) {
+                final int start = i * rowsPerThread;
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            Connection conn = getConnection(DB);
+                            PreparedStatement ps = conn.prepareStatement("INSERT INTO NioServerTest VALUES(?, ?)");
+                            for (int j = start; j < start + rowsPerThread; j++) {
+                                ps.setInt(1, j);
+                                ps.setString(2, "v" + j);
+                                ps.executeUpdate();
+                            }
+                            ps.close();
+                            conn.close();
+                        } catch (Throwable t) {
+                            error.set(t);
+                        } finally {
+                            latch.countDown();
+                        }
+                    }
+                }).start();
+            }
+            latch.await();
+            assertNull(error.get());
+
+            conn = getConnection(DB);
+            stmt = conn.createStatement();
+            ResultSet rs = stmt.executeQuery("SELECT count(*) FROM NioServerTest");
+            assertTrue(rs.next());
+            assertEquals(threadCount * rowsPerThread, rs.getInt(1));
+            rs.close();
+
+            // 结果集比输出缓冲区大，需要分多次写出
+            rs = stmt.executeQuery("SELECT f1, f2 FROM NioServerTest ORDER BY f1");
+            int count = 0;
+            while (rs.next()) {
+                assertEquals("v" + rs.getInt(1), rs.getString(2));
+                count++;
+            }
+            assertEquals(threadCount * rowsPerThread, count);
+            rs.close();
+
+            try {
+                stmt.executeQuery("SELECT * FROM NioServerTestNotExists");
+                fail();
+            } catch (Exception e) {
+                // 出错后连接依然可用
+            }
+            rs = stmt.executeQuery("SELECT count(*) FROM NioServerTest");
+            assertTrue(rs.next());
+            rs.close();
+            stmt.close();
+            conn.close();
+
+            testUnframedClient();
+        } finally {
+            for (Socket socket : slowClients)
+                socket.close();
+            server.stop();
+        }
+        assertFalse(server.isRunning(false));
+    }
+
+    // 只支持老协议的客户端发送的请求不分帧，分两次发送的请求也能处理
+    private void testUnframedClient() throws Exception {
+        ConnectionInfo ci = new ConnectionInfo(getURL(DB));
+        Transfer transfer = new Transfer(new Socket(getHost(), PORT));
+        try {
+            transfer.init();
+            transfer.writeInt(Constants.TCP_PROTOCOL_VERSION_1);
+            transfer.writeInt(Constants.TCP_PROTOCOL_VERSION_2);
+            transfer.writeString(ci.getDatabaseName());
+            transfer.writeString(ci.getURL());
+            transfer.writeString(ci.getUserName());
+            transfer.writeBytes(ci.getUserPasswordHash());
+            transfer.writeBytes(ci.getFilePasswordHash());
+            transfer.writeBytes(ci.getFileEncryptionKey());
+            String[] keys = ci.getKeys();
+            transfer.writeInt(keys.length);
+            for (String key : keys) {
+                transfer.writeString(key).writeString(ci.getProperty(key));
+            }
+            transfer.flush();
+            assertEquals(Session.STATUS_OK, transfer.readInt());
+            assertEquals(Constants.TCP_PROTOCOL_VERSION_1, transfer.readInt());
+
+            transfer.writeInt(Session.SESSION_SET_ID).flush();
+            Thread.sleep(100);
+            transfer.writeString("NioServerTest").flush();
+            assertEquals(Session.STATUS_OK, transfer.readInt());
+            assertTrue(transfer.readBoolean());
+
+            transfer.writeInt(Session.SESSION_CLOSE).flush();
+            assertEquals(Session.STATUS_OK, transfer.readInt());
+        } finally {
+            transfer.close();
+        }
+    }
+}
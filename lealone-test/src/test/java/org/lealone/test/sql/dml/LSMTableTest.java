@@ -0,0 +1,48 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.test.sql.dml;
+
+import org.junit.Test;
+import org.lealone.test.sql.SqlTestBase;
+
+public class LSMTableTest extends SqlTestBase {
+    @Test
+    public void run() throws Exception {
+        executeUpdate("DROP TABLE IF EXISTS LSMTableTest");
+        executeUpdate("CREATE TABLE LSMTableTest (pk int NOT NULL PRIMARY KEY, f1 varchar, f2 int) ENGINE LSM");
+        executeUpdate("CREATE INDEX IF NOT EXISTS LSMTableTest_f2 ON LSMTableTest(f2)");
+        for (int i = 1; i <= 100; i++)
+            executeUpdate("INSERT INTO LSMTableTest(pk, f1, f2) VALUES(" + i + ", 'a" + i + "', " + i % 10 + ")");
+
+        sql = "SELECT count(*) FROM LSMTableTest";
+        assertEquals(100, getIntValue(1, true));
+        sql = "SELECT count(*) FROM LSMTableTest WHERE f2 = 3";
+        assertEquals(10, getIntValue(1, true));
+
+        assertEquals(10, executeUpdate("UPDATE LSMTableTest SET f1 = 'b' WHERE f2 = 5"));
+        sql = "SELECT f1 FROM LSMTableTest WHERE pk = 15";
+        assertEquals("b", getStringValue(1, true));
+
+        assertEquals(50, executeUpdate("DELETE FROM LSMTableTest WHERE pk > 50"));
+        sql = "SELECT count(*), max(pk) FROM LSMTableTest";
+        executeQuery();
+        assertEquals(50, getIntValue(1));
+        assertEquals(50, getIntValue(2, true));
+        executeUpdate("DROP TABLE LSMTableTest");
+    }
+}
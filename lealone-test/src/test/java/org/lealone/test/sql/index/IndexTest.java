@@ -31,6 +31,7 @@ public class IndexTest extends SqlTestBase {
         select();
         testCommit();
         testRollback();
+        testCreateIndexFromBuffers();
         // testSavepoint(); //TODO
     }
 
@@ -191,6 +192,36 @@ public class IndexTest extends SqlTestBase {
         assertEquals(2, stmt.executeUpdate(sql));
     }
 
+    // 行数超过MAX_MEMORY_ROWS的一半时，先分块排序写到临时map，再归并到索引中
+    void testCreateIndexFromBuffers() throws Exception {
+        stmt.executeUpdate("SET MAX_MEMORY_ROWS 100");
+        try {
+            stmt.executeUpdate("DROP TABLE IF EXISTS IndexTest2");
+            stmt.executeUpdate("CREATE TABLE IndexTest2 (f1 int NOT NULL, f2 int, f3 varchar)");
+            for (int i = 1; i <= 1000; i++)
+                stmt.executeUpdate("INSERT INTO IndexTest2(f1, f2, f3) VALUES(" + i + ", " + (i % 500) + ", 'v" + i
+                        + "')");
+
+            stmt.executeUpdate("CREATE INDEX IndexTest2_idx1 ON IndexTest2(f2)");
+            sql = "SELECT count(*) FROM IndexTest2 WHERE f2 = 7";
+            assertEquals(2, getIntValue(1, true));
+
+            stmt.executeUpdate("CREATE UNIQUE INDEX IndexTest2_idx2 ON IndexTest2(f1)");
+            sql = "SELECT f3 FROM IndexTest2 WHERE f1 = 777";
+            assertEquals("v777", getStringValue(1, true));
+
+            try {
+                stmt.executeUpdate("CREATE UNIQUE INDEX IndexTest2_idx3 ON IndexTest2(f2)");
+                fail("duplicate key in f2");
+            } catch (SQLException e) {
+                System.out.println(e.getMessage());
+            }
+            stmt.executeUpdate("DROP TABLE IndexTest2");
+        } finally {
+            stmt.executeUpdate("SET MAX_MEMORY_ROWS 10000");
+        }
+    }
+
     void testSavepoint() throws Exception {
         stmt.executeUpdate("DELETE FROM IndexTest");
         try {
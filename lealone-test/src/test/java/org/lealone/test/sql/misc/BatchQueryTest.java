@@ -0,0 +1,88 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.test.sql.misc;
+
+import org.junit.Test;
+import org.lealone.test.sql.SqlTestBase;
+
+public class BatchQueryTest extends SqlTestBase {
+    @Test
+    public void run() throws Exception {
+        init();
+        testFilter();
+        testProjection();
+        testAggregate();
+    }
+
+    void init() throws Exception {
+        executeUpdate("DROP TABLE IF EXISTS BatchQueryTest");
+        executeUpdate("CREATE TABLE BatchQueryTest(pk int NOT NULL PRIMARY KEY, g int, v int, d double, s varchar)");
+
+        // 每7行有一个v是NULL，行数超过一个批次
+        executeUpdate("INSERT INTO BatchQueryTest(pk, g, v, d, s) SELECT x, mod(x, 10), "
+                + "CASEWHEN(mod(x, 7) = 0, null, x), x / 2.0, 'a' || x FROM system_range(1, 3000)");
+    }
+
+    void testFilter() throws Exception {
+        sql = "SELECT count(*) FROM BatchQueryTest WHERE v > 100";
+        assertEquals(2900 - (428 - 14), getIntValue(1, true));
+
+        sql = "SELECT count(*) FROM BatchQueryTest WHERE v IS NULL";
+        assertEquals(428, getIntValue(1, true));
+
+        sql = "SELECT count(*) FROM BatchQueryTest WHERE g IN (1, 3) OR v IS NULL";
+        assertEquals(600 + 428 - 85, getIntValue(1, true));
+
+        sql = "SELECT count(*) FROM BatchQueryTest WHERE d >= 1499.5 AND s <> 'a3000'";
+        assertEquals(1, getIntValue(1, true));
+
+        sql = "SELECT count(*) FROM BatchQueryTest WHERE pk IN (5, 7, 3000, 3001)";
+        assertEquals(3, getIntValue(1, true));
+    }
+
+    void testProjection() throws Exception {
+        sql = "SELECT v * 2 + pk, d * 2 FROM BatchQueryTest WHERE pk = 2999";
+        executeQuery();
+        assertEquals(2999 * 3, getIntValue(1));
+        assertEquals(2999, getIntValue(2, true));
+
+        sql = "SELECT v + 1 FROM BatchQueryTest WHERE pk = 7";
+        executeQuery();
+        assertNull(getStringValue(1, true));
+    }
+
+    void testAggregate() throws Exception {
+        sql = "SELECT count(*), count(v), sum(v), min(v), max(v) FROM BatchQueryTest WHERE g = 1";
+        executeQuery();
+        assertEquals(300, getIntValue(1));
+        assertEquals(300 - 43, getIntValue(2));
+        assertEquals(1, getIntValue(4));
+        assertEquals(2991, getIntValue(5, true));
+
+        // 不是所有的列都是聚合函数时，逐行更新聚合函数
+        sql = "SELECT count(*) + 1, sum(v) FROM BatchQueryTest WHERE pk <= 10";
+        executeQuery();
+        assertEquals(11, getIntValue(1));
+        assertEquals(55 - 7, getIntValue(2, true));
+
+        sql = "SELECT count(*), sum(v) FROM BatchQueryTest WHERE v < 0";
+        executeQuery();
+        assertEquals(0, getIntValue(1));
+        assertNull(getStringValue(2, true));
+    }
+}
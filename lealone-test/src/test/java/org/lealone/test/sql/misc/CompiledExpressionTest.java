@@ -0,0 +1,118 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.test.sql.misc;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import org.junit.Test;
+import org.lealone.api.ErrorCode;
+import org.lealone.test.sql.SqlTestBase;
+
+public class CompiledExpressionTest extends SqlTestBase {
+    @Test
+    public void run() throws Exception {
+        init();
+        executeUpdate("SET COMPILE_EXPRESSIONS TRUE");
+        try {
+            sql = "SELECT VALUE FROM INFORMATION_SCHEMA.SETTINGS WHERE NAME = 'COMPILE_EXPRESSIONS'";
+            assertEquals("TRUE", getStringValue(1, true));
+            testCondition();
+            testProjection();
+            testScan();
+        } finally {
+            executeUpdate("SET COMPILE_EXPRESSIONS FALSE");
+        }
+    }
+
+    void init() throws Exception {
+        executeUpdate("DROP TABLE IF EXISTS CompiledExpressionTest");
+        executeUpdate("CREATE TABLE CompiledExpressionTest(pk int NOT NULL PRIMARY KEY, g int, v int, s varchar)");
+        executeUpdate("CREATE INDEX IF NOT EXISTS CompiledExpressionTest_g ON CompiledExpressionTest(g)");
+
+        // 每7行有一个v是NULL，行数超过一个批次，扫描主索引时也可能按批次读取
+        executeUpdate("INSERT INTO CompiledExpressionTest(pk, g, v, s) SELECT x, mod(x, 10), "
+                + "CASEWHEN(mod(x, 7) = 0, null, x), 'a' || x FROM system_range(1, 3000)");
+    }
+
+    void testCondition() throws Exception {
+        sql = "SELECT count(*) FROM CompiledExpressionTest WHERE g = 1 AND (v > 500 OR v IS NULL) AND pk <= 1000";
+        assertEquals(50 - 7 + 14, getIntValue(1, true));
+
+        sql = "SELECT count(*) FROM CompiledExpressionTest WHERE g = 1 AND NOT (s = 'a11' OR v <> 21)";
+        assertEquals(0, getIntValue(1, true));
+
+        sql = "SELECT count(*) FROM CompiledExpressionTest a JOIN CompiledExpressionTest b ON a.pk = b.pk + 1"
+                + " WHERE b.g = 3 AND a.v * 2 > 1000 AND a.pk <= 1000";
+        assertEquals(50 - 8, getIntValue(1, true));
+
+        sql = "SELECT count(*) FROM CompiledExpressionTest WHERE g = 2 AND v IS NOT DISTINCT FROM NULL";
+        assertEquals(43, getIntValue(1, true));
+    }
+
+    void testProjection() throws Exception {
+        sql = "SELECT v * 2 + pk, -v, s || 'x', v IS NULL FROM CompiledExpressionTest WHERE g = 9 AND pk < 60"
+                + " ORDER BY pk";
+        executeQuery();
+        assertEquals(27, getIntValue(1));
+        assertEquals(-9, getIntValue(2));
+        assertEquals("a9x", getStringValue(3));
+        assertEquals("FALSE", getStringValue(4));
+        next();
+        assertEquals(57, getIntValue(1));
+        next();
+        next();
+        next();
+        assertNull(getStringValue(1));
+        assertEquals("TRUE", getStringValue(4, true));
+
+        // 表达式出错时跟解释执行一样抛出异常
+        sql = "SELECT v / (pk - 1) FROM CompiledExpressionTest WHERE g = 1";
+        try {
+            ResultSet rs = stmt.executeQuery(sql);
+            while (rs.next())
+                rs.getInt(1);
+            fail();
+        } catch (SQLException e) {
+            assertEquals(ErrorCode.DIVISION_BY_ZERO_1, e.getErrorCode());
+        }
+    }
+
+    void testScan() throws Exception {
+        // 单表扫描时编译后的条件和表达式优先于按批次计算，
+        // 读取计数的查询本身也用到了编译后的条件，所以每次多加1
+        long count = getCompiledQueryCount();
+        sql = "SELECT v * 2 + pk, s || 'x' FROM CompiledExpressionTest WHERE v > 2990 OR s = 'a8' ORDER BY pk";
+        executeQuery();
+        assertEquals(24, getIntValue(1));
+        next();
+        assertEquals(2991 * 3, getIntValue(1));
+        assertEquals("a2991x", getStringValue(2, true));
+        assertEquals(count + 2, getCompiledQueryCount());
+
+        sql = "SELECT count(*), sum(v) FROM CompiledExpressionTest WHERE v > 2990";
+        executeQuery();
+        assertEquals(10 - 1, getIntValue(1));
+        assertEquals(count + 4, getCompiledQueryCount());
+    }
+
+    private long getCompiledQueryCount() throws Exception {
+        sql = "SELECT VALUE FROM INFORMATION_SCHEMA.SETTINGS WHERE NAME = 'info.COMPILED_QUERY_COUNT'";
+        return Long.parseLong(getStringValue(1, true));
+    }
+}
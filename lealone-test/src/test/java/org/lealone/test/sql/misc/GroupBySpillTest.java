@@ -0,0 +1,75 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.test.sql.misc;
+
+import org.junit.Test;
+import org.lealone.test.sql.SqlTestBase;
+
+public class GroupBySpillTest extends SqlTestBase {
+    @Test
+    public void run() throws Exception {
+        init();
+        testGroupBy(10000);
+        // 分组数超过MAX_MEMORY_ROWS时，新分组的行写到临时表，之后按分区再聚合
+        testGroupBy(100);
+        // 分区里的分组还是太多时继续分区
+        testGroupBy(5);
+    }
+
+    void init() throws Exception {
+        executeUpdate("DROP TABLE IF EXISTS GroupBySpillTest");
+        executeUpdate("CREATE TABLE GroupBySpillTest(pk int NOT NULL PRIMARY KEY, id int, v int, name varchar)");
+
+        // id在0到999之间，每个值2行；v每5行有1个null
+        for (int i = 0; i < 2000; i += 500)
+            executeUpdate("INSERT INTO GroupBySpillTest(pk, id, v, name) SELECT x, mod(x, 1000),"
+                    + " CASEWHEN(mod(x, 5) = 0, null, mod(x, 3)), 'n' || x FROM system_range(" + (i + 1) + ", "
+                    + (i + 500) + ")");
+    }
+
+    void testGroupBy(int maxMemoryRows) throws Exception {
+        executeUpdate("SET MAX_MEMORY_ROWS " + maxMemoryRows);
+        try {
+            sql = "SELECT count(*), sum(c), sum(cv), sum(s), sum(m), sum(length(g)) FROM (SELECT id, count(*) c,"
+                    + " count(v) cv, sum(pk) s, min(pk) m, group_concat(name) g FROM GroupBySpillTest GROUP BY id)";
+            executeQuery();
+            assertEquals(1000, getIntValue(1));
+            assertEquals(2000, getIntValue(2));
+            assertEquals(1600, getIntValue(3));
+            assertEquals(2000 * 2001 / 2, getLongValue(4));
+            assertEquals(1000 * 1001 / 2, getLongValue(5));
+            // 每个分组是"nX,nY"
+            assertEquals(8893 + 1000, getLongValue(6, true));
+
+            // pk为x和x + 1000的两行的v都为null或都不为null且不相等
+            sql = "SELECT count(*) FROM (SELECT id FROM GroupBySpillTest GROUP BY id HAVING count(DISTINCT v) = 0)";
+            assertEquals(200, getIntValue(1, true));
+
+            sql = "SELECT id, count(*), max(name) FROM GroupBySpillTest GROUP BY id ORDER BY id LIMIT 2";
+            executeQuery();
+            assertEquals(0, getIntValue(1));
+            assertEquals(2, getIntValue(2));
+            assertEquals("n2000", getStringValue(3));
+            assertTrue(next());
+            assertEquals(1, getIntValue(1));
+            assertEquals("n1001", getStringValue(3, true));
+        } finally {
+            executeUpdate("SET MAX_MEMORY_ROWS 10000");
+        }
+    }
+}
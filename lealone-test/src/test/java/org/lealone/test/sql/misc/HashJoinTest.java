@@ -0,0 +1,90 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.test.sql.misc;
+
+import org.junit.Test;
+import org.lealone.test.sql.SqlTestBase;
+
+public class HashJoinTest extends SqlTestBase {
+    @Test
+    public void run() throws Exception {
+        init();
+        testInnerJoin();
+        testOuterJoin();
+        testSpill();
+    }
+
+    void init() throws Exception {
+        executeUpdate("DROP TABLE IF EXISTS HashJoinTest1");
+        executeUpdate("DROP TABLE IF EXISTS HashJoinTest2");
+        executeUpdate("CREATE TABLE HashJoinTest1(pk int NOT NULL PRIMARY KEY, id int)");
+        executeUpdate("CREATE TABLE HashJoinTest2(pk int NOT NULL PRIMARY KEY, id2 int, name2 varchar)");
+
+        // id在0到99之间，每个值20行
+        for (int i = 0; i < 2000; i += 500)
+            executeUpdate("INSERT INTO HashJoinTest1(pk, id) SELECT x, mod(x, 100) FROM system_range(" + (i + 1)
+                    + ", " + (i + 500) + ")");
+        // id2在1到150之间，每个值1行
+        executeUpdate("INSERT INTO HashJoinTest2(pk, id2, name2) SELECT x, x, 'n' || x FROM system_range(1, 150)");
+    }
+
+    void testInnerJoin() throws Exception {
+        sql = "EXPLAIN SELECT count(*) FROM HashJoinTest1 t1, HashJoinTest2 t2 WHERE t1.id = t2.id2";
+        assertTrue(getStringValue(1, true).contains("HASH JOIN"));
+
+        sql = "SELECT count(*) FROM HashJoinTest1 t1, HashJoinTest2 t2 WHERE t1.id = t2.id2";
+        assertEquals(99 * 20, getIntValue(1, true));
+
+        // 其他条件还是由TableFilter检查
+        sql = "SELECT count(*) FROM HashJoinTest1 t1, HashJoinTest2 t2 WHERE t1.id = t2.id2 AND t2.pk < 11";
+        assertEquals(10 * 20, getIntValue(1, true));
+
+        // 外表只有一行时用索引查找，不需要构建哈希表
+        sql = "EXPLAIN SELECT t2.name2 FROM HashJoinTest1 t1, HashJoinTest2 t2 WHERE t1.pk = 5 AND t1.id = t2.pk";
+        assertFalse(getStringValue(1, true).contains("HASH JOIN"));
+        sql = "SELECT t2.name2 FROM HashJoinTest1 t1, HashJoinTest2 t2 WHERE t1.pk = 5 AND t1.id = t2.pk";
+        assertEquals("n5", getStringValue(1, true));
+    }
+
+    void testOuterJoin() throws Exception {
+        sql = "EXPLAIN SELECT count(*) FROM HashJoinTest1 t1 LEFT OUTER JOIN HashJoinTest2 t2 ON t1.id = t2.id2";
+        assertTrue(getStringValue(1, true).contains("HASH JOIN"));
+
+        sql = "SELECT count(*) FROM HashJoinTest1 t1 LEFT OUTER JOIN HashJoinTest2 t2 ON t1.id = t2.id2";
+        assertEquals(2000, getIntValue(1, true));
+
+        // id = 0的行没有匹配
+        sql = "SELECT count(*) FROM HashJoinTest1 t1 LEFT OUTER JOIN HashJoinTest2 t2 ON t1.id = t2.id2"
+                + " WHERE t2.pk IS NULL";
+        assertEquals(20, getIntValue(1, true));
+    }
+
+    void testSpill() throws Exception {
+        // 超过MAX_MEMORY_ROWS的分区会写到临时map
+        executeUpdate("SET MAX_MEMORY_ROWS 100");
+        try {
+            sql = "SELECT count(*), sum(t1.pk) FROM HashJoinTest2 t2 LEFT OUTER JOIN HashJoinTest1 t1"
+                    + " ON t1.id = t2.id2";
+            executeQuery();
+            assertEquals(99 * 20 + 51, getIntValue(1));
+            assertEquals(2000 * 2001 / 2 - 21000, getLongValue(2, true));
+        } finally {
+            executeUpdate("SET MAX_MEMORY_ROWS 10000");
+        }
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.test.sql.misc;
+
+import org.junit.Test;
+import org.lealone.test.sql.SqlTestBase;
+
+public class ParallelQueryTest extends SqlTestBase {
+    @Test
+    public void run() throws Exception {
+        init();
+        executeUpdate("SET MAX_PARALLEL_DEGREE 4");
+        try {
+            sql = "SELECT VALUE FROM INFORMATION_SCHEMA.SETTINGS WHERE NAME = 'MAX_PARALLEL_DEGREE'";
+            assertEquals("4", getStringValue(1, true));
+            testFlat();
+            testGroup();
+        } finally {
+            executeUpdate("SET MAX_PARALLEL_DEGREE 1");
+        }
+    }
+
+    void init() throws Exception {
+        executeUpdate("DROP TABLE IF EXISTS ParallelQueryTest");
+        executeUpdate("CREATE TABLE ParallelQueryTest(pk int NOT NULL PRIMARY KEY, g int, v int)");
+
+        // g在0到9之间，每个值400行
+        for (int i = 0; i < 4000; i += 1000)
+            executeUpdate("INSERT INTO ParallelQueryTest(pk, g, v) SELECT x, mod(x, 10), x FROM system_range("
+                    + (i + 1) + ", " + (i + 1000) + ")");
+    }
+
+    void testFlat() throws Exception {
+        sql = "SELECT count(*) FROM (SELECT pk FROM ParallelQueryTest WHERE v > 100)";
+        assertEquals(3900, getIntValue(1, true));
+
+        sql = "SELECT pk FROM ParallelQueryTest WHERE g = 3 ORDER BY pk DESC";
+        assertEquals(3993, getIntValue(1, true));
+
+        // 没有ORDER BY时，读够LIMIT的行数就停止所有分区
+        sql = "SELECT count(*) FROM (SELECT pk FROM ParallelQueryTest LIMIT 10 OFFSET 5)";
+        assertEquals(10, getIntValue(1, true));
+    }
+
+    void testGroup() throws Exception {
+        sql = "SELECT count(*), sum(v), min(v), max(v) FROM ParallelQueryTest WHERE v > 100";
+        executeQuery();
+        assertEquals(3900, getIntValue(1));
+        assertEquals(4000 * 4001 / 2 - 5050, getLongValue(2));
+        assertEquals(101, getIntValue(3));
+        assertEquals(4000, getIntValue(4, true));
+
+        sql = "SELECT g, count(*), sum(v) FROM ParallelQueryTest GROUP BY g ORDER BY g";
+        executeQuery();
+        assertEquals(0, getIntValue(1));
+        assertEquals(400, getIntValue(2));
+        assertEquals(802000, getLongValue(3));
+        next();
+        assertEquals(1, getIntValue(1));
+        assertEquals(400, getIntValue(2));
+        assertEquals(798400, getLongValue(3, true));
+
+        sql = "SELECT count(*) FROM (SELECT g FROM ParallelQueryTest GROUP BY g HAVING sum(v) > 800000)";
+        assertEquals(5, getIntValue(1, true));
+
+        // 所有分区都没有行时，还是要返回一行
+        sql = "SELECT count(*), sum(v) FROM ParallelQueryTest WHERE v < 0";
+        executeQuery();
+        assertEquals(0, getIntValue(1));
+        assertNull(getStringValue(2, true));
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.test.sql.transaction;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.lealone.api.ErrorCode;
+import org.lealone.test.sql.SqlTestBase;
+
+public class LockWaitTest extends SqlTestBase {
+
+    @Test
+    public void run() throws Exception {
+        executeUpdate("DROP TABLE IF EXISTS LockWaitTest");
+        executeUpdate("CREATE TABLE IF NOT EXISTS LockWaitTest (f1 int NOT NULL PRIMARY KEY, f2 int)");
+        executeUpdate("INSERT INTO LockWaitTest(f1, f2) VALUES(1, 0)");
+        executeUpdate("INSERT INTO LockWaitTest(f1, f2) VALUES(2, 0)");
+
+        testWaitForCommit();
+        testDeadlock();
+    }
+
+    // 被阻塞的事务在持有行锁的事务提交后被唤醒
+    void testWaitForCommit() throws Exception {
+        Connection conn2 = getConnection();
+        conn.setAutoCommit(false);
+        executeUpdate("UPDATE LockWaitTest SET f2 = f2 + 1 WHERE f1 = 1");
+
+        UpdateThread t = new UpdateThread(conn2, "UPDATE LockWaitTest SET f2 = f2 + 1 WHERE f1 = 1");
+        t.start();
+        assertFalse(t.latch.await(300, TimeUnit.MILLISECONDS));
+
+        conn.commit();
+        conn.setAutoCommit(true);
+        assertTrue(t.latch.await(1000, TimeUnit.MILLISECONDS));
+        assertNull(t.exception);
+
+        sql = "SELECT f2 FROM LockWaitTest WHERE f1 = 1";
+        assertEquals(2, getIntValue(1, true));
+        conn2.close();
+    }
+
+    // 两个事务互相等待对方的行锁时，后一个事务会收到死锁异常并被回滚
+    void testDeadlock() throws Exception {
+        Connection conn2 = getConnection();
+        Statement stmt2 = conn2.createStatement();
+        conn.setAutoCommit(false);
+        conn2.setAutoCommit(false);
+        executeUpdate("UPDATE LockWaitTest SET f2 = 10 WHERE f1 = 1");
+        stmt2.executeUpdate("UPDATE LockWaitTest SET f2 = 20 WHERE f1 = 2");
+
+        UpdateThread t = new UpdateThread(conn, "UPDATE LockWaitTest SET f2 = 10 WHERE f1 = 2");
+        t.start();
+        assertFalse(t.latch.await(300, TimeUnit.MILLISECONDS));
+
+        try {
+            stmt2.executeUpdate("UPDATE LockWaitTest SET f2 = 20 WHERE f1 = 1");
+            fail();
+        } catch (SQLException e) {
+            assertTrue(isDeadlock(e));
+        }
+
+        assertTrue(t.latch.await(1000, TimeUnit.MILLISECONDS));
+        assertNull(t.exception);
+        conn.commit();
+        conn.setAutoCommit(true);
+
+        sql = "SELECT f2 FROM LockWaitTest WHERE f1 = 2";
+        assertEquals(10, getIntValue(1, true));
+        stmt2.close();
+        conn2.close();
+    }
+
+    // 客户端会把服务器端的异常包装一层，所以要在cause链中找
+    private static boolean isDeadlock(Throwable e) {
+        for (; e != null; e = e.getCause()) {
+            if (e instanceof SQLException && ((SQLException) e).getErrorCode() == ErrorCode.DEADLOCK_1)
+                return true;
+        }
+        return false;
+    }
+
+    private static class UpdateThread extends Thread {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final Connection conn;
+        final String sql;
+        volatile Exception exception;
+
+        UpdateThread(Connection conn, String sql) {
+            this.conn = conn;
+            this.sql = sql;
+        }
+
+        @Override
+        public void run() {
+            try {
+                Statement stmt = conn.createStatement();
+                stmt.executeUpdate(sql);
+                stmt.close();
+            } catch (Exception e) {
+                exception = e;
+            } finally {
+                latch.countDown();
+            }
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.test.sql.transaction;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.junit.Test;
+import org.lealone.api.ErrorCode;
+import org.lealone.test.sql.SqlTestBase;
+
+public class SnapshotReadTest extends SqlTestBase {
+
+    @Test
+    public void run() throws Exception {
+        executeUpdate("DROP TABLE IF EXISTS SnapshotReadTest");
+        executeUpdate("CREATE TABLE IF NOT EXISTS SnapshotReadTest (f1 int NOT NULL PRIMARY KEY, f2 int)");
+        executeUpdate("INSERT INTO SnapshotReadTest(f1, f2) VALUES(1, 10)");
+        executeUpdate("INSERT INTO SnapshotReadTest(f1, f2) VALUES(2, 20)");
+        executeUpdate("INSERT INTO SnapshotReadTest(f1, f2) VALUES(3, 30)");
+
+        testRepeatableRead();
+        testWriteConflict();
+    }
+
+    // 事务开始后其他事务提交的修改、插入和删除对它都不可见
+    void testRepeatableRead() throws Exception {
+        Connection conn2 = getConnection();
+        Statement stmt2 = conn2.createStatement();
+        conn.setAutoCommit(false);
+        assertSnapshot(60, 3);
+
+        stmt2.executeUpdate("UPDATE SnapshotReadTest SET f2 = 100 WHERE f1 = 1");
+        stmt2.executeUpdate("DELETE FROM SnapshotReadTest WHERE f1 = 2");
+        stmt2.executeUpdate("INSERT INTO SnapshotReadTest(f1, f2) VALUES(4, 40)");
+        assertSnapshot(60, 3);
+        sql = "SELECT f2 FROM SnapshotReadTest WHERE f1 = 2";
+        assertEquals(20, getIntValue(1, true));
+
+        conn.commit();
+        assertSnapshot(170, 3);
+        conn.setAutoCommit(true);
+        stmt2.close();
+        conn2.close();
+    }
+
+    // 不能覆盖在事务开始之后才提交的修改
+    void testWriteConflict() throws Exception {
+        Connection conn2 = getConnection();
+        Statement stmt2 = conn2.createStatement();
+        conn.setAutoCommit(false);
+        assertSnapshot(170, 3);
+        stmt2.executeUpdate("UPDATE SnapshotReadTest SET f2 = 200 WHERE f1 = 1");
+        try {
+            stmt.executeUpdate("UPDATE SnapshotReadTest SET f2 = 300 WHERE f1 = 1");
+            fail();
+        } catch (SQLException e) {
+            assertTrue(isWriteConflict(e));
+        }
+        conn.setAutoCommit(true);
+
+        // 自动提交的语句会换成新的快照重试
+        stmt.executeUpdate("UPDATE SnapshotReadTest SET f2 = f2 + 1 WHERE f1 = 1");
+        sql = "SELECT f2 FROM SnapshotReadTest WHERE f1 = 1";
+        assertEquals(201, getIntValue(1, true));
+        stmt2.close();
+        conn2.close();
+    }
+
+    private void assertSnapshot(int sum, int count) throws Exception {
+        sql = "SELECT sum(f2), count(*) FROM SnapshotReadTest";
+        assertEquals(sum, getIntValue(1));
+        assertEquals(count, getIntValue(2, true));
+    }
+
+    private static boolean isWriteConflict(Throwable e) {
+        for (; e != null; e = e.getCause()) {
+            if (e instanceof SQLException && ((SQLException) e).getErrorCode() == ErrorCode.DEADLOCK_1)
+                return true;
+        }
+        return false;
+    }
+}
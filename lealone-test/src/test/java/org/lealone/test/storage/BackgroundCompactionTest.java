@@ -0,0 +1,73 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.test.storage;
+
+import java.io.File;
+
+import org.junit.Test;
+import org.lealone.mvstore.ChunkCompactor;
+import org.lealone.mvstore.Constants;
+import org.lealone.mvstore.MVMap;
+import org.lealone.mvstore.MVStore;
+import org.lealone.mvstore.MVStoreBuilder;
+import org.lealone.storage.fs.FileUtils;
+import org.lealone.test.TestBase;
+
+public class BackgroundCompactionTest extends TestBase {
+
+    @Test
+    public void run() throws Exception {
+        String storageName = joinDirs("BackgroundCompactionTest");
+        String fileName = storageName + Constants.SUFFIX_MV_FILE;
+        new File(fileName).getParentFile().mkdirs();
+        FileUtils.delete(fileName);
+        MVStore store = (MVStore) new MVStoreBuilder().storageName(storageName).set("autoCommitDelay", 10)
+                .set("autoCompactFillRate", 90).autoCompactWriteRate(4).openStorage();
+        store.setRetentionTime(0);
+        MVMap<Integer, String> map = store.openMap("test");
+        for (int i = 0; i < 20000; i++)
+            map.put(i, "value" + i);
+        store.commit();
+        // 第一个chunk里只剩下最后一部分key所在的页是活跃的
+        for (int i = 0; i < 18000; i++)
+            map.put(i, "new" + i);
+        store.commit();
+        int fillRate = store.getChunksFillRate();
+        ChunkCompactor compactor = store.getCompactor();
+        // 被压缩的chunk先标记为不再使用，下一次提交时才会释放
+        for (int i = 0; i < 200; i++) {
+            if (compactor.getCompactedChunkCount() > 0 && store.getChunksFillRate() > fillRate)
+                break;
+            Thread.sleep(50);
+        }
+        assertTrue(compactor.getCompactedChunkCount() > 0);
+        assertTrue(compactor.getStepCount() > 0);
+        assertTrue(compactor.getRewrittenBytes() > 0);
+        assertTrue(store.getChunksFillRate() > fillRate);
+        store.close();
+
+        store = (MVStore) new MVStoreBuilder().storageName(storageName).openStorage();
+        map = store.openMap("test");
+        assertEquals(20000, map.size());
+        for (int i = 0; i < 20000; i++) {
+            assertEquals((i < 18000 ? "new" : "value") + i, map.get(i));
+        }
+        store.close();
+        FileUtils.delete(fileName);
+    }
+}
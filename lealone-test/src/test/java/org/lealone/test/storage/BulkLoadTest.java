@@ -0,0 +1,135 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.test.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.channels.Channels;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.junit.Test;
+import org.lealone.mvstore.Constants;
+import org.lealone.mvstore.MVMap;
+import org.lealone.mvstore.MVStore;
+import org.lealone.mvstore.MVStoreBuilder;
+import org.lealone.mvstore.Page;
+import org.lealone.storage.fs.FileUtils;
+import org.lealone.test.TestBase;
+
+public class BulkLoadTest extends TestBase {
+
+    @Test
+    public void run() throws Exception {
+        String storageName = joinDirs("BulkLoadTest");
+        String fileName = storageName + Constants.SUFFIX_MV_FILE;
+        new File(fileName).getParentFile().mkdirs();
+        FileUtils.delete(fileName);
+        MVStore store = (MVStore) new MVStoreBuilder().storageName(storageName).openStorage();
+        testEmptyMap(store);
+        testNonEmptyMap(store);
+        testTransfer(store);
+        store.close();
+
+        store = (MVStore) new MVStoreBuilder().storageName(storageName).openStorage();
+        MVMap<Integer, String> map = store.openMap("testEmptyMap");
+        assertEquals(100000, map.size());
+        for (int i = 0; i < 100000; i++)
+            assertEquals("value" + i, map.get(i));
+        store.close();
+        FileUtils.delete(fileName);
+    }
+
+    void testEmptyMap(MVStore store) {
+        MVMap<Integer, String> map = store.openMap("testEmptyMap");
+        map.bulkLoad(entries(0, 100000, 1));
+        assertEquals(100000, map.size());
+        for (int i = 0; i < 100000; i++)
+            assertEquals("value" + i, map.get(i));
+        assertEquals(0, map.firstKey().intValue());
+        assertEquals(99999, map.lastKey().intValue());
+        assertEquals(5000, map.getKeyIndex(5000));
+
+        // 每个key都用put的话页只有一半是满的
+        MVMap<Integer, String> map2 = store.openMap("testEmptyMap2");
+        for (int i = 0; i < 100000; i++)
+            map2.put(i, "value" + i);
+        assertTrue(pageCount(map.getRoot()) < pageCount(map2.getRoot()));
+        map2.remove();
+
+        try {
+            map.bulkLoad(entries(200000, 100, -1));
+            fail("keys are not in ascending order");
+        } catch (IllegalArgumentException e) {
+            // ok
+        }
+        store.commit();
+    }
+
+    void testNonEmptyMap(MVStore store) {
+        MVMap<Integer, String> map = store.openMap("testNonEmptyMap");
+        for (int i = 0; i < 1000; i += 2)
+            map.put(i, "old" + i);
+        // 前一半和已有的key交错，用put加入，后一半追加到右边
+        map.bulkLoad(entries(1, 10000, 2));
+        assertEquals(500 + 10000, map.size());
+        for (int i = 0; i < 1000; i++)
+            assertEquals((i % 2 == 0 ? "old" : "value") + i, map.get(i));
+        for (int i = 1001; i < 20000; i += 2)
+            assertEquals("value" + i, map.get(i));
+        // 追加之后还可以继续修改
+        for (int i = 1001; i < 20000; i += 4)
+            map.remove(i);
+        map.put(30000, "value30000");
+        assertEquals(500 + 10000 - 4750 + 1, map.size());
+        assertEquals(30000, map.lastKey().intValue());
+    }
+
+    void testTransfer(MVStore store) throws Exception {
+        MVMap<Integer, String> map = store.openMap("testEmptyMap");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        map.transferTo(Channels.newChannel(out), 1000, 59999);
+
+        MVMap<Integer, String> map2 = store.openMap("testTransfer");
+        map2.transferFrom(Channels.newChannel(new ByteArrayInputStream(out.toByteArray())));
+        assertEquals(59000, map2.size());
+        assertEquals(1000, map2.firstKey().intValue());
+        assertEquals(59999, map2.lastKey().intValue());
+        for (int i = 1000; i < 60000; i++)
+            assertEquals("value" + i, map2.get(i));
+    }
+
+    private static Iterator<Map.Entry<Integer, String>> entries(int start, int count, int step) {
+        ArrayList<Map.Entry<Integer, String>> list = new ArrayList<>(count);
+        for (int i = 0, key = start; i < count; i++, key += step)
+            list.add(new AbstractMap.SimpleImmutableEntry<Integer, String>(key, "value" + key));
+        return list.iterator();
+    }
+
+    private static int pageCount(Page p) {
+        int count = 1;
+        if (!p.isLeaf()) {
+            for (int i = 0; i < p.getRawChildPageCount(); i++)
+                count += pageCount(p.getChildPage(i));
+        }
+        return count;
+    }
+}
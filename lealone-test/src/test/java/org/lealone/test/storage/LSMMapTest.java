@@ -0,0 +1,149 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.test.storage;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.Test;
+import org.lealone.storage.StorageMapCursor;
+import org.lealone.storage.fs.FileUtils;
+import org.lealone.storage.lsm.LSMMap;
+import org.lealone.storage.lsm.LSMStorage;
+import org.lealone.storage.lsm.LSMStorageEngine;
+import org.lealone.storage.type.ObjectDataType;
+import org.lealone.test.TestBase;
+
+public class LSMMapTest extends TestBase {
+
+    @Test
+    public void run() throws Exception {
+        String storageName = joinDirs("LSMMapTest");
+        FileUtils.deleteRecursive(storageName + LSMStorage.SUFFIX_LSM_DIR, false);
+
+        TreeMap<Integer, String> expected = new TreeMap<>();
+        LSMStorage storage = open(storageName);
+        LSMMap<Integer, String> map = openMap(storage);
+        // 每轮保存一次，第0层的run满了之后由后台线程压缩到下一层
+        for (int round = 0; round < 20; round++) {
+            randomOps(map, expected, round, 3000);
+            map.save();
+            if (round % 5 == 4)
+                check(map, expected);
+        }
+        waitForCompaction(map);
+        int[] counts = map.getRunCounts();
+        assertTrue(counts[0] < 4);
+        assertTrue(counts[1] + counts[2] > 0);
+        check(map, expected);
+
+        // 没有保存的修改在关闭时保存
+        randomOps(map, expected, 100, 1000);
+        storage.close();
+
+        storage = open(storageName);
+        map = openMap(storage);
+        check(map, expected);
+        randomOps(map, expected, 101, 3000);
+        check(map, expected);
+
+        map.clear();
+        expected.clear();
+        assertEquals(0, map.size());
+        assertNull(map.firstKey());
+        map.put(1, "a");
+        assertEquals("a", map.get(1));
+        storage.close();
+
+        storage = open(storageName);
+        map = openMap(storage);
+        assertEquals(1, map.size());
+        assertEquals("a", map.get(1));
+        map.remove();
+        assertFalse(storage.hasMap("test"));
+        storage.close();
+        FileUtils.deleteRecursive(storageName + LSMStorage.SUFFIX_LSM_DIR, false);
+    }
+
+    private static LSMStorage open(String storageName) {
+        LSMStorageEngine.LSMStorageBuilder builder = new LSMStorageEngine.LSMStorageBuilder();
+        builder.runSize(16 * 1024).levelBaseSize(64 * 1024).level0RunCount(4);
+        builder.storageName(storageName);
+        return builder.openStorage();
+    }
+
+    private static LSMMap<Integer, String> openMap(LSMStorage storage) {
+        return storage.openMap("test", null, new ObjectDataType(), new ObjectDataType(), null);
+    }
+
+    private static void waitForCompaction(LSMMap<?, ?> map) throws InterruptedException {
+        for (int i = 0; i < 500 && map.getRunCounts()[0] >= 4; i++)
+            Thread.sleep(20);
+    }
+
+    private void randomOps(LSMMap<Integer, String> map, TreeMap<Integer, String> expected, int seed, int count) {
+        Random random = new Random(seed);
+        for (int i = 0; i < count; i++) {
+            int key = random.nextInt(5000);
+            String value = "v" + seed + "_" + i;
+            switch (random.nextInt(6)) {
+            case 0:
+            case 1:
+                assertEquals(expected.remove(key), map.remove(key));
+                break;
+            case 2:
+                assertEquals(expected.containsKey(key) ? expected.get(key) : null, map.putIfAbsent(key, value));
+                if (!expected.containsKey(key))
+                    expected.put(key, value);
+                break;
+            case 3: {
+                String old = expected.get(key);
+                boolean replaced = old != null && map.replace(key, old, value);
+                assertEquals(old != null, replaced);
+                if (replaced)
+                    expected.put(key, value);
+                break;
+            }
+            default:
+                assertEquals(expected.put(key, value), map.put(key, value));
+            }
+        }
+        assertEquals(expected.size(), map.size());
+    }
+
+    private void check(LSMMap<Integer, String> map, TreeMap<Integer, String> expected) {
+        assertEquals(expected.size(), map.size());
+        StorageMapCursor<Integer, String> c = map.cursor(null);
+        for (Map.Entry<Integer, String> e : expected.entrySet()) {
+            assertTrue(c.hasNext());
+            assertEquals(e.getKey(), c.next());
+            assertEquals(e.getValue(), c.getValue());
+        }
+        assertFalse(c.hasNext());
+        for (int k = -3; k < 5003; k += 7) {
+            assertEquals(expected.get(k), map.get(k));
+            assertEquals(expected.floorKey(k), map.floorKey(k));
+            assertEquals(expected.ceilingKey(k), map.ceilingKey(k));
+            assertEquals(expected.lowerKey(k), map.lowerKey(k));
+            assertEquals(expected.higherKey(k), map.higherKey(k));
+        }
+        assertEquals(expected.isEmpty() ? null : expected.firstKey(), map.firstKey());
+        assertEquals(expected.isEmpty() ? null : expected.lastKey(), map.lastKey());
+    }
+}
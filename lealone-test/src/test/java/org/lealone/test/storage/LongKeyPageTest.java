@@ -0,0 +1,160 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.test.storage;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.Test;
+import org.lealone.mvstore.Constants;
+import org.lealone.mvstore.MVMap;
+import org.lealone.mvstore.MVStore;
+import org.lealone.mvstore.MVStoreBuilder;
+import org.lealone.storage.fs.FileUtils;
+import org.lealone.storage.type.DataType;
+import org.lealone.storage.type.LongKeyDataType;
+import org.lealone.storage.type.StringDataType;
+import org.lealone.storage.type.WriteBuffer;
+import org.lealone.test.TestBase;
+
+public class LongKeyPageTest extends TestBase {
+
+    @Test
+    public void run() {
+        String storageName = joinDirs("LongKeyPageTest");
+        String fileName = storageName + Constants.SUFFIX_MV_FILE;
+        new File(fileName).getParentFile().mkdirs();
+        FileUtils.delete(fileName);
+
+        // 先用普通的key类型写，再用long key类型读旧格式的页
+        MVStore store = (MVStore) new MVStoreBuilder().storageName(storageName).openStorage();
+        MVMap<Long, String> map = openMap(store, new LongType());
+        TreeMap<Long, String> expected = new TreeMap<>();
+        randomOps(map, expected, 20000);
+        store.close();
+
+        store = (MVStore) new MVStoreBuilder().storageName(storageName).openStorage();
+        map = openMap(store, new LongKeyType());
+        check(map, expected);
+        randomOps(map, expected, 20000);
+        check(map, expected);
+        store.close();
+
+        store = (MVStore) new MVStoreBuilder().storageName(storageName).openStorage();
+        map = openMap(store, new LongKeyType());
+        check(map, expected);
+        store.close();
+        FileUtils.delete(fileName);
+    }
+
+    private static MVMap<Long, String> openMap(MVStore store, DataType keyType) {
+        MVMap.Builder<Long, String> builder = new MVMap.Builder<>();
+        builder.keyType(keyType);
+        builder.valueType(StringDataType.INSTANCE);
+        return store.openMap("test", builder);
+    }
+
+    private void randomOps(MVMap<Long, String> map, TreeMap<Long, String> expected, int count) {
+        Random random = new Random(count + expected.size());
+        for (int i = 0; i < count; i++) {
+            long key;
+            int r = random.nextInt(10);
+            if (r == 0)
+                key = random.nextLong();
+            else if (r == 1)
+                key = random.nextBoolean() ? Long.MIN_VALUE : Long.MAX_VALUE;
+            else
+                key = random.nextInt(30000) - 10000;
+            if (random.nextInt(4) == 0) {
+                assertEquals(expected.remove(key), map.remove(key));
+            } else {
+                String value = "v" + i;
+                assertEquals(expected.put(key, value), map.put(key, value));
+            }
+        }
+    }
+
+    private void check(MVMap<Long, String> map, TreeMap<Long, String> expected) {
+        assertEquals(expected.size(), map.size());
+        Iterator<Long> it = map.keyIterator(null);
+        for (Map.Entry<Long, String> e : expected.entrySet()) {
+            assertEquals(e.getKey(), it.next());
+            assertEquals(e.getValue(), map.get(e.getKey()));
+        }
+        assertFalse(it.hasNext());
+        for (long k = -10005; k < 20005; k += 7) {
+            assertEquals(expected.get(k), map.get(k));
+            assertEquals(expected.floorKey(k), map.floorKey(k));
+            assertEquals(expected.ceilingKey(k), map.ceilingKey(k));
+            assertEquals(expected.lowerKey(k), map.lowerKey(k));
+            assertEquals(expected.higherKey(k), map.higherKey(k));
+        }
+    }
+
+    private static class LongType implements DataType {
+
+        @Override
+        public int compare(Object a, Object b) {
+            return Long.compare((Long) a, (Long) b);
+        }
+
+        @Override
+        public int getMemory(Object obj) {
+            return 24;
+        }
+
+        @Override
+        public void write(WriteBuffer buff, Object obj) {
+            buff.putLong((Long) obj);
+        }
+
+        @Override
+        public void write(WriteBuffer buff, Object[] obj, int len, boolean key) {
+            for (int i = 0; i < len; i++)
+                write(buff, obj[i]);
+        }
+
+        @Override
+        public Object read(ByteBuffer buff) {
+            return buff.getLong();
+        }
+
+        @Override
+        public void read(ByteBuffer buff, Object[] obj, int len, boolean key) {
+            for (int i = 0; i < len; i++)
+                obj[i] = read(buff);
+        }
+    }
+
+    private static class LongKeyType extends LongType implements LongKeyDataType {
+
+        @Override
+        public long toLong(Object key) {
+            return (Long) key;
+        }
+
+        @Override
+        public Object toKey(long value) {
+            return value;
+        }
+    }
+}
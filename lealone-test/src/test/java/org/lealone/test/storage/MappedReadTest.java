@@ -0,0 +1,92 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.test.storage;
+
+import java.io.File;
+
+import org.junit.Test;
+import org.lealone.mvstore.Constants;
+import org.lealone.mvstore.MVMap;
+import org.lealone.mvstore.MVStore;
+import org.lealone.mvstore.MVStoreBuilder;
+import org.lealone.storage.fs.FileUtils;
+import org.lealone.test.TestBase;
+
+public class MappedReadTest extends TestBase {
+
+    @Test
+    public void run() {
+        String storageName = joinDirs("MappedReadTest");
+        String fileName = storageName + Constants.SUFFIX_MV_FILE;
+        new File(fileName).getParentFile().mkdirs();
+        FileUtils.delete(fileName);
+
+        MVStore store = open(storageName);
+        MVMap<Integer, String> map = store.openMap("test");
+        for (int i = 0; i < 20000; i++)
+            map.put(i, "value" + i);
+        store.close();
+
+        store = open(storageName);
+        assertTrue(store.getFileStore().isMapped());
+        map = store.openMap("test");
+        check(map, 0, 20000, "value");
+
+        // 文件变大之后映射的区域也要跟着变大
+        for (int i = 20000; i < 40000; i++)
+            map.put(i, "value" + i);
+        store.close();
+
+        store = open(storageName);
+        map = store.openMap("test");
+        check(map, 0, 40000, "value");
+
+        // 删掉后一半再压缩，文件被截短之后还能正常读
+        for (int i = 0; i < 40000; i++) {
+            if (i < 20000)
+                map.put(i, "new" + i);
+            else
+                map.remove(i);
+        }
+        store.commit();
+        store.setRetentionTime(0);
+        long size = store.getFileStore().size();
+        store.compact(100, 16 * 1024 * 1024);
+        store.commit();
+        store.compactMoveChunks();
+        assertTrue(store.getFileStore().size() < size);
+        check(map, 0, 20000, "new");
+        assertEquals(20000, map.size());
+        store.close();
+
+        store = open(storageName);
+        map = store.openMap("test");
+        check(map, 0, 20000, "new");
+        store.close();
+        FileUtils.delete(fileName);
+    }
+
+    private static MVStore open(String storageName) {
+        return (MVStore) new MVStoreBuilder().storageName(storageName).mappedReads().openStorage();
+    }
+
+    private void check(MVMap<Integer, String> map, int from, int to, String prefix) {
+        for (int i = from; i < to; i++)
+            assertEquals(prefix + i, map.get(i));
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.test.storage;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+import org.lealone.mvstore.Constants;
+import org.lealone.mvstore.MVMap;
+import org.lealone.mvstore.MVStore;
+import org.lealone.mvstore.MVStoreBuilder;
+import org.lealone.storage.cache.CacheLongKeyOffHeap;
+import org.lealone.storage.fs.FileUtils;
+import org.lealone.test.TestBase;
+
+public class OffHeapPageCacheTest extends TestBase {
+
+    @Test
+    public void run() {
+        testCache();
+        testStore();
+    }
+
+    void testCache() {
+        // 16个segment，每个64K，每个region 8K
+        CacheLongKeyOffHeap cache = new CacheLongKeyOffHeap(1024 * 1024);
+        cache.put(1, 10, ByteBuffer.wrap(new byte[] { 1, 2, 3 }));
+        ByteBuffer buff = cache.get(1, 10);
+        assertEquals(3, buff.remaining());
+        assertEquals(3, buff.get(2));
+        // tag不匹配时当成没有缓存
+        assertNull(cache.get(1, 11));
+        assertNull(cache.get(1, 10));
+        assertEquals(1, cache.getHits());
+        assertEquals(2, cache.getMisses());
+
+        for (int i = 0; i < 10000; i++)
+            cache.put(i, 0, ByteBuffer.wrap(new byte[1000]));
+        assertTrue(cache.getEvictions() > 0);
+        assertTrue(cache.getUsedMemory() <= cache.getMaxMemory());
+        assertNotNull(cache.get(9999, 0));
+        cache.remove(9999);
+        assertNull(cache.get(9999, 0));
+        cache.clear();
+        assertEquals(0, cache.size());
+    }
+
+    void testStore() {
+        String storageName = joinDirs("OffHeapPageCacheTest");
+        String fileName = storageName + Constants.SUFFIX_MV_FILE;
+        new File(fileName).getParentFile().mkdirs();
+        FileUtils.delete(fileName);
+        MVStore store = (MVStore) new MVStoreBuilder().storageName(storageName).openStorage();
+        MVMap<Integer, String> map = store.openMap("test");
+        for (int i = 0; i < 50000; i++)
+            map.put(i, "value" + i);
+        store.close();
+
+        // 读缓存很小，被淘汰的页从off-heap缓存中读
+        store = (MVStore) new MVStoreBuilder().storageName(storageName).cacheSize(1).offHeapCacheSize(16)
+                .openStorage();
+        map = store.openMap("test");
+        for (int n = 0; n < 3; n++) {
+            for (int i = 0; i < 50000; i++)
+                assertEquals("value" + i, map.get(i));
+        }
+        assertTrue(store.getCache().getEvictions() > 0);
+        CacheLongKeyOffHeap offHeapCache = store.getOffHeapCache();
+        assertTrue(offHeapCache.getHits() > 0);
+        assertEquals(0, offHeapCache.getEvictions());
+        store.close();
+        FileUtils.delete(fileName);
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.test.storage;
+
+import java.io.File;
+
+import org.junit.Test;
+import org.lealone.mvstore.Constants;
+import org.lealone.mvstore.MVMap;
+import org.lealone.mvstore.MVStore;
+import org.lealone.mvstore.MVStoreBuilder;
+import org.lealone.storage.StorageBuilder;
+import org.lealone.storage.fs.FileUtils;
+import org.lealone.test.TestBase;
+
+public class ParallelPageWriteTest extends TestBase {
+
+    @Test
+    public void run() {
+        testWrite(0);
+        testWrite(1);
+        testWrite(2);
+    }
+
+    // 用多个线程序列化和压缩页，再用单线程读回来
+    void testWrite(int compressionLevel) {
+        String storageName = joinDirs("ParallelPageWriteTest");
+        String fileName = storageName + Constants.SUFFIX_MV_FILE;
+        new File(fileName).getParentFile().mkdirs();
+        FileUtils.delete(fileName);
+        StorageBuilder builder = new MVStoreBuilder().storageName(storageName).writeThreads(4);
+        if (compressionLevel == 1)
+            builder.compress();
+        else if (compressionLevel == 2)
+            builder.compressHigh();
+        MVStore store = (MVStore) builder.openStorage();
+        for (int m = 0; m < 3; m++) {
+            MVMap<Integer, String> map = store.openMap("map" + m);
+            for (int i = 0; i < 20000; i++)
+                map.put(i, "value" + m + "_" + i);
+        }
+        store.commit();
+        // 只有一部分页改变了
+        MVMap<Integer, String> map0 = store.openMap("map0");
+        for (int i = 0; i < 20000; i += 100)
+            map0.put(i, "new" + i);
+        store.close();
+
+        store = (MVStore) new MVStoreBuilder().storageName(storageName).writeThreads(1).openStorage();
+        for (int m = 0; m < 3; m++) {
+            MVMap<Integer, String> map = store.openMap("map" + m);
+            assertEquals(20000, map.size());
+            for (int i = 0; i < 20000; i++) {
+                String expected = (m == 0 && i % 100 == 0) ? "new" + i : "value" + m + "_" + i;
+                assertEquals(expected, map.get(i));
+            }
+        }
+        store.close();
+        FileUtils.delete(fileName);
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.test.storage;
+
+import java.io.File;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.util.Comparator;
+import java.util.TreeMap;
+
+import org.junit.Test;
+import org.lealone.db.index.ValueDataType;
+import org.lealone.db.value.CompareMode;
+import org.lealone.db.value.Value;
+import org.lealone.db.value.ValueArray;
+import org.lealone.db.value.ValueDecimal;
+import org.lealone.db.value.ValueInt;
+import org.lealone.db.value.ValueLong;
+import org.lealone.db.value.ValueNull;
+import org.lealone.db.value.ValueString;
+import org.lealone.db.value.ValueStringIgnoreCase;
+import org.lealone.mvstore.Constants;
+import org.lealone.mvstore.MVMap;
+import org.lealone.mvstore.MVStore;
+import org.lealone.mvstore.MVStoreBuilder;
+import org.lealone.storage.fs.FileUtils;
+import org.lealone.storage.type.WriteBuffer;
+import org.lealone.test.TestBase;
+
+public class PrefixCompressedKeyTest extends TestBase {
+
+    private final ValueDataType type = new ValueDataType(null, CompareMode.getInstance(null, 0, false),
+            new int[3]);
+
+    @Test
+    public void run() {
+        testRoundTrip();
+        testStore();
+        testSearch();
+    }
+
+    // 相等但序列化结果不同的值不能共用
+    void testRoundTrip() {
+        Object[] keys = { key(ValueInt.get(1), ValueStringIgnoreCase.get("a"), ValueLong.get(1)),
+                key(ValueInt.get(1), ValueStringIgnoreCase.get("A"), ValueLong.get(2)),
+                key(ValueInt.get(1), ValueString.get("A"), ValueLong.get(3)),
+                key(ValueInt.get(1), ValueDecimal.get(new BigDecimal("1.0")), ValueLong.get(4)),
+                key(ValueInt.get(1), ValueDecimal.get(new BigDecimal("1.00")), ValueLong.get(5)),
+                key(ValueInt.get(1), ValueNull.INSTANCE, ValueLong.get(6)),
+                key(ValueInt.get(1), ValueNull.INSTANCE, ValueLong.get(7)),
+                key(ValueInt.get(1), ValueNull.INSTANCE), key(ValueInt.get(2)) };
+        WriteBuffer buff = new WriteBuffer();
+        type.write(buff, keys, keys.length, true);
+        ByteBuffer bb = buff.getBuffer();
+        bb.flip();
+        Object[] read = new Object[keys.length];
+        type.read(bb, read, keys.length, true);
+        assertEquals(0, bb.remaining());
+        for (int i = 0; i < keys.length; i++) {
+            Value[] expected = ((ValueArray) keys[i]).getList();
+            Value[] actual = ((ValueArray) read[i]).getList();
+            assertEquals(expected.length, actual.length);
+            for (int j = 0; j < expected.length; j++) {
+                assertEquals(expected[j].getType(), actual[j].getType());
+                assertEquals(expected[j].getString(), actual[j].getString());
+            }
+        }
+        // 相同的前缀共用同一个对象
+        assertTrue(((ValueArray) read[0]).getList()[0] == ((ValueArray) read[7]).getList()[0]);
+    }
+
+    void testStore() {
+        String storageName = joinDirs("PrefixCompressedKeyTest");
+        String fileName = storageName + Constants.SUFFIX_MV_FILE;
+        new File(fileName).getParentFile().mkdirs();
+        FileUtils.delete(fileName);
+        MVStore store = (MVStore) new MVStoreBuilder().storageName(storageName).openStorage();
+        MVMap<Object, Object> map = openMap(store);
+        for (int i = 0; i < 20000; i++)
+            map.put(key(ValueInt.get(i / 1000), ValueString.get("tenant" + i / 100), ValueLong.get(i)), ValueInt.get(i));
+        store.close();
+
+        store = (MVStore) new MVStoreBuilder().storageName(storageName).openStorage();
+        map = openMap(store);
+        assertEquals(20000, map.size());
+        for (int i = 0; i < 20000; i++) {
+            Object k = key(ValueInt.get(i / 1000), ValueString.get("tenant" + i / 100), ValueLong.get(i));
+            assertEquals(ValueInt.get(i), map.get(k));
+        }
+        store.close();
+        FileUtils.delete(fileName);
+    }
+
+    // 页中的key先比较共同的前缀，查找的结果要跟逐个比较所有元素一样
+    void testSearch() {
+        String storageName = joinDirs("PrefixCompressedKeyTest");
+        String fileName = storageName + Constants.SUFFIX_MV_FILE;
+        FileUtils.delete(fileName);
+        MVStore store = (MVStore) new MVStoreBuilder().storageName(storageName).openStorage();
+        MVMap<Object, Object> map = openMap(store);
+        TreeMap<Object, Object> expected = new TreeMap<>(new Comparator<Object>() {
+            @Override
+            public int compare(Object a, Object b) {
+                return type.compare(a, b);
+            }
+        });
+        // 只放偶数，奇数用来找不存在的key
+        for (int i = 0; i < 20000; i += 2) {
+            ValueArray k = key(ValueInt.get(i / 1000), ValueString.get("tenant" + i / 100), ValueLong.get(i));
+            map.put(k, ValueInt.get(i));
+            expected.put(k, ValueInt.get(i));
+        }
+        checkSearch(map, expected);
+        store.close();
+
+        // 从硬盘读出的页中相同的前缀是同一个对象
+        store = (MVStore) new MVStoreBuilder().storageName(storageName).openStorage();
+        map = openMap(store);
+        checkSearch(map, expected);
+        store.close();
+        FileUtils.delete(fileName);
+    }
+
+    private void checkSearch(MVMap<Object, Object> map, TreeMap<Object, Object> expected) {
+        for (int i = -1; i <= 20001; i++) {
+            // 完整的key，还有二级索引查找时用到的部分key，没有的元素是null
+            checkSearch(map, expected, key(ValueInt.get(i / 1000), ValueString.get("tenant" + i / 100),
+                    ValueLong.get(i)));
+            checkSearch(map, expected, key(ValueInt.get(i / 1000), ValueString.get("tenant" + i / 100), null));
+            checkSearch(map, expected, key(ValueInt.get(i / 1000), null, null));
+            checkSearch(map, expected, key(ValueInt.get(i / 1000)));
+            checkSearch(map, expected, key(ValueInt.get(i / 1000), ValueString.get("tenant" + i / 100)));
+        }
+    }
+
+    private static void checkSearch(MVMap<Object, Object> map, TreeMap<Object, Object> expected, Object k) {
+        assertEquals(expected.get(k), map.get(k));
+        assertEquals(expected.ceilingKey(k), map.ceilingKey(k));
+        assertEquals(expected.floorKey(k), map.floorKey(k));
+        assertEquals(expected.higherKey(k), map.higherKey(k));
+        assertEquals(expected.lowerKey(k), map.lowerKey(k));
+    }
+
+    private MVMap<Object, Object> openMap(MVStore store) {
+        MVMap.Builder<Object, Object> builder = new MVMap.Builder<>();
+        builder.keyType(type);
+        builder.valueType(type);
+        return store.openMap("test", builder);
+    }
+
+    private static ValueArray key(Value... values) {
+        return ValueArray.get(values);
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.test.storage;
+
+import java.io.File;
+import java.util.Iterator;
+
+import org.junit.Test;
+import org.lealone.mvstore.Constants;
+import org.lealone.mvstore.MVMap;
+import org.lealone.mvstore.MVStore;
+import org.lealone.mvstore.MVStoreBuilder;
+import org.lealone.storage.fs.FileUtils;
+import org.lealone.test.TestBase;
+
+public class ReadAheadTest extends TestBase {
+
+    @Test
+    public void run() {
+        String storageName = joinDirs("ReadAheadTest");
+        String fileName = storageName + Constants.SUFFIX_MV_FILE;
+        new File(fileName).getParentFile().mkdirs();
+        FileUtils.delete(fileName);
+        MVStore store = (MVStore) new MVStoreBuilder().storageName(storageName).openStorage();
+        for (int m = 0; m < 2; m++) {
+            MVMap<Integer, String> map = store.openMap("map" + m);
+            for (int i = 0; i < 50000; i++)
+                map.put(i, "value" + m + "_" + i);
+            store.commit();
+        }
+        store.close();
+
+        scan(storageName, 0);
+        scan(storageName, 8);
+        scan(storageName, 64);
+        FileUtils.delete(fileName);
+    }
+
+    // 预读的页和按需读的页是一样的，在扫描过程中修改和关闭也不受影响
+    private void scan(String storageName, int readAheadPages) {
+        MVStore store = (MVStore) new MVStoreBuilder().storageName(storageName).readAheadPages(readAheadPages)
+                .openStorage();
+        for (int m = 0; m < 2; m++) {
+            MVMap<Integer, String> map = store.openMap("map" + m);
+            Iterator<Integer> it = map.keyIterator(null);
+            for (int i = 0; i < 50000; i++) {
+                assertEquals(i, it.next().intValue());
+                if (i % 10000 == 0)
+                    map.put(i, "value" + m + "_" + i);
+            }
+            assertFalse(it.hasNext());
+            Iterator<Integer> it2 = map.keyIterator(25000);
+            for (int i = 25000; i < 50000; i++)
+                assertEquals("value" + m + "_" + i, map.get(it2.next()));
+        }
+        Iterator<Integer> it = store.<Integer, String> openMap("map0").keyIterator(null);
+        for (int i = 0; i < 1000; i++)
+            it.next();
+        store.close();
+    }
+}
@@ -0,0 +1,342 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.test.storage;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+import org.lealone.mvstore.MVStore;
+import org.lealone.mvstore.MVStoreBuilder;
+import org.lealone.mvstore.mvcc.MVCCTransactionEngine;
+import org.lealone.mvstore.mvcc.log.LogStorage;
+import org.lealone.storage.fs.FileUtils;
+import org.lealone.test.TestBase;
+import org.lealone.transaction.Transaction;
+import org.lealone.transaction.TransactionMap;
+
+/**
+ * 模拟崩溃: 在事务引擎还打开时复制数据目录，然后在副本上重新打开事务引擎，
+ * 副本中只有已经同步到硬盘的日志和已经保存的map。
+ */
+public class RedoLogRecoveryTest extends TestBase {
+
+    private final String baseDir = joinDirs("RedoLogRecoveryTest");
+
+    @Test
+    public void run() throws Exception {
+        FileUtils.deleteRecursive(baseDir, false);
+        testCrashRecovery();
+        testTornTail();
+        testCheckpoint();
+        testUnopenedMap();
+        testDroppedMap();
+        testCommitCleanup();
+        FileUtils.deleteRecursive(baseDir, false);
+    }
+
+    void testCrashRecovery() throws Exception {
+        String dir = dir("crash");
+        MVCCTransactionEngine te = openEngine(dir);
+        MVStore store = openStore(dir);
+        put(te, store, "a", 0, 1000, "v");
+        put(te, store, "a", 0, 100, "n"); // 同一个key的修改按日志的顺序重做
+
+        // 未提交的事务不会重做
+        Transaction t = te.beginTransaction(false, false);
+        TransactionMap<Integer, String> map = t.openMap("a", store);
+        map.put(5000, "uncommitted");
+
+        String copy = crash(dir, "crash2");
+        t.rollback();
+        close(te, store);
+
+        te = openEngine(copy);
+        store = openStore(copy);
+        assertEquals(1, te.getRecoveryMapCount());
+        assertEquals(1100, te.getPendingRedoLogRecordCount());
+        check(te, store, "a", 0, 100, "n");
+        check(te, store, "a", 100, 1000, "v");
+        assertNull(get(te, store, "a", 5000));
+        assertEquals(0, te.getPendingRedoLogRecordCount());
+        assertEquals(1100, te.getReplayedRedoLogRecordCount());
+        close(te, store);
+    }
+
+    void testTornTail() throws Exception {
+        String dir = dir("torn");
+        MVCCTransactionEngine te = openEngine(dir);
+        MVStore store = openStore(dir);
+        put(te, store, "a", 0, 100, "v");
+        String copy = crash(dir, "torn2");
+        close(te, store);
+
+        // 崩溃时最后一条记录只写了一部分，或者写入的内容是错的
+        File last = getLastChunk(copy);
+        long size = last.length();
+        RandomAccessFile file = new RandomAccessFile(last, "rw");
+        try {
+            file.seek(size);
+            file.writeInt(16);
+            file.writeInt(12345); // 错误的校验和
+            file.write(new byte[16]);
+            file.writeInt(100);
+            file.write(new byte[10]);
+        } finally {
+            file.close();
+        }
+
+        te = openEngine(copy);
+        store = openStore(copy);
+        assertEquals(size, last.length());
+        check(te, store, "a", 0, 100, "v");
+        // 新的记录写在丢弃的记录的位置，下一次重启时还能读到
+        put(te, store, "a", 100, 200, "v");
+        String copy2 = crash(copy, "torn3");
+        close(te, store);
+
+        te = openEngine(copy2);
+        store = openStore(copy2);
+        check(te, store, "a", 0, 200, "v");
+        close(te, store);
+    }
+
+    void testCheckpoint() throws Exception {
+        String dir = dir("checkpoint");
+        MVCCTransactionEngine te = openEngine(dir);
+        MVStore store = openStore(dir);
+        put(te, store, "a", 0, 1000, "v");
+        assertTrue(getChunkCount(dir) > 1);
+
+        te.checkpoint();
+        // 检查点之前的日志文件都删除了，检查点记录可能写到了新的日志文件中
+        assertTrue(getChunkCount(dir) <= 2);
+        put(te, store, "a", 1000, 1010, "v");
+        String copy = crash(dir, "checkpoint2");
+        close(te, store);
+
+        te = openEngine(copy);
+        store = openStore(copy);
+        // 只重做检查点之后的记录，之前的修改已经保存到map中了
+        assertEquals(10, te.getPendingRedoLogRecordCount());
+        check(te, store, "a", 0, 1010, "v");
+        close(te, store);
+    }
+
+    void testUnopenedMap() throws Exception {
+        String dir = dir("unopened");
+        MVCCTransactionEngine te = openEngine(dir);
+        MVStore store = openStore(dir);
+        put(te, store, "a", 0, 100, "v");
+        put(te, store, "b", 0, 100, "v");
+        String copy = crash(dir, "unopened2");
+        close(te, store);
+
+        // 重启后只打开了a，b的日志也不能阻止删除检查点之前的日志文件
+        te = openEngine(copy);
+        store = openStore(copy);
+        check(te, store, "a", 0, 100, "v");
+        put(te, store, "a", 100, 1000, "v");
+        assertTrue(getChunkCount(copy) > 1);
+        te.checkpoint();
+        assertTrue(getChunkCount(copy) <= 2);
+        assertEquals(100, te.getCarriedRedoLogRecordCount());
+        String copy2 = crash(copy, "unopened3");
+        close(te, store);
+
+        te = openEngine(copy2);
+        store = openStore(copy2);
+        check(te, store, "b", 0, 100, "v");
+        check(te, store, "a", 0, 1000, "v");
+        close(te, store);
+    }
+
+    void testDroppedMap() throws Exception {
+        String dir = dir("dropped");
+        MVCCTransactionEngine te = openEngine(dir);
+        MVStore store = openStore(dir);
+        put(te, store, "a", 0, 100, "v");
+        put(te, store, "b", 0, 100, "v");
+        // 删除后又创建了同名的map，之前的日志不能重做到新的map中
+        remove(te, store, "b");
+        put(te, store, "b", 0, 10, "n");
+        String copy = crash(dir, "dropped2");
+        close(te, store);
+
+        te = openEngine(copy);
+        store = openStore(copy);
+        assertEquals(2, te.getRecoveryMapCount());
+        assertEquals(110, te.getPendingRedoLogRecordCount());
+        check(te, store, "b", 0, 10, "n");
+        assertNull(get(te, store, "b", 50));
+
+        // 删除的map的日志不用复制到检查点之后，也不能阻止删除检查点之前的日志文件
+        remove(te, store, "b");
+        put(te, store, "a", 100, 1000, "v");
+        te.checkpoint();
+        assertTrue(getChunkCount(copy) <= 2);
+        assertEquals(0, te.getCarriedRedoLogRecordCount());
+        assertEquals(0, te.getPendingRedoLogRecordCount());
+        String copy2 = crash(copy, "dropped3");
+        close(te, store);
+
+        te = openEngine(copy2);
+        store = openStore(copy2);
+        assertEquals(0, te.getRecoveryMapCount());
+        assertNull(get(te, store, "b", 1));
+        check(te, store, "a", 0, 1000, "v");
+        close(te, store);
+    }
+
+    void testCommitCleanup() throws Exception {
+        String dir = dir("cleanup");
+        MVCCTransactionEngine te = openEngine(dir);
+        MVStore store = openStore(dir);
+        // 提交时只登记事务，map中的值还带有事务ID，由后台线程清除
+        // 后台线程启动时会先清除一次，可能已经清除了最早提交的几个事务
+        put(te, store, "a", 0, 100, "v");
+        assertTrue(te.getUncleanedTransactionCount() > 0);
+        assertEquals(100, te.getUncleanedTransactionCount() + te.getCleanedTransactionCount());
+        check(te, store, "a", 0, 100, "v");
+
+        te.checkpoint();
+        assertEquals(0, te.getUncleanedTransactionCount());
+        assertEquals(100, te.getCleanedTransactionCount());
+        check(te, store, "a", 0, 100, "v");
+
+        // 保存到文件中的值不带事务ID，重启后不需要知道这些事务的状态
+        String copy = crash(dir, "cleanup2");
+        close(te, store);
+        te = openEngine(copy);
+        store = openStore(copy);
+        assertEquals(0, te.getRecoveryMapCount());
+        check(te, store, "a", 0, 100, "v");
+        close(te, store);
+    }
+
+    private String dir(String name) {
+        return baseDir + File.separator + name;
+    }
+
+    private static MVCCTransactionEngine openEngine(String dir) {
+        Map<String, String> config = new HashMap<>();
+        config.put("base_dir", dir);
+        config.put("transaction_log_dir", "tlog");
+        config.put("log_sync_type", LogStorage.LOG_SYNC_TYPE_BATCH);
+        config.put("log_sync_batch_window", "1");
+        config.put("log_chunk_size", "4096");
+        // 只在测试调用checkpoint()时保存map和清除事务ID
+        config.put("map_save_period", "3600000");
+        config.put("map_save_service_sleep_interval", "3600000");
+        config.put("version_gc_interval", "3600000");
+        MVCCTransactionEngine te = new MVCCTransactionEngine();
+        te.init(config);
+        return te;
+    }
+
+    // 不自动提交，map中的修改只有在检查点时才保存到文件
+    private static MVStore openStore(String dir) {
+        return (MVStore) new MVStoreBuilder().storageName(dir + File.separator + "data").set("autoCommitDelay", 0)
+                .set("autoCommitBufferSize", 0).openStorage();
+    }
+
+    private static void close(MVCCTransactionEngine te, MVStore store) {
+        te.close();
+        store.closeImmediately();
+    }
+
+    private String crash(String dir, String name) throws Exception {
+        String copy = dir(name);
+        copy(new File(dir), new File(copy));
+        return copy;
+    }
+
+    private static void copy(File from, File to) throws Exception {
+        if (from.isDirectory()) {
+            to.mkdirs();
+            for (File f : from.listFiles())
+                copy(f, new File(to, f.getName()));
+        } else {
+            Files.copy(from.toPath(), to.toPath());
+        }
+    }
+
+    private static File[] getChunks(String dir) {
+        return new File(dir, "tlog").listFiles(new java.io.FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith("redoLog" + LogStorage.MAP_NAME_ID_SEPARATOR);
+            }
+        });
+    }
+
+    private static int getChunkCount(String dir) {
+        return getChunks(dir).length;
+    }
+
+    private static File getLastChunk(String dir) {
+        File last = null;
+        int lastId = -1;
+        for (File f : getChunks(dir)) {
+            String name = f.getName();
+            int id = Integer.parseInt(name.substring(name.lastIndexOf(LogStorage.MAP_NAME_ID_SEPARATOR) + 1));
+            if (id > lastId) {
+                lastId = id;
+                last = f;
+            }
+        }
+        return last;
+    }
+
+    // 每个key用一个事务提交
+    private static void put(MVCCTransactionEngine te, MVStore store, String mapName, int from, int to,
+            String prefix) {
+        for (int i = from; i < to; i++) {
+            Transaction t = te.beginTransaction(false, false);
+            TransactionMap<Integer, String> map = t.openMap(mapName, store);
+            map.put(i, prefix + i);
+            t.commit();
+        }
+    }
+
+    private static void remove(MVCCTransactionEngine te, MVStore store, String mapName) {
+        Transaction t = te.beginTransaction(false, false);
+        t.openMap(mapName, store).remove();
+        t.commit();
+    }
+
+    private static String get(MVCCTransactionEngine te, MVStore store, String mapName, int key) {
+        Transaction t = te.beginTransaction(false, false);
+        TransactionMap<Integer, String> map = t.openMap(mapName, store);
+        String value = map.get(key);
+        t.commit();
+        return value;
+    }
+
+    private static void check(MVCCTransactionEngine te, MVStore store, String mapName, int from, int to,
+            String prefix) {
+        Transaction t = te.beginTransaction(false, false);
+        TransactionMap<Integer, String> map = t.openMap(mapName, store);
+        for (int i = from; i < to; i++)
+            assertEquals(prefix + i, map.get(i));
+        t.commit();
+    }
+}
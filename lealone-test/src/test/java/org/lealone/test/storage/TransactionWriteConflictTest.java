@@ -0,0 +1,118 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.test.storage;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+import org.lealone.common.util.DataUtils;
+import org.lealone.mvstore.MVStore;
+import org.lealone.mvstore.MVStoreBuilder;
+import org.lealone.mvstore.mvcc.MVCCTransactionEngine;
+import org.lealone.storage.fs.FileUtils;
+import org.lealone.test.TestBase;
+import org.lealone.transaction.Transaction;
+import org.lealone.transaction.TransactionMap;
+
+/**
+ * 快照之后提交的修改不能被覆盖，不管后台线程有没有清除map中的事务ID。
+ */
+public class TransactionWriteConflictTest extends TestBase {
+
+    private final String baseDir = joinDirs("TransactionWriteConflictTest");
+
+    @Test
+    public void run() throws Exception {
+        FileUtils.deleteRecursive(baseDir, false);
+        Map<String, String> config = new HashMap<>();
+        config.put("base_dir", baseDir);
+        config.put("transaction_log_dir", "tlog");
+        // 后台线程启动时会先清除一次，之后一个小时内都不会再清除事务ID
+        config.put("map_save_period", "3600000");
+        config.put("map_save_service_sleep_interval", "3600000");
+        config.put("version_gc_interval", "3600000");
+        MVCCTransactionEngine te = new MVCCTransactionEngine();
+        te.init(config);
+        MVStore store = (MVStore) new MVStoreBuilder().storageName(baseDir + File.separator + "data")
+                .openStorage();
+        try {
+            testUncleanedCommit(te, store);
+            testUncommitted(te, store);
+        } finally {
+            te.close();
+            store.close();
+        }
+        FileUtils.deleteRecursive(baseDir, false);
+    }
+
+    void testUncleanedCommit(MVCCTransactionEngine te, MVStore store) {
+        // 第一次清除可能正好清除了t2，这时换一个key再试，之后就不会再清除了
+        for (int key = 0;; key++) {
+            Transaction t1 = te.beginTransaction(false, false);
+            TransactionMap<Integer, String> map1 = t1.openMap("test", store);
+            assertNull(map1.get(key));
+
+            Transaction t2 = te.beginTransaction(false, false);
+            t2.openMap("test", store).put(key, "t2");
+            t2.commit();
+            if (te.getUncleanedTransactionCount() == 0) {
+                t1.rollback();
+                assertTrue(key < 10);
+                continue;
+            }
+
+            // t2已经提交了，只是map中还有它的事务ID，这不是行锁而是写冲突
+            try {
+                map1.put(key, "t1");
+                fail();
+            } catch (IllegalStateException e) {
+                assertEquals(DataUtils.ERROR_TRANSACTION_WRITE_CONFLICT, DataUtils.getErrorCode(e.getMessage()));
+            }
+            t1.rollback();
+            assertEquals("t2", get(te, store, key));
+            return;
+        }
+    }
+
+    // 还没提交的事务持有行锁
+    void testUncommitted(MVCCTransactionEngine te, MVStore store) {
+        Transaction t1 = te.beginTransaction(false, false);
+        TransactionMap<Integer, String> map1 = t1.openMap("test", store);
+        Transaction t2 = te.beginTransaction(false, false);
+        t2.openMap("test", store).put(100, "t2");
+        try {
+            map1.put(100, "t1");
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals(DataUtils.ERROR_TRANSACTION_LOCKED, DataUtils.getErrorCode(e.getMessage()));
+        }
+        t2.commit();
+        t1.rollback();
+        assertEquals("t2", get(te, store, 100));
+    }
+
+    private static String get(MVCCTransactionEngine te, MVStore store, int key) {
+        Transaction t = te.beginTransaction(false, false);
+        TransactionMap<Integer, String> map = t.openMap("test", store);
+        String value = map.get(key);
+        t.commit();
+        return value;
+    }
+}